@@ -73,3 +73,18 @@ publishing {
 tasks.test {
     useJUnitPlatform()
 }
+
+// The TLB's associativity is fixed when the CPU class is generated, so it needs its own test run.
+val testTwoWayTLB by tasks.registering(Test::class) {
+    description = "Runs the RISC-V tests with two-way set-associative TLBs."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform()
+    systemProperty("sedna.tlb.ways", 2)
+    filter { includeTestsMatching("li.cil.sedna.riscv.R5*") }
+}
+
+tasks.check {
+    dependsOn(testTwoWayTLB)
+}
@@ -0,0 +1,37 @@
+package li.cil.sedna.api.device;
+
+/**
+ * Event schedulers step {@link ScheduledSteppable} devices at the points in time they requested.
+ * <p>
+ * Time is measured in cycles, the same unit passed to {@link Steppable#step(int)}. Implementations
+ * must be thread-safe, since devices may schedule events while being accessed from other threads.
+ */
+public interface EventScheduler {
+    /**
+     * The current time of this scheduler.
+     *
+     * @return the current time, in cycles.
+     */
+    long getTime();
+
+    /**
+     * Requests the specified device to be stepped once the specified time has been reached.
+     * <p>
+     * Each device has at most one pending event. If the device already has an event pending
+     * that is due no later than the specified time, this does nothing. After a device has been
+     * stepped, it must schedule a new event if it needs to be stepped again.
+     *
+     * @param device the device to step.
+     * @param time   the time at which to step the device, in cycles.
+     */
+    void schedule(ScheduledSteppable device, long time);
+
+    /**
+     * Requests the specified device to be stepped as soon as possible.
+     *
+     * @param device the device to step.
+     */
+    default void schedule(final ScheduledSteppable device) {
+        schedule(device, getTime());
+    }
+}
@@ -0,0 +1,22 @@
+package li.cil.sedna.api.device;
+
+import javax.annotation.Nullable;
+
+/**
+ * Scheduled steppable devices only need to be stepped at times they request from an {@link EventScheduler},
+ * for example when a request is pending or a timer deadline is reached, instead of continuously.
+ * <p>
+ * When stepped, the number of cycles passed is the time since the device was last stepped, which
+ * may be capped by the scheduler.
+ */
+public interface ScheduledSteppable extends Steppable {
+    /**
+     * Sets the scheduler this device schedules its events with.
+     * <p>
+     * Schedulers may be replaced or rebuilt, e.g. after loading a saved state, so when this
+     * is called, the device must schedule events for all work it currently has pending.
+     *
+     * @param scheduler the scheduler to use, or {@code null} when the device was removed.
+     */
+    void setEventScheduler(@Nullable EventScheduler scheduler);
+}
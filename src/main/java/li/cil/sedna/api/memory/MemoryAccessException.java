@@ -10,6 +10,12 @@ import java.io.IOException;
  * This exception may be thrown whenever memory mapped in a {@link MemoryMap}
  * is accessed, specifically any {@link MemoryMappedDevice} may throw these exceptions to signal an
  * invalid access.
+ * <p>
+ * Since guests may trigger these frequently, they do not record a stack trace.
  */
 public final class MemoryAccessException extends IOException {
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
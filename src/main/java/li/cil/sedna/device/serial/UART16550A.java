@@ -4,13 +4,16 @@ import it.unimi.dsi.fastutil.bytes.ByteArrayFIFOQueue;
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.Interrupt;
 import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.EventScheduler;
 import li.cil.sedna.api.device.InterruptSource;
 import li.cil.sedna.api.device.MemoryMappedDevice;
 import li.cil.sedna.api.device.Resettable;
-import li.cil.sedna.api.device.Steppable;
+import li.cil.sedna.api.device.ScheduledSteppable;
 import li.cil.sedna.api.device.serial.SerialDevice;
 import li.cil.sedna.api.memory.MemoryAccessException;
 
+import javax.annotation.Nullable;
+
 import static java.util.Collections.singleton;
 
 /**
@@ -23,7 +26,7 @@ import static java.util.Collections.singleton;
  */
 @SuppressWarnings("PointlessBitwiseExpression")
 @Serialized
-public final class UART16550A implements Resettable, Steppable, MemoryMappedDevice, SerialDevice, InterruptSource {
+public final class UART16550A implements Resettable, ScheduledSteppable, MemoryMappedDevice, SerialDevice, InterruptSource {
     private static final int UART_RBR_OFFSET = 0; // Receive buffer register (Read-only)
     private static final int UART_THR_OFFSET = 0; // Transmitter holding register (Write-only)
     private static final int UART_IER_OFFSET = 1; // Interrupt enable register (Read-write)
@@ -130,6 +133,7 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
     private final ByteArrayFIFOQueue transmitFifo = new ByteArrayFIFOQueue(FIFO_QUEUE_CAPACITY);
 
     private boolean interruptUpdatePending;
+    @Nullable private EventScheduler scheduler;
     private boolean transmitInterruptPending;
     private boolean timeoutInterruptPending;
 
@@ -164,7 +168,7 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
 
             if ((lsr & UART_LSR_THRE) != 0 && !transmitInterruptPending) {
                 transmitInterruptPending = true;
-                interruptUpdatePending = true;
+                scheduleInterruptUpdate();
             }
 
             return value;
@@ -195,7 +199,7 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
             lsr |= UART_LSR_DR;
 
             timeoutInterruptPending = true; // Not correct, but good enough.
-            interruptUpdatePending = true;
+            scheduleInterruptUpdate();
         }
     }
 
@@ -235,8 +239,21 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
 
     @Override
     public void step(final int cycles) {
-        if (interruptUpdatePending) {
-            updateInterrupts();
+        synchronized (lock) {
+            if (interruptUpdatePending) {
+                interruptUpdatePending = false;
+                updateInterrupts();
+            }
+        }
+    }
+
+    @Override
+    public void setEventScheduler(@Nullable final EventScheduler scheduler) {
+        synchronized (lock) {
+            this.scheduler = scheduler;
+            if (interruptUpdatePending && scheduler != null) {
+                scheduler.schedule(this);
+            }
         }
     }
 
@@ -466,4 +483,11 @@ public final class UART16550A implements Resettable, Steppable, MemoryMappedDevi
             interrupt.raiseInterrupt();
         }
     }
+
+    private void scheduleInterruptUpdate() {
+        interruptUpdatePending = true;
+        if (scheduler != null) {
+            scheduler.schedule(this);
+        }
+    }
 }
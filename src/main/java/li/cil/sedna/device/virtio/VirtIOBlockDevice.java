@@ -2,11 +2,13 @@ package li.cil.sedna.device.virtio;
 
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.device.BlockDevice;
-import li.cil.sedna.api.device.Steppable;
+import li.cil.sedna.api.device.EventScheduler;
+import li.cil.sedna.api.device.ScheduledSteppable;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.device.block.NullBlockDevice;
 
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,7 +17,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
 
-public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Steppable, Closeable {
+public final class VirtIOBlockDevice extends AbstractVirtIODevice implements ScheduledSteppable, Closeable {
     private static final int VIRTIO_BLK_SECTOR_SIZE = 512;
 
     /**
@@ -101,6 +103,7 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_SEGMENT_SIZE * MAX_SEGMENT_COUNT]);
 
     private BlockDevice block;
+    @Nullable private EventScheduler scheduler;
     private int remainingByteProcessingQuota;
     @Serialized private boolean hasPendingRequest;
 
@@ -177,6 +180,21 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
             }
         } catch (final Throwable e) {
             error();
+            return;
+        }
+
+        // Out of quota with requests left, continue once we've accumulated enough quota again.
+        if (hasPendingRequest && scheduler != null) {
+            final long cyclesUntilQuota = ((1L - remainingByteProcessingQuota) * 1000 + maxBytesPerThousandCycles - 1) / maxBytesPerThousandCycles;
+            scheduler.schedule(this, scheduler.getTime() + cyclesUntilQuota);
+        }
+    }
+
+    @Override
+    public void setEventScheduler(@Nullable final EventScheduler scheduler) {
+        this.scheduler = scheduler;
+        if (hasPendingRequest && scheduler != null) {
+            scheduler.schedule(this);
         }
     }
 
@@ -237,6 +255,9 @@ public final class VirtIOBlockDevice extends AbstractVirtIODevice implements Ste
     @Override
     protected void handleQueueNotification(final int queueIndex) {
         hasPendingRequest = true;
+        if (scheduler != null) {
+            scheduler.schedule(this);
+        }
     }
 
     private int processRequest() throws VirtIODeviceException, MemoryAccessException {
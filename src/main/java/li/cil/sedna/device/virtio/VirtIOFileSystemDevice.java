@@ -2,7 +2,8 @@ package li.cil.sedna.device.virtio;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
 import li.cil.ceres.api.Serialized;
-import li.cil.sedna.api.device.Steppable;
+import li.cil.sedna.api.device.EventScheduler;
+import li.cil.sedna.api.device.ScheduledSteppable;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.fs.*;
@@ -36,7 +37,7 @@ import java.util.List;
  * </ul>
  */
 @SuppressWarnings("PointlessBitwiseExpression")
-public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implements Steppable {
+public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implements ScheduledSteppable {
     private static final int VIRTIO_9P_MAX_MESSAGE_SIZE = 8 * 1024;
     private static final String VIRTIO_9P_VERSION = "9P2000.L";
     private static final int BYTES_PER_THOUSAND_CYCLES = 32;
@@ -166,6 +167,7 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
 
     private final String tag;
     private final FileSystem fileSystem;
+    @Nullable private EventScheduler scheduler;
     private int remainingByteProcessingQuota;
 
     @Serialized private final FileSystemFileMap files = new FileSystemFileMap();
@@ -213,6 +215,21 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
             }
         } catch (final Throwable e) {
             error();
+            return;
+        }
+
+        // Out of quota with requests left, continue once we've accumulated enough quota again.
+        if (hasPendingRequest && scheduler != null) {
+            final long cyclesUntilQuota = ((1L - remainingByteProcessingQuota) * 1000 + BYTES_PER_THOUSAND_CYCLES - 1) / BYTES_PER_THOUSAND_CYCLES;
+            scheduler.schedule(this, scheduler.getTime() + cyclesUntilQuota);
+        }
+    }
+
+    @Override
+    public void setEventScheduler(@Nullable final EventScheduler scheduler) {
+        this.scheduler = scheduler;
+        if (hasPendingRequest && scheduler != null) {
+            scheduler.schedule(this);
         }
     }
 
@@ -229,6 +246,9 @@ public final class VirtIOFileSystemDevice extends AbstractVirtIODevice implement
     @Override
     protected void handleQueueNotification(final int queueIndex) {
         hasPendingRequest = true;
+        if (scheduler != null) {
+            scheduler.schedule(this);
+        }
     }
 
     private int processRequest() throws VirtIODeviceException, IOException {
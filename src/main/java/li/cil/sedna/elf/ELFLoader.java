@@ -0,0 +1,65 @@
+package li.cil.sedna.elf;
+
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.memory.MemoryMaps;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies the loadable segments of ELF files into memory.
+ * <p>
+ * Segments are copied in bulk, using {@link PhysicalMemory#store(int, ByteBuffer)}, so copying runs at the
+ * speed of a plain memory copy. Parts of a segment covering devices other than physical memory, such as a
+ * device mapped over a program's {@code .tohost} section, are skipped, since writing file contents to device
+ * registers could trigger device behaviour.
+ */
+public final class ELFLoader {
+    private static final int ZERO_FILL_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Copies all loadable segments of the specified ELF file into memory, at their physical addresses.
+     *
+     * @param elf       the ELF file to load.
+     * @param memoryMap the memory map to copy the segments into.
+     * @throws MemoryAccessException when a segment covers unmapped memory.
+     */
+    public static void loadSegments(final ELF elf, final MemoryMap memoryMap) throws MemoryAccessException {
+        for (final ProgramHeader header : elf.programHeaderTable) {
+            if (header.is(ProgramHeaderType.PT_LOAD)) {
+                loadSegment(header, memoryMap, header.physicalAddress);
+            }
+        }
+    }
+
+    /**
+     * Copies a segment into memory at the specified address.
+     * <p>
+     * The part of the segment not present in the file, such as its {@code .bss} section, is filled with zeros.
+     *
+     * @param header    the program header describing the segment.
+     * @param memoryMap the memory map to copy the segment into.
+     * @param address   the address to copy the segment to.
+     * @throws MemoryAccessException when the segment covers unmapped memory.
+     */
+    public static void loadSegment(final ProgramHeader header, final MemoryMap memoryMap, final long address) throws MemoryAccessException {
+        MemoryMaps.store(memoryMap, address, header.getView(), true);
+        zeroFill(memoryMap, address + header.sizeInFile, header.sizeInMemory - header.sizeInFile);
+    }
+
+    private static void zeroFill(final MemoryMap memoryMap, long address, long length) throws MemoryAccessException {
+        if (length <= 0) {
+            return;
+        }
+
+        final ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(length, ZERO_FILL_CHUNK_SIZE));
+        while (length > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(length, zeros.capacity()));
+            MemoryMaps.store(memoryMap, address, zeros, true);
+            address += zeros.limit();
+            length -= zeros.limit();
+        }
+    }
+}
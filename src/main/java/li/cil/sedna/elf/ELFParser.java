@@ -36,21 +36,98 @@ public final class ELFParser {
             throw new IllegalArgumentException("name section is not of type SHT_STRTAB");
         }
 
-        final long nameListBase = nameSection.offset;
         for (final SectionHeader sectionHeader : elf.sectionHeaderTable) {
-            final long nameStart = nameListBase + sectionHeader.nameOffset;
-            elf.data.position((int) nameStart);
-            final StringBuilder sb = new StringBuilder();
-            char ch;
-            while ((ch = (char) elf.data.get()) != '\0') {
-                sb.append(ch);
-            }
-            sectionHeader.name = sb.toString();
+            sectionHeader.name = readString(elf, nameSection.offset + sectionHeader.nameOffset);
         }
 
         return elf;
     }
 
+    /**
+     * Reads the symbols in the specified symbol table, i.e. a section of type {@link SectionHeaderType#SHT_SYMTAB}
+     * or {@link SectionHeaderType#SHT_DYNSYM}.
+     *
+     * @param section the symbol table section.
+     * @return the symbols in the table, in the order they are stored in.
+     * @throws IllegalArgumentException if the section is not a valid symbol table.
+     */
+    public static List<Symbol> readSymbols(final SectionHeader section) {
+        if (!section.is(SectionHeaderType.SHT_SYMTAB) && !section.is(SectionHeaderType.SHT_DYNSYM)) {
+            throw new IllegalArgumentException("section is not a symbol table");
+        }
+
+        final ELF elf = section.elf;
+        final int minEntrySize = switch (elf.format) {
+            case x32 -> 0x10;
+            case x64 -> 0x18;
+        };
+
+        if (section.entrySize < minEntrySize) {
+            throw new IllegalArgumentException("invalid symbol table entry size");
+        }
+
+        if (section.link >= elf.sectionHeaderTable.size() || !elf.sectionHeaderTable.get(section.link).is(SectionHeaderType.SHT_STRTAB)) {
+            throw new IllegalArgumentException("symbol name section is not of type SHT_STRTAB");
+        }
+
+        final SectionHeader nameSection = elf.sectionHeaderTable.get(section.link);
+        final int count = (int) (section.size / section.entrySize);
+        final ArrayList<Symbol> result = new ArrayList<>(count);
+        final int[] nameOffsets = new int[count];
+
+        elf.data.position((int) section.offset);
+        for (int i = 0; i < count; i++) {
+            final Symbol symbol = new Symbol();
+
+            // st_name
+            nameOffsets[i] = read32(elf);
+
+            final int info;
+            if (elf.format == Format.x64) {
+                // st_info, st_other, st_shndx
+                info = readi(elf);
+                skip(elf, 1);
+                symbol.sectionIndex = read16i(elf);
+
+                // st_value, st_size
+                symbol.value = readWord(elf);
+                symbol.size = readWord(elf);
+            } else {
+                // st_value, st_size
+                symbol.value = readWord(elf);
+                symbol.size = readWord(elf);
+
+                // st_info, st_other, st_shndx
+                info = readi(elf);
+                skip(elf, 1);
+                symbol.sectionIndex = read16i(elf);
+            }
+
+            symbol.type = info & 0xF;
+            symbol.binding = info >>> 4;
+
+            skip(elf, section.entrySize - minEntrySize);
+
+            result.add(symbol);
+        }
+
+        for (int i = 0; i < count; i++) {
+            result.get(i).name = readString(elf, nameSection.offset + nameOffsets[i]);
+        }
+
+        return result;
+    }
+
+    private static String readString(final ELF elf, final long offset) {
+        elf.data.position((int) offset);
+        final StringBuilder sb = new StringBuilder();
+        char ch;
+        while ((ch = (char) elf.data.get()) != '\0') {
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
     private static byte read(final ELF elf) {
         return elf.data.get();
     }
@@ -0,0 +1,51 @@
+package li.cil.sedna.elf;
+
+import javax.annotation.Nullable;
+
+public final class Symbol {
+    public String name;
+    public long value;
+    public long size;
+    public int type;
+    public int binding;
+    public int sectionIndex;
+
+    public boolean is(final SymbolType type) {
+        return this.type == type.value;
+    }
+
+    @Nullable
+    public SymbolType getType() {
+        for (final SymbolType type : SymbolType.values()) {
+            if (is(type)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether the specified address lies within the size of this symbol.
+     * <p>
+     * Symbols without a size, such as labels in assembly code, contain no addresses. Lookups via
+     * {@link SymbolIndex#find(long)} treat them as extending up to the next symbol instead.
+     *
+     * @param address the address to check.
+     * @return {@code true} if the address lies within this symbol.
+     */
+    public boolean contains(final long address) {
+        return Long.compareUnsigned(address - value, size) < 0;
+    }
+
+    @Override
+    public String toString() {
+        final SymbolType type = getType();
+        return "Symbol{" +
+            "name=" + name +
+            ", type=" + (type != null ? type : ("0x" + Integer.toHexString(this.type))) +
+            ", value=0x" + Long.toHexString(value) +
+            ", size=0x" + Long.toHexString(size) +
+            '}';
+    }
+}
@@ -0,0 +1,114 @@
+package li.cil.sedna.elf;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Symbols of an ELF file sorted by address, for looking up the symbol an address belongs to, e.g. when
+ * profiling or tracing code running in the emulator.
+ * <p>
+ * Only named symbols of code and data defined in a section of the file are indexed. Symbols are read from
+ * the {@code .symtab} section, or from the {@code .dynsym} section if the file has been stripped.
+ */
+public final class SymbolIndex {
+    private static final int SHN_UNDEF = 0;
+    private static final int SHN_LORESERVE = 0xFF00;
+
+    private final Symbol[] symbols;
+
+    // Symbol addresses with their sign bit flipped, so that signed comparisons order them like unsigned addresses.
+    private final long[] keys;
+
+    private SymbolIndex(final Symbol[] symbols) {
+        this.symbols = symbols;
+        this.keys = new long[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            keys[i] = symbols[i].value ^ Long.MIN_VALUE;
+        }
+    }
+
+    public static SymbolIndex create(final ELF elf) {
+        SectionHeader table = null;
+        for (final SectionHeader header : elf.sectionHeaderTable) {
+            if (header.is(SectionHeaderType.SHT_SYMTAB)) {
+                table = header;
+                break;
+            } else if (header.is(SectionHeaderType.SHT_DYNSYM)) {
+                table = header;
+            }
+        }
+
+        if (table == null) {
+            return new SymbolIndex(new Symbol[0]);
+        }
+
+        final ArrayList<Symbol> result = new ArrayList<>();
+        for (final Symbol symbol : ELFParser.readSymbols(table)) {
+            if (symbol.name.isEmpty() ||
+                symbol.sectionIndex == SHN_UNDEF || symbol.sectionIndex >= SHN_LORESERVE ||
+                !(symbol.is(SymbolType.STT_NOTYPE) || symbol.is(SymbolType.STT_OBJECT) || symbol.is(SymbolType.STT_FUNC))) {
+                continue;
+            }
+            result.add(symbol);
+        }
+
+        // Of symbols at the same address, prefer the larger ones in lookups, which pick the last candidate.
+        result.sort(Comparator.<Symbol>comparingLong(symbol -> symbol.value ^ Long.MIN_VALUE)
+            .thenComparing((a, b) -> Long.compareUnsigned(a.size, b.size)));
+
+        return new SymbolIndex(result.toArray(Symbol[]::new));
+    }
+
+    public List<Symbol> getSymbols() {
+        return Collections.unmodifiableList(Arrays.asList(symbols));
+    }
+
+    /**
+     * Finds the symbol the specified address belongs to.
+     * <p>
+     * This is the closest symbol at or below the address, if the address lies within its size, see
+     * {@link Symbol#contains(long)}. Symbols without a size, such as labels in assembly code, are assumed to
+     * extend up to the next symbol.
+     *
+     * @param address the address to look up.
+     * @return the symbol containing the address, or {@code null} if there is none.
+     */
+    @Nullable
+    public Symbol find(final long address) {
+        int index = Arrays.binarySearch(keys, address ^ Long.MIN_VALUE);
+        if (index >= 0) {
+            // Multiple symbols may share an address, use the last one.
+            while (index + 1 < keys.length && keys[index + 1] == keys[index]) {
+                index++;
+            }
+        } else {
+            index = -index - 2; // Insertion point minus one, i.e. the last symbol below the address.
+            if (index < 0) {
+                return null;
+            }
+        }
+
+        final Symbol symbol = symbols[index];
+        return symbol.size == 0 || symbol.contains(address) ? symbol : null;
+    }
+
+    /**
+     * Finds the symbol with the specified name.
+     *
+     * @param name the name of the symbol.
+     * @return the symbol with the specified name, or {@code null} if there is none.
+     */
+    @Nullable
+    public Symbol get(final String name) {
+        for (final Symbol symbol : symbols) {
+            if (symbol.name.equals(name)) {
+                return symbol;
+            }
+        }
+        return null;
+    }
+}
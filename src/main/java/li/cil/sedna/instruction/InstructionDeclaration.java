@@ -35,6 +35,17 @@ public final class InstructionDeclaration {
         this.arguments = arguments;
     }
 
+    /**
+     * Creates a copy of this declaration that only matches the bits of its pattern in the specified mask.
+     *
+     * @param patternMask the mask of bits the copy should match, will be limited to the current mask.
+     * @return the copy of this declaration.
+     */
+    public InstructionDeclaration withPatternMask(final int patternMask) {
+        return new InstructionDeclaration(type, size, name, displayName, lineNumber,
+            pattern & patternMask, this.patternMask & patternMask, unusedBits, arguments);
+    }
+
     @Override
     public String toString() {
         return displayName;
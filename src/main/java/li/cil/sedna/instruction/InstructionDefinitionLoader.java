@@ -1,7 +1,7 @@
 package li.cil.sedna.instruction;
 
-import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
 import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionSizeInstructionArgument;
 import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -134,7 +134,7 @@ public final class InstructionDefinitionLoader {
                     arguments[i] = argument;
                     argumentNames[i] = argumentName;
                 } else if (annotation.isInstructionSize) {
-                    arguments[i] = new ConstantInstructionArgument(declaration.size);
+                    arguments[i] = new InstructionSizeInstructionArgument(declaration.size);
                 } else if (annotation.isProgramCounter) {
                     arguments[i] = new ProgramCounterInstructionArgument();
                 } else {
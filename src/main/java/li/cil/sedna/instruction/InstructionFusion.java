@@ -0,0 +1,44 @@
+package li.cil.sedna.instruction;
+
+import java.util.List;
+
+/**
+ * Declares that two instructions directly following each other may be run as one.
+ * <p>
+ * Fusions are declared by instruction name, so a single fusion applies to all declarations
+ * with these names, e.g. to compressed instructions as well.
+ */
+public final class InstructionFusion {
+    public final String firstName;
+    public final String secondName;
+    public final List<Constraint> constraints;
+    public final int lineNumber;
+
+    InstructionFusion(final String firstName,
+                      final String secondName,
+                      final List<Constraint> constraints,
+                      final int lineNumber) {
+        this.firstName = firstName;
+        this.secondName = secondName;
+        this.constraints = constraints;
+        this.lineNumber = lineNumber;
+    }
+
+    @Override
+    public String toString() {
+        return firstName + "+" + secondName;
+    }
+
+    /**
+     * Requires an argument of the first instruction to have the same value as an argument of the second.
+     */
+    public static final class Constraint {
+        public final String firstArgument;
+        public final String secondArgument;
+
+        Constraint(final String firstArgument, final String secondArgument) {
+            this.firstArgument = firstArgument;
+            this.secondArgument = secondArgument;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package li.cil.sedna.instruction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class InstructionFusionLoader {
+    public static ArrayList<InstructionFusion> load(final InputStream stream) throws IOException {
+        final ArrayList<InstructionFusion> fusions = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+
+        String line;
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            line = line.split("#", 2)[0].trim();
+            if (!line.isEmpty()) {
+                try {
+                    fusions.add(parseFusion(new ArrayList<>(Arrays.asList(line.split("\\s+"))), lineNumber));
+                } catch (final IllegalArgumentException e) {
+                    throw new IOException(String.format("Failed parsing line [%d].", lineNumber), e);
+                }
+            }
+            lineNumber++;
+        }
+
+        return fusions;
+    }
+
+    private static InstructionFusion parseFusion(final List<String> tokens, final int lineNumber) {
+        if (tokens.size() < 2 || "|".equals(tokens.get(0)) || "|".equals(tokens.get(1))) {
+            throw new IllegalArgumentException("Expected two instruction names.");
+        }
+
+        final String firstName = tokens.remove(0);
+        final String secondName = tokens.remove(0);
+
+        final ArrayList<InstructionFusion.Constraint> constraints = new ArrayList<>();
+        if (!tokens.isEmpty()) {
+            if (!"|".equals(tokens.get(0))) {
+                throw new IllegalArgumentException(String.format("Unexpected token [%s].", tokens.get(0)));
+            }
+            tokens.remove(0);
+
+            for (final String token : tokens) {
+                final String[] arguments = token.split("=");
+                if (arguments.length != 2 || arguments[0].isEmpty() || arguments[1].isEmpty()) {
+                    throw new IllegalArgumentException(String.format("Invalid constraint [%s].", token));
+                }
+                constraints.add(new InstructionFusion.Constraint(arguments[0], arguments[1]));
+            }
+        }
+
+        return new InstructionFusion(firstName, secondName, constraints, lineNumber);
+    }
+}
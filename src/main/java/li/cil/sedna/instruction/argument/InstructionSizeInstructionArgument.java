@@ -0,0 +1,34 @@
+package li.cil.sedna.instruction.argument;
+
+import java.util.Objects;
+
+public final class InstructionSizeInstructionArgument implements InstructionArgument {
+    public final int size;
+
+    public InstructionSizeInstructionArgument(final int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int get(final int instruction) {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final InstructionSizeInstructionArgument that = (InstructionSizeInstructionArgument) o;
+        return size == that.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size);
+    }
+}
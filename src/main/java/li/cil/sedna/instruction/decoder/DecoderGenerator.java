@@ -8,14 +8,18 @@ import li.cil.sedna.instruction.InstructionType;
 import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
 import li.cil.sedna.instruction.argument.FieldInstructionArgument;
 import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionSizeInstructionArgument;
 import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeInnerNode;
 import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
 import li.cil.sedna.instruction.decoder.tree.DecoderTreeBranchNode;
 import li.cil.sedna.instruction.decoder.tree.DecoderTreeSwitchNode;
 import li.cil.sedna.utils.BitUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.objectweb.asm.*;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 
+import javax.annotation.Nullable;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -42,6 +46,8 @@ import java.util.stream.Collectors;
  * In particular, the {@code pc} and {@code instOffset} parameters <em>must not</em> be final because
  * the generated code will update them as execution proceeds. The {@code inst} will typically also not
  * be final, so that the next instruction can be fetched without exiting the current instruction sequence.
+ * The method may take further parameters after these. The generated code only uses locals following
+ * the parameters, so these are safe to use across invocations of the {@code decoderHook}.
  * <p>
  * Semantically, the {@code decoderMethod} is expected to be used as such:
  * <ul>
@@ -51,16 +57,21 @@ import java.util.stream.Collectors;
  *     <li>It will keep fetching and decoding instructions until either the end of the defined memory range
  *     is reached, or an exception is raised by the decoder (illegal instruction exceptions) or the instructions
  *     being executed (implementation defined, typically memory access exceptions).</li>
+ *     <li>Jumps whose target is within {@code int} range of the current {@code pc} are applied to
+ *     {@code instOffset} and execution continues after the hook, <em>including backward jumps</em>. The
+ *     {@code decoderMethod} is responsible for checking that {@code instOffset} is still in range, and for
+ *     bounding the number of instructions it runs, to avoid never leaving tight loops.</li>
  * </ul>
  * <p>
  * Example implementation of a {@code decoderMethod} and {@code decoderHook}:
  * <pre>
- * private void decoderMethod(final MemoryView view, int inst, int pc, int instOffset, final int instEnd) {
+ * private void decoderMethod(final MemoryView view, int inst, int pc, int instOffset, final int instEnd,
+ *                            final int instStart, int budget) {
  *     try {
  *         for (; ; ) {
  *             decoderHook();
  *
- *             if (instOffset < instEnd) {
+ *             if (instOffset >= instStart && instOffset < instEnd && --budget > 0) {
  *                 inst = view.load(instOffset, Sizes.SIZE_32_LOG2);
  *             } else {
  *                 this.pc = pc;
@@ -77,11 +88,39 @@ import java.util.stream.Collectors;
  * </pre>
  */
 public class DecoderGenerator extends ClassVisitor implements Opcodes {
+    /**
+     * The default bytecode size budget for the decoder method. HotSpot does not compile methods larger
+     * than 8000 bytes at all (see {@code -XX:HugeMethodLimit}), which would leave the decoder loop in the
+     * bytecode interpreter. This leaves some headroom for code following the decoder hook.
+     */
+    public static final int DEFAULT_METHOD_SIZE_BUDGET = 7000;
+
+    /**
+     * The default bytecode size budget for instruction group methods, and for the handler group methods
+     * generated by the {@link DispatchGenerator}. Matches HotSpot's default limit for inlining frequently
+     * called methods (see {@code -XX:FreqInlineSize}).
+     */
+    public static final int DEFAULT_GROUP_SIZE_BUDGET = 325;
+
+    // Inner nodes executing at least this share of all instructions in a profile are kept in the calling
+    // method instead of being moved into an instruction group method, saving a call and the dispatch of
+    // its result. Their children are again only kept if they are hot, too. Nodes are only kept while the
+    // calling method stays within its size budget, see MethodSize.
+    private static final float HOT_NODE_THRESHOLD = 0.02f;
+
+    // Receives the instruction group methods generated while measuring code, and drops them.
+    private static final ClassVisitor MEASURING_CLASS_VISITOR = new ClassVisitor(ASM7) {
+    };
+
     private final AbstractDecoderTreeNode decoderTree;
     private final Function<InstructionDeclaration, InstructionDefinition> definitionProvider;
+    @Nullable private final DecoderProfile profile;
     private final String decoderMethod;
     private final String decoderHook;
     private final String illegalInstructionInternalName;
+    private final int methodSizeBudget;
+    private final int groupSizeBudget;
+    private final boolean variableInstructionSize;
     private String hostClassInternalName;
     private int instructionGroupMethodIndex;
 
@@ -91,12 +130,56 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                             final Class<?> illegalInstructionExceptionClass,
                             final String decoderMethod,
                             final String decoderHook) {
+        this(cv, decoderTree, definitionProvider, null, DEFAULT_METHOD_SIZE_BUDGET, DEFAULT_GROUP_SIZE_BUDGET, false, illegalInstructionExceptionClass, decoderMethod, decoderHook);
+    }
+
+    /**
+     * Creates a new decoder generator using the specified profile to lay out the generated code.
+     * <p>
+     * When a profile is given, cases of branch nodes are tested in order of their execution
+     * counts where possible, see {@link DecoderTree#sortByProfile(AbstractDecoderTreeNode, DecoderProfile)},
+     * and hot inner nodes are generated in place instead of in instruction group methods.
+     * <p>
+     * Hot inner nodes are only generated in place while the method they are generated into stays
+     * within its bytecode size budget. For the decoder method this is {@code methodSizeBudget}, for
+     * instruction group methods it is {@code groupSizeBudget}. Sizes are measured by generating the
+     * code in question, the decoder method's budget does not include code following the decoder hook.
+     * Without a profile no nodes are generated in place.
+     * <p>
+     * Switch nodes too large for a single instruction group method are split into a switch over smaller
+     * switches, each in its own instruction group method, see
+     * {@link DecoderTree#splitSwitch(DecoderTreeSwitchNode, int)}. This applies with and without a profile.
+     * <p>
+     * When {@code variableInstructionSize} is set, the size of an instruction is not taken from its
+     * declaration but computed from the instruction at run-time: four bytes if its two lowest bits
+     * are set, two bytes otherwise. This allows running instructions expanded from a compressed
+     * encoding through the leaves of their uncompressed equivalents. In this case the decoder tree
+     * must not test the two lowest bits.
+     */
+    public DecoderGenerator(final ClassVisitor cv,
+                            final AbstractDecoderTreeNode decoderTree,
+                            final Function<InstructionDeclaration, InstructionDefinition> definitionProvider,
+                            @Nullable final DecoderProfile profile,
+                            final int methodSizeBudget,
+                            final int groupSizeBudget,
+                            final boolean variableInstructionSize,
+                            final Class<?> illegalInstructionExceptionClass,
+                            final String decoderMethod,
+                            final String decoderHook) {
         super(ASM7, cv);
         this.decoderTree = decoderTree;
         this.definitionProvider = definitionProvider;
+        this.profile = profile != null && profile.getTotalCount() > 0 ? profile : null;
+        this.methodSizeBudget = methodSizeBudget;
+        this.groupSizeBudget = groupSizeBudget;
+        this.variableInstructionSize = variableInstructionSize;
         this.decoderMethod = decoderMethod;
         this.decoderHook = decoderHook;
         this.illegalInstructionInternalName = Type.getInternalName(illegalInstructionExceptionClass);
+
+        if (this.profile != null) {
+            DecoderTree.sortByProfile(decoderTree, this.profile);
+        }
     }
 
     protected void emitInstruction(final GeneratorContext context,
@@ -108,6 +191,9 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             if (argument instanceof final ConstantInstructionArgument constantArgument) {
                 context.emitFastLdc(constantArgument.value);
                 methodDescriptor.append('I');
+            } else if (argument instanceof final InstructionSizeInstructionArgument sizeArgument) {
+                context.emitInstructionSize(sizeArgument.size);
+                methodDescriptor.append('I');
             } else if (argument instanceof ProgramCounterInstructionArgument) {
                 context.methodVisitor.visitVarInsn(LLOAD, context.localPc);
                 methodDescriptor.append('J');
@@ -183,18 +269,24 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
     @Override
     public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
         if (decoderMethod.equals(name)) {
-            return new TemplateMethodVisitor(super.visitMethod(access, name, descriptor, signature, exceptions), super.cv);
+            // Fields are stored in locals following the parameters, which includes the implicit this.
+            final int localFirstField = Type.getArgumentsAndReturnSizes(descriptor) >> 2;
+            return new TemplateMethodVisitor(new CodeSizeEvaluator(super.visitMethod(access, name, descriptor, signature, exceptions)), super.cv, localFirstField);
         } else {
             return super.visitMethod(access, name, descriptor, signature, exceptions);
         }
     }
 
     private final class TemplateMethodVisitor extends MethodVisitor implements Opcodes {
+        private final CodeSizeEvaluator methodVisitor;
         private final ClassVisitor classVisitor;
+        private final int localFirstField;
 
-        public TemplateMethodVisitor(final MethodVisitor methodVisitor, final ClassVisitor classVisitor) {
+        public TemplateMethodVisitor(final CodeSizeEvaluator methodVisitor, final ClassVisitor classVisitor, final int localFirstField) {
             super(Opcodes.ASM7, methodVisitor);
+            this.methodVisitor = methodVisitor;
             this.classVisitor = classVisitor;
+            this.localFirstField = localFirstField;
         }
 
         @Override
@@ -204,7 +296,13 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 return;
             }
 
-            decoderTree.accept(new DecoderTreeRootNodeVisitor(new GeneratorContext(classVisitor, super.mv)));
+            final GeneratorContext context = new GeneratorContext(classVisitor, methodVisitor, localFirstField, null);
+            if (profile != null) {
+                final int size = methodVisitor.getMaxSize() + measure(context, decoderTree, DecoderTreeRootNodeVisitor::new);
+                decoderTree.accept(new DecoderTreeRootNodeVisitor(context.withMethodSize(new MethodSize(methodSizeBudget, size))));
+            } else {
+                decoderTree.accept(new DecoderTreeRootNodeVisitor(context));
+            }
         }
     }
 
@@ -219,7 +317,6 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         public static final int LOCAL_INST = 2;
         public static final int LOCAL_PC = 3;
         public static final int LOCAL_INST_OFFSET = 5;
-        public static final int LOCAL_FIRST_FIELD = 8;
 
         public static final int LOCAL_GEN_INST = 1;
         public static final int LOCAL_GEN_PC = 2;
@@ -228,10 +325,11 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         public static final int RETURN_CONTINUE = 0; // update pc then keep going
         public static final int RETURN_EXIT_INC_PC = 1; // update pc then exit the decoder loop
         public static final int RETURN_EXIT = 2; // exit the decoder loop
-        public static final int RETURN_JUMP = 3; // check pc; if forward jump and in bounds, keep going
+        public static final int RETURN_JUMP = 3; // check pc; if in int range, keep going
 
         public final ClassVisitor classVisitor;
         public final MethodVisitor methodVisitor;
+        public final CodeSizeEvaluator codeSizeEvaluator;
         public final ContextType type;
         public final int processedMask;
         public final int localInst;
@@ -241,30 +339,34 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         public final Label continueLabel;
         public final Label illegalInstructionLabel;
         public final Object2IntArrayMap<FieldInstructionArgument> localVariables;
+        @Nullable public final MethodSize methodSize; // Only set if hot nodes may be generated in place.
 
         // Constructor for new top-level context.
         private GeneratorContext(final ClassVisitor classVisitor,
-                                 final MethodVisitor methodVisitor) {
+                                 final CodeSizeEvaluator methodVisitor,
+                                 final int localFirstField,
+                                 @Nullable final MethodSize methodSize) {
             this(classVisitor, methodVisitor, ContextType.TOP_LEVEL, 0,
-                LOCAL_INST, LOCAL_PC, LOCAL_FIRST_FIELD,
-                new Label(), new Label(), new Object2IntArrayMap<>());
+                LOCAL_INST, LOCAL_PC, localFirstField,
+                new Label(), new Label(), new Object2IntArrayMap<>(), methodSize);
         }
 
         // Constructor for nested context.
         private GeneratorContext(final ClassVisitor classVisitor,
-                                 final MethodVisitor methodVisitor,
+                                 final CodeSizeEvaluator methodVisitor,
                                  final ContextType type,
                                  final int processedMask,
-                                 final Object2IntArrayMap<FieldInstructionArgument> localVariables) {
+                                 final Object2IntArrayMap<FieldInstructionArgument> localVariables,
+                                 @Nullable final MethodSize methodSize) {
             this(classVisitor, methodVisitor, type, processedMask,
                 LOCAL_GEN_INST, // inst is always first arg
                 LOCAL_GEN_PC, // pc is always second arg
                 LOCAL_GEN_FIRST_FIELD + localVariables.size(), // this + inst + pc + nargs
-                new Label(), new Label(), localVariables);
+                new Label(), new Label(), localVariables, methodSize);
         }
 
         private GeneratorContext(final ClassVisitor classVisitor,
-                                 final MethodVisitor methodVisitor,
+                                 final CodeSizeEvaluator methodVisitor,
                                  final ContextType type,
                                  final int processedMask,
                                  final int localInst,
@@ -272,9 +374,11 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                                  final int localFirstField,
                                  final Label continueLabel,
                                  final Label illegalInstructionLabel,
-                                 final Object2IntArrayMap<FieldInstructionArgument> localVariables) {
+                                 final Object2IntArrayMap<FieldInstructionArgument> localVariables,
+                                 @Nullable final MethodSize methodSize) {
             this.classVisitor = classVisitor;
             this.methodVisitor = methodVisitor;
+            this.codeSizeEvaluator = methodVisitor;
             this.type = type;
             this.processedMask = processedMask;
             this.localInst = localInst;
@@ -283,12 +387,33 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             this.continueLabel = continueLabel;
             this.illegalInstructionLabel = illegalInstructionLabel;
             this.localVariables = localVariables;
+            this.methodSize = methodSize;
         }
 
         public GeneratorContext withProcessed(final int mask) {
-            return new GeneratorContext(classVisitor, methodVisitor, type,
+            return new GeneratorContext(classVisitor, codeSizeEvaluator, type,
                 processedMask | mask, localInst, localPc, localFirstField,
-                continueLabel, illegalInstructionLabel, localVariables);
+                continueLabel, illegalInstructionLabel, localVariables, methodSize);
+        }
+
+        public GeneratorContext withMethodSize(final MethodSize methodSize) {
+            return new GeneratorContext(classVisitor, codeSizeEvaluator, type,
+                processedMask, localInst, localPc, localFirstField,
+                continueLabel, illegalInstructionLabel, localVariables, methodSize);
+        }
+
+        /**
+         * Creates a context generating the same code as this one, but only to measure its size. Instruction
+         * group methods generated in it are dropped, and no hot nodes are generated in place.
+         */
+        public GeneratorContext forMeasuring() {
+            return new GeneratorContext(MEASURING_CLASS_VISITOR, new CodeSizeEvaluator(null), type,
+                processedMask, localInst, localPc, localFirstField,
+                continueLabel, illegalInstructionLabel, new Object2IntArrayMap<>(localVariables), null);
+        }
+
+        public int getCodeSize() {
+            return codeSizeEvaluator.getMaxSize();
         }
 
         private void emitFastLdc(final int value) {
@@ -315,8 +440,53 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             methodVisitor.visitJumpInsn(GOTO, illegalInstructionLabel);
         }
 
+        public void emitInstructionGroupMethodEnd() {
+            methodVisitor.visitLabel(illegalInstructionLabel);
+            methodVisitor.visitTypeInsn(NEW, illegalInstructionInternalName);
+            methodVisitor.visitInsn(DUP);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, illegalInstructionInternalName,
+                "<init>", "()V", false);
+            methodVisitor.visitInsn(ATHROW);
+
+            switch (type) {
+                case VOID_METHOD -> {
+                    methodVisitor.visitLabel(continueLabel);
+                    methodVisitor.visitInsn(RETURN);
+                }
+                case CONDITIONAL_METHOD -> {
+                    methodVisitor.visitLabel(continueLabel);
+                    methodVisitor.visitInsn(ICONST_0 + GeneratorContext.RETURN_CONTINUE);
+                    methodVisitor.visitInsn(IRETURN);
+                }
+                default -> throw new IllegalStateException();
+            }
+        }
+
+        public void emitInstructionSize(final int size) {
+            if (variableInstructionSize) {
+                // size = 2 + (inst & 0b10), i.e. 4 for uncompressed and 2 for expanded instructions.
+                methodVisitor.visitVarInsn(ILOAD, localInst);
+                methodVisitor.visitInsn(ICONST_2);
+                methodVisitor.visitInsn(IAND);
+                methodVisitor.visitInsn(ICONST_2);
+                methodVisitor.visitInsn(IADD);
+            } else {
+                emitFastLdc(size);
+            }
+        }
+
         public void emitIncrementPC(final int value) {
-            if (type == ContextType.TOP_LEVEL) {
+            if (type == ContextType.TOP_LEVEL && variableInstructionSize) {
+                emitInstructionSize(value);
+                methodVisitor.visitInsn(DUP);
+                methodVisitor.visitInsn(I2L);
+                methodVisitor.visitVarInsn(LLOAD, LOCAL_PC);
+                methodVisitor.visitInsn(LADD);
+                methodVisitor.visitVarInsn(LSTORE, LOCAL_PC);
+                methodVisitor.visitVarInsn(ILOAD, LOCAL_INST_OFFSET);
+                methodVisitor.visitInsn(IADD);
+                methodVisitor.visitVarInsn(ISTORE, LOCAL_INST_OFFSET);
+            } else if (type == ContextType.TOP_LEVEL) {
                 methodVisitor.visitVarInsn(LLOAD, LOCAL_PC);
                 methodVisitor.visitLdcInsn((long) value);
                 methodVisitor.visitInsn(LADD);
@@ -369,23 +539,9 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         }
 
         public void emitJumpHandler() {
-            // If we had a write to PC we had a jump. We break the loop if we jumped backwards to prevent
-            // infinite loops in the decoder (because cycle limit checks are done outside of it for
-            // performance). If we're jumping forward, apply the delta to our instOffset instead.
-
-            methodVisitor.visitVarInsn(LLOAD, localPc); // [pc]
-            methodVisitor.visitVarInsn(ALOAD, GeneratorContext.LOCAL_THIS); // [pc, this]
-            methodVisitor.visitFieldInsn(GETFIELD, hostClassInternalName, "pc", "J"); // [pc, this.pc]
-
-            // if (pc >= this.pc) return;
-            methodVisitor.visitMethodInsn(INVOKESTATIC,
-                Type.getInternalName(Long.class), "compareUnsigned",
-                "(JJ)I", false); // [compare(pc, this.pc)]
-
-            final Label forwardJumpLabel = new Label();
-            methodVisitor.visitJumpInsn(IFLT, forwardJumpLabel); // []
-            methodVisitor.visitInsn(RETURN);
-            methodVisitor.visitLabel(forwardJumpLabel);
+            // If we had a write to PC we had a jump. Apply the delta to our instOffset and keep going,
+            // in either direction. The decoder method checks whether we are still in bounds, and also
+            // limits how many instructions run, so backward jumps cannot keep us in the loop forever.
 
             // localPc = this.pc; // update local pc for next inst
             methodVisitor.visitVarInsn(LLOAD, localPc); // [pc]
@@ -456,6 +612,48 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         }
     }
 
+    /**
+     * Measures the size of the code generated for a node in the specified context, without generating it.
+     */
+    private int measure(final GeneratorContext context, final AbstractDecoderTreeNode node,
+                        final Function<GeneratorContext, DecoderTreeVisitor> visitorFactory) {
+        final int methodIndex = instructionGroupMethodIndex;
+        final GeneratorContext measuringContext = context.forMeasuring();
+        node.accept(visitorFactory.apply(measuringContext));
+        instructionGroupMethodIndex = methodIndex;
+        return measuringContext.getCodeSize();
+    }
+
+    /**
+     * Generates an inner node into the current method, regardless of whether it is hot.
+     */
+    private final class InPlaceNodeVisitor implements DecoderTreeVisitor {
+        private final GeneratorContext context;
+
+        public InPlaceNodeVisitor(final GeneratorContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public DecoderTreeSwitchVisitor visitSwitch(final DecoderTreeSwitchNode node) {
+            return new SwitchVisitor(context);
+        }
+
+        @Override
+        public DecoderTreeBranchVisitor visitBranch(final DecoderTreeBranchNode node) {
+            return new BranchVisitor(context);
+        }
+
+        @Override
+        public DecoderTreeLeafVisitor visitInstruction() {
+            return new LeafVisitor(context);
+        }
+
+        @Override
+        public void visitEnd() {
+        }
+    }
+
     private final class InnerNodeVisitor implements DecoderTreeVisitor, Opcodes {
         private final GeneratorContext context;
         private final Label endLabel;
@@ -469,12 +667,14 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
 
         @Override
         public DecoderTreeSwitchVisitor visitSwitch(final DecoderTreeSwitchNode node) {
-            return new SwitchVisitor(generateMethodInvocation(node));
+            final GeneratorContext methodContext = generateMethodInvocation(node);
+            return methodContext != null ? new SwitchVisitor(methodContext) : null;
         }
 
         @Override
         public DecoderTreeBranchVisitor visitBranch(final DecoderTreeBranchNode node) {
-            return new BranchVisitor(generateMethodInvocation(node));
+            final GeneratorContext methodContext = generateMethodInvocation(node);
+            return methodContext != null ? new BranchVisitor(methodContext) : null;
         }
 
         @Override
@@ -485,26 +685,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         @Override
         public void visitEnd() {
             if (childContext != null) {
-                childContext.methodVisitor.visitLabel(childContext.illegalInstructionLabel);
-                childContext.methodVisitor.visitTypeInsn(NEW, illegalInstructionInternalName);
-                childContext.methodVisitor.visitInsn(DUP);
-                childContext.methodVisitor.visitMethodInsn(INVOKESPECIAL, illegalInstructionInternalName,
-                    "<init>", "()V", false);
-                childContext.methodVisitor.visitInsn(ATHROW);
-
-                switch (childContext.type) {
-                    case VOID_METHOD -> {
-                        childContext.methodVisitor.visitLabel(childContext.continueLabel);
-                        childContext.methodVisitor.visitInsn(RETURN);
-                    }
-                    case CONDITIONAL_METHOD -> {
-                        childContext.methodVisitor.visitLabel(childContext.continueLabel);
-                        childContext.methodVisitor.visitInsn(ICONST_0 + GeneratorContext.RETURN_CONTINUE);
-                        childContext.methodVisitor.visitInsn(IRETURN);
-                    }
-                    default -> throw new IllegalStateException();
-                }
-
+                childContext.emitInstructionGroupMethodEnd();
                 childContext.methodVisitor.visitMaxs(-1, -1);
                 childContext.methodVisitor.visitEnd();
             }
@@ -514,7 +695,13 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
             }
         }
 
-        private GeneratorContext generateMethodInvocation(final AbstractDecoderTreeNode node) {
+        /**
+         * Generates the invocation of the instruction group method for a node, if it gets one, and returns the
+         * context to generate the node in. Returns {@code null} if the node was too large for a single instruction
+         * group method, and has already been generated as a switch over smaller ones.
+         */
+        @Nullable
+        private GeneratorContext generateMethodInvocation(final AbstractDecoderTreeInnerNode node) {
             final List<InstructionDeclaration> instructions = node.getInstructions().toList();
             if (instructions.size() == 1) {
                 return context;
@@ -525,6 +712,10 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 return context;
             }
 
+            if (isHot(node)) {
+                return context;
+            }
+
             // Build list of arguments needed by instructions we're grouping into a method that we
             // have already sitting around in a local variable, so we can just pass those along as
             // parameters instead of having to re-compute them in the method.
@@ -546,6 +737,16 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 .filter(Objects::nonNull)
                 .toList();
             final boolean containsReturns = definitions.stream().anyMatch(d -> d.writesPC || d.returnsBoolean);
+            final ContextType methodType = containsReturns ? ContextType.CONDITIONAL_METHOD : ContextType.VOID_METHOD;
+
+            final int methodSize = measureInstructionGroupMethod(node, methodType, localsInMethod);
+            if (methodSize > groupSizeBudget && node instanceof final DecoderTreeSwitchNode switchNode) {
+                final DecoderTreeSwitchNode splitNode = DecoderTree.splitSwitch(switchNode, context.processedMask);
+                if (splitNode != null) {
+                    splitNode.accept(new InnerNodeVisitor(context, null));
+                    return null;
+                }
+            }
 
             final String methodName = decoderMethod + "$instructionGroup" + (instructionGroupMethodIndex++);
             final String methodDescriptor = "(IJ" + StringUtils.repeat('I', parameters.size()) + ")" + (containsReturns ? "I" : "V");
@@ -602,20 +803,53 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 .distinct()
                 .toArray(String[]::new);
 
-            final MethodVisitor childVisitor = context.classVisitor.visitMethod(ACC_PRIVATE,
-                methodName, methodDescriptor, null, exceptions);
+            final CodeSizeEvaluator childVisitor = new CodeSizeEvaluator(context.classVisitor.visitMethod(ACC_PRIVATE,
+                methodName, methodDescriptor, null, exceptions));
             childVisitor.visitCode();
 
             childContext = new GeneratorContext(
                 context.classVisitor,
                 childVisitor,
-                containsReturns ? ContextType.CONDITIONAL_METHOD : ContextType.VOID_METHOD,
+                methodType,
                 context.processedMask,
-                localsInMethod);
+                localsInMethod,
+                context.methodSize != null ? new MethodSize(groupSizeBudget, methodSize) : null);
 
             return childContext;
         }
 
+        private int measureInstructionGroupMethod(final AbstractDecoderTreeInnerNode node,
+                                                  final ContextType methodType,
+                                                  final Object2IntArrayMap<FieldInstructionArgument> localsInMethod) {
+            final int methodIndex = instructionGroupMethodIndex;
+            final GeneratorContext measuringContext = new GeneratorContext(
+                MEASURING_CLASS_VISITOR,
+                new CodeSizeEvaluator(null),
+                methodType,
+                context.processedMask,
+                new Object2IntArrayMap<>(localsInMethod),
+                null);
+            node.accept(new InPlaceNodeVisitor(measuringContext));
+            measuringContext.emitInstructionGroupMethodEnd();
+            instructionGroupMethodIndex = methodIndex;
+            return measuringContext.getCodeSize();
+        }
+
+        private boolean isHot(final AbstractDecoderTreeInnerNode node) {
+            final MethodSize methodSize = context.methodSize;
+            if (profile == null || methodSize == null) {
+                return false;
+            }
+
+            if (profile.getCount(node) < profile.getTotalCount() * HOT_NODE_THRESHOLD) {
+                return false;
+            }
+
+            final int inPlaceSize = measure(context, node, InPlaceNodeVisitor::new);
+            final int invocationSize = measure(context, node, measuringContext -> new InnerNodeVisitor(measuringContext, null));
+            return methodSize.tryGrow(inPlaceSize - invocationSize);
+        }
+
         private OptionalInt computeCommonInstructionSize(final AbstractDecoderTreeNode node) {
             final List<Integer> sizes = node.getInstructions().map(i -> i.size).distinct().toList();
             return sizes.size() == 1 ? OptionalInt.of(sizes.get(0)) : OptionalInt.empty();
@@ -666,7 +900,7 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 }
             }
 
-            if (maskFields.isEmpty()) {
+            if (maskFields.isEmpty() && caseCount > 1) {
                 throw new IllegalStateException(String.format("All cases in a switch node have the same patterns: [%s]",
                     maskFieldsWithEqualPatterns.stream().map(f -> Integer.toBinaryString(patterns[0] & f.asMask())).collect(Collectors.joining(", "))));
             }
@@ -689,6 +923,11 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
                 context.methodVisitor.visitLabel(switchLabel);
             }
 
+            // Switches split from larger ones may have a single case, which then directly follows the check above.
+            if (maskFields.isEmpty()) {
+                return;
+            }
+
             // Try compressing mask by making mask adjacent and see if patterns also
             // compressed this way lead to a sequence, enabling a table switch.
             // TODO Test different field permutations?
@@ -884,6 +1123,30 @@ public class DecoderGenerator extends ClassVisitor implements Opcodes {
         }
     }
 
+    /**
+     * The expected size of a method hot nodes may be generated into. Starts out as the measured size of the
+     * method with all inner nodes in instruction group methods. Each hot node generated in place grows it by
+     * the measured difference between the node's code and the code invoking its instruction group method.
+     */
+    private static final class MethodSize {
+        private final int budget;
+        private int size;
+
+        public MethodSize(final int budget, final int size) {
+            this.budget = budget;
+            this.size = size;
+        }
+
+        public boolean tryGrow(final int growth) {
+            if (size + growth > budget) {
+                return false;
+            }
+
+            size += growth;
+            return true;
+        }
+    }
+
     private static abstract class LocalVariableOwner implements Opcodes {
         // This is our threshold for pulling field extraction out of individual instruction leaf nodes into
         // a switch or branch node. 0 = pull up everything used more than once, 1 = pull up nothing,
@@ -0,0 +1,89 @@
+package li.cil.sedna.instruction.decoder;
+
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Execution counts of instructions, keyed by their display name.
+ * <p>
+ * Profiles are recorded by running a workload with a {@link DecoderProfileRecorder} in place of
+ * the regular {@link DecoderGenerator} and may then be passed to the {@link DecoderGenerator} to
+ * test hot instructions first and keep them in the top-level decoder method.
+ * <p>
+ * The file format is one instruction per line, consisting of the instruction's display name
+ * followed by its execution count. Everything after a {@code #} is a comment. Files are UTF-8 encoded.
+ */
+public final class DecoderProfile {
+    private final Object2LongOpenHashMap<String> counts;
+    private final long totalCount;
+
+    public DecoderProfile(final Object2LongMap<String> counts) {
+        this.counts = new Object2LongOpenHashMap<>(counts);
+
+        long totalCount = 0;
+        for (final long count : this.counts.values()) {
+            totalCount += count;
+        }
+        this.totalCount = totalCount;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getCount(final InstructionDeclaration declaration) {
+        return counts.getLong(declaration.displayName);
+    }
+
+    public long getCount(final AbstractDecoderTreeNode node) {
+        return node.getInstructions().mapToLong(this::getCount).sum();
+    }
+
+    public static DecoderProfile load(final InputStream stream) throws IOException {
+        final Object2LongOpenHashMap<String> counts = new Object2LongOpenHashMap<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+
+        String line;
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            line = line.split("#", 2)[0].trim();
+            if (!line.isEmpty()) {
+                try {
+                    final String[] tokens = line.split("\\s+");
+                    if (tokens.length != 2) {
+                        throw new IllegalArgumentException("Expected instruction name and count.");
+                    }
+                    final long count = Long.parseLong(tokens[1]);
+                    if (count < 0) {
+                        throw new IllegalArgumentException(String.format("Invalid count [%d].", count));
+                    }
+                    counts.addTo(tokens[0], count);
+                } catch (final IllegalArgumentException e) {
+                    throw new IOException(String.format("Failed parsing line [%d].", lineNumber), e);
+                }
+            }
+            lineNumber++;
+        }
+
+        return new DecoderProfile(counts);
+    }
+
+    public void save(final OutputStream stream) {
+        final ArrayList<Object2LongMap.Entry<String>> entries = new ArrayList<>(counts.object2LongEntrySet());
+        entries.sort(Comparator.comparingLong(Object2LongMap.Entry<String>::getLongValue).reversed());
+
+        final PrintStream out = new PrintStream(stream, false, StandardCharsets.UTF_8);
+        out.printf("# %d instructions executed.%n", totalCount);
+        for (final Object2LongMap.Entry<String> entry : entries) {
+            out.printf("%s %d%n", entry.getKey(), entry.getLongValue());
+        }
+        out.flush();
+    }
+}
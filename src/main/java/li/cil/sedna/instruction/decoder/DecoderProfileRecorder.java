@@ -0,0 +1,69 @@
+package li.cil.sedna.instruction.decoder;
+
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Decoder generator that counts how often each instruction is executed, for building a {@link DecoderProfile}.
+ * <p>
+ * Counters are global and updated without synchronization, so concurrently running harts may lose
+ * some increments. This is fine for the relative counts a profile is used for.
+ */
+public final class DecoderProfileRecorder extends DecoderGenerator {
+    private static final ArrayList<InstructionDeclaration> DECLARATIONS = new ArrayList<>();
+    private static long[] counts = new long[0];
+
+    public DecoderProfileRecorder(final ClassVisitor cv,
+                                  final AbstractDecoderTreeNode decoderTree,
+                                  final Function<InstructionDeclaration, InstructionDefinition> definitionProvider,
+                                  final boolean variableInstructionSize,
+                                  final Class<?> illegalInstructionExceptionClass,
+                                  final String decoderMethod,
+                                  final String decoderHook) {
+        super(cv, decoderTree, definitionProvider, null, DEFAULT_METHOD_SIZE_BUDGET, DEFAULT_GROUP_SIZE_BUDGET,
+            variableInstructionSize, illegalInstructionExceptionClass, decoderMethod, decoderHook);
+    }
+
+    /**
+     * Called by generated code each time the instruction registered with the specified id is executed.
+     *
+     * @param id the id of the instruction.
+     */
+    public static void count(final int id) {
+        counts[id]++;
+    }
+
+    public static synchronized DecoderProfile getProfile() {
+        final Object2LongOpenHashMap<String> result = new Object2LongOpenHashMap<>();
+        for (int id = 0; id < DECLARATIONS.size(); id++) {
+            result.addTo(DECLARATIONS.get(id).displayName, counts[id]);
+        }
+        return new DecoderProfile(result);
+    }
+
+    @Override
+    protected void emitInstruction(final GeneratorContext context,
+                                   final InstructionDeclaration declaration,
+                                   final InstructionDefinition definition) {
+        context.methodVisitor.visitLdcInsn(register(declaration));
+        context.methodVisitor.visitMethodInsn(INVOKESTATIC, Type.getInternalName(DecoderProfileRecorder.class),
+            "count", "(I)V", false);
+
+        super.emitInstruction(context, declaration, definition);
+    }
+
+    private static synchronized int register(final InstructionDeclaration declaration) {
+        final int id = DECLARATIONS.size();
+        DECLARATIONS.add(declaration);
+        counts = Arrays.copyOf(counts, DECLARATIONS.size());
+        return id;
+    }
+}
@@ -2,11 +2,13 @@ package li.cil.sedna.instruction.decoder;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
 import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeInnerNode;
 import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
 import li.cil.sedna.instruction.decoder.tree.DecoderTreeBranchNode;
 import li.cil.sedna.instruction.decoder.tree.DecoderTreeLeafNode;
 import li.cil.sedna.instruction.decoder.tree.DecoderTreeSwitchNode;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -116,6 +118,95 @@ public final class DecoderTree {
         }
     }
 
+    /**
+     * Reorders the cases of branch nodes in the specified tree so that more frequently executed cases
+     * are tested first. Cases are only moved ahead of cases they can never match the same instruction
+     * as, so that more specific patterns keep precedence over the less specific ones they overlap with.
+     *
+     * @param node    the root of the tree to reorder.
+     * @param profile the profile providing the execution counts.
+     */
+    public static void sortByProfile(final AbstractDecoderTreeNode node, final DecoderProfile profile) {
+        if (node instanceof final AbstractDecoderTreeInnerNode innerNode) {
+            final AbstractDecoderTreeNode[] children = innerNode.children;
+            for (final AbstractDecoderTreeNode child : children) {
+                sortByProfile(child, profile);
+            }
+
+            if (node instanceof DecoderTreeBranchNode) {
+                for (int i = 1; i < children.length; i++) {
+                    for (int j = i; j > 0; j--) {
+                        final AbstractDecoderTreeNode previous = children[j - 1];
+                        final AbstractDecoderTreeNode current = children[j];
+                        if (profile.getCount(current) <= profile.getCount(previous) || !isDisjoint(previous, current)) {
+                            break;
+                        }
+                        children[j - 1] = current;
+                        children[j] = previous;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a switch node into a switch over the higher half of the bits its cases differ in, with switches
+     * over the remaining bits as its cases. Each of the new nodes has fewer cases than the original, so this
+     * can be repeated on them until their code is small enough.
+     *
+     * @param node          the node to split.
+     * @param processedMask the bits already tested before reaching the node.
+     * @return the split node, or {@code null} if the node has too few cases to be split.
+     */
+    @Nullable
+    public static DecoderTreeSwitchNode splitSwitch(final DecoderTreeSwitchNode node, final int processedMask) {
+        final AbstractDecoderTreeNode[] children = node.children;
+        if (children.length < 3) {
+            return null;
+        }
+
+        int differingMask = 0;
+        for (final AbstractDecoderTreeNode child : children) {
+            differingMask |= child.getPattern() ^ children[0].getPattern();
+        }
+        differingMask &= node.getMask() & ~processedMask;
+        if (differingMask == 0) {
+            return null;
+        }
+
+        // Fall back to fewer bits when the higher half alone would not group any cases.
+        for (int bitCount = Math.max(1, Integer.bitCount(differingMask) / 2); bitCount > 0; bitCount--) {
+            int outerMask = 0;
+            for (int i = 0; i < bitCount; i++) {
+                outerMask |= Integer.highestOneBit(differingMask & ~outerMask);
+            }
+
+            final Int2ObjectArrayMap<ArrayList<AbstractDecoderTreeNode>> groups = new Int2ObjectArrayMap<>();
+            for (final AbstractDecoderTreeNode child : children) {
+                groups.computeIfAbsent(child.getPattern() & outerMask, i -> new ArrayList<>()).add(child);
+            }
+
+            if (groups.size() < children.length) {
+                final int[] groupPatterns = groups.keySet().toIntArray();
+                sortUnsigned(groupPatterns);
+
+                // Cases keep the mask of the original node, so that bits not tested by the new switch still are.
+                final AbstractDecoderTreeNode[] cases = new AbstractDecoderTreeNode[groupPatterns.length];
+                for (int i = 0; i < groupPatterns.length; i++) {
+                    cases[i] = new DecoderTreeSwitchNode(node.getMask(), groups.get(groupPatterns[i]).toArray(AbstractDecoderTreeNode[]::new));
+                }
+
+                return new DecoderTreeSwitchNode(outerMask, cases);
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isDisjoint(final AbstractDecoderTreeNode a, final AbstractDecoderTreeNode b) {
+        return ((a.getPattern() ^ b.getPattern()) & a.getMask() & b.getMask()) != 0;
+    }
+
     private static AbstractDecoderTreeNode postProcess(final AbstractDecoderTreeNode node) {
         if (node instanceof final DecoderTreeSwitchNode switchNode) {
             if (switchNode.children.length < 3) {
@@ -0,0 +1,518 @@
+package li.cil.sedna.instruction.decoder;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionSizeInstructionArgument;
+import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
+import org.objectweb.asm.*;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * This class visitor can be used to generate code running pre-decoded instructions.
+ * <p>
+ * Where the {@link DecoderGenerator} generates code decoding raw instructions, this generates a
+ * switch over the handler indices of a {@link DispatchTable}, unpacking operands from the packed
+ * representation defined by that table.
+ * <p>
+ * Handlers are generated into group methods, each holding as many consecutive handlers as fit into the
+ * bytecode size budget for group methods, measured by generating them. A handler too large to fit on its
+ * own still gets a group method of its own.
+ * <p>
+ * Fused handlers are generated directly into the dispatch method, because the {@code pc} and
+ * {@code index} have to be advanced between the two instructions they run. This also increments
+ * the {@code mcycle} field of the class for the second instruction, which must hence exist.
+ * <p>
+ * Requirements on the class being visited are the same as for the {@link DecoderGenerator}, with
+ * the {@code dispatchMethod} taking the place of the decoder method. It must have the following
+ * signature:
+ * <pre>
+ *     void(final T page, long pc, int index, int handler, long operands)
+ * </pre>
+ * It may take further parameters after these, which are ignored by the generated code.
+ * Here {@code index} is the current position in the page, in 16 bit steps. The {@code pc}
+ * and {@code index} parameters <em>must not</em> be final because the generated code will
+ * update them as execution proceeds. The {@code handler} and {@code operands} will typically
+ * also not be final, so that the next instruction can be fetched without exiting the loop.
+ * <p>
+ * Example implementation of a {@code dispatchMethod} and {@code dispatchHook}:
+ * <pre>
+ * private void dispatchMethod(final Page page, long pc, int index, int handler, long operands, int budget) {
+ *     try {
+ *         for (; ; ) {
+ *             dispatchHook();
+ *
+ *             if (Integer.compareUnsigned(index, page.end) < 0 && --budget > 0) {
+ *                 handler = page.handlers[index];
+ *                 operands = page.operands[index];
+ *             } else {
+ *                 this.pc = pc;
+ *                 return;
+ *             }
+ *         }
+ *     } catch (final IllegalInstructionException e) {
+ *         this.pc = pc;
+ *     }
+ * }
+ *
+ * private static void dispatchHook() {
+ * }
+ * </pre>
+ */
+public class DispatchGenerator extends ClassVisitor implements Opcodes {
+    private static final int LOCAL_THIS = 0;
+    private static final int LOCAL_PC = 2;
+    private static final int LOCAL_INDEX = 4;
+    private static final int LOCAL_HANDLER = 5;
+    private static final int LOCAL_OPERANDS = 6;
+
+    private static final int LOCAL_GROUP_HANDLER = 1;
+    private static final int LOCAL_GROUP_PC = 2;
+    private static final int LOCAL_GROUP_OPERANDS = 4;
+
+    // Group methods return one of these in the lower two bits and the instruction size in the upper bits.
+    private static final int RETURN_CONTINUE = 0; // update pc then keep going
+    private static final int RETURN_EXIT_INC_PC = 1; // update pc then exit the dispatch loop
+    private static final int RETURN_EXIT = 2; // exit the dispatch loop
+    private static final int RETURN_JUMP = 3; // check pc; if in int range, keep going
+    private static final int RETURN_SIZE_SHIFT = 2;
+
+    private final DispatchTable dispatchTable;
+    private final int groupSizeBudget;
+    private final String dispatchMethod;
+    private final String dispatchHook;
+    private final String illegalInstructionInternalName;
+    private String hostClassInternalName;
+
+    public DispatchGenerator(final ClassVisitor cv,
+                             final DispatchTable dispatchTable,
+                             final Class<?> illegalInstructionExceptionClass,
+                             final String dispatchMethod,
+                             final String dispatchHook) {
+        this(cv, dispatchTable, DecoderGenerator.DEFAULT_GROUP_SIZE_BUDGET, illegalInstructionExceptionClass, dispatchMethod, dispatchHook);
+    }
+
+    public DispatchGenerator(final ClassVisitor cv,
+                             final DispatchTable dispatchTable,
+                             final int groupSizeBudget,
+                             final Class<?> illegalInstructionExceptionClass,
+                             final String dispatchMethod,
+                             final String dispatchHook) {
+        super(ASM7, cv);
+        this.dispatchTable = dispatchTable;
+        this.groupSizeBudget = groupSizeBudget;
+        this.dispatchMethod = dispatchMethod;
+        this.dispatchHook = dispatchHook;
+        this.illegalInstructionInternalName = Type.getInternalName(illegalInstructionExceptionClass);
+    }
+
+    @Override
+    public void visit(final int version, final int access, final String name, final String signature, final String superName, final String[] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
+        hostClassInternalName = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
+        if (dispatchMethod.equals(name)) {
+            return new TemplateMethodVisitor(super.visitMethod(access, name, descriptor, signature, exceptions));
+        } else {
+            return super.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+    }
+
+    private void emitDispatch(final MethodVisitor mv) {
+        final int firstHandler = dispatchTable.getHandlers().get(0).index();
+        final int handlerCount = dispatchTable.getHandlerCount();
+        final IntArrayList groupStarts = computeGroupStarts(firstHandler, handlerCount);
+        final int groupCount = groupStarts.size();
+
+        final Label illegalInstructionLabel = new Label();
+        final Label resultLabel = new Label();
+        final Label continueLabel = new Label();
+
+        final Label[] groupLabels = new Label[groupCount];
+        final Label[] handlerLabels = new Label[handlerCount - firstHandler];
+        for (int i = 0; i < groupCount; i++) {
+            groupLabels[i] = new Label();
+            Arrays.fill(handlerLabels, groupStarts.getInt(i) - firstHandler, getGroupEnd(groupStarts, i, handlerCount) - firstHandler, groupLabels[i]);
+        }
+
+        final List<DispatchTable.FusedHandler> fusedHandlers = dispatchTable.getFusedHandlers();
+        final Label fusedHandlersLabel = new Label();
+        if (!fusedHandlers.isEmpty()) {
+            mv.visitVarInsn(ILOAD, LOCAL_HANDLER);
+            emitInt(mv, dispatchTable.getHandlerCount());
+            mv.visitJumpInsn(IF_ICMPGE, fusedHandlersLabel);
+        }
+
+        mv.visitVarInsn(ILOAD, LOCAL_HANDLER);
+        mv.visitTableSwitchInsn(firstHandler, handlerCount - 1, illegalInstructionLabel, handlerLabels);
+
+        for (int i = 0; i < groupCount; i++) {
+            final String methodName = dispatchMethod + "$handlerGroup" + i;
+            generateGroupMethod(methodName, groupStarts.getInt(i), getGroupEnd(groupStarts, i, handlerCount) - groupStarts.getInt(i));
+
+            mv.visitLabel(groupLabels[i]);
+            mv.visitVarInsn(ALOAD, LOCAL_THIS);
+            mv.visitVarInsn(ILOAD, LOCAL_HANDLER);
+            mv.visitVarInsn(LLOAD, LOCAL_PC);
+            mv.visitVarInsn(LLOAD, LOCAL_OPERANDS);
+            mv.visitMethodInsn(INVOKESPECIAL, hostClassInternalName, methodName, "(IJJ)I", false);
+            mv.visitJumpInsn(GOTO, resultLabel);
+        }
+
+        if (!fusedHandlers.isEmpty()) {
+            final Label[] fusedHandlerLabels = new Label[fusedHandlers.size()];
+            for (int i = 0; i < fusedHandlerLabels.length; i++) {
+                fusedHandlerLabels[i] = new Label();
+            }
+
+            mv.visitLabel(fusedHandlersLabel);
+            mv.visitVarInsn(ILOAD, LOCAL_HANDLER);
+            emitInt(mv, dispatchTable.getHandlerCount());
+            mv.visitInsn(ISUB);
+            mv.visitTableSwitchInsn(0, fusedHandlers.size() - 1, illegalInstructionLabel, fusedHandlerLabels);
+
+            for (int i = 0; i < fusedHandlers.size(); i++) {
+                mv.visitLabel(fusedHandlerLabels[i]);
+                emitFusedHandler(mv, fusedHandlers.get(i), resultLabel);
+            }
+        }
+
+        mv.visitLabel(illegalInstructionLabel);
+        emitThrowIllegalInstruction(mv);
+
+        // [result]
+        final Label[] resultLabels = new Label[4];
+        for (int i = 0; i < resultLabels.length; i++) {
+            resultLabels[i] = new Label();
+        }
+
+        mv.visitLabel(resultLabel);
+        mv.visitInsn(DUP); // [result, result]
+        mv.visitInsn(ICONST_3); // [result, result, 3]
+        mv.visitInsn(IAND); // [result, result & 3]
+        mv.visitTableSwitchInsn(0, RETURN_JUMP - 1, resultLabels[RETURN_JUMP], // [result]
+            resultLabels[RETURN_CONTINUE], resultLabels[RETURN_EXIT_INC_PC], resultLabels[RETURN_EXIT]);
+
+        mv.visitLabel(resultLabels[RETURN_CONTINUE]);
+        emitIncrementPC(mv);
+        mv.visitJumpInsn(GOTO, continueLabel);
+
+        mv.visitLabel(resultLabels[RETURN_EXIT_INC_PC]);
+        emitIncrementPC(mv);
+        emitSavePC(mv);
+        mv.visitInsn(RETURN);
+
+        mv.visitLabel(resultLabels[RETURN_EXIT]);
+        mv.visitInsn(POP);
+        mv.visitInsn(RETURN);
+
+        mv.visitLabel(resultLabels[RETURN_JUMP]);
+        mv.visitInsn(POP);
+        emitJumpHandler(mv, continueLabel);
+
+        mv.visitLabel(continueLabel);
+    }
+
+    /**
+     * Splits handlers into groups of consecutive handlers, adding handlers to a group while its method stays
+     * within the size budget.
+     *
+     * @return the index of the first handler of each group.
+     */
+    private IntArrayList computeGroupStarts(final int firstHandler, final int handlerCount) {
+        final IntArrayList groupStarts = new IntArrayList();
+        int groupStart = firstHandler;
+        while (groupStart < handlerCount) {
+            groupStarts.add(groupStart);
+            int groupSize = 1;
+            while (groupStart + groupSize < handlerCount && measureGroupMethod(groupStart, groupSize + 1) <= groupSizeBudget) {
+                groupSize++;
+            }
+            groupStart += groupSize;
+        }
+        return groupStarts;
+    }
+
+    private static int getGroupEnd(final IntArrayList groupStarts, final int group, final int handlerCount) {
+        return group + 1 < groupStarts.size() ? groupStarts.getInt(group + 1) : handlerCount;
+    }
+
+    private int measureGroupMethod(final int firstHandler, final int handlerCount) {
+        final CodeSizeEvaluator mv = new CodeSizeEvaluator(null);
+        emitGroupMethod(mv, firstHandler, handlerCount);
+        return mv.getMaxSize();
+    }
+
+    private void generateGroupMethod(final String methodName, final int firstHandler, final int handlerCount) {
+        final List<DispatchTable.Handler> handlers = dispatchTable.getHandlers();
+        final String[] exceptions = handlers.stream()
+            .filter(h -> h.index() >= firstHandler && h.index() < firstHandler + handlerCount)
+            .map(DispatchTable.Handler::definition)
+            .filter(Objects::nonNull)
+            .map(d -> d.thrownExceptions)
+            .filter(Objects::nonNull)
+            .flatMap(Arrays::stream)
+            .distinct()
+            .toArray(String[]::new);
+
+        final MethodVisitor mv = super.cv.visitMethod(ACC_PRIVATE, methodName, "(IJJ)I", null,
+            exceptions.length > 0 ? exceptions : null);
+        mv.visitCode();
+        emitGroupMethod(mv, firstHandler, handlerCount);
+        mv.visitMaxs(-1, -1);
+        mv.visitEnd();
+    }
+
+    private void emitGroupMethod(final MethodVisitor mv, final int firstHandler, final int handlerCount) {
+        final List<DispatchTable.Handler> handlers = dispatchTable.getHandlers();
+
+        final Label illegalInstructionLabel = new Label();
+        final Label[] handlerLabels = new Label[handlerCount];
+        final DispatchTable.Handler[] groupHandlers = new DispatchTable.Handler[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            groupHandlers[i] = findHandler(handlers, firstHandler + i);
+            handlerLabels[i] = groupHandlers[i] != null ? new Label() : illegalInstructionLabel;
+        }
+
+        mv.visitVarInsn(ILOAD, LOCAL_GROUP_HANDLER);
+        emitInt(mv, firstHandler);
+        mv.visitInsn(ISUB);
+        mv.visitTableSwitchInsn(0, handlerCount - 1, illegalInstructionLabel, handlerLabels);
+
+        for (int i = 0; i < handlerCount; i++) {
+            if (groupHandlers[i] != null) {
+                mv.visitLabel(handlerLabels[i]);
+                emitHandler(mv, groupHandlers[i], groupHandlers[i].fields(), LOCAL_GROUP_PC, LOCAL_GROUP_OPERANDS, null);
+            }
+        }
+
+        mv.visitLabel(illegalInstructionLabel);
+        emitThrowIllegalInstruction(mv);
+    }
+
+    private static DispatchTable.Handler findHandler(final List<DispatchTable.Handler> handlers, final int index) {
+        for (final DispatchTable.Handler handler : handlers) {
+            if (handler.index() == index) {
+                return handler;
+            }
+        }
+        return null;
+    }
+
+    private void emitFusedHandler(final MethodVisitor mv, final DispatchTable.FusedHandler handler, final Label resultLabel) {
+        // The first instruction of a fused pair never throws, jumps or exits, so we can just run it.
+        emitInvoke(mv, Objects.requireNonNull(handler.first().definition()), handler.firstFields(), LOCAL_PC, LOCAL_OPERANDS);
+
+        // pc += size; index += size / 2;
+        final int size = handler.first().declaration().size;
+        mv.visitVarInsn(LLOAD, LOCAL_PC);
+        mv.visitLdcInsn((long) size);
+        mv.visitInsn(LADD);
+        mv.visitVarInsn(LSTORE, LOCAL_PC);
+        mv.visitIincInsn(LOCAL_INDEX, size / 2);
+
+        // mcycle++;
+        mv.visitVarInsn(ALOAD, LOCAL_THIS);
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(GETFIELD, hostClassInternalName, "mcycle", "J");
+        mv.visitInsn(LCONST_1);
+        mv.visitInsn(LADD);
+        mv.visitFieldInsn(PUTFIELD, hostClassInternalName, "mcycle", "J");
+
+        emitHandler(mv, handler.second(), handler.secondFields(), LOCAL_PC, LOCAL_OPERANDS, resultLabel);
+    }
+
+    private void emitHandler(final MethodVisitor mv, final DispatchTable.Handler handler,
+                             final DispatchTable.OperandField[] fields, final int pcLocal, final int operandsLocal,
+                             @Nullable final Label resultLabel) {
+        // Leaves the result either by returning it from the group method, or by jumping to the result
+        // handling in the dispatch method.
+        final int sizeBits = handler.declaration().size << RETURN_SIZE_SHIFT;
+        final InstructionDefinition definition = handler.definition();
+        if (definition == null) { // NOP
+            emitResult(mv, RETURN_CONTINUE | sizeBits, resultLabel);
+            return;
+        }
+
+        emitInvoke(mv, definition, fields, pcLocal, operandsLocal);
+
+        if (definition.returnsBoolean) {
+            final Label continueLabel = new Label();
+            mv.visitJumpInsn(IFEQ, continueLabel);
+            emitResult(mv, definition.writesPC ? RETURN_EXIT : (RETURN_EXIT_INC_PC | sizeBits), resultLabel);
+            mv.visitLabel(continueLabel);
+            emitResult(mv, RETURN_CONTINUE | sizeBits, resultLabel);
+        } else if (definition.writesPC) {
+            emitResult(mv, RETURN_JUMP, resultLabel);
+        } else {
+            emitResult(mv, RETURN_CONTINUE | sizeBits, resultLabel);
+        }
+    }
+
+    private static void emitResult(final MethodVisitor mv, final int result, @Nullable final Label resultLabel) {
+        emitInt(mv, result);
+        if (resultLabel != null) {
+            mv.visitJumpInsn(GOTO, resultLabel);
+        } else {
+            mv.visitInsn(IRETURN);
+        }
+    }
+
+    private void emitInvoke(final MethodVisitor mv, final InstructionDefinition definition,
+                            final DispatchTable.OperandField[] fields, final int pcLocal, final int operandsLocal) {
+        mv.visitVarInsn(ALOAD, LOCAL_THIS);
+        final StringBuilder methodDescriptor = new StringBuilder("(");
+        for (int i = 0; i < definition.parameters.length; i++) {
+            final InstructionArgument argument = definition.parameters[i];
+            final DispatchTable.OperandField field = fields[i];
+            if (argument instanceof final ConstantInstructionArgument constantArgument) {
+                emitInt(mv, constantArgument.value);
+                methodDescriptor.append('I');
+            } else if (argument instanceof final InstructionSizeInstructionArgument sizeArgument) {
+                emitInt(mv, sizeArgument.size);
+                methodDescriptor.append('I');
+            } else if (argument instanceof ProgramCounterInstructionArgument) {
+                mv.visitVarInsn(LLOAD, pcLocal);
+                methodDescriptor.append('J');
+            } else if (field != null) {
+                emitGetOperand(mv, field, operandsLocal);
+                methodDescriptor.append('I');
+            } else {
+                throw new IllegalArgumentException();
+            }
+        }
+        methodDescriptor.append(')').append(definition.returnsBoolean ? 'Z' : 'V');
+
+        mv.visitMethodInsn(INVOKESPECIAL, hostClassInternalName,
+            definition.methodName, methodDescriptor.toString(), false);
+    }
+
+    private static void emitGetOperand(final MethodVisitor mv, final DispatchTable.OperandField field, final int operandsLocal) {
+        mv.visitVarInsn(LLOAD, operandsLocal);
+        if (field.signed()) {
+            // Move the field to the top, then shift it back down with sign extension.
+            final int shiftLeft = Long.SIZE - (field.offset() + field.width());
+            if (shiftLeft != 0) {
+                emitInt(mv, shiftLeft);
+                mv.visitInsn(LSHL);
+            }
+            emitInt(mv, Long.SIZE - field.width());
+            mv.visitInsn(LSHR);
+            mv.visitInsn(L2I);
+        } else {
+            if (field.offset() != 0) {
+                emitInt(mv, field.offset());
+                mv.visitInsn(LUSHR);
+            }
+            mv.visitInsn(L2I);
+            if (field.width() < Integer.SIZE) {
+                emitInt(mv, (1 << field.width()) - 1);
+                mv.visitInsn(IAND);
+            }
+        }
+    }
+
+    private void emitThrowIllegalInstruction(final MethodVisitor mv) {
+        mv.visitTypeInsn(NEW, illegalInstructionInternalName);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, illegalInstructionInternalName, "<init>", "()V", false);
+        mv.visitInsn(ATHROW);
+    }
+
+    private static void emitIncrementPC(final MethodVisitor mv) {
+        // [result]
+        emitInt(mv, RETURN_SIZE_SHIFT);
+        mv.visitInsn(IUSHR); // [size]
+        mv.visitInsn(DUP); // [size, size]
+        mv.visitInsn(I2L); // [size, (long) size]
+        mv.visitVarInsn(LLOAD, LOCAL_PC); // [size, (long) size, pc]
+        mv.visitInsn(LADD); // [size, pc + size]
+        mv.visitVarInsn(LSTORE, LOCAL_PC); // [size]
+        mv.visitInsn(ICONST_1); // [size, 1]
+        mv.visitInsn(IUSHR); // [size / 2]
+        mv.visitVarInsn(ILOAD, LOCAL_INDEX); // [size / 2, index]
+        mv.visitInsn(IADD); // [index + size / 2]
+        mv.visitVarInsn(ISTORE, LOCAL_INDEX); // []
+    }
+
+    private void emitSavePC(final MethodVisitor mv) {
+        mv.visitVarInsn(ALOAD, LOCAL_THIS);
+        mv.visitVarInsn(LLOAD, LOCAL_PC);
+        mv.visitFieldInsn(PUTFIELD, hostClassInternalName, "pc", "J");
+    }
+
+    private void emitJumpHandler(final MethodVisitor mv, final Label continueLabel) {
+        // Like the jump handler in the decoder: we apply the delta to our index, in either direction.
+        // The dispatch method checks whether we are still in bounds, and limits how many instructions run.
+
+        // delta = this.pc - pc;
+        mv.visitVarInsn(ALOAD, LOCAL_THIS); // [this]
+        mv.visitFieldInsn(GETFIELD, hostClassInternalName, "pc", "J"); // [this.pc]
+        mv.visitVarInsn(LLOAD, LOCAL_PC); // [this.pc, pc]
+        mv.visitInsn(LSUB); // [delta]
+
+        // if ((long)(int)delta != delta) return; -> if delta cannot fit into an int we stop
+        mv.visitInsn(DUP2); // [delta, delta]
+        mv.visitInsn(DUP2); // [delta, delta, delta]
+        mv.visitInsn(L2I); // [delta, delta, (int) delta]
+        mv.visitInsn(I2L); // [delta, delta, (long) (int) delta]
+        mv.visitInsn(LCMP); // [delta, compare(delta, (long) (int) delta)]
+
+        final Label notOutOfBoundsLabel = new Label();
+        mv.visitJumpInsn(IFEQ, notOutOfBoundsLabel); // [delta]
+        mv.visitInsn(POP2); // []
+        mv.visitInsn(RETURN);
+        mv.visitLabel(notOutOfBoundsLabel);
+
+        // index += delta / 2;
+        mv.visitInsn(L2I); // [delta]
+        mv.visitInsn(ICONST_1); // [delta, 1]
+        mv.visitInsn(ISHR); // [delta / 2]
+        mv.visitVarInsn(ILOAD, LOCAL_INDEX); // [delta / 2, index]
+        mv.visitInsn(IADD); // [index + delta / 2]
+        mv.visitVarInsn(ISTORE, LOCAL_INDEX); // []
+
+        // pc = this.pc;
+        mv.visitVarInsn(ALOAD, LOCAL_THIS); // [this]
+        mv.visitFieldInsn(GETFIELD, hostClassInternalName, "pc", "J"); // [this.pc]
+        mv.visitVarInsn(LSTORE, LOCAL_PC); // []
+        mv.visitJumpInsn(GOTO, continueLabel); // []
+    }
+
+    private static void emitInt(final MethodVisitor mv, final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private final class TemplateMethodVisitor extends MethodVisitor implements Opcodes {
+        public TemplateMethodVisitor(final MethodVisitor methodVisitor) {
+            super(Opcodes.ASM7, methodVisitor);
+        }
+
+        @Override
+        public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface) {
+            if (!dispatchHook.equals(name)) {
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                return;
+            }
+
+            emitDispatch(super.mv);
+        }
+    }
+}
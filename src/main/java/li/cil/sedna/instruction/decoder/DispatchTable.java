@@ -0,0 +1,377 @@
+package li.cil.sedna.instruction.decoder;
+
+import li.cil.sedna.instruction.FieldPostprocessor;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.InstructionFieldMapping;
+import li.cil.sedna.instruction.InstructionFusion;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.FieldInstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Maps instructions to handler indices and packed operands, for running pre-decoded instructions.
+ * <p>
+ * Each instruction declaration gets a handler index. The field arguments of its definition are
+ * extracted once and packed into a single {@code long}, so that running the instruction again
+ * only requires unpacking them with a few shifts. The code for that is generated by the
+ * {@link DispatchGenerator}, using the layout defined by this table.
+ * <p>
+ * Additionally, pairs of instructions matching an {@link InstructionFusion} get a fused handler,
+ * which runs both instructions. Fused handlers use the indices following the regular ones, and
+ * pack the operands of both instructions into a single value.
+ */
+public final class DispatchTable {
+    /**
+     * Handler index of instructions that have not been decoded yet.
+     */
+    public static final int HANDLER_UNDECODED = 0;
+
+    /**
+     * Handler index of instructions that are illegal.
+     */
+    public static final int HANDLER_ILLEGAL = 1;
+
+    /**
+     * Handler index of instructions that cannot be pre-decoded and must be run by the regular decoder.
+     */
+    public static final int HANDLER_EXIT = 2;
+
+    private static final int FIRST_HANDLER = 3;
+
+    private final AbstractDecoderTreeNode decoderTree;
+    private final ArrayList<Handler> handlers = new ArrayList<>();
+    private final HashMap<InstructionDeclaration, Handler> handlerByDeclaration = new HashMap<>();
+    private final HashSet<InstructionDeclaration> unsupportedDeclarations = new HashSet<>();
+    private final ArrayList<FusedHandler> fusedHandlers = new ArrayList<>();
+    private final HashMap<Integer, ArrayList<FusedHandler>> fusedHandlersByFirst = new HashMap<>();
+
+    public DispatchTable(final List<InstructionDeclaration> declarations,
+                         final AbstractDecoderTreeNode decoderTree,
+                         final Function<InstructionDeclaration, InstructionDefinition> definitionProvider) {
+        this(declarations, Collections.emptyList(), decoderTree, definitionProvider);
+    }
+
+    public DispatchTable(final List<InstructionDeclaration> declarations,
+                         final List<InstructionFusion> fusions,
+                         final AbstractDecoderTreeNode decoderTree,
+                         final Function<InstructionDeclaration, InstructionDefinition> definitionProvider) {
+        this.decoderTree = decoderTree;
+
+        for (final InstructionDeclaration declaration : declarations) {
+            if (declaration.type == InstructionType.ILLEGAL) {
+                continue;
+            }
+
+            final InstructionDefinition definition;
+            if (declaration.type == InstructionType.NOP) {
+                definition = null;
+            } else {
+                definition = definitionProvider.apply(declaration);
+                if (definition == null) {
+                    continue; // Treated as illegal, same as in the decoder.
+                }
+            }
+
+            final OperandField[] fields = computeOperandFields(definition);
+            if (fields == null) {
+                unsupportedDeclarations.add(declaration);
+                continue;
+            }
+
+            final Handler handler = new Handler(FIRST_HANDLER + handlers.size(), declaration, definition, fields);
+            handlers.add(handler);
+            handlerByDeclaration.put(declaration, handler);
+        }
+
+        for (final InstructionFusion fusion : fusions) {
+            for (final Handler first : handlers) {
+                if (!fusion.firstName.equals(first.declaration.name) || !isFusable(first)) {
+                    continue;
+                }
+
+                for (final Handler second : handlers) {
+                    if (!fusion.secondName.equals(second.declaration.name)) {
+                        continue;
+                    }
+
+                    final FusedHandler fusedHandler = computeFusedHandler(fusion, first, second);
+                    if (fusedHandler != null) {
+                        fusedHandlers.add(fusedHandler);
+                        fusedHandlersByFirst.computeIfAbsent(first.index, i -> new ArrayList<>()).add(fusedHandler);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The list of all handlers in this table, ordered by their index.
+     *
+     * @return the list of handlers.
+     */
+    public List<Handler> getHandlers() {
+        return Collections.unmodifiableList(handlers);
+    }
+
+    /**
+     * The list of all fused handlers in this table, ordered by their index.
+     *
+     * @return the list of fused handlers.
+     */
+    public List<FusedHandler> getFusedHandlers() {
+        return Collections.unmodifiableList(fusedHandlers);
+    }
+
+    /**
+     * The number of regular handler indices used, including the reserved ones. This is also the
+     * index of the first fused handler.
+     *
+     * @return the number of regular handler indices.
+     */
+    public int getHandlerCount() {
+        return FIRST_HANDLER + handlers.size();
+    }
+
+    /**
+     * Decodes the specified instruction and returns its handler index.
+     *
+     * @param instruction the instruction to decode.
+     * @return the handler index for the instruction.
+     */
+    public int getHandler(final int instruction) {
+        final InstructionDeclaration declaration = decoderTree.query(instruction);
+        if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+            return HANDLER_ILLEGAL;
+        }
+
+        final Handler handler = handlerByDeclaration.get(declaration);
+        if (handler != null) {
+            return handler.index;
+        }
+
+        if (unsupportedDeclarations.contains(declaration)) {
+            return HANDLER_EXIT;
+        }
+
+        return HANDLER_ILLEGAL;
+    }
+
+    /**
+     * Checks whether the specified handler may be fused with the handler of the instruction following it.
+     *
+     * @param handler the handler index of the instruction.
+     * @return {@code true} if there are fused handlers starting with this handler; {@code false} otherwise.
+     */
+    public boolean isFusable(final int handler) {
+        return fusedHandlersByFirst.containsKey(handler);
+    }
+
+    /**
+     * Looks for a fused handler running the specified instruction and the instruction following it.
+     *
+     * @param handler         the handler index of the first instruction.
+     * @param instruction     the first instruction.
+     * @param nextInstruction the instruction directly following the first instruction.
+     * @return the index of the fused handler, or {@code handler} if the instructions cannot be fused.
+     */
+    public int getFusedHandler(final int handler, final int instruction, final int nextInstruction) {
+        final ArrayList<FusedHandler> candidates = fusedHandlersByFirst.get(handler);
+        if (candidates == null) {
+            return handler;
+        }
+
+        final int nextHandler = getHandler(nextInstruction);
+        for (final FusedHandler candidate : candidates) {
+            if (candidate.second.index == nextHandler && candidate.matches(instruction, nextInstruction)) {
+                return candidate.index;
+            }
+        }
+
+        return handler;
+    }
+
+    /**
+     * Extracts the operands of the specified instruction and packs them into a single value.
+     *
+     * @param handler     the handler index of the instruction.
+     * @param instruction the instruction to extract the operands from.
+     * @return the packed operands.
+     */
+    public long getOperands(final int handler, final int instruction) {
+        if (handler < FIRST_HANDLER) {
+            return 0;
+        }
+
+        return packOperands(handlers.get(handler - FIRST_HANDLER).fields, instruction);
+    }
+
+    /**
+     * Extracts the operands of the specified pair of instructions and packs them into a single value.
+     *
+     * @param fusedHandler    the fused handler index of the instructions.
+     * @param instruction     the first instruction.
+     * @param nextInstruction the instruction directly following the first instruction.
+     * @return the packed operands.
+     */
+    public long getFusedOperands(final int fusedHandler, final int instruction, final int nextInstruction) {
+        final FusedHandler handler = fusedHandlers.get(fusedHandler - getHandlerCount());
+        return packOperands(handler.firstFields, instruction) | packOperands(handler.secondFields, nextInstruction);
+    }
+
+    private static long packOperands(final OperandField[] fields, final int instruction) {
+        long operands = 0;
+        for (final OperandField field : fields) {
+            if (field != null) {
+                final long mask = (1L << field.width) - 1;
+                operands |= (field.argument.get(instruction) & mask) << field.offset;
+            }
+        }
+        return operands;
+    }
+
+    private static boolean isFusable(final Handler first) {
+        // The pc is advanced between the two instructions by the dispatch code, which can't happen if the
+        // first instruction jumps or exits. It also must not throw, to keep exceptions raised for the right pc.
+        final InstructionDefinition definition = first.definition;
+        return definition != null && !definition.writesPC && !definition.returnsBoolean &&
+               (definition.thrownExceptions == null || definition.thrownExceptions.length == 0);
+    }
+
+    @Nullable
+    private FusedHandler computeFusedHandler(final InstructionFusion fusion, final Handler first, final Handler second) {
+        final InstructionArgument[] firstArguments = new InstructionArgument[fusion.constraints.size()];
+        final InstructionArgument[] secondArguments = new InstructionArgument[fusion.constraints.size()];
+        for (int i = 0; i < fusion.constraints.size(); i++) {
+            final InstructionFusion.Constraint constraint = fusion.constraints.get(i);
+            firstArguments[i] = first.declaration.arguments.get(constraint.firstArgument);
+            secondArguments[i] = second.declaration.arguments.get(constraint.secondArgument);
+            if (firstArguments[i] == null || secondArguments[i] == null) {
+                return null;
+            }
+        }
+
+        int firstSize = 0;
+        for (final OperandField field : first.fields) {
+            if (field != null) {
+                firstSize = Math.max(firstSize, field.offset + field.width);
+            }
+        }
+
+        final OperandField[] secondFields = new OperandField[second.fields.length];
+        for (int i = 0; i < secondFields.length; i++) {
+            final OperandField field = second.fields[i];
+            if (field != null) {
+                if (firstSize + field.offset + field.width > Long.SIZE) {
+                    return null;
+                }
+                secondFields[i] = new OperandField(field.argument, firstSize + field.offset, field.width, field.signed);
+            }
+        }
+
+        return new FusedHandler(getHandlerCount() + fusedHandlers.size(), first, second,
+            first.fields, secondFields, firstArguments, secondArguments);
+    }
+
+    @Nullable
+    private static OperandField[] computeOperandFields(@Nullable final InstructionDefinition definition) {
+        if (definition == null) {
+            return new OperandField[0];
+        }
+
+        final OperandField[] fields = new OperandField[definition.parameters.length];
+        int offset = 0;
+        for (int i = 0; i < definition.parameters.length; i++) {
+            final InstructionArgument argument = definition.parameters[i];
+            if (argument instanceof final FieldInstructionArgument fieldArgument) {
+                int width = 0;
+                boolean signed = false;
+                for (final InstructionFieldMapping mapping : fieldArgument.mappings) {
+                    width = Math.max(width, mapping.dstLSB + (mapping.srcMSB - mapping.srcLSB) + 1);
+                    signed |= mapping.signExtend;
+                }
+
+                if (fieldArgument.postprocessor != FieldPostprocessor.NONE) {
+                    if (signed) {
+                        width = 32;
+                    } else {
+                        final int maxValue = fieldArgument.postprocessor.apply((int) ((1L << width) - 1));
+                        width = 32 - Integer.numberOfLeadingZeros(maxValue);
+                    }
+                }
+
+                if (offset + width > Long.SIZE) {
+                    return null;
+                }
+
+                fields[i] = new OperandField(fieldArgument, offset, width, signed);
+                offset += width;
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * A pre-decoded instruction handler.
+     *
+     * @param index       the handler index.
+     * @param declaration the declaration of the instruction this handler runs.
+     * @param definition  the definition of the instruction, {@code null} for NOPs.
+     * @param fields      the operand layout, one entry per parameter of the definition; {@code null}
+     *                    for parameters that are not fields.
+     */
+    public record Handler(int index,
+                          InstructionDeclaration declaration,
+                          @Nullable InstructionDefinition definition,
+                          OperandField[] fields) {
+    }
+
+    /**
+     * A handler running two instructions directly following each other.
+     *
+     * @param index                     the handler index.
+     * @param first                     the handler of the first instruction.
+     * @param second                    the handler of the second instruction.
+     * @param firstFields               the operand layout of the first instruction.
+     * @param secondFields              the operand layout of the second instruction, placed after the first.
+     * @param firstConstraintArguments  the arguments of the first instruction that must equal those of the second.
+     * @param secondConstraintArguments the arguments of the second instruction that must equal those of the first.
+     */
+    public record FusedHandler(int index,
+                               Handler first,
+                               Handler second,
+                               OperandField[] firstFields,
+                               OperandField[] secondFields,
+                               InstructionArgument[] firstConstraintArguments,
+                               InstructionArgument[] secondConstraintArguments) {
+        boolean matches(final int instruction, final int nextInstruction) {
+            for (int i = 0; i < firstConstraintArguments.length; i++) {
+                if (firstConstraintArguments[i].get(instruction) != secondConstraintArguments[i].get(nextInstruction)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Location of a field argument in the packed operands of an instruction.
+     *
+     * @param argument the field argument.
+     * @param offset   the offset of the lowest bit of the field in the packed operands.
+     * @param width    the number of bits the field occupies.
+     * @param signed   whether the value must be sign extended when unpacking it.
+     */
+    public record OperandField(FieldInstructionArgument argument, int offset, int width, boolean signed) {
+    }
+}
@@ -17,6 +17,10 @@ public abstract class AbstractDecoderTreeInnerNode extends AbstractDecoderTreeNo
     private final int pattern;
 
     AbstractDecoderTreeInnerNode(final AbstractDecoderTreeNode[] children) {
+        this(computeMask(children), children);
+    }
+
+    AbstractDecoderTreeInnerNode(final int mask, final AbstractDecoderTreeNode[] children) {
         this.children = children;
 
         int maxDepth = 0;
@@ -25,14 +29,17 @@ public abstract class AbstractDecoderTreeInnerNode extends AbstractDecoderTreeNo
         }
         this.maxDepth = 1 + maxDepth;
 
+        this.mask = mask;
+        this.pattern = children[0].getPattern() & mask;
+    }
+
+    private static int computeMask(final AbstractDecoderTreeNode[] children) {
         int mask = children[0].getMask();
         for (int i = 1; i < children.length; i++) {
             final AbstractDecoderTreeNode child = children[i];
             mask &= child.getMask();
         }
-        this.mask = mask;
-
-        this.pattern = children[0].getPattern() & mask;
+        return mask;
     }
 
     @Override
@@ -11,6 +11,15 @@ public final class DecoderTreeSwitchNode extends AbstractDecoderTreeInnerNode {
         super(children);
     }
 
+    /**
+     * Creates a switch node over the specified bits only, instead of all bits tested by all children.
+     * Used for switches over a part of the bits of another switch, see
+     * {@link li.cil.sedna.instruction.decoder.DecoderTree#splitSwitch(DecoderTreeSwitchNode, int)}.
+     */
+    public DecoderTreeSwitchNode(final int mask, final AbstractDecoderTreeNode[] children) {
+        super(mask, children);
+    }
+
     @Override
     public void accept(final DecoderTreeVisitor visitor) {
         final DecoderTreeSwitchVisitor switchVisitor = visitor.visitSwitch(this);
@@ -101,7 +101,26 @@ public final class MemoryMaps {
      * @throws MemoryAccessException    when an exception is thrown while accessing a device.
      * @throws IllegalArgumentException if the buffer is not little-endian.
      */
-    public static void store(final MemoryMap memory, long address, final ByteBuffer src) throws MemoryAccessException {
+    public static void store(final MemoryMap memory, final long address, final ByteBuffer src) throws MemoryAccessException {
+        store(memory, address, src, false);
+    }
+
+    /**
+     * Block-copies data to a {@link MemoryMap} from the specified buffer, optionally only into {@link PhysicalMemory}.
+     * <p>
+     * Skipping other devices avoids triggering device behaviour when copying data not meant for them, such as
+     * program images overlapping a device. The skipped parts of the buffer are consumed all the same.
+     * <p>
+     * Buffers using {@link ByteOrder#LITTLE_ENDIAN} order may perform faster.
+     *
+     * @param memory      the memory map to copy to.
+     * @param address     the address in memory to copy to.
+     * @param src         the buffer to copy from.
+     * @param skipDevices whether to skip ranges mapped to devices other than {@link PhysicalMemory}.
+     * @throws MemoryAccessException    when an exception is thrown while accessing a device.
+     * @throws IllegalArgumentException if the buffer is not little-endian.
+     */
+    public static void store(final MemoryMap memory, long address, final ByteBuffer src, final boolean skipDevices) throws MemoryAccessException {
         while (src.hasRemaining()) {
             final MappedMemoryRange range = memory.getMemoryRange(address);
             if (range == null) {
@@ -114,7 +133,11 @@ public final class MemoryMaps {
                 throw new AssertionError();
             }
 
-            store(range.device, offset, length, src);
+            if (skipDevices && !(range.device instanceof PhysicalMemory)) {
+                src.position(src.position() + length);
+            } else {
+                store(range.device, offset, length, src);
+            }
             address += length;
         }
     }
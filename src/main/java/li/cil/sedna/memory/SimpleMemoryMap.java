@@ -18,8 +18,8 @@ public final class SimpleMemoryMap implements MemoryMap {
     // For device IO we often get sequential access to the same range/device, so we remember the last one as a cache.
     private MappedMemoryRange cache;
 
-    @Nullable
-    private R5CPU cpu;
+    // Harts to notify of stores, so they can invalidate reservations and cached code.
+    private R5CPU[] cpus = new R5CPU[0];
 
     @Override
     public boolean addDevice(final long address, final MemoryMappedDevice device) {
@@ -94,8 +94,9 @@ public final class SimpleMemoryMap implements MemoryMap {
 
     @Override
     public void store(final long address, final long value, final int sizeLog2) throws MemoryAccessException {
-        if (cpu != null)
+        for (final R5CPU cpu : cpus) {
             cpu.notify(address, 1 << sizeLog2);
+        }
 
         final MappedMemoryRange range = getMemoryRange(address);
         if (range != null && (range.device.getSupportedSizes() & (1 << sizeLog2)) != 0) {
@@ -103,7 +104,11 @@ public final class SimpleMemoryMap implements MemoryMap {
         }
     }
 
-    public void setCpu(R5CPU cpu) {
-        this.cpu = cpu;
+    public void setCpu(@Nullable final R5CPU cpu) {
+        setCpus(cpu != null ? new R5CPU[]{cpu} : new R5CPU[0]);
+    }
+
+    public void setCpus(final R5CPU... cpus) {
+        this.cpus = cpus.clone();
     }
 }
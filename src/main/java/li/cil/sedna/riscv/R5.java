@@ -116,11 +116,17 @@ public final class R5 {
     public static final int MCOUNTERN_IR = 1 << 2;
     public static final int MCOUNTERN_HPM3 = 1 << 3; // Contiguous HPM counters up to HPM31 after this.
 
+    // Machine environment configuration (menvcfg) CSR fields.
+    public static final int MENVCFG_STCE_SHIFT = 63; // Sstc: stimecmp enable.
+    public static final long MENVCFG_STCE_MASK = 1L << MENVCFG_STCE_SHIFT;
+
     // SATP CSR masks.
     public static final long SATP_PPN_MASK32 = BitUtils.maskFromRange(0, 21);
+    public static final int SATP_ASID_SHIFT32 = 22;
     public static final long SATP_ASID_MASK32 = BitUtils.maskFromRange(22, 30);
     public static final long SATP_MODE_MASK32 = BitUtils.maskFromRange(31, 31);
     public static final long SATP_PPN_MASK64 = BitUtils.maskFromRange(0, 43);
+    public static final int SATP_ASID_SHIFT64 = 44;
     public static final long SATP_ASID_MASK64 = BitUtils.maskFromRange(44, 59);
     public static final long SATP_MODE_MASK64 = BitUtils.maskFromRange(60, 63);
 
@@ -0,0 +1,341 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionDefinition;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
+import li.cil.sedna.instruction.argument.FieldInstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionSizeInstructionArgument;
+import li.cil.sedna.instruction.argument.ProgramCounterInstructionArgument;
+import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import li.cil.sedna.riscv.exception.R5MemoryAccessException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles straight-line runs of guest instructions into hidden classes.
+ * <p>
+ * Each compiled block is a subclass of the block base class provided by the CPU. Its
+ * {@code execute} method invokes the instruction implementations of the CPU directly, with
+ * all decoded fields folded into constants, so that no decoding happens when running it.
+ * <p>
+ * Blocks are defined as nest-mates of the CPU class, which allows them to call the private
+ * instruction methods and access private fields, just like the generated decoder does.
+ * <p>
+ * A block ends after the first instruction that unconditionally writes the program counter,
+ * before the first instruction that cannot be decoded, at the end of the memory range it
+ * was compiled from or when the instruction limit is reached. Conditional branches that are
+ * not taken fall through, so blocks are really extended basic blocks with side exits.
+ * <p>
+ * The block base class is expected to look like this:
+ * <pre>
+ * abstract static class Block {
+ *     Block(int xlen, int[] offsets, int[] instructions);
+ *     abstract void execute(CPU cpu, long pc);
+ *     void handleIllegalInstruction(CPU cpu, long pc, int index);
+ *     void handleMemoryAccessException(CPU cpu, long pc, int index, R5MemoryAccessException e);
+ * }
+ * </pre>
+ * Where {@code CPU} is the class the used lookup was created for. The CPU class must have
+ * the fields {@code long pc} and {@code long mcycle}.
+ */
+public final class R5BlockCompiler implements Opcodes {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int LOCAL_THIS = 0;
+    private static final int LOCAL_CPU = 1;
+    private static final int LOCAL_PC = 2;
+    private static final int LOCAL_INDEX = 4;
+    private static final int LOCAL_EXCEPTION = 5;
+
+    private static final String EXECUTE_METHOD_NAME = "execute";
+    private static final String ILLEGAL_INSTRUCTION_HANDLER_NAME = "handleIllegalInstruction";
+    private static final String MEMORY_ACCESS_HANDLER_NAME = "handleMemoryAccessException";
+
+    // Blocks are compiled by each hart on its own thread, so names must be unique across threads.
+    private static final AtomicInteger BLOCK_INDEX = new AtomicInteger();
+
+    /**
+     * Tries to compile a block starting at the specified offset in the specified device.
+     *
+     * @param lookup          a full privilege lookup into the CPU class.
+     * @param blockClass      the base class of compiled blocks.
+     * @param spec            the instruction set to decode instructions with.
+     * @param xlen            the XLEN the block is compiled for. Passed along to the block.
+     * @param device          the device to read instructions from.
+     * @param offset          the offset of the first instruction of the block in the device.
+     * @param end             the offset in the device up to which instructions may be read (exclusive).
+     * @param maxInstructions the maximum number of instructions to put in the block.
+     * @return the compiled block, or {@code null} if no block could be compiled at the location.
+     */
+    @Nullable
+    public static <T> T compile(final MethodHandles.Lookup lookup,
+                                final Class<T> blockClass,
+                                final R5Instructions.Spec spec,
+                                final int xlen,
+                                final MemoryMappedDevice device,
+                                final int offset,
+                                final int end,
+                                final int maxInstructions) {
+        final ArrayList<BlockInstruction> instructions = new ArrayList<>();
+        try {
+            collectInstructions(spec, device, offset, end, maxInstructions, instructions);
+        } catch (final MemoryAccessException e) {
+            return null;
+        }
+
+        if (instructions.isEmpty()) {
+            return null;
+        }
+
+        final int[] offsets = new int[instructions.size()];
+        final int[] words = new int[instructions.size()];
+        for (int i = 0; i < instructions.size(); i++) {
+            offsets[i] = instructions.get(i).offset;
+            words[i] = instructions.get(i).instruction;
+        }
+
+        try {
+            final byte[] bytes = generateClass(lookup.lookupClass(), blockClass, instructions);
+            final MethodHandles.Lookup blockLookup = lookup.defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            final Object block = blockLookup
+                .findConstructor(blockLookup.lookupClass(), MethodType.methodType(void.class, int.class, int[].class, int[].class))
+                .invoke(xlen, offsets, words);
+            return blockClass.cast(block);
+        } catch (final Throwable e) {
+            LOGGER.error("Failed compiling block.", e);
+            return null;
+        }
+    }
+
+    private static void collectInstructions(final R5Instructions.Spec spec,
+                                            final MemoryMappedDevice device,
+                                            final int offset,
+                                            final int end,
+                                            final int maxInstructions,
+                                            final ArrayList<BlockInstruction> instructions) throws MemoryAccessException {
+        int position = offset;
+        while (instructions.size() < maxInstructions && Integer.compareUnsigned(position + 2, end) <= 0) {
+            int inst = (short) device.load(position, Sizes.SIZE_16_LOG2) & 0xFFFF;
+            if ((inst & 0b11) == 0b11) { // 32bit instruction.
+                if (Integer.compareUnsigned(position + 4, end) > 0) {
+                    break;
+                }
+                inst |= (int) (device.load(position + 2, Sizes.SIZE_16_LOG2) << 16);
+            }
+
+            final InstructionDeclaration declaration = spec.getDecoderTree().query(inst);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                break;
+            }
+
+            final InstructionDefinition definition;
+            if (declaration.type == InstructionType.NOP) {
+                definition = null;
+            } else {
+                definition = spec.getDefinition(declaration);
+                if (definition == null) {
+                    break;
+                }
+            }
+
+            instructions.add(new BlockInstruction(position - offset, inst, declaration, definition));
+            position += declaration.size;
+
+            if (definition != null && definition.writesPC && !definition.returnsBoolean) {
+                break; // Unconditional jump, no way to know where we'll end up.
+            }
+        }
+    }
+
+    private static byte[] generateClass(final Class<?> hostClass,
+                                        final Class<?> blockClass,
+                                        final ArrayList<BlockInstruction> instructions) {
+        final String hostClassInternalName = Type.getInternalName(hostClass);
+        final String hostClassDescriptor = Type.getDescriptor(hostClass);
+        final String blockClassInternalName = Type.getInternalName(blockClass);
+        final String className = hostClassInternalName + "$Block" + BLOCK_INDEX.getAndIncrement();
+
+        // We only ever merge identical types, so we never need to load anything for frame computation.
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(final String type1, final String type2) {
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V11, ACC_FINAL | ACC_SUPER, className, null, blockClassInternalName, null);
+
+        {
+            final MethodVisitor mv = cw.visitMethod(0, "<init>", "(I[I[I)V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ALOAD, 3);
+            mv.visitMethodInsn(INVOKESPECIAL, blockClassInternalName, "<init>", "(I[I[I)V", false);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        {
+            final MethodVisitor mv = cw.visitMethod(0, EXECUTE_METHOD_NAME, "(" + hostClassDescriptor + "J)V", null, null);
+            mv.visitCode();
+
+            final Label tryBegin = new Label();
+            final Label tryEnd = new Label();
+            final Label illegalInstructionHandler = new Label();
+            final Label memoryAccessHandler = new Label();
+            mv.visitTryCatchBlock(tryBegin, tryEnd, illegalInstructionHandler, Type.getInternalName(R5IllegalInstructionException.class));
+            mv.visitTryCatchBlock(tryBegin, tryEnd, memoryAccessHandler, Type.getInternalName(R5MemoryAccessException.class));
+
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, LOCAL_INDEX);
+
+            mv.visitLabel(tryBegin);
+
+            boolean endsWithJump = false;
+            for (int i = 0; i < instructions.size(); i++) {
+                final BlockInstruction instruction = instructions.get(i);
+
+                // mcycle++
+                mv.visitVarInsn(ALOAD, LOCAL_CPU);
+                mv.visitInsn(DUP);
+                mv.visitFieldInsn(GETFIELD, hostClassInternalName, "mcycle", "J");
+                mv.visitInsn(LCONST_1);
+                mv.visitInsn(LADD);
+                mv.visitFieldInsn(PUTFIELD, hostClassInternalName, "mcycle", "J");
+
+                final InstructionDefinition definition = instruction.definition;
+                if (definition == null) { // NOP
+                    continue;
+                }
+
+                if (definition.thrownExceptions != null && definition.thrownExceptions.length > 0) {
+                    emitInt(mv, i);
+                    mv.visitVarInsn(ISTORE, LOCAL_INDEX);
+                }
+
+                mv.visitVarInsn(ALOAD, LOCAL_CPU);
+                final StringBuilder methodDescriptor = new StringBuilder("(");
+                for (final InstructionArgument argument : definition.parameters) {
+                    if (argument instanceof final ConstantInstructionArgument constantArgument) {
+                        emitInt(mv, constantArgument.value);
+                        methodDescriptor.append('I');
+                    } else if (argument instanceof final InstructionSizeInstructionArgument sizeArgument) {
+                        emitInt(mv, sizeArgument.size);
+                        methodDescriptor.append('I');
+                    } else if (argument instanceof ProgramCounterInstructionArgument) {
+                        emitPc(mv, instruction.offset);
+                        methodDescriptor.append('J');
+                    } else if (argument instanceof final FieldInstructionArgument fieldArgument) {
+                        emitInt(mv, fieldArgument.get(instruction.instruction));
+                        methodDescriptor.append('I');
+                    } else {
+                        throw new IllegalArgumentException();
+                    }
+                }
+                methodDescriptor.append(')').append(definition.returnsBoolean ? 'Z' : 'V');
+
+                // Private methods of nest-mates are invoked virtually.
+                mv.visitMethodInsn(INVOKEVIRTUAL, hostClassInternalName,
+                    definition.methodName, methodDescriptor.toString(), false);
+
+                if (definition.returnsBoolean) {
+                    final Label continueLabel = new Label();
+                    mv.visitJumpInsn(IFEQ, continueLabel);
+                    if (!definition.writesPC) {
+                        emitSavePc(mv, hostClassInternalName, instruction.offset + instruction.declaration.size);
+                    }
+                    mv.visitInsn(RETURN);
+                    mv.visitLabel(continueLabel);
+                } else if (definition.writesPC) {
+                    assert i == instructions.size() - 1;
+                    endsWithJump = true;
+                }
+            }
+
+            if (!endsWithJump) {
+                final BlockInstruction last = instructions.get(instructions.size() - 1);
+                emitSavePc(mv, hostClassInternalName, last.offset + last.declaration.size);
+            }
+            mv.visitInsn(RETURN);
+
+            mv.visitLabel(tryEnd);
+
+            mv.visitLabel(illegalInstructionHandler);
+            mv.visitInsn(POP);
+            mv.visitVarInsn(ALOAD, LOCAL_THIS);
+            mv.visitVarInsn(ALOAD, LOCAL_CPU);
+            mv.visitVarInsn(LLOAD, LOCAL_PC);
+            mv.visitVarInsn(ILOAD, LOCAL_INDEX);
+            mv.visitMethodInsn(INVOKEVIRTUAL, blockClassInternalName, ILLEGAL_INSTRUCTION_HANDLER_NAME,
+                "(" + hostClassDescriptor + "JI)V", false);
+            mv.visitInsn(RETURN);
+
+            mv.visitLabel(memoryAccessHandler);
+            mv.visitVarInsn(ASTORE, LOCAL_EXCEPTION);
+            mv.visitVarInsn(ALOAD, LOCAL_THIS);
+            mv.visitVarInsn(ALOAD, LOCAL_CPU);
+            mv.visitVarInsn(LLOAD, LOCAL_PC);
+            mv.visitVarInsn(ILOAD, LOCAL_INDEX);
+            mv.visitVarInsn(ALOAD, LOCAL_EXCEPTION);
+            mv.visitMethodInsn(INVOKEVIRTUAL, blockClassInternalName, MEMORY_ACCESS_HANDLER_NAME,
+                "(" + hostClassDescriptor + "JI" + Type.getDescriptor(R5MemoryAccessException.class) + ")V", false);
+            mv.visitInsn(RETURN);
+
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    private static void emitInt(final MethodVisitor mv, final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private static void emitPc(final MethodVisitor mv, final int offset) {
+        mv.visitVarInsn(LLOAD, LOCAL_PC);
+        if (offset != 0) {
+            mv.visitLdcInsn((long) offset);
+            mv.visitInsn(LADD);
+        }
+    }
+
+    private static void emitSavePc(final MethodVisitor mv, final String hostClassInternalName, final int offset) {
+        mv.visitVarInsn(ALOAD, LOCAL_CPU);
+        emitPc(mv, offset);
+        mv.visitFieldInsn(PUTFIELD, hostClassInternalName, "pc", "J");
+    }
+
+    private record BlockInstruction(int offset, int instruction,
+                                    InstructionDeclaration declaration,
+                                    @Nullable InstructionDefinition definition) {
+    }
+}
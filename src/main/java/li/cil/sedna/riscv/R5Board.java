@@ -2,7 +2,6 @@ package li.cil.sedna.riscv;
 
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.Board;
-import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.*;
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.devicetree.DeviceNames;
@@ -16,6 +15,7 @@ import li.cil.sedna.device.flash.FlashMemoryDevice;
 import li.cil.sedna.devicetree.DeviceTreeRegistry;
 import li.cil.sedna.devicetree.FlattenedDeviceTree;
 import li.cil.sedna.gdbstub.GDBStub;
+import li.cil.sedna.memory.MemoryMaps;
 import li.cil.sedna.memory.SimpleMemoryMap;
 import li.cil.sedna.riscv.device.R5CoreLocalInterrupter;
 import li.cil.sedna.riscv.device.R5PlatformLevelInterruptController;
@@ -26,10 +26,16 @@ import li.cil.sedna.riscv.exception.R5SystemResetException;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public final class R5Board implements Board {
     private static final long SYSCON_ADDRESS = 0x01000000L;
@@ -39,6 +45,15 @@ public final class R5Board implements Board {
     private static final long FLASH_ADDRESS = 0x1000L; // R5CPU starts executing at 0x1000.
     private static final int FLASH_SIZE = 0x100; // Just needs to fit "jump to firmware".
 
+    // Linux's COMMAND_LINE_SIZE on RISC-V, longer command lines get truncated by the kernel.
+    private static final int MAX_BOOTARGS_LENGTH = 1024;
+
+    // Initial RAM disks are placed after the kernel, aligned to a page.
+    private static final int INITRD_ALIGNMENT = 0x1000;
+
+    // Minimum number of cycles harts run for between events, to limit overhead when events are close together.
+    private static final int MIN_SLICE_CYCLES = 1_000;
+
     private final MemoryRangeAllocationStrategy allocationStrategy = new R5MemoryRangeAllocationStrategy();
 
     private final MemoryMap memoryMap;
@@ -46,31 +61,85 @@ public final class R5Board implements Board {
     private final FlashMemoryDevice flash;
     private final List<MemoryMappedDevice> devices = new ArrayList<>();
     private final List<Steppable> steppableDevices = new ArrayList<>();
+    private final List<ScheduledSteppable> scheduledDevices = new ArrayList<>();
+    private final R5EventScheduler scheduler;
+    private volatile boolean isSchedulerValid;
+    private final Object wakeUpMonitor = new Object();
+    private final R5SupervisorBinaryInterface sbi;
     private MemoryMappedDevice standardOutputDevice;
     private GDBStub gdbStub;
     private boolean waitForGdb = false;
 
+    // Runs all harts but the first, which runs on the thread stepping the board. Only used with multiple harts.
+    @Nullable private final ThreadPoolExecutor hartExecutor;
+    private final List<Future<?>> hartFutures = new ArrayList<>();
+
     @Serialized private final R5CPU cpu;
+    @Serialized private final R5CPU[] secondaryHarts;
+    private final List<R5CPU> harts = new ArrayList<>();
     @Serialized private final R5CoreLocalInterrupter clint;
     @Serialized private final R5PlatformLevelInterruptController plic;
     @Serialized private String bootargs;
     @Serialized private boolean isRunning;
     @Serialized private boolean isRestarting;
+    @Serialized private boolean isBuiltInSBIEnabled;
 
     public R5Board() {
+        this(1);
+    }
+
+    public R5Board(final int hartCount) {
+        if (hartCount < 1) {
+            throw new IllegalArgumentException();
+        }
+
         memoryMap = new SimpleMemoryMap();
         rtc = cpu = R5CPU.create(memoryMap);
-        ((SimpleMemoryMap)memoryMap).setCpu(cpu);
+        harts.add(cpu);
+
+        secondaryHarts = new R5CPU[hartCount - 1];
+        for (int i = 0; i < secondaryHarts.length; i++) {
+            secondaryHarts[i] = R5CPU.create(memoryMap, rtc, i + 1);
+            harts.add(secondaryHarts[i]);
+        }
+
+        ((SimpleMemoryMap) memoryMap).setCpus(harts.toArray(R5CPU[]::new));
+        for (final R5CPU hart : harts) {
+            hart.setHarts(harts);
+        }
+
+        if (secondaryHarts.length > 0) {
+            hartExecutor = new ThreadPoolExecutor(secondaryHarts.length, secondaryHarts.length,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "Sedna Hart");
+                thread.setDaemon(true);
+                return thread;
+            });
+            hartExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            hartExecutor = null;
+        }
+
+        scheduler = new R5EventScheduler(rtc, this::wakeUp);
+        for (final R5CPU hart : harts) {
+            hart.setWakeUpListener(this::wakeUp);
+        }
+
+        sbi = new R5SupervisorBinaryInterface(memoryMap, harts, () -> standardOutputDevice);
+        for (final R5CPU hart : harts) {
+            hart.setSupervisorCallHandler((caller, registers) ->
+                isBuiltInSBIEnabled && sbi.handleSupervisorCall(caller, registers));
+        }
 
         flash = new FlashMemoryDevice(FLASH_SIZE);
         clint = new R5CoreLocalInterrupter(rtc);
-        plic = new R5PlatformLevelInterruptController();
-
-        steppableDevices.add(cpu);
+        plic = new R5PlatformLevelInterruptController(hartCount);
 
         // Wire up interrupts.
-        clint.putHart(0, cpu);
-        plic.setHart(cpu);
+        for (final R5CPU hart : harts) {
+            clint.putHart(hart.getHartId(), hart);
+            plic.setHart(hart.getHartId(), hart);
+        }
 
         // Map devices to memory.
         addDevice(SYSCON_ADDRESS, new R5SystemController());
@@ -85,16 +154,96 @@ public final class R5Board implements Board {
 
     public void setRunning(final boolean value) {
         isRunning = value;
+        wakeUp();
     }
 
     public boolean isRestarting() {
         return isRestarting;
     }
 
+    public boolean isBuiltInSBIEnabled() {
+        return isBuiltInSBIEnabled;
+    }
+
+    /**
+     * Sets whether the board implements the supervisor binary interface (SBI) itself, instead of machine
+     * mode firmware such as OpenSBI.
+     * <p>
+     * When enabled, {@link #initialize(long)} starts the first hart in supervisor mode at the program start,
+     * passing the hart id in {@code a0} and the address of the device tree in {@code a1}, as firmware would
+     * when handing over to Linux. Other harts stay stopped until the program starts them using the hart state
+     * management extension. SBI calls are then handled by the board in Java, instead of trapping into firmware.
+     *
+     * @param value {@code true} to use the built-in SBI implementation, {@code false} to run firmware.
+     */
+    public void setBuiltInSBIEnabled(final boolean value) {
+        isBuiltInSBIEnabled = value;
+    }
+
+    /**
+     * Checks whether all harts are waiting for an interrupt, and no device has an event due.
+     * <p>
+     * While idle, stepping the board only advances time. Nothing happens until the next event,
+     * see {@link #getCyclesUntilNextEvent()}, or an interrupt raised from outside the board, such as
+     * data arriving at a serial or network device.
+     *
+     * @return {@code true} if the board is idle.
+     */
+    public boolean isIdle() {
+        return isSchedulerValid && areHartsWaitingForInterrupt() && getCyclesUntilNextEvent() > 0;
+    }
+
+    /**
+     * The number of cycles until the next scheduled device event or supervisor timer deadline of a hart.
+     *
+     * @return the number of cycles until the next event, or {@link Long#MAX_VALUE} if there is none.
+     */
+    public long getCyclesUntilNextEvent() {
+        long nextEventTime = scheduler.getNextEventTime();
+        for (final R5CPU hart : harts) {
+            nextEventTime = Math.min(nextEventTime, hart.getSupervisorTimerDeadline());
+        }
+        if (nextEventTime == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return nextEventTime - scheduler.getTime();
+    }
+
+    /**
+     * Blocks the calling thread while the board is {@link #isIdle() idle}, until an interrupt wakes a hart,
+     * a device schedules an event that is due, or the timeout elapses.
+     * <p>
+     * Hosts may use this to park the thread stepping the board instead of stepping an idle board at their
+     * regular rate, e.g. using a timeout corresponding to {@link #getCyclesUntilNextEvent()}.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return {@code true} if the board is no longer idle, {@code false} if the timeout elapsed.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public boolean awaitWakeUp(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (wakeUpMonitor) {
+            while (isRunning() && isIdle()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(wakeUpMonitor, remaining);
+            }
+        }
+
+        return true;
+    }
+
     public R5CPU getCpu() {
         return cpu;
     }
 
+    public List<R5CPU> getHarts() {
+        return Collections.unmodifiableList(harts);
+    }
+
     @Override
     public MemoryMap getMemoryMap() {
         return memoryMap;
@@ -136,11 +285,16 @@ public final class R5Board implements Board {
 
         devices.add(~index, device);
 
-        if (device instanceof Steppable) {
+        if (device instanceof final ScheduledSteppable scheduledDevice) {
+            scheduledDevices.add(scheduledDevice);
+            isSchedulerValid = false;
+        } else if (device instanceof Steppable) {
             steppableDevices.add((Steppable) device);
         }
 
-        cpu.invalidateCaches();
+        for (final R5CPU hart : harts) {
+            hart.invalidateCaches();
+        }
 
         return true;
     }
@@ -160,7 +314,12 @@ public final class R5Board implements Board {
         memoryMap.removeDevice(device);
         devices.remove(device);
 
-        if (device instanceof Steppable) {
+        if (device instanceof final ScheduledSteppable scheduledDevice) {
+            if (scheduledDevices.remove(scheduledDevice)) {
+                scheduledDevice.setEventScheduler(null);
+                isSchedulerValid = false;
+            }
+        } else if (device instanceof Steppable) {
             steppableDevices.remove(device);
         }
 
@@ -168,7 +327,9 @@ public final class R5Board implements Board {
             standardOutputDevice = null;
         }
 
-        cpu.invalidateCaches();
+        for (final R5CPU hart : harts) {
+            hart.invalidateCaches();
+        }
     }
 
     @Override
@@ -183,7 +344,7 @@ public final class R5Board implements Board {
 
     @Override
     public void setBootArguments(final String value) {
-        if (value != null && value.length() > 64) {
+        if (value != null && value.length() > MAX_BOOTARGS_LENGTH) {
             throw new IllegalArgumentException();
         }
         this.bootargs = value;
@@ -220,7 +381,31 @@ public final class R5Board implements Board {
             waitForGdb = false;
         }
 
+        if (!isSchedulerValid) {
+            rebuildScheduler();
+        }
+
         try {
+            // Run harts until the next event, then step the devices it is for. Events that are
+            // scheduled while harts are running are handled once the current slice completes.
+            int remaining = cycles;
+            while (remaining > 0) {
+                final long cyclesUntilEvent = getCyclesUntilNextEvent();
+                final int slice;
+                if (areHartsWaitingForInterrupt()) {
+                    // Nothing to run until the next event, skip straight to it.
+                    slice = (int) Math.min(remaining, Math.max(1, cyclesUntilEvent));
+                    for (final R5CPU hart : harts) {
+                        hart.step(slice);
+                    }
+                } else {
+                    slice = (int) Math.min(remaining, Math.max(MIN_SLICE_CYCLES, cyclesUntilEvent));
+                    stepHarts(slice);
+                }
+                remaining -= slice;
+                scheduler.stepDueDevices(cycles);
+            }
+
             for (final Steppable device : steppableDevices) {
                 device.step(cycles);
             }
@@ -235,13 +420,79 @@ public final class R5Board implements Board {
 
     @Override
     public void reset() {
-        cpu.reset();
+        for (final R5CPU hart : harts) {
+            hart.reset();
+        }
 
         for (final MemoryMappedDevice device : devices) {
             if (device instanceof Resettable) {
                 ((Resettable) device).reset();
             }
         }
+
+        isSchedulerValid = false;
+    }
+
+    private boolean areHartsWaitingForInterrupt() {
+        for (final R5CPU hart : harts) {
+            if (!hart.isWaitingForInterrupt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void wakeUp() {
+        synchronized (wakeUpMonitor) {
+            wakeUpMonitor.notifyAll();
+        }
+    }
+
+    private void rebuildScheduler() {
+        // Devices re-register all their pending work, which is also how pending work gets
+        // scheduled again after loading, since the event queue itself is not serialized.
+        scheduler.clear();
+        for (final ScheduledSteppable device : scheduledDevices) {
+            device.setEventScheduler(scheduler);
+        }
+        isSchedulerValid = true;
+    }
+
+    private void stepHarts(final int cycles) {
+        if (hartExecutor == null) {
+            cpu.step(cycles);
+            return;
+        }
+
+        // Secondary harts run in parallel to the first one. Devices are only stepped after all
+        // harts finished, so they never run in parallel to harts, only get accessed by them.
+        hartFutures.clear();
+        for (final R5CPU hart : secondaryHarts) {
+            hartFutures.add(hartExecutor.submit(() -> hart.step(cycles)));
+        }
+
+        RuntimeException exception = null;
+        try {
+            cpu.step(cycles);
+        } catch (final RuntimeException e) {
+            exception = e;
+        }
+
+        for (final Future<?> future : hartFutures) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                if (exception == null && e.getCause() instanceof final RuntimeException cause) {
+                    exception = cause;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
     }
 
     public void initialize() throws IllegalStateException, MemoryAccessException {
@@ -249,9 +500,53 @@ public final class R5Board implements Board {
     }
 
     public void initialize(final long programStart) throws IllegalStateException, MemoryAccessException {
+        initialize(programStart, 0, 0, 0);
+    }
+
+    /**
+     * Loads a Linux kernel and, optionally, an initial RAM disk into memory and prepares the board for booting
+     * the kernel directly, without a firmware stage.
+     * <p>
+     * The kernel may be a flat {@code Image} file or an ELF {@code vmlinux} file. It is loaded at the start of
+     * the memory at {@link #getDefaultProgramStart()}, followed by the initial RAM disk, whose location is passed
+     * to the kernel via the {@code linux,initrd-start} and {@code linux,initrd-end} properties of the device tree's
+     * {@code /chosen} node. The kernel is then started as described by the RISC-V Linux boot protocol, using the
+     * built-in SBI implementation, see {@link #setBuiltInSBIEnabled(boolean)}, which this enables.
+     * <p>
+     * The positions of the specified buffers are not changed.
+     *
+     * @param kernel the contents of the kernel file.
+     * @param initrd the contents of the initial RAM disk, or {@code null} for none.
+     * @throws IllegalArgumentException if the kernel is an ELF file that is not a RISC-V executable.
+     * @throws IllegalStateException    if there is not enough memory for the kernel, initial RAM disk and device tree.
+     * @throws MemoryAccessException    when an exception is thrown while accessing memory.
+     */
+    public void initializeLinux(final ByteBuffer kernel, @Nullable final ByteBuffer initrd) throws IllegalArgumentException, IllegalStateException, MemoryAccessException {
+        final long kernelStart = getDefaultProgramStart();
+        final long memoryEnd = kernelStart + MemoryMaps.getContinuousMemorySize(memoryMap, kernelStart);
+
+        final R5LinuxKernel.Layout layout = R5LinuxKernel.load(memoryMap, kernelStart, memoryEnd, kernel);
+
+        long initrdStart = 0, initrdEnd = 0;
+        if (initrd != null) {
+            initrdStart = (layout.end() + INITRD_ALIGNMENT - 1) & -INITRD_ALIGNMENT;
+            initrdEnd = initrdStart + initrd.remaining();
+            if (Long.compareUnsigned(initrdEnd, memoryEnd) > 0) {
+                throw new IllegalStateException("Not enough memory to fit initial RAM disk.");
+            }
+
+            MemoryMaps.store(memoryMap, initrdStart, initrd.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        isBuiltInSBIEnabled = true;
+        initialize(layout.entryPoint(), Math.max(layout.end(), initrdEnd), initrdStart, initrdEnd);
+    }
+
+    // Memory from the default program start up to the specified end holds the loaded kernel, if any.
+    private void initialize(final long programStart, final long loadedEnd, final long initrdStart, final long initrdEnd) throws IllegalStateException, MemoryAccessException {
         isRestarting = false;
 
-        final FlattenedDeviceTree fdt = buildDeviceTree().flatten();
+        final FlattenedDeviceTree fdt = buildDeviceTree(initrdStart, initrdEnd).flatten();
         final byte[] dtb = fdt.toDTB();
 
         OptionalLong fdtAddress = OptionalLong.empty();
@@ -265,6 +560,12 @@ public final class R5Board implements Board {
                         continue;
                     }
 
+                    // Don't overwrite the kernel and initial RAM disk.
+                    if (Long.compareUnsigned(address, loadedEnd) < 0 &&
+                        Long.compareUnsigned(address + dtb.length, getDefaultProgramStart()) > 0) {
+                        continue;
+                    }
+
                     if (fdtAddress.isEmpty() || Long.compareUnsigned(address, fdtAddress.getAsLong()) > 0) {
                         fdtAddress = OptionalLong.of(address);
                     }
@@ -276,9 +577,7 @@ public final class R5Board implements Board {
             throw new IllegalStateException("No memory device present that can fit device tree.");
         }
 
-        for (int i = 0; i < dtb.length; i++) {
-            memoryMap.store(fdtAddress.getAsLong() + i, dtb[i], Sizes.SIZE_8_LOG2);
-        }
+        MemoryMaps.store(memoryMap, fdtAddress.getAsLong(), dtb, 0, dtb.length);
 
         final ByteBuffer data = flash.getData();
         data.clear();
@@ -286,33 +585,50 @@ public final class R5Board implements Board {
         final int auipc = 0b0010111;
         final int ld = 0b011_00000_0000011;
         final int jalr = 0b1100111;
+        final int csrrs = 0b010_00000_1110011;
 
         final int rd_t0 = 5 << 7;
+        final int rd_a0 = 10 << 7;
         final int rd_a1 = 11 << 7;
         final int rs1_t0 = 5 << 15;
 
-        final int imm_fdtAddressOffset = 0x10 << 20;
-        final int imm_programStartOffset = 0x18 << 20;
+        final int csr_mhartid = 0xF14 << 20;
+        final int imm_fdtAddressOffset = 0x18 << 20;
+        final int imm_programStartOffset = 0x20 << 20;
 
         // 0x0000  auipc t0, 0 ; x5 = pc
         data.putInt(auipc | rd_t0);
 
-        // 0x0004  ld a1, 8(t0) ; a1 = *(t0 + 8) = fdtAddress
+        // 0x0004  csrr a0, mhartid ; a0 = hart id, firmware expects this for multiple harts
+        data.putInt(csrrs | rd_a0 | csr_mhartid);
+
+        // 0x0008  ld a1, 0x18(t0) ; a1 = *(t0 + 0x18) = fdtAddress
         data.putInt(ld | rd_a1 | rs1_t0 | imm_fdtAddressOffset);
 
-        // 0x0008  ld t0, 12(t0) ; t0 = *(t0 + 12) = programStart
+        // 0x000C  ld t0, 0x20(t0) ; t0 = *(t0 + 0x20) = programStart
         data.putInt(ld | rd_t0 | rs1_t0 | imm_programStartOffset);
 
-        // 0x000C  jalr t0 ; jump to firmware
+        // 0x0010  jalr t0 ; jump to firmware
         data.putInt(jalr | rs1_t0);
 
-        // 0x0010  fdtAddress
+        // 0x0014  padding
+        data.putInt(0);
+
+        // 0x0018  fdtAddress
         data.putLong(fdtAddress.getAsLong());
-        // 0x0018  programStart
+        // 0x0020  programStart
         data.putLong(programStart);
+
+        if (isBuiltInSBIEnabled) {
+            // Skip the stub above, which would run the program in machine mode.
+            cpu.startSupervisor(programStart, cpu.getHartId(), fdtAddress.getAsLong());
+            for (final R5CPU hart : secondaryHarts) {
+                hart.stop();
+            }
+        }
     }
 
-    private DeviceTree buildDeviceTree() {
+    private DeviceTree buildDeviceTree(final long initrdStart, final long initrdEnd) {
         final DeviceTree root = DeviceTreeRegistry.create(memoryMap);
         root
             .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 2)
@@ -320,30 +636,37 @@ public final class R5Board implements Board {
             .addProp(DevicePropertyNames.COMPATIBLE, "riscv-sedna", "riscv-virtio")
             .addProp(DevicePropertyNames.MODEL, "riscv-virtio,sedna");
 
-        root.putChild(DeviceNames.CPUS, cpus -> cpus
-            .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 1)
-            .addProp(DevicePropertyNames.NUM_SIZE_CELLS, 0)
-            .addProp(DevicePropertyNames.TIMEBASE_FREQUENCY, rtc.getFrequency())
-
-            .putChild("cpu-map", cpuMap -> cpuMap
-                .putChild("cluster0", cluster -> cluster
-                    .addProp("core0", root.getPHandle(cpu))))
-
-            .putChild(DeviceNames.CPU, 0, cpuNode -> cpuNode
-                .addProp(DevicePropertyNames.DEVICE_TYPE, DeviceNames.CPU)
-                .addProp(DevicePropertyNames.REG, 0)
-                .addProp(DevicePropertyNames.STATUS, "okay")
-                .addProp(DevicePropertyNames.COMPATIBLE, "riscv")
-                .addProp("riscv,isa", getISAString(cpu))
-
-                .addProp(DevicePropertyNames.MMU_TYPE, "riscv,sv48")
-                .addProp(DevicePropertyNames.CLOCK_FREQUENCY, cpu.getFrequency())
-
-                .putChild(DeviceNames.INTERRUPT_CONTROLLER, ic -> ic
-                    .addProp(DevicePropertyNames.NUM_INTERRUPT_CELLS, 1)
-                    .addProp(DevicePropertyNames.INTERRUPT_CONTROLLER)
-                    .addProp(DevicePropertyNames.COMPATIBLE, "riscv,cpu-intc")
-                    .addProp(DevicePropertyNames.PHANDLE, ic.getPHandle(cpu)))));
+        root.putChild(DeviceNames.CPUS, cpus -> {
+            cpus
+                .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 1)
+                .addProp(DevicePropertyNames.NUM_SIZE_CELLS, 0)
+                .addProp(DevicePropertyNames.TIMEBASE_FREQUENCY, rtc.getFrequency())
+
+                .putChild("cpu-map", cpuMap -> cpuMap
+                    .putChild("cluster0", cluster -> {
+                        for (final R5CPU hart : harts) {
+                            cluster.addProp("core" + hart.getHartId(), root.getPHandle(hart));
+                        }
+                    }));
+
+            for (final R5CPU hart : harts) {
+                cpus.putChild(DeviceNames.CPU, hart.getHartId(), cpuNode -> cpuNode
+                    .addProp(DevicePropertyNames.DEVICE_TYPE, DeviceNames.CPU)
+                    .addProp(DevicePropertyNames.REG, hart.getHartId())
+                    .addProp(DevicePropertyNames.STATUS, "okay")
+                    .addProp(DevicePropertyNames.COMPATIBLE, "riscv")
+                    .addProp("riscv,isa", getISAString(hart))
+
+                    .addProp(DevicePropertyNames.MMU_TYPE, "riscv,sv48")
+                    .addProp(DevicePropertyNames.CLOCK_FREQUENCY, hart.getFrequency())
+
+                    .putChild(DeviceNames.INTERRUPT_CONTROLLER, ic -> ic
+                        .addProp(DevicePropertyNames.NUM_INTERRUPT_CELLS, 1)
+                        .addProp(DevicePropertyNames.INTERRUPT_CONTROLLER)
+                        .addProp(DevicePropertyNames.COMPATIBLE, "riscv,cpu-intc")
+                        .addProp(DevicePropertyNames.PHANDLE, ic.getPHandle(hart))));
+            }
+        });
 
         root.putChild("soc", soc -> soc
             .addProp(DevicePropertyNames.NUM_ADDRESS_CELLS, 2)
@@ -364,6 +687,12 @@ public final class R5Board implements Board {
                 .addProp("bootargs", bootargs));
         }
 
+        if (initrdEnd != initrdStart) {
+            root.putChild("chosen", chosen -> chosen
+                .addProp("linux,initrd-start", initrdStart)
+                .addProp("linux,initrd-end", initrdEnd));
+        }
+
         return root;
     }
 
@@ -374,6 +703,7 @@ public final class R5Board implements Board {
                 isa.append(Character.toLowerCase(i));
             }
         }
+        isa.append("_zihintpause_sstc");
         return isa.toString();
     }
 }
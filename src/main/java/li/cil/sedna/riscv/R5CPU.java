@@ -8,10 +8,15 @@ import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.gdbstub.CPUDebugInterface;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
 
 public interface R5CPU extends Steppable, Resettable, RealTimeCounter, InterruptController {
+    static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, final int hartId) {
+        return R5CPUGenerator.create(physicalMemory, rtc, hartId);
+    }
+
     static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc) {
-        return R5CPUGenerator.create(physicalMemory, rtc);
+        return create(physicalMemory, rtc, 0);
     }
 
     static R5CPU create(final MemoryMap physicalMemory) {
@@ -30,5 +35,127 @@ public interface R5CPU extends Steppable, Resettable, RealTimeCounter, Interrupt
 
     void notify(long address, int size);
 
+    int getHartId();
+
+    /**
+     * Whether this hart is halted in a {@code WFI} instruction, or {@link #isStopped() stopped}. While
+     * halted, stepping the hart only advances its cycle counter, until an interrupt is raised.
+     *
+     * @return {@code true} if this hart is waiting for an interrupt.
+     */
+    boolean isWaitingForInterrupt();
+
+    /**
+     * Whether this hart was stopped using {@link #stop()} and has not been started again since.
+     *
+     * @return {@code true} if this hart is stopped.
+     */
+    boolean isStopped();
+
+    /**
+     * Stops this hart. While stopped, stepping the hart only advances its cycle counter, and interrupts
+     * do not resume execution. Only {@link #startSupervisor(long, long, long)} and resetting the hart do.
+     * <p>
+     * Must only be called on the thread stepping this hart, or while this hart is not being stepped.
+     */
+    void stop();
+
+    /**
+     * Starts this hart in supervisor mode, as machine mode firmware would when handing over to supervisor
+     * software such as Linux. All exceptions and interrupts supervisor mode can handle are delegated to it,
+     * counters are made accessible to it, the Sstc extension is enabled, and address translation is off.
+     * <p>
+     * May be called from any thread. If this hart is being stepped on another thread, this blocks until that
+     * step completes, so this should only be used on harts that are {@link #isStopped() stopped}, or not
+     * being stepped.
+     *
+     * @param pc the address to start executing at.
+     * @param a0 the value to pass in register {@code a0}, usually the hart id.
+     * @param a1 the value to pass in register {@code a1}, usually the address of the device tree.
+     */
+    void startSupervisor(long pc, long a0, long a1);
+
+    /**
+     * Sets a handler for environment calls made from supervisor mode, i.e. for calls to the supervisor binary
+     * interface. Calls the handler accepts do not trap into machine mode.
+     *
+     * @param handler the handler, or {@code null} to remove it.
+     */
+    void setSupervisorCallHandler(@Nullable R5SupervisorCallHandler handler);
+
+    /**
+     * Sets the time at which the supervisor timer of this hart raises its interrupt, i.e. the {@code stimecmp}
+     * CSR of the Sstc extension. Only has an effect while the Sstc extension is enabled.
+     * <p>
+     * Must only be called on the thread stepping this hart, e.g. from a supervisor call handler.
+     *
+     * @param value the time at which to raise the supervisor timer interrupt.
+     */
+    void setSupervisorTimer(long value);
+
+    /**
+     * Makes the specified harts drop their cached instructions and address translations, as if they ran
+     * {@code FENCE.I} and {@code SFENCE.VMA}, and waits until they did so.
+     * <p>
+     * Must only be called on the thread stepping this hart, e.g. from a supervisor call handler.
+     *
+     * @param harts the harts to fence, may include this hart itself.
+     */
+    void fenceHarts(Collection<R5CPU> harts);
+
+    /**
+     * Sets a callback run when raising an interrupt wakes this hart from waiting for an interrupt.
+     * <p>
+     * Interrupts may be raised by other threads, so the callback may be run on any thread.
+     *
+     * @param listener the callback, or {@code null} to remove it.
+     */
+    void setWakeUpListener(@Nullable Runnable listener);
+
+    /**
+     * The time at which the supervisor timer of this hart raises its interrupt, if it is enabled and not
+     * pending already. The supervisor timer is provided by the Sstc extension, i.e. the {@code stimecmp} CSR.
+     * <p>
+     * Since nothing outside the hart observes this timer, boards need to know this deadline to not skip
+     * past it when all harts are waiting for an interrupt.
+     *
+     * @return the time of the next supervisor timer interrupt, or {@link Long#MAX_VALUE} if there is none.
+     */
+    long getSupervisorTimerDeadline();
+
+    /**
+     * The number of memory accesses, including instruction fetches, whose address translation
+     * was found in one of the translation look-aside buffers of this hart.
+     *
+     * @return the number of TLB hits since this hart was created.
+     */
+    long getTLBHitCount();
+
+    /**
+     * The number of memory accesses, including instruction fetches, whose address translation
+     * was not found in one of the translation look-aside buffers of this hart and had to be
+     * looked up in the page table.
+     *
+     * @return the number of TLB misses since this hart was created.
+     */
+    long getTLBMissCount();
+
+    /**
+     * The number of TLB misses that were resolved using a cached megapage or gigapage translation
+     * instead of walking the page table. These are included in {@link #getTLBHitCount()}.
+     *
+     * @return the number of page table walks saved by caching superpages since this hart was created.
+     */
+    long getTLBSuperpageHitCount();
+
+    /**
+     * Sets the harts sharing physical memory with this one, may include this hart itself.
+     * <p>
+     * Stores by this hart will invalidate LR/SC reservations held by these harts.
+     *
+     * @param harts the harts sharing physical memory with this one.
+     */
+    void setHarts(Collection<R5CPU> harts);
+
     CPUDebugInterface getDebugInterface();
 }
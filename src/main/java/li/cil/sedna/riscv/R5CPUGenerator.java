@@ -3,38 +3,76 @@ package li.cil.sedna.riscv;
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.instruction.decoder.DecoderGenerator;
+import li.cil.sedna.instruction.decoder.DecoderProfile;
+import li.cil.sedna.instruction.decoder.DecoderProfileRecorder;
+import li.cil.sedna.instruction.decoder.DispatchGenerator;
 import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.util.Throwables;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.commons.SimpleRemapper;
 
 import javax.annotation.Nullable;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public final class R5CPUGenerator {
     public static final Class<R5CPUTemplate> TEMPLATE_CLASS = R5CPUTemplate.class;
     public static final String GENERATED_SUFFIX = "$Generated";
 
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Path of a profile written by a previous run with profile recording enabled. Used to lay out
+    // the decoder so that frequently executed instructions are found faster.
+    @Nullable private static final String DECODER_PROFILE_PATH = System.getProperty("sedna.decoder.profile");
+
+    // When set, instruction execution counts are recorded and written to this path on shutdown.
+    // Instructions are then only run by the decoder, not from pre-decoded pages or compiled blocks.
+    @Nullable private static final String RECORD_DECODER_PROFILE_PATH = System.getProperty("sedna.decoder.profile.record");
+
+    // Bytecode size budget for the generated decoder methods, see DecoderGenerator.DEFAULT_METHOD_SIZE_BUDGET.
+    private static final int DECODER_METHOD_SIZE_BUDGET = Integer.getInteger("sedna.decoder.methodSizeBudget", DecoderGenerator.DEFAULT_METHOD_SIZE_BUDGET);
+
+    // Bytecode size budget for the generated instruction and handler group methods, see DecoderGenerator.DEFAULT_GROUP_SIZE_BUDGET.
+    private static final int DECODER_GROUP_SIZE_BUDGET = Integer.getInteger("sedna.decoder.groupSizeBudget", DecoderGenerator.DEFAULT_GROUP_SIZE_BUDGET);
+
+    // HotSpot's default limits for compiling methods at all (-XX:HugeMethodLimit) and for inlining
+    // frequently called methods (-XX:FreqInlineSize). Only used to report on generated methods.
+    private static final int HUGE_METHOD_LIMIT = 8000;
+    private static final int FREQ_INLINE_SIZE = 325;
+    private static final Pattern GENERATED_METHOD_NAME = Pattern.compile("interpret(Trace|Decoded)(32|64)");
+
     @SuppressWarnings("unchecked")
     private static final Class<R5CPU> GENERATED_CLASS = (Class<R5CPU>) generateClass();
     private static final Constructor<R5CPU> GENERATED_CLASS_CTOR;
 
+    public static boolean isRecordingDecoderProfile() {
+        return RECORD_DECODER_PROFILE_PATH != null;
+    }
+
     public static Class<R5CPU> getGeneratedClass() {
         return GENERATED_CLASS;
     }
 
     public static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc) {
+        return create(physicalMemory, rtc, 0);
+    }
+
+    public static R5CPU create(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, final int hartId) {
         try {
-            return GENERATED_CLASS_CTOR.newInstance(physicalMemory, rtc);
+            return GENERATED_CLASS_CTOR.newInstance(physicalMemory, rtc, hartId);
         } catch (final InvocationTargetException e) {
             Throwables.rethrow(e.getCause());
             throw new AssertionError();
@@ -44,8 +82,12 @@ public final class R5CPUGenerator {
     }
 
     static {
+        if (RECORD_DECODER_PROFILE_PATH != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(R5CPUGenerator::saveDecoderProfile));
+        }
+
         try {
-            GENERATED_CLASS_CTOR = GENERATED_CLASS.getDeclaredConstructor(MemoryMap.class, RealTimeCounter.class);
+            GENERATED_CLASS_CTOR = GENERATED_CLASS.getDeclaredConstructor(MemoryMap.class, RealTimeCounter.class, int.class);
             GENERATED_CLASS_CTOR.setAccessible(true);
         } catch (final NoSuchMethodException e) {
             throw new AssertionError(e);
@@ -165,32 +207,90 @@ public final class R5CPUGenerator {
                         final RemappedTypeClassWriter nestedTypeWriter = new RemappedTypeClassWriter(remappedTypeNames);
                         nestedTypeReader.accept(new ClassRemapper(nestedTypeWriter, remapper), ClassReader.EXPAND_FRAMES);
 
-                        definerClassLoader.defineClass(nestedTypeWriter.toByteArray());
+                        definerClassLoader.addClass(remapper.map(remappedTypeName), nestedTypeWriter.toByteArray());
                     } catch (final Throwable e) {
                         throw new AssertionError(e);
                     }
                 }
 
+                // Nested types may extend each other, so define them in any order, resolving supertypes on demand.
+                for (final String remappedTypeName : remappedTypeNames) {
+                    if (!Objects.equals(remappedTypeName, typeCollector.getHostClassName())) {
+                        try {
+                            definerClassLoader.loadClass(remapper.map(remappedTypeName).replace('/', '.'));
+                        } catch (final Throwable e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }
+
                 final RemappedTypeClassWriter writer = new RemappedTypeClassWriter(remappedTypeNames);
-                final DecoderGenerator generator64 = new DecoderGenerator(
-                    new ClassRemapper(writer, remapper),
-                    R5Instructions.RV64.getDecoderTree(),
-                    R5Instructions.RV64::getDefinition,
+                final DecoderGenerator generator64;
+                final DecoderGenerator generator32;
+                if (RECORD_DECODER_PROFILE_PATH != null) {
+                    generator64 = new DecoderProfileRecorder(
+                        new ClassRemapper(writer, remapper),
+                        R5Instructions.RV64.getExpandedDecoderTree(),
+                        R5Instructions.RV64::getDefinition,
+                        true,
+                        R5IllegalInstructionException.class,
+                        "interpretTrace64",
+                        "decode");
+                    generator32 = new DecoderProfileRecorder(
+                        generator64,
+                        R5Instructions.RV32.getExpandedDecoderTree(),
+                        R5Instructions.RV32::getDefinition,
+                        true,
+                        R5IllegalInstructionException.class,
+                        "interpretTrace32",
+                        "decode");
+                } else {
+                    final DecoderProfile profile = loadDecoderProfile();
+                    generator64 = new DecoderGenerator(
+                        new ClassRemapper(writer, remapper),
+                        R5Instructions.RV64.getExpandedDecoderTree(),
+                        R5Instructions.RV64::getDefinition,
+                        profile,
+                        DECODER_METHOD_SIZE_BUDGET,
+                        DECODER_GROUP_SIZE_BUDGET,
+                        true,
+                        R5IllegalInstructionException.class,
+                        "interpretTrace64",
+                        "decode");
+                    generator32 = new DecoderGenerator(
+                        generator64,
+                        R5Instructions.RV32.getExpandedDecoderTree(),
+                        R5Instructions.RV32::getDefinition,
+                        profile,
+                        DECODER_METHOD_SIZE_BUDGET,
+                        DECODER_GROUP_SIZE_BUDGET,
+                        true,
+                        R5IllegalInstructionException.class,
+                        "interpretTrace32",
+                        "decode");
+                }
+
+                final DispatchGenerator dispatch64 = new DispatchGenerator(
+                    generator32,
+                    R5Instructions.RV64.getDispatchTable(),
+                    DECODER_GROUP_SIZE_BUDGET,
                     R5IllegalInstructionException.class,
-                    "interpretTrace64",
-                    "decode");
-                final DecoderGenerator generator32 = new DecoderGenerator(
-                    generator64,
-                    R5Instructions.RV32.getDecoderTree(),
-                    R5Instructions.RV32::getDefinition,
+                    "interpretDecoded64",
+                    "dispatch");
+                final DispatchGenerator dispatch32 = new DispatchGenerator(
+                    dispatch64,
+                    R5Instructions.RV32.getDispatchTable(),
+                    DECODER_GROUP_SIZE_BUDGET,
                     R5IllegalInstructionException.class,
-                    "interpretTrace32",
-                    "decode");
+                    "interpretDecoded32",
+                    "dispatch");
 
-                reader.accept(generator32, ClassReader.EXPAND_FRAMES);
+                reader.accept(dispatch32, ClassReader.EXPAND_FRAMES);
 
                 final byte[] bytes = writer.toByteArray();
 
+                logGeneratedMethodSizes(bytes);
+
                 return definerClassLoader.defineClass(bytes);
             }
         } catch (final Throwable e) {
@@ -198,13 +298,81 @@ public final class R5CPUGenerator {
         }
     }
 
+    private static void logGeneratedMethodSizes(final byte[] bytes) {
+        final ClassReader reader = new ClassReader(bytes);
+        reader.accept(new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
+                if (!GENERATED_METHOD_NAME.matcher(name).lookingAt()) {
+                    return null;
+                }
+
+                return new CodeSizeEvaluator(Opcodes.ASM7, null) {
+                    @Override
+                    public void visitEnd() {
+                        final int size = getMaxSize();
+                        if (size > HUGE_METHOD_LIMIT) {
+                            LOGGER.warn("Generated method [{}] is [{}] bytes, will not be compiled (limit is [{}] bytes).", name, size, HUGE_METHOD_LIMIT);
+                        } else if (!name.contains("$")) {
+                            LOGGER.info("Generated method [{}] is [{}] bytes, compilable.", name, size);
+                        } else if (size > DECODER_GROUP_SIZE_BUDGET) {
+                            LOGGER.warn("Generated method [{}] is [{}] bytes, over budget (budget is [{}] bytes).", name, size, DECODER_GROUP_SIZE_BUDGET);
+                        } else {
+                            LOGGER.debug("Generated method [{}] is [{}] bytes, {}.", name, size,
+                                size > FREQ_INLINE_SIZE ? "too large to be inlined" : "inlinable");
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG);
+    }
+
+    @Nullable
+    private static DecoderProfile loadDecoderProfile() {
+        if (DECODER_PROFILE_PATH == null) {
+            return null;
+        }
+
+        try (final InputStream stream = new FileInputStream(DECODER_PROFILE_PATH)) {
+            final DecoderProfile profile = DecoderProfile.load(stream);
+            LOGGER.info("Using decoder profile [{}] with [{}] executed instructions.", DECODER_PROFILE_PATH, profile.getTotalCount());
+            return profile;
+        } catch (final IOException e) {
+            LOGGER.error("Failed loading decoder profile [{}].", DECODER_PROFILE_PATH, e);
+            return null;
+        }
+    }
+
+    private static void saveDecoderProfile() {
+        try (final OutputStream stream = new FileOutputStream(RECORD_DECODER_PROFILE_PATH)) {
+            DecoderProfileRecorder.getProfile().save(stream);
+        } catch (final IOException e) {
+            LOGGER.error("Failed writing decoder profile [{}].", RECORD_DECODER_PROFILE_PATH, e);
+        }
+    }
+
     private static class CPUClassLoader extends ClassLoader {
+        private final Map<String, byte[]> pendingClasses = new HashMap<>();
+
         public CPUClassLoader() {
             super(CPUClassLoader.class.getClassLoader());
         }
 
+        public void addClass(final String internalName, final byte[] bytecode) {
+            pendingClasses.put(internalName.replace('/', '.'), bytecode);
+        }
+
         public Class<?> defineClass(final byte[] bytecode) {
             return defineClass(null, bytecode, 0, bytecode.length);
         }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final byte[] bytecode = pendingClasses.remove(name);
+            if (bytecode == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
     }
 }
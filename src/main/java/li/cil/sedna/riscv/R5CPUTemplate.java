@@ -1,5 +1,6 @@
 package li.cil.sedna.riscv;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongAVLTreeSet;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
@@ -11,23 +12,29 @@ import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.memory.MappedMemoryRange;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.UnsafeMemory;
 import li.cil.sedna.gdbstub.CPUDebugInterface;
 import li.cil.sedna.instruction.InstructionDefinition.Field;
 import li.cil.sedna.instruction.InstructionDefinition.Instruction;
 import li.cil.sedna.instruction.InstructionDefinition.InstructionSize;
 import li.cil.sedna.instruction.InstructionDefinition.ProgramCounter;
+import li.cil.sedna.instruction.decoder.DispatchTable;
 import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
 import li.cil.sedna.riscv.exception.R5MemoryAccessException;
 import li.cil.sedna.utils.BitUtils;
 import li.cil.sedna.utils.SoftDouble;
 import li.cil.sedna.utils.SoftFloat;
+import li.cil.sedna.utils.UnsafeGetter;
+import sun.misc.Unsafe;
 
 import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.LongConsumer;
 
 /**
@@ -51,8 +58,16 @@ final class R5CPUTemplate implements R5CPU {
     // UBE, SBE, MBE hardcoded to zero for little endianness.
     private static final long MSTATUS_MASK = ~R5.STATUS_UBE_MASK & ~R5.STATUS_SBE_MASK & ~R5.STATUS_MBE_MASK;
 
-    // No time and no high perf counters.
-    private static final int COUNTEREN_MASK = R5.MCOUNTERN_CY | R5.MCOUNTERN_IR;
+    // Exceptions delegated to supervisor mode when running without machine mode firmware, see startSupervisor().
+    private static final long SUPERVISOR_EXCEPTIONS = (1L << R5.EXCEPTION_MISALIGNED_FETCH) |
+        (1L << R5.EXCEPTION_FAULT_FETCH) | (1L << R5.EXCEPTION_ILLEGAL_INSTRUCTION) | (1L << R5.EXCEPTION_BREAKPOINT) |
+        (1L << R5.EXCEPTION_MISALIGNED_LOAD) | (1L << R5.EXCEPTION_FAULT_LOAD) |
+        (1L << R5.EXCEPTION_MISALIGNED_STORE) | (1L << R5.EXCEPTION_FAULT_STORE) | (1L << R5.EXCEPTION_USER_ECALL) |
+        (1L << R5.EXCEPTION_FETCH_PAGE_FAULT) | (1L << R5.EXCEPTION_LOAD_PAGE_FAULT) |
+        (1L << R5.EXCEPTION_STORE_PAGE_FAULT);
+
+    // No high perf counters. TM is writable because Sstc requires it for supervisor access to stimecmp.
+    private static final int COUNTEREN_MASK = R5.MCOUNTERN_CY | R5.MCOUNTERN_TM | R5.MCOUNTERN_IR;
 
     // Supervisor status (sstatus) CSR mask over mstatus.
     private static final long SSTATUS_MASK = (R5.STATUS_UIE_MASK | R5.STATUS_SIE_MASK |
@@ -62,7 +77,50 @@ final class R5CPUTemplate implements R5CPU {
         R5.STATUS_MXR_MASK | R5.STATUS_UXL_MASK);
 
     // Translation look-aside buffer config.
-    private static final int TLB_SIZE = 256; // Must be a power of two for fast modulo via `& (TLB_SIZE - 1)`.
+    private static final int TLB_SIZE = Integer.getInteger("sedna.tlb.size", 256); // Must be a power of two for fast modulo via `& (TLB_SETS - 1)`.
+    private static final int TLB_WAYS = Integer.getInteger("sedna.tlb.ways", 1); // Entries per set, 1 (direct-mapped) or 2.
+    private static final int TLB_SETS = TLB_SIZE / TLB_WAYS;
+    private static final int TLB_WAYS_LOG2 = Integer.numberOfTrailingZeros(TLB_WAYS);
+    private static final int TLB_SUPERPAGES = 8; // Megapage and gigapage translations kept per TLB.
+    // Entries are tagged with the context they were translated in, stored in the otherwise zero page offset bits of
+    // their tag. This way entries of different address spaces and privilege levels can coexist.
+    private static final int TLB_ASID_BITS = 8; // Supported width of satp.ASID, limited by the bits left in tags.
+    private static final int TLB_CONTEXT_ASID_MASK = (1 << TLB_ASID_BITS) - 1;
+    private static final int TLB_CONTEXT_PRIVILEGE_SHIFT = TLB_ASID_BITS; // Privilege level, two bits.
+    private static final int TLB_CONTEXT_SUM = 1 << (TLB_ASID_BITS + 2); // Whether mstatus.SUM was set.
+    private static final int TLB_CONTEXT_GLOBAL = 1 << (TLB_ASID_BITS + 3); // Mapping is global, ASID bits are zero.
+
+    // Page walk cache config.
+    private static final int PAGE_WALK_CACHE_SIZE = 32; // Non-leaf page table entries kept, must be a power of two.
+    private static final int PAGE_WALK_CACHE_MAX_PAGES = 64; // Page table pages tracked before the cache is reset.
+
+    // Interpreter config.
+    private static final int TRACE_MAX_INSTRUCTIONS = 1024; // Bounds latency of interrupts and cycle limits.
+    private static final int[] RV32_COMPRESSED_EXPANSION = R5Instructions.RV32.getCompressedExpansionTable();
+    private static final int[] RV64_COMPRESSED_EXPANSION = R5Instructions.RV64.getCompressedExpansionTable();
+    private static final boolean RECORD_DECODER_PROFILE = R5CPUGenerator.isRecordingDecoderProfile(); // Only the decoder counts instructions.
+    private static final int PAUSE_CYCLES = 32; // Cycles a PAUSE hint lets pass, so spinning takes fewer host instructions.
+    private static final int FENCE_SPINS_BEFORE_YIELD = 64; // Spins waiting for a remote fence before giving up our core.
+
+    // Block compiler config.
+    private static final int BLOCK_PAGE_HOT_THRESHOLD = 256; // Trace entries into a page before we compile blocks in it.
+    private static final int BLOCK_ENTRY_HOT_THRESHOLD = 16; // Entries at an address in a hot page before we compile it.
+    private static final int BLOCK_MAX_INSTRUCTIONS = 64;
+    private static final int BLOCK_MAX_PAGE_INVALIDATIONS = 8; // Pages written to more often are left to the interpreter.
+
+    // Pre-decoded instruction cache config.
+    private static final int DECODE_PAGE_HOT_THRESHOLD = 4; // Trace entries into a page before we pre-decode instructions in it.
+    private static final int DECODE_END_INDEX = (1 << R5.PAGE_ADDRESS_SHIFT) / 2 - 1; // Last 16bit is left to the decoder.
+
+    // Lookup in the context of the generated class, so that compiled blocks become its nest-mates.
+    private static final MethodHandles.Lookup BLOCK_LOOKUP = MethodHandles.lookup();
+
+    // Direct access to memory, for TLB entries mapping pages of UnsafeMemory.
+    private static final Unsafe UNSAFE = UnsafeGetter.get();
+
+    // Traps are frequent, e.g. page faults in Linux guests, so we don't allocate exceptions to raise them. Illegal
+    // instruction exceptions carry no state, memory access exceptions are reused per hart, see memoryAccessException().
+    private static final R5IllegalInstructionException ILLEGAL_INSTRUCTION = new R5IllegalInstructionException();
 
     ///////////////////////////////////////////////////////////////////
     // RV32I / RV64I
@@ -84,6 +142,10 @@ final class R5CPUTemplate implements R5CPU {
     ///////////////////////////////////////////////////////////////////
     // RV64A
     private long reservation_set = -1L; // Reservation set for RV64A's LR/SC.
+    private long reservation_value; // Value loaded by LR, SC only succeeds if memory still holds it.
+
+    // Physical address of the reservation set, cleared by stores to it by this hart, other harts and devices.
+    private transient volatile long reservationAddress = -1L;
 
     ///////////////////////////////////////////////////////////////////
     // User-level CSRs
@@ -100,6 +162,7 @@ final class R5CPUTemplate implements R5CPU {
     private long mepc; // Machine Exception Program Counter
     private long mcause; // Machine Cause Register
     private long mtval; //  Machine Trap Value Register
+    private long menvcfg; // Machine Environment Configuration Register
 
     // Supervisor-level CSRs
     private long stvec; // Supervisor Trap Vector Base Address Register; 0b11=Mode: 0=direct, 1=vectored
@@ -109,26 +172,54 @@ final class R5CPUTemplate implements R5CPU {
     private long scause; // Supervisor Cause Register
     private long stval; // Supervisor Trap Value Register
     private long satp; // Supervisor Address Translation and Protection Register
+    private long stimecmp; // Supervisor Timer Compare Register (Sstc), only used while menvcfg.STCE is set.
 
     ///////////////////////////////////////////////////////////////////
     // Misc. state
     private int priv; // Current privilege level.
-    private boolean waitingForInterrupt;
+    private volatile boolean waitingForInterrupt; // Cleared by other threads raising interrupts.
+    private Runnable wakeUpListener; // Notified when raising an interrupt clears waitingForInterrupt.
+    private volatile boolean stopped; // Set while stopped via stop(), only startSupervisor() resumes execution.
+    private transient R5SupervisorCallHandler supervisorCallHandler; // Handles ECALLs from S-mode if set.
+
+    ///////////////////////////////////////////////////////////////////
+    // Multiprocessing
+    private final transient int hartId;
+    private transient R5CPUTemplate[] peers = new R5CPUTemplate[0]; // Other harts sharing our physical memory.
+    private final transient ReentrantLock stepLock = new ReentrantLock(); // Held while stepping, see fenceHarts().
+    private final transient AtomicLong fenceRequests = new AtomicLong(); // Incremented by harts requesting fences.
+    private transient volatile long completedFenceRequests; // Value of fenceRequests when we last flushed caches.
 
     ///////////////////////////////////////////////////////////////////
     // Memory access
 
     // Translation look-aside buffers.
-    private final transient TLBEntry[] fetchTLB = new TLBEntry[TLB_SIZE];
-    private final transient TLBEntry[] loadTLB = new TLBEntry[TLB_SIZE];
-    private final transient TLBEntry[] storeTLB = new TLBEntry[TLB_SIZE];
+    private final transient TLB fetchTLB = new TLB();
+    private final transient TLB loadTLB = new TLB();
+    private final transient TLB storeTLB = new TLB();
+    // Translation look-aside buffers for devices that are not memory, e.g. for device register accesses.
+    private final transient TLB mmioLoadTLB = new TLB();
+    private final transient TLB mmioStoreTLB = new TLB();
+    private transient int translationShift; // Size of the page the last address translation resolved to, log2.
+    private transient boolean translationGlobal; // Whether the last address translation resolved to a global mapping.
+    private final transient PageWalkCache pageWalkCache = new PageWalkCache();
+    private transient int memoryDisposals; // Value of UnsafeMemory.getDisposals() when we last flushed the TLBs.
+    private final transient ReusedMemoryAccessException memoryAccessException = new ReusedMemoryAccessException();
 
     // Access to physical memory for load/store operations.
     private final transient MemoryMap physicalMemory;
 
+    ///////////////////////////////////////////////////////////////////
+    // Block compilation
+
+    // Code related state per physical page we executed code in, keyed by physical page address.
+    private final transient Long2ObjectOpenHashMap<CodePage> codePages = new Long2ObjectOpenHashMap<>();
+    private transient int codeGeneration; // Incremented to lazily drop all compiled blocks, e.g. on fence.i.
+
     ///////////////////////////////////////////////////////////////////
     // Stepping
     private int cycleDebt; // Traces may lead to us running more cycles than given, remember to pay it back.
+    private boolean spinning; // Set when a spin loop made no progress, see SpinLoopBlock.
 
     ///////////////////////////////////////////////////////////////////
     // Real time counter -- at least in RISC-V Linux 5.1 the mtime CSR is needed in add_device_randomness
@@ -139,21 +230,16 @@ final class R5CPUTemplate implements R5CPU {
     private final transient DebugInterface debugInterface = new DebugInterface();
 
     public R5CPUTemplate(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc) {
+        this(physicalMemory, rtc, 0);
+    }
+
+    public R5CPUTemplate(final MemoryMap physicalMemory, @Nullable final RealTimeCounter rtc, final int hartId) {
         // This cast is necessary so that stack frame computation in ASM does not throw
         // an exception from trying to load the realization class we're generating while
         // we're generating it.
         this.rtc = rtc != null ? rtc : this;
         this.physicalMemory = physicalMemory;
-
-        for (int i = 0; i < TLB_SIZE; i++) {
-            fetchTLB[i] = new TLBEntry();
-        }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            loadTLB[i] = new TLBEntry();
-        }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            storeTLB[i] = new TLBEntry();
-        }
+        this.hartId = hartId;
 
         reset();
     }
@@ -188,6 +274,7 @@ final class R5CPUTemplate implements R5CPU {
     public void reset(final boolean hard, final long pc) {
         this.pc = pc;
         waitingForInterrupt = false;
+        stopped = false;
 
         // Volume 2, 3.3 Reset
         priv = R5.PRIVILEGE_M;
@@ -201,10 +288,14 @@ final class R5CPUTemplate implements R5CPU {
 
         flushTLB();
 
+        // Memory is often reloaded after a reset, without going through the memory map, so any cached code is stale.
+        invalidateCompiledBlocks();
+
         if (hard) {
             Arrays.fill(x, 0);
 
             reservation_set = -1;
+            reservationAddress = -1;
 
             mcycle = 0;
 
@@ -219,6 +310,7 @@ final class R5CPUTemplate implements R5CPU {
             mscratch = 0;
             mepc = 0;
             mtval = 0;
+            menvcfg = 0;
 
             stvec = 0;
             scounteren = 0;
@@ -227,12 +319,170 @@ final class R5CPUTemplate implements R5CPU {
             scause = 0;
             stval = 0;
             satp = 0;
+            stimecmp = -1;
         }
     }
 
     @Override
     public void invalidateCaches() {
         flushTLB();
+        pageWalkCache.clear();
+        synchronized (codePages) {
+            codePages.clear();
+        }
+    }
+
+    @Override
+    public int getHartId() {
+        return hartId;
+    }
+
+    @Override
+    public long getTLBHitCount() {
+        return fetchTLB.hits + loadTLB.hits + storeTLB.hits + mmioLoadTLB.hits + mmioStoreTLB.hits + getTLBSuperpageHitCount();
+    }
+
+    @Override
+    public long getTLBMissCount() {
+        return fetchTLB.misses + loadTLB.misses + storeTLB.misses;
+    }
+
+    @Override
+    public long getTLBSuperpageHitCount() {
+        return fetchTLB.superpageHits + loadTLB.superpageHits + storeTLB.superpageHits;
+    }
+
+    @Override
+    public void setHarts(final Collection<R5CPU> harts) {
+        peers = harts.stream()
+            .filter(hart -> hart != this)
+            .map(hart -> (R5CPUTemplate) hart)
+            .toArray(R5CPUTemplate[]::new);
+    }
+
+    @Override
+    public boolean isWaitingForInterrupt() {
+        return waitingForInterrupt || stopped;
+    }
+
+    @Override
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void startSupervisor(final long pc, final long a0, final long a1) {
+        stepLock.lock();
+        try {
+            reset(false, pc);
+
+            x[10] = a0;
+            x[11] = a1;
+
+            // Set up what machine mode firmware would before handing over to supervisor software, i.e. delegate
+            // everything supervisor mode can handle to it, and give it access to counters and its timer.
+            medeleg = SUPERVISOR_EXCEPTIONS;
+            mideleg = R5.SSIP_MASK | R5.STIP_MASK | R5.SEIP_MASK;
+            mcounteren = COUNTEREN_MASK;
+            menvcfg = R5.MENVCFG_STCE_MASK;
+            mstatus &= ~R5.STATUS_SIE_MASK;
+            satp = 0;
+            setPrivilege(R5.PRIVILEGE_S);
+
+            stopped = false;
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    @Override
+    public void setSupervisorCallHandler(@Nullable final R5SupervisorCallHandler handler) {
+        supervisorCallHandler = handler;
+    }
+
+    @Override
+    public void setSupervisorTimer(final long value) {
+        stimecmp = value;
+        updateSupervisorTimer();
+    }
+
+    @Override
+    public void fenceHarts(final Collection<R5CPU> harts) {
+        final long[] tickets = new long[harts.size()];
+        int index = 0;
+        for (final R5CPU hart : harts) {
+            final R5CPUTemplate other = (R5CPUTemplate) hart;
+            if (other == this) {
+                invalidateCompiledBlocks();
+                flushTLB();
+            } else {
+                tickets[index] = other.fenceRequests.incrementAndGet();
+            }
+            index++;
+        }
+
+        // Harts being stepped on other threads flush their caches themselves, between running blocks.
+        // Harts that are not being stepped cannot do so, so we do it for them. While waiting, we keep
+        // handling requests made to us, so that harts fencing each other at the same time don't deadlock.
+        // Spinning only helps if the other hart has a core to run on, so we yield ours every now and then.
+        index = 0;
+        int spins = 0;
+        for (final R5CPU hart : harts) {
+            final R5CPUTemplate other = (R5CPUTemplate) hart;
+            final long ticket = tickets[index++];
+            while (other != this && other.completedFenceRequests < ticket) {
+                if (other.stepLock.tryLock()) {
+                    try {
+                        other.processFenceRequests();
+                    } finally {
+                        other.stepLock.unlock();
+                    }
+                } else {
+                    processFenceRequests();
+                    if (++spins % FENCE_SPINS_BEFORE_YIELD == 0) {
+                        Thread.yield();
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+        }
+    }
+
+    private void processFenceRequests() {
+        final long requests = fenceRequests.get();
+        if (requests != completedFenceRequests) {
+            invalidateCompiledBlocks();
+            flushTLB();
+            completedFenceRequests = requests;
+        }
+    }
+
+    private void processMemoryDisposals() {
+        // TLB entries may hold host addresses of memory that got freed since, so they must not be used anymore.
+        final int disposals = UnsafeMemory.getDisposals();
+        if (disposals != memoryDisposals) {
+            flushTLB();
+            memoryDisposals = disposals;
+        }
+    }
+
+    @Override
+    public void setWakeUpListener(@Nullable final Runnable listener) {
+        wakeUpListener = listener;
+    }
+
+    @Override
+    public long getSupervisorTimerDeadline() {
+        if ((menvcfg & R5.MENVCFG_STCE_MASK) == 0 || (mip.get() & R5.STIP_MASK) != 0 || stimecmp < 0) {
+            return Long.MAX_VALUE;
+        }
+        return stimecmp;
     }
 
     @Override
@@ -251,24 +501,145 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     @Override
-    public void notify(long address, int size) {
-        if (reservation_set == -1)
-            return;
+    public void notify(final long address, final int size) {
+        // This may be called from other threads, e.g. when harts running in parallel write to
+        // memory through a device. So we only flag the code page, and leave dropping its cached
+        // code to our own thread, next time we enter a trace in it.
+        clearReservation(address, size * 8);
 
-        final int index = (int) ((reservation_set >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = reservation_set & ~R5.PAGE_ADDRESS_MASK;
-        final TLBEntry entry = loadTLB[index];
-        if (entry.hash != hash)
-            reservation_set = -1;
-        else {
-            final MappedMemoryRange range = physicalMemory.getMemoryRange(entry.device).orElse(null);
-            if (range == null)
-                reservation_set = -1;
-            else {
-                final long pAddress = reservation_set + entry.toOffset + range.start;
-                if ((pAddress + 8) > address && pAddress < (address + (size / 8)))
-                    reservation_set = -1;
+        final CodePage codePage;
+        synchronized (codePages) {
+            codePage = codePages.get(address & ~R5.PAGE_ADDRESS_MASK);
+        }
+        if (codePage != null) {
+            codePage.written = true;
+        }
+    }
+
+    private void invalidateReservations(final long physicalAddress, final int size) {
+        clearReservation(physicalAddress, size);
+        for (final R5CPUTemplate peer : peers) {
+            peer.clearReservation(physicalAddress, size);
+        }
+    }
+
+    private void invalidateReservationsInRange(final long physicalAddress, final long length) {
+        clearReservationInRange(physicalAddress, length);
+        for (final R5CPUTemplate peer : peers) {
+            peer.clearReservationInRange(physicalAddress, length);
+        }
+    }
+
+    private void clearReservationInRange(final long physicalAddress, final long length) {
+        final long reservationAddress = this.reservationAddress;
+        if (reservationAddress != -1 && reservationAddress + 8 > physicalAddress && reservationAddress < physicalAddress + length) {
+            this.reservationAddress = -1;
+        }
+    }
+
+    private void clearReservation(final long physicalAddress, final int size) {
+        // Reservations are 8 byte aligned, and stores are at most 8 bytes, so a store hits the reservation if its first
+        // or last byte is in the same 8 byte block. No reservation (-1) never matches, since stores don't wrap around.
+        final long reservationAddress = this.reservationAddress;
+        final long lastAddress = physicalAddress + size / 8 - 1;
+        if (((physicalAddress ^ reservationAddress) & ~7L) == 0 || ((lastAddress ^ reservationAddress) & ~7L) == 0) {
+            this.reservationAddress = -1;
+        }
+    }
+
+    private void invalidateCodePage(final long physicalAddress) {
+        final CodePage codePage = codePages.get(physicalAddress & ~R5.PAGE_ADDRESS_MASK);
+        if (codePage != null) {
+            codePage.invalidate();
+        }
+    }
+
+    /**
+     * Runs iterations of a loop filling or copying memory as bulk operations on host memory.
+     * <p>
+     * Only iterations accessing pages that are in the TLBs and backed by host memory are run this
+     * way, so no faults can occur. The last iteration of the loop is always left to the caller, so
+     * that registers only written by the loop body, such as those holding loaded values, end up
+     * with the same values they would have after running the loop instruction by instruction.
+     *
+     * @param loop the loop to run, starting at the current program counter.
+     * @return {@code true} if at least one iteration was run, {@code false} otherwise.
+     */
+    private boolean runMemoryLoop(final R5MemoryLoop loop) {
+        final long remaining = loop.getRemainingIterations(x[loop.counter()], x[loop.bound()], xlen);
+        if (remaining <= 1) {
+            return false;
+        }
+
+        final int stride = loop.stride();
+        final long destination = x[loop.destination()];
+        final int destinationOffset = (int) (destination & R5.PAGE_ADDRESS_MASK);
+        long iterations = Math.min(remaining - 1, ((1 << R5.PAGE_ADDRESS_SHIFT) - destinationOffset) / stride);
+
+        final int destinationEntry = storeTLB.lookup(destination);
+        if (destinationEntry < 0 || storeTLB.hosts[destinationEntry] == 0) {
+            return false;
+        }
+        final long destinationHost = storeTLB.hosts[destinationEntry] + destinationOffset;
+
+        long sourceHost = 0;
+        if (loop.source() >= 0) {
+            final long source = x[loop.source()];
+            final int sourceOffset = (int) (source & R5.PAGE_ADDRESS_MASK);
+            iterations = Math.min(iterations, ((1 << R5.PAGE_ADDRESS_SHIFT) - sourceOffset) / stride);
+
+            final int sourceEntry = loadTLB.lookup(source);
+            if (sourceEntry < 0 || loadTLB.hosts[sourceEntry] == 0) {
+                return false;
             }
+            sourceHost = loadTLB.hosts[sourceEntry] + sourceOffset;
+        }
+
+        if (iterations <= 0) {
+            return false;
+        }
+
+        final long length = iterations * stride;
+        if (loop.source() >= 0) {
+            // Copying element-wise between overlapping ranges may replicate data, which a bulk copy does not.
+            if (sourceHost < destinationHost + length && destinationHost < sourceHost + length) {
+                return false;
+            }
+            UNSAFE.copyMemory(sourceHost, destinationHost, length);
+        } else {
+            final long value = x[loop.value()];
+            final int valueSizeLog2 = loop.valueSizeLog2();
+            final long valueMask = valueSizeLog2 == Sizes.SIZE_64_LOG2 ? -1L : (1L << (8 << valueSizeLog2)) - 1;
+            if (((value ^ ((value & 0xFF) * 0x0101010101010101L)) & valueMask) == 0) {
+                UNSAFE.setMemory(destinationHost, length, (byte) value);
+            } else {
+                for (long offset = 0; offset < length; offset += 1L << valueSizeLog2) {
+                    storeDirect(destinationHost + offset, value, valueSizeLog2);
+                }
+            }
+        }
+
+        final long physicalAddress = storeTLB.physicalPages[destinationEntry] | destinationOffset;
+        invalidateReservationsInRange(physicalAddress, length);
+        final CodePage codePage = storeTLB.codePages[destinationEntry];
+        if (codePage != null) {
+            codePage.invalidate();
+        }
+
+        advanceRegister(loop.destination(), length);
+        if (loop.source() >= 0) {
+            advanceRegister(loop.source(), length);
+        }
+        mcycle += iterations * loop.instructionCount();
+
+        return true;
+    }
+
+    private void advanceRegister(final int register, final long amount) {
+        if (xlen == R5.XLEN_32) {
+            x[register] = (int) (x[register] + amount);
+        } else {
+            x[register] += amount;
         }
     }
 
@@ -282,6 +653,11 @@ final class R5CPUTemplate implements R5CPU {
         mip.updateAndGet(operand -> operand | mask);
         if (waitingForInterrupt && (mip.get() & mie) != 0) {
             waitingForInterrupt = false;
+
+            final Runnable listener = wakeUpListener;
+            if (listener != null) {
+                listener.run();
+            }
         }
     }
 
@@ -295,33 +671,86 @@ final class R5CPUTemplate implements R5CPU {
         return (int) mip.get();
     }
 
-    public void step(int cycles) {
+    public void step(final int cycles) {
+        stepLock.lock();
+        try {
+            processFenceRequests();
+            processMemoryDisposals();
+            stepLocked(cycles);
+        } finally {
+            stepLock.unlock();
+        }
+    }
+
+    private void stepLocked(int cycles) {
         final int paidDebt = Math.min(cycles, cycleDebt);
         cycles -= paidDebt;
         cycleDebt -= paidDebt;
 
+        if (stopped) {
+            mcycle += cycles;
+            return;
+        }
+
         if (waitingForInterrupt) {
             mcycle += cycles;
+            updateSupervisorTimer();
             return;
         }
 
         final long cycleLimit = mcycle + cycles;
-        while (!waitingForInterrupt && mcycle < cycleLimit) {
+        while (!waitingForInterrupt && !stopped && mcycle < cycleLimit) {
+            processFenceRequests();
+            updateSupervisorTimer();
+
             final long pending = mip.get() & mie;
             if (pending != 0) {
                 raiseInterrupt(pending);
             }
 
             interpret(false, false);
+
+            if (spinning) {
+                spinning = false;
+                skipSpinning(cycleLimit);
+            }
         }
 
-        if (waitingForInterrupt && mcycle < cycleLimit) {
+        if ((waitingForInterrupt || stopped) && mcycle < cycleLimit) {
             mcycle = cycleLimit;
+            updateSupervisorTimer();
         }
 
         cycleDebt += (int) (cycleLimit - mcycle);
     }
 
+    private void updateSupervisorTimer() {
+        // Sstc: while enabled, STIP reflects whether time has reached stimecmp, as an unsigned comparison.
+        if ((menvcfg & R5.MENVCFG_STCE_MASK) == 0) {
+            return;
+        }
+
+        final boolean isPending = Long.compareUnsigned(rtc.getTime(), stimecmp) >= 0;
+        if (isPending != ((mip.get() & R5.STIP_MASK) != 0)) {
+            if (isPending) {
+                raiseInterrupts(R5.STIP_MASK);
+            } else {
+                lowerInterrupts(R5.STIP_MASK);
+            }
+        }
+    }
+
+    private void skipSpinning(final long cycleLimit) {
+        if (peers.length == 0) {
+            // Nothing but interrupts can end the loop until we return, since other devices only
+            // change memory between steps. So, like for WFI, we may just as well skip ahead.
+            mcycle = cycleLimit;
+        } else {
+            // Other harts may change memory any moment, keep looping, but let them run.
+            Thread.onSpinWait();
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////
     // Interpretation
 
@@ -336,9 +765,10 @@ final class R5CPUTemplate implements R5CPU {
 
     private void interpret(final boolean singleStep, final boolean ignoreBreakpoints) {
         // The idea here is to run many sequential instructions with very little overhead.
-        // We only need to exit the inner loop when we either leave the page we started in,
-        // jump around (jumps, conditionals) or some state that influences how memory access
-        // happens changes (e.g. satp).
+        // We only need to exit the inner loop when we either leave the current page (and the
+        // next one is not in the TLB yet), jump to another page, some state that influences how
+        // memory access happens changes (e.g. satp), or we ran the maximum number of instructions
+        // per trace, so that interrupts and the cycle limit get checked regularly.
         // For regular execution, we grab one cache entry and keep simply incrementing our
         // position inside it. This does bring with it one important point to be wary of:
         // the value of the program counter field will not match our actual current execution
@@ -348,9 +778,23 @@ final class R5CPUTemplate implements R5CPU {
         // instruction would fully fit a page. The last 16bit in a page may be the start of
         // a 32bit instruction spanning two pages, a special case we handle outside the loop.
         try {
-            final TLBEntry cache = fetchPage(pc);
-            final MemoryMappedDevice device = cache.device;
-            final int instOffset = (int) (pc + cache.toOffset);
+            final int entry = fetchPage(pc);
+            final MemoryMappedDevice device = fetchTLB.devices[entry];
+            final int instOffset = (int) (pc + fetchTLB.offsets[entry]);
+            final LongSet breakpoints = fetchTLB.breakpoints[entry];
+            final CodePage codePage = fetchTLB.codePages[entry];
+            if (!singleStep && breakpoints == null && codePage != null && !RECORD_DECODER_PROFILE) {
+                final CompiledBlock block = getCompiledBlock(device, instOffset, codePage, pc);
+                if (block != null) {
+                    block.execute(this, pc);
+                    return;
+                }
+
+                if (interpretDecoded(device, instOffset, codePage, pc)) {
+                    return;
+                }
+            }
+
             final int instEnd = instOffset - (int) (pc & R5.PAGE_ADDRESS_MASK) // Page start.
                 + ((1 << R5.PAGE_ADDRESS_SHIFT) - 2); // Page size minus 16bit.
 
@@ -361,9 +805,9 @@ final class R5CPUTemplate implements R5CPU {
                 } else { // Unlikely case, instruction may leave page if it is 32bit.
                     inst = (short) device.load(instOffset, Sizes.SIZE_16_LOG2) & 0xFFFF;
                     if ((inst & 0b11) == 0b11) { // 32bit instruction.
-                        final TLBEntry highCache = fetchPage(pc + 2);
-                        final MemoryMappedDevice highDevice = highCache.device;
-                        inst |= (int) (highDevice.load((int) (pc + 2 + highCache.toOffset), Sizes.SIZE_16_LOG2) << 16);
+                        final int highEntry = fetchPage(pc + 2);
+                        final MemoryMappedDevice highDevice = fetchTLB.devices[highEntry];
+                        inst |= (int) (highDevice.load((int) (pc + 2 + fetchTLB.offsets[highEntry]), Sizes.SIZE_16_LOG2) << 16);
                     }
                 }
             } catch (final MemoryAccessException e) {
@@ -372,9 +816,9 @@ final class R5CPUTemplate implements R5CPU {
             }
 
             if (xlen == R5.XLEN_32) {
-                interpretTrace32(device, inst, pc, instOffset, singleStep ? 0 : instEnd, ignoreBreakpoints ? null : cache.breakpoints);
+                interpretTrace32(device, inst, pc, instOffset, instEnd, ignoreBreakpoints ? null : breakpoints, singleStep ? 1 : TRACE_MAX_INSTRUCTIONS);
             } else {
-                interpretTrace64(device, inst, pc, instOffset, singleStep ? 0 : instEnd, ignoreBreakpoints ? null : cache.breakpoints);
+                interpretTrace64(device, inst, pc, instOffset, instEnd, ignoreBreakpoints ? null : breakpoints, singleStep ? 1 : TRACE_MAX_INSTRUCTIONS);
             }
         } catch (final R5MemoryAccessException e) {
             raiseException(e.getType(), e.getAddress());
@@ -385,7 +829,7 @@ final class R5CPUTemplate implements R5CPU {
     //     much faster than having the actual decoding happen in one more method.
 
     @SuppressWarnings("LocalCanBeFinal") // `pc` and `instOffset` get updated by the generated code replacing decode().
-    private void interpretTrace32(final MemoryMappedDevice device, int inst, long pc, int instOffset, final int instEnd, final LongSet breakpoints) {
+    private void interpretTrace32(MemoryMappedDevice device, int inst, long pc, int instOffset, int instEnd, final LongSet breakpoints, int budget) {
         try { // Catch any exceptions to patch PC field.
             for (; ; ) { // End of page check at the bottom since we enter with a valid inst.
                 if (breakpoints != null && breakpoints.contains(pc)) {
@@ -395,25 +839,46 @@ final class R5CPUTemplate implements R5CPU {
                 }
                 mcycle++;
 
+                if ((inst & 0b11) != 0b11) { // Compressed instructions run through the leaves of their uncompressed equivalent.
+                    inst = RV32_COMPRESSED_EXPANSION[inst & 0xFFFF];
+                }
+
                 ///////////////////////////////////////////////////////////////////
                 // This is the hook we replace when generating the decoder code. //
                 decode();                                                        //
                 // See R5CPUGenerator.                                           //
                 ///////////////////////////////////////////////////////////////////
 
-                if (Integer.compareUnsigned(instOffset, instEnd) < 0) { // Likely case: we're still fully in the page.
-                    inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
-                } else { // Unlikely case: we reached the end of the page. Leave to do interrupts and cycle check.
-                    this.pc = pc;
-                    return;
+                if (--budget > 0) {
+                    // Likely case: we're still fully in the page, also after backward jumps.
+                    if (Integer.compareUnsigned(instEnd - 1 - instOffset, (1 << R5.PAGE_ADDRESS_SHIFT) - 2) < 0) {
+                        inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+                        continue;
+                    }
+
+                    // Reached the start of the next page. If it is already in the TLB we can keep going there.
+                    if (instOffset == instEnd + 2) {
+                        final int entry = fetchTLB.lookup(pc);
+                        if (entry >= 0 && fetchTLB.breakpoints[entry] == null) {
+                            device = fetchTLB.devices[entry];
+                            instOffset = (int) (pc + fetchTLB.offsets[entry]);
+                            instEnd = instOffset + ((1 << R5.PAGE_ADDRESS_SHIFT) - 2);
+                            inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+                            continue;
+                        }
+                    }
                 }
+
+                // Unlikely case: we left the page or ran out of budget. Leave to do interrupts and cycle check.
+                this.pc = pc;
+                return;
             }
         } catch (final MemoryAccessException e) {
             this.pc = pc;
             raiseException(R5.EXCEPTION_FAULT_FETCH, pc);
         } catch (final R5IllegalInstructionException e) {
             this.pc = pc;
-            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, inst);
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, getUnexpandedInstruction(device, instOffset, inst));
         } catch (final R5MemoryAccessException e) {
             this.pc = pc;
             raiseException(e.getType(), e.getAddress());
@@ -421,7 +886,7 @@ final class R5CPUTemplate implements R5CPU {
     }
 
     @SuppressWarnings("LocalCanBeFinal") // `pc` and `instOffset` get updated by the generated code replacing decode().
-    private void interpretTrace64(final MemoryMappedDevice device, int inst, long pc, int instOffset, final int instEnd, final LongSet breakpoints) {
+    private void interpretTrace64(MemoryMappedDevice device, int inst, long pc, int instOffset, int instEnd, final LongSet breakpoints, int budget) {
         try { // Catch any exceptions to patch PC field.
             for (; ; ) { // End of page check at the bottom since we enter with a valid inst.
                 if (breakpoints != null && breakpoints.contains(pc)) {
@@ -431,36 +896,319 @@ final class R5CPUTemplate implements R5CPU {
                 }
                 mcycle++;
 
+                if ((inst & 0b11) != 0b11) { // Compressed instructions run through the leaves of their uncompressed equivalent.
+                    inst = RV64_COMPRESSED_EXPANSION[inst & 0xFFFF];
+                }
+
                 ///////////////////////////////////////////////////////////////////
                 // This is the hook we replace when generating the decoder code. //
                 decode();                                                        //
                 // See R5CPUGenerator.                                           //
                 ///////////////////////////////////////////////////////////////////
 
-                if (Integer.compareUnsigned(instOffset, instEnd) < 0) { // Likely case: we're still fully in the page.
-                    inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
-                } else { // Unlikely case: we reached the end of the page. Leave to do interrupts and cycle check.
-                    this.pc = pc;
-                    return;
+                if (--budget > 0) {
+                    // Likely case: we're still fully in the page, also after backward jumps.
+                    if (Integer.compareUnsigned(instEnd - 1 - instOffset, (1 << R5.PAGE_ADDRESS_SHIFT) - 2) < 0) {
+                        inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+                        continue;
+                    }
+
+                    // Reached the start of the next page. If it is already in the TLB we can keep going there.
+                    if (instOffset == instEnd + 2) {
+                        final int entry = fetchTLB.lookup(pc);
+                        if (entry >= 0 && fetchTLB.breakpoints[entry] == null) {
+                            device = fetchTLB.devices[entry];
+                            instOffset = (int) (pc + fetchTLB.offsets[entry]);
+                            instEnd = instOffset + ((1 << R5.PAGE_ADDRESS_SHIFT) - 2);
+                            inst = (int) device.load(instOffset, Sizes.SIZE_32_LOG2);
+                            continue;
+                        }
+                    }
                 }
+
+                // Unlikely case: we left the page or ran out of budget. Leave to do interrupts and cycle check.
+                this.pc = pc;
+                return;
             }
         } catch (final MemoryAccessException e) {
             this.pc = pc;
             raiseException(R5.EXCEPTION_FAULT_FETCH, pc);
         } catch (final R5IllegalInstructionException e) {
             this.pc = pc;
-            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, inst);
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, getUnexpandedInstruction(device, instOffset, inst));
+        } catch (final R5MemoryAccessException e) {
+            this.pc = pc;
+            raiseException(e.getType(), e.getAddress());
+        }
+    }
+
+    private static int getUnexpandedInstruction(final MemoryMappedDevice device, final int instOffset, final int inst) {
+        if ((inst & 0b11) == 0b11) {
+            return inst;
+        }
+
+        // Expanded compressed instruction, report the original one.
+        try {
+            return (int) device.load(instOffset, Sizes.SIZE_16_LOG2) & 0xFFFF;
+        } catch (final MemoryAccessException e) {
+            return 0;
+        }
+    }
+
+    private boolean interpretDecoded(final MemoryMappedDevice device, final int instOffset, final CodePage codePage, final long pc) {
+        // Once a page is warm we keep the handler index and operands of each instruction executed
+        // in it, so running it again skips the decoder tree. Entries are filled in lazily, as the
+        // dispatch loop reaches them, and dropped together with compiled blocks when the page is
+        // written to.
+        final int index = (int) (pc & R5.PAGE_ADDRESS_MASK) >>> 1;
+        if (index >= DECODE_END_INDEX) {
+            return false;
+        }
+
+        if (codePage.handlers == null || codePage.decodedXlen != xlen) {
+            if (codePage.hotness < DECODE_PAGE_HOT_THRESHOLD || codePage.invalidations >= BLOCK_MAX_PAGE_INVALIDATIONS) {
+                return false;
+            }
+
+            codePage.handlers = new short[(1 << R5.PAGE_ADDRESS_SHIFT) / 2];
+            codePage.operands = new long[(1 << R5.PAGE_ADDRESS_SHIFT) / 2];
+            codePage.decodedXlen = xlen;
+        }
+
+        final int pageOffset = instOffset - (index << 1);
+
+        int handler = codePage.handlers[index];
+        if (handler == DispatchTable.HANDLER_UNDECODED) {
+            handler = predecode(codePage, index, device, pageOffset);
+        }
+        if (handler == DispatchTable.HANDLER_EXIT) {
+            return false;
+        }
+
+        if (xlen == R5.XLEN_32) {
+            interpretDecoded32(codePage, pc, index, handler, codePage.operands[index], device, pageOffset, TRACE_MAX_INSTRUCTIONS);
+        } else {
+            interpretDecoded64(codePage, pc, index, handler, codePage.operands[index], device, pageOffset, TRACE_MAX_INSTRUCTIONS);
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("LocalCanBeFinal") // `pc` and `index` get updated by the generated code replacing dispatch().
+    private void interpretDecoded32(final CodePage page, long pc, int index, int handler, long operands, final MemoryMappedDevice device, final int pageOffset, int budget) {
+        try { // Catch any exceptions to patch PC field.
+            for (; ; ) { // End of page check at the bottom since we enter with a valid handler.
+                mcycle++;
+
+                ////////////////////////////////////////////////////////////////////
+                // This is the hook we replace when generating the dispatch code. //
+                dispatch();                                                       //
+                // See R5CPUGenerator.                                            //
+                ////////////////////////////////////////////////////////////////////
+
+                final short[] handlers = page.handlers; // Dropped when the page gets written to.
+                if (handlers != null && Integer.compareUnsigned(index, DECODE_END_INDEX) < 0 && --budget > 0) {
+                    handler = handlers[index];
+                    if (handler == DispatchTable.HANDLER_UNDECODED) {
+                        handler = predecode(page, index, device, pageOffset);
+                    }
+                    if (handler == DispatchTable.HANDLER_EXIT) {
+                        this.pc = pc;
+                        return;
+                    }
+                    operands = page.operands[index];
+                } else {
+                    this.pc = pc;
+                    return;
+                }
+            }
+        } catch (final R5IllegalInstructionException e) {
+            this.pc = pc;
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, loadDecodedInstructionForException(device, pageOffset, index));
         } catch (final R5MemoryAccessException e) {
             this.pc = pc;
             raiseException(e.getType(), e.getAddress());
         }
     }
 
+    @SuppressWarnings("LocalCanBeFinal") // `pc` and `index` get updated by the generated code replacing dispatch().
+    private void interpretDecoded64(final CodePage page, long pc, int index, int handler, long operands, final MemoryMappedDevice device, final int pageOffset, int budget) {
+        try { // Catch any exceptions to patch PC field.
+            for (; ; ) { // End of page check at the bottom since we enter with a valid handler.
+                mcycle++;
+
+                ////////////////////////////////////////////////////////////////////
+                // This is the hook we replace when generating the dispatch code. //
+                dispatch();                                                       //
+                // See R5CPUGenerator.                                            //
+                ////////////////////////////////////////////////////////////////////
+
+                final short[] handlers = page.handlers; // Dropped when the page gets written to.
+                if (handlers != null && Integer.compareUnsigned(index, DECODE_END_INDEX) < 0 && --budget > 0) {
+                    handler = handlers[index];
+                    if (handler == DispatchTable.HANDLER_UNDECODED) {
+                        handler = predecode(page, index, device, pageOffset);
+                    }
+                    if (handler == DispatchTable.HANDLER_EXIT) {
+                        this.pc = pc;
+                        return;
+                    }
+                    operands = page.operands[index];
+                } else {
+                    this.pc = pc;
+                    return;
+                }
+            }
+        } catch (final R5IllegalInstructionException e) {
+            this.pc = pc;
+            raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, loadDecodedInstructionForException(device, pageOffset, index));
+        } catch (final R5MemoryAccessException e) {
+            this.pc = pc;
+            raiseException(e.getType(), e.getAddress());
+        }
+    }
+
+    private static int predecode(final CodePage page, final int index, final MemoryMappedDevice device, final int pageOffset) {
+        final int inst;
+        try {
+            inst = loadDecodedInstruction(device, pageOffset, index);
+        } catch (final MemoryAccessException e) {
+            return DispatchTable.HANDLER_EXIT; // Leave raising the fetch fault to the decoder.
+        }
+
+        final DispatchTable table = page.decodedXlen == R5.XLEN_32
+            ? R5Instructions.RV32.getDispatchTable()
+            : R5Instructions.RV64.getDispatchTable();
+        int handler = table.getHandler(inst);
+        long operands = table.getOperands(handler, inst);
+
+        // Fuse with the next instruction if possible. It must be fully inside the decoded range of the page.
+        final int nextIndex = index + ((inst & 0b11) == 0b11 ? 2 : 1);
+        if (table.isFusable(handler) && nextIndex < DECODE_END_INDEX) {
+            try {
+                final int nextInst = loadDecodedInstruction(device, pageOffset, nextIndex);
+                final int fusedHandler = table.getFusedHandler(handler, inst, nextInst);
+                if (fusedHandler != handler) {
+                    handler = fusedHandler;
+                    operands = table.getFusedOperands(fusedHandler, inst, nextInst);
+                }
+            } catch (final MemoryAccessException ignored) {
+            }
+        }
+
+        page.handlers[index] = (short) handler;
+        page.operands[index] = operands;
+        return handler;
+    }
+
+    private static int loadDecodedInstruction(final MemoryMappedDevice device, final int pageOffset, final int index) throws MemoryAccessException {
+        final int inst = (int) device.load(pageOffset + (index << 1), Sizes.SIZE_32_LOG2);
+        return (inst & 0b11) == 0b11 ? inst : inst & 0xFFFF;
+    }
+
+    private static int loadDecodedInstructionForException(final MemoryMappedDevice device, final int pageOffset, final int index) {
+        try {
+            return loadDecodedInstruction(device, pageOffset, index);
+        } catch (final MemoryAccessException e) {
+            return 0;
+        }
+    }
+
+    @Nullable
+    private CompiledBlock getCompiledBlock(final MemoryMappedDevice device, final int instOffset, final CodePage codePage, final long pc) {
+        // We count how often traces start in a page. Once a page is hot, we count how often traces
+        // start at individual addresses in it, and compile blocks for the addresses that are hot.
+        if (codePage.generation != codeGeneration) {
+            codePage.generation = codeGeneration;
+            codePage.reset();
+        }
+        if (codePage.written) { // Written to by another thread, see notify().
+            codePage.written = false;
+            codePage.invalidate();
+        }
+
+        CompiledBlock[] blocks = codePage.blocks;
+        if (blocks == null) {
+            if (codePage.hotness < BLOCK_PAGE_HOT_THRESHOLD) {
+                codePage.hotness++;
+            }
+            if (codePage.hotness < BLOCK_PAGE_HOT_THRESHOLD || codePage.invalidations >= BLOCK_MAX_PAGE_INVALIDATIONS) {
+                return null;
+            }
+
+            blocks = codePage.blocks = new CompiledBlock[(1 << R5.PAGE_ADDRESS_SHIFT) / 2];
+            codePage.entryCounts = new byte[(1 << R5.PAGE_ADDRESS_SHIFT) / 2];
+        }
+
+        final int index = (int) (pc & R5.PAGE_ADDRESS_MASK) >>> 1;
+        final CompiledBlock block = blocks[index];
+        if (block != null) {
+            return block.xlen == xlen ? block : null;
+        }
+
+        final byte count = codePage.entryCounts[index];
+        if (count < 0) { // Failed to compile a block here before.
+            return null;
+        }
+        if (count + 1 < BLOCK_ENTRY_HOT_THRESHOLD) {
+            codePage.entryCounts[index] = (byte) (count + 1);
+            return null;
+        }
+
+        final int pageEnd = instOffset - (int) (pc & R5.PAGE_ADDRESS_MASK) + (1 << R5.PAGE_ADDRESS_SHIFT);
+        final R5Instructions.Spec spec = xlen == R5.XLEN_32 ? R5Instructions.RV32 : R5Instructions.RV64;
+        CompiledBlock compiledBlock = R5BlockCompiler.compile(BLOCK_LOOKUP, CompiledBlock.class,
+            spec, xlen, device, instOffset, pageEnd, BLOCK_MAX_INSTRUCTIONS);
+        if (compiledBlock == null) {
+            codePage.entryCounts[index] = -1;
+            return null;
+        }
+
+        final R5MemoryLoop memoryLoop = R5MemoryLoop.recognize(spec, xlen, device, instOffset, pageEnd);
+        if (memoryLoop != null) {
+            compiledBlock = new MemoryLoopBlock(memoryLoop, compiledBlock);
+        } else {
+            final R5SpinLoop spinLoop = R5SpinLoop.recognize(spec, device, instOffset, pageEnd);
+            if (spinLoop != null) {
+                compiledBlock = new SpinLoopBlock(spinLoop, compiledBlock);
+            }
+        }
+
+        blocks[index] = compiledBlock;
+        return compiledBlock;
+    }
+
+    private void invalidateCompiledBlocks() {
+        codeGeneration++;
+    }
+
+    private CodePage getCodePage(final long physicalAddress) {
+        final long key = physicalAddress & ~R5.PAGE_ADDRESS_MASK;
+        CodePage codePage = codePages.get(key);
+        if (codePage == null) {
+            codePage = new CodePage();
+            codePage.generation = codeGeneration;
+            synchronized (codePages) {
+                codePages.put(key, codePage);
+            }
+
+            // Store TLB entries look up their code page when they are filled, so entries that
+            // point into this page must be refreshed for stores to invalidate its blocks.
+            storeTLB.flushPhysicalPage(key);
+        }
+        return codePage;
+    }
+
     @SuppressWarnings("RedundantThrows")
     private static void decode() throws R5IllegalInstructionException, R5MemoryAccessException {
         throw new UnsupportedOperationException();
     }
 
+    @SuppressWarnings("RedundantThrows")
+    private static void dispatch() throws R5IllegalInstructionException, R5MemoryAccessException {
+        throw new UnsupportedOperationException();
+    }
+
     ///////////////////////////////////////////////////////////////////
     // CSR
 
@@ -501,15 +1249,15 @@ final class R5CPUTemplate implements R5CPU {
 
     private void checkCSR(final int csr, final boolean throwIfReadonly) throws R5IllegalInstructionException {
         if (throwIfReadonly && ((csr >= 0xC00 && csr <= 0xC1F) || (csr >= 0xC80 && csr <= 0xC9F)))
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
 
         // Topmost bits, i.e. csr[11:8], encode access rights for CSR by convention. Of these, the top-most two bits,
         // csr[11:10], encode read-only state, where 0b11: read-only, 0b00..0b10: read-write.
         if (throwIfReadonly && ((csr & 0b1100_0000_0000) == 0b1100_0000_0000))
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         // The two following bits, csr[9:8], encode the lowest privilege level that can access the CSR.
         if (priv < ((csr >>> 8) & 0b11))
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
     }
 
     @SuppressWarnings("DuplicateBranchesInSwitch")
@@ -573,11 +1321,20 @@ final class R5CPUTemplate implements R5CPU {
             case 0x144 -> { // sip Supervisor interrupt pending.
                 return mip.get() & mideleg; // Effectively read-only because we don't implement N.
             }
+            case 0x14D -> { // stimecmp, Supervisor timer compare (Sstc).
+                checkSupervisorTimerAccess();
+                return stimecmp;
+            }
+            case 0x15D -> { // stimecmph, Upper 32 bits of stimecmp, RV32 only (Sstc).
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
+                checkSupervisorTimerAccess();
+                return stimecmp >>> 32;
+            }
 
             // Supervisor Protection and Translation
             case 0x180 -> { // satp Supervisor address translation and protection.
                 if (priv == R5.PRIVILEGE_S && (mstatus & R5.STATUS_TVM_MASK) != 0) {
-                    throw new R5IllegalInstructionException();
+                    throw ILLEGAL_INSTRUCTION;
                 }
                 return satp;
             }
@@ -615,10 +1372,17 @@ final class R5CPUTemplate implements R5CPU {
             case 0x306 -> { // mcounteren Machine counter enable.
                 return mcounteren;
             }
+            case 0x30A -> { // menvcfg Machine environment configuration.
+                return menvcfg;
+            }
             case 0x310 -> { // mstatush, Additional machine status register, RV32 only.
-                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
                 return getStatus(MSTATUS_MASK) >>> 32;
             }
+            case 0x31A -> { // menvcfgh, Upper 32 bits of menvcfg, RV32 only.
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
+                return menvcfg >>> 32;
+            }
 
             // Debug/Trace Registers
             case 0x7A0 -> { // tselect
@@ -693,7 +1457,7 @@ final class R5CPUTemplate implements R5CPU {
             // 0xB04...0xB1F: mhpmcounter4...mhpmcounter31, Machine performance-monitoring counter.
             // mcycleh, Upper 32 bits of mcycle, RV32 only.
             case 0xB80, 0xB82 -> { // minstreth, Upper 32 bits of minstret, RV32 only.
-                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
                 return mcycle >>> 32;
             }
             // 0xB83: mhpmcounter3h, Upper 32 bits of mhpmcounter3, RV32 only.
@@ -712,7 +1476,7 @@ final class R5CPUTemplate implements R5CPU {
             // 0xC03 ... 0xC1F: hpmcounter3 ... hpmcounter31
             // cycleh
             case 0xC80, 0xC82 -> { // instreth
-                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
 
                 // counteren[2:0] is IR, TM, CY. As such the bit index matches the masked csr value.
                 checkCounterAccess(csr & 0b11);
@@ -732,9 +1496,9 @@ final class R5CPUTemplate implements R5CPU {
                 return 0; // Not implemented.
             }
             case 0xF14 -> { // mhartid, Hardware thread ID.
-                return 0; // Single, primary hart.
+                return hartId;
             }
-            default -> throw new R5IllegalInstructionException();
+            default -> throw ILLEGAL_INSTRUCTION;
         }
     }
 
@@ -796,24 +1560,39 @@ final class R5CPUTemplate implements R5CPU {
             case 0x143 -> // stval Supervisor bad address or instruction.
                 stval = value;
             case 0x144 -> { // sip Supervisor interrupt pending.
-                final long mask = mideleg; // Can only set stuff that's delegated to S mode.
+                final long mask = mideleg & ~getSupervisorTimerReadonlyMask(); // Can only set stuff that's delegated to S mode.
                 mip.updateAndGet(operand -> (operand & ~mask) | (value & mask));
             }
+            case 0x14D -> { // stimecmp, Supervisor timer compare (Sstc).
+                checkSupervisorTimerAccess();
+                if (xlen == R5.XLEN_32) {
+                    stimecmp = (stimecmp & ~0xFFFFFFFFL) | (value & 0xFFFFFFFFL);
+                } else {
+                    stimecmp = value;
+                }
+                updateSupervisorTimer();
+            }
+            case 0x15D -> { // stimecmph, Upper 32 bits of stimecmp, RV32 only (Sstc).
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
+                checkSupervisorTimerAccess();
+                stimecmp = (stimecmp & 0xFFFFFFFFL) | (value << 32);
+                updateSupervisorTimer();
+            }
 
             // Supervisor Protection and Translation
             case 0x180 -> { // satp Supervisor address translation and protection.
-                // Say no to ASID (not implemented).
+                // We only keep the low ASID bits we can tag TLB entries with, the rest are read-only zero.
                 final long validatedValue;
                 if (xlen == R5.XLEN_32) {
-                    validatedValue = value & ~R5.SATP_ASID_MASK32;
+                    validatedValue = value & ~(R5.SATP_ASID_MASK32 & ~((long) TLB_CONTEXT_ASID_MASK << R5.SATP_ASID_SHIFT32));
                 } else {
-                    validatedValue = value & ~R5.SATP_ASID_MASK64;
+                    validatedValue = value & ~(R5.SATP_ASID_MASK64 & ~((long) TLB_CONTEXT_ASID_MASK << R5.SATP_ASID_SHIFT64));
                 }
 
                 final long change = satp ^ validatedValue;
                 if (change != 0) {
                     if (priv == R5.PRIVILEGE_S && (mstatus & R5.STATUS_TVM_MASK) != 0) {
-                        throw new R5IllegalInstructionException();
+                        throw ILLEGAL_INSTRUCTION;
                     }
 
                     if (xlen != R5.XLEN_32) {
@@ -840,6 +1619,7 @@ final class R5CPUTemplate implements R5CPU {
                     }
 
                     satp = validatedValue;
+                    updateTLBContext();
 
                     return true; // Invalidate fetch cache.
                 }
@@ -881,10 +1661,21 @@ final class R5CPUTemplate implements R5CPU {
             }
             case 0x306 -> // mcounteren Machine counter enable.
                 mcounteren = (int) (value & COUNTEREN_MASK);
+            case 0x30A -> { // menvcfg Machine environment configuration.
+                if (xlen == R5.XLEN_32) {
+                    setEnvironmentConfiguration((menvcfg & ~0xFFFFFFFFL) | (value & 0xFFFFFFFFL));
+                } else {
+                    setEnvironmentConfiguration(value);
+                }
+            }
             case 0x310 -> { // mstatush Additional machine status register, RV32 only.
-                if (xlen != R5.XLEN_32) throw new R5IllegalInstructionException();
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
                 setStatus((value << 32) & MSTATUS_MASK);
             }
+            case 0x31A -> { // menvcfgh, Upper 32 bits of menvcfg, RV32 only.
+                if (xlen != R5.XLEN_32) throw ILLEGAL_INSTRUCTION;
+                setEnvironmentConfiguration((menvcfg & 0xFFFFFFFFL) | (value << 32));
+            }
 
             // Debug/Trace Registers
             case 0x7A0 -> { // tselect
@@ -909,7 +1700,8 @@ final class R5CPUTemplate implements R5CPU {
                 // p32: MEIP, MTIP, MSIP are readonly in mip.
                 // Additionally, SEIP is controlled by a PLIC in our case, so we must not allow
                 // software to reset it, as this could lead to lost interrupts.
-                final int mask = R5.STIP_MASK | R5.SSIP_MASK;
+                // With Sstc enabled, STIP is driven by stimecmp and read-only as well.
+                final long mask = (R5.STIP_MASK | R5.SSIP_MASK) & ~getSupervisorTimerReadonlyMask();
                 mip.updateAndGet(operand -> (operand & ~mask) | (value & mask));
             }
             // 0x34A: mtinst, Machine trap instruction (transformed).
@@ -953,10 +1745,27 @@ final class R5CPUTemplate implements R5CPU {
                 setXLEN(R5.XLEN_32);
                 return true;
             }
-            default -> throw new R5IllegalInstructionException();
+            default -> throw ILLEGAL_INSTRUCTION;
+        }
+
+        return false;
+    }
+
+    private void checkSupervisorTimerAccess() throws R5IllegalInstructionException {
+        // Sstc: below machine mode, stimecmp is only accessible if both mcounteren.TM and menvcfg.STCE are set.
+        if (priv < R5.PRIVILEGE_M && ((mcounteren & R5.MCOUNTERN_TM) == 0 || (menvcfg & R5.MENVCFG_STCE_MASK) == 0)) {
+            throw ILLEGAL_INSTRUCTION;
         }
+    }
 
-        return false;
+    private long getSupervisorTimerReadonlyMask() {
+        return (menvcfg & R5.MENVCFG_STCE_MASK) != 0 ? R5.STIP_MASK : 0;
+    }
+
+    private void setEnvironmentConfiguration(final long value) {
+        // Of the environment configuration, we only support enabling Sstc, all other fields are read-only zero.
+        menvcfg = value & R5.MENVCFG_STCE_MASK;
+        updateSupervisorTimer();
     }
 
     private void checkCounterAccess(final int bit) throws R5IllegalInstructionException {
@@ -970,7 +1779,7 @@ final class R5CPUTemplate implements R5CPU {
             }
 
             if ((counteren & (1 << bit)) == 0) {
-                throw new R5IllegalInstructionException();
+                throw ILLEGAL_INSTRUCTION;
             }
         }
     }
@@ -987,8 +1796,9 @@ final class R5CPUTemplate implements R5CPU {
 
     private void setStatus(final long value) {
         final long change = mstatus ^ value;
+        // SUM is part of the TLB context, so entries for either value can coexist.
         final boolean mmuConfigChanged =
-            (change & (R5.STATUS_MPRV_MASK | R5.STATUS_SUM_MASK | R5.STATUS_MXR_MASK)) != 0 ||
+            (change & (R5.STATUS_MPRV_MASK | R5.STATUS_MXR_MASK)) != 0 ||
                 ((mstatus & R5.STATUS_MPRV_MASK) != 0 && (change & R5.STATUS_MPP_MASK) != 0);
         if (mmuConfigChanged) {
             flushTLB();
@@ -999,6 +1809,10 @@ final class R5CPUTemplate implements R5CPU {
         final long mask = MSTATUS_MASK & ~(R5.getStatusStateDirtyMask(xlen) | R5.STATUS_FS_MASK |
             R5.STATUS_UXL_MASK | R5.STATUS_SXL_MASK);
         mstatus = (mstatus & ~mask) | (value & mask);
+
+        if ((change & R5.STATUS_SUM_MASK) != 0) {
+            updateTLBContext();
+        }
     }
 
     private void setPrivilege(final int level) {
@@ -1006,7 +1820,9 @@ final class R5CPUTemplate implements R5CPU {
             return;
         }
 
-        flushTLB();
+        // Traps and returns from them clear reservations, so an interrupted LR/SC sequence fails.
+        reservation_set = -1;
+        reservationAddress = -1;
 
         switch (level) {
             case R5.PRIVILEGE_S -> xlen = R5.xlen((mstatus & R5.STATUS_SXL_MASK) >>> R5.STATUS_SXL_SHIFT);
@@ -1015,6 +1831,9 @@ final class R5CPUTemplate implements R5CPU {
         }
 
         priv = level;
+
+        // The privilege level is part of the TLB context, so we can keep entries of other levels around.
+        updateTLBContext();
     }
 
     private int resolveRoundingMode(int rm) throws R5IllegalInstructionException {
@@ -1022,7 +1841,7 @@ final class R5CPUTemplate implements R5CPU {
             rm = frm;
         }
         if (rm > R5.FCSR_FRM_RMM) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
         return rm;
     }
@@ -1140,15 +1959,13 @@ final class R5CPUTemplate implements R5CPU {
     ///////////////////////////////////////////////////////////////////
     // MMU
 
-    private TLBEntry fetchPage(final long address) throws R5MemoryAccessException {
+    private int fetchPage(final long address) throws R5MemoryAccessException {
         if ((address & 1) != 0) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_FETCH);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_FETCH);
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-        final TLBEntry entry = fetchTLB[index];
-        if (entry.hash == hash) {
+        final int entry = fetchTLB.lookup(address);
+        if (entry >= 0) {
             return entry;
         } else {
             return fetchPageSlow(address);
@@ -1193,14 +2010,17 @@ final class R5CPUTemplate implements R5CPU {
             return loadxPageMisaligned(address, size);
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-        final TLBEntry entry = loadTLB[index];
-        if (entry.hash == hash) {
+        final int entry = loadTLB.lookup(address);
+        if (entry >= 0) {
+            final long host = loadTLB.hosts[entry];
+            if (host != 0) {
+                return loadDirect(host + (address & R5.PAGE_ADDRESS_MASK), sizeLog2);
+            }
+
             try {
-                return entry.device.load((int) (address + entry.toOffset), sizeLog2);
+                return loadTLB.devices[entry].load((int) (address + loadTLB.offsets[entry]), sizeLog2);
             } catch (final MemoryAccessException e) {
-                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
+                throw memoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
             }
         } else {
             return loadSlow(address, sizeLog2);
@@ -1216,126 +2036,198 @@ final class R5CPUTemplate implements R5CPU {
             return;
         }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-        final TLBEntry entry = storeTLB[index];
-        if (entry.hash == hash) {
-            final long pAddr = physicalMemory.getMemoryRange(entry.device)
-                .map(range -> range.start + address + entry.toOffset)
-                .orElse(-1L);
-            if (pAddr != -1)
-                notify(pAddr, size);
+        final int entry = storeTLB.lookup(address);
+        if (entry >= 0) {
+            invalidateReservations(storeTLB.physicalPages[entry] | (address & R5.PAGE_ADDRESS_MASK), size);
+
+            final CodePage codePage = storeTLB.codePages[entry];
+            if (codePage != null) {
+                codePage.invalidate();
+            }
+
+            final MemoryMappedDevice device = storeTLB.devices[entry];
+            final long toOffset = storeTLB.offsets[entry];
+            final long host = storeTLB.hosts[entry];
+            if (host != 0) {
+                storeDirect(host + (address & R5.PAGE_ADDRESS_MASK), value, sizeLog2);
+                return;
+            }
 
             try {
-                entry.device.store((int) (address + entry.toOffset), value, sizeLog2);
+                device.store((int) (address + toOffset), value, sizeLog2);
             } catch (final MemoryAccessException e) {
-                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+                throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
             }
         } else {
             storeSlow(address, value, sizeLog2);
         }
     }
 
+    // Called with constant sizes by the load and store methods above, so the switches fold away once inlined.
+
+    private static long loadDirect(final long host, final int sizeLog2) {
+        return switch (sizeLog2) {
+            case Sizes.SIZE_8_LOG2 -> UNSAFE.getByte(host);
+            case Sizes.SIZE_16_LOG2 -> UNSAFE.getShort(host);
+            case Sizes.SIZE_32_LOG2 -> UNSAFE.getInt(host);
+            case Sizes.SIZE_64_LOG2 -> UNSAFE.getLong(host);
+            default -> throw new IllegalArgumentException();
+        };
+    }
+
+    private static void storeDirect(final long host, final long value, final int sizeLog2) {
+        switch (sizeLog2) {
+            case Sizes.SIZE_8_LOG2 -> UNSAFE.putByte(host, (byte) value);
+            case Sizes.SIZE_16_LOG2 -> UNSAFE.putShort(host, (short) value);
+            case Sizes.SIZE_32_LOG2 -> UNSAFE.putInt(host, (int) value);
+            case Sizes.SIZE_64_LOG2 -> UNSAFE.putLong(host, value);
+            default -> throw new IllegalArgumentException();
+        }
+    }
+
     private boolean storeCAS(final long address, final long value, final long expected, final int size, final int sizeLog2) throws R5MemoryAccessException {
         // Would just use a hook in MemoryMap, but it is inconsistently called.
-        notify(address, size);
 
         final long lastAddress = address + size / 8 - 1;
         if ((address & ((size / 8) - 1)) != 0 || (address & ~R5.PAGE_ADDRESS_MASK) != (lastAddress & ~R5.PAGE_ADDRESS_MASK))
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
+
+        final int entry = storeTLB.lookup(address);
+        if (entry >= 0) {
+            invalidateReservations(storeTLB.physicalPages[entry] | (address & R5.PAGE_ADDRESS_MASK), size);
+
+            final CodePage codePage = storeTLB.codePages[entry];
+            if (codePage != null) {
+                codePage.invalidate();
+            }
 
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-        final TLBEntry entry = storeTLB[index];
-        if (entry.hash == hash) {
+            final MemoryMappedDevice device = storeTLB.devices[entry];
+            final long toOffset = storeTLB.offsets[entry];
             try {
-                return entry.device.storeCAS((int) (address + entry.toOffset), value, expected, sizeLog2);
+                return device.storeCAS((int) (address + toOffset), value, expected, sizeLog2);
             } catch (final MemoryAccessException e) {
-                throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+                throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
             }
         } else {
             return storeSlowCAS(address, value, expected, sizeLog2);
         }
     }
 
-    private TLBEntry fetchPageSlow(final long address) throws R5MemoryAccessException {
-        final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.FETCH, false);
+    private int fetchPageSlow(final long address) throws R5MemoryAccessException {
+        final long physicalAddress = translate(fetchTLB, address, MemoryAccessType.FETCH);
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null || !range.device.supportsFetch()) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_FETCH);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_FETCH);
         }
-        final TLBEntry tlb = updateTLB(fetchTLB, address, physicalAddress, range);
-        final var subset = debugInterface.breakpoints.subSet(address, address + (1 << R5.PAGE_ADDRESS_SHIFT));
-        if (subset.isEmpty()) {
-            tlb.breakpoints = null;
-        } else {
-            tlb.breakpoints = new LongOpenHashSet(subset.size());
-            tlb.breakpoints.addAll(subset);
+        final CodePage codePage = getCodePage(physicalAddress);
+        final int entry = fetchTLB.update(address, physicalAddress, range, translationGlobal);
+        fetchTLB.codePages[entry] = codePage;
+        final long pageAddress = address & ~R5.PAGE_ADDRESS_MASK;
+        final var subset = debugInterface.breakpoints.subSet(pageAddress, pageAddress + (1 << R5.PAGE_ADDRESS_SHIFT));
+        if (!subset.isEmpty()) {
+            fetchTLB.breakpoints[entry] = new LongOpenHashSet(subset);
         }
-        return tlb;
+        return entry;
     }
 
     private long loadSlow(final long address, final int sizeLog2) throws R5MemoryAccessException {
-        final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.LOAD, false);
+        final int mmioEntry = mmioLoadTLB.lookupDevice(address);
+        if (mmioEntry >= 0) {
+            try {
+                return mmioLoadTLB.devices[mmioEntry].load((int) (address + mmioLoadTLB.offsets[mmioEntry]), sizeLog2);
+            } catch (final MemoryAccessException e) {
+                throw memoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
+            }
+        }
+
+        final long physicalAddress = translate(loadTLB, address, MemoryAccessType.LOAD);
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
         }
 
         try {
             if (range.device.supportsFetch()) {
-                final TLBEntry entry = updateTLB(loadTLB, address, physicalAddress, range);
-                return entry.device.load((int) (address + entry.toOffset), sizeLog2);
+                final int entry = loadTLB.update(address, physicalAddress, range, translationGlobal);
+                return range.device.load((int) (address + loadTLB.offsets[entry]), sizeLog2);
             } else {
-                return range.device.load((int) (physicalAddress - range.address()), sizeLog2);
+                final int entry = mmioLoadTLB.update(address, physicalAddress, range, translationGlobal);
+                return range.device.load((int) (address + mmioLoadTLB.offsets[entry]), sizeLog2);
             }
         } catch (final MemoryAccessException e) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_LOAD);
         }
     }
 
     private void storeSlow(final long address, final long value, final int sizeLog2) throws R5MemoryAccessException {
-        final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.STORE, false);
-        notify(physicalAddress, 8 << sizeLog2);
+        // Reservations and compiled code only exist for memory, so device stores need not invalidate them.
+        final int mmioEntry = mmioStoreTLB.lookupDevice(address);
+        if (mmioEntry >= 0) {
+            try {
+                mmioStoreTLB.devices[mmioEntry].store((int) (address + mmioStoreTLB.offsets[mmioEntry]), value, sizeLog2);
+                return;
+            } catch (final MemoryAccessException e) {
+                throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            }
+        }
+
+        final long physicalAddress = translate(storeTLB, address, MemoryAccessType.STORE);
+        invalidateReservations(physicalAddress, 8 << sizeLog2);
+        invalidateCodePage(physicalAddress);
 
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
         }
 
         try {
-            if (range.device.supportsFetch()) {
-                final TLBEntry entry = updateTLB(storeTLB, address, physicalAddress, range);
-                final int offset = (int) (address + entry.toOffset);
-                entry.device.store(offset, value, sizeLog2);
+            if (pageWalkCache.invalidate(physicalAddress)) {
+                final int offset = (int) (physicalAddress - range.start);
+                range.device.store(offset, value, sizeLog2);
+                physicalMemory.setDirty(range, offset);
+            } else if (range.device.supportsFetch()) {
+                final int entry = storeTLB.update(address, physicalAddress, range, translationGlobal);
+                storeTLB.codePages[entry] = codePages.get(physicalAddress & ~R5.PAGE_ADDRESS_MASK);
+                final int offset = (int) (address + storeTLB.offsets[entry]);
+                range.device.store(offset, value, sizeLog2);
                 physicalMemory.setDirty(range, offset);
             } else {
-                range.device.store((int) (physicalAddress - range.start), value, sizeLog2);
+                final int entry = mmioStoreTLB.update(address, physicalAddress, range, translationGlobal);
+                range.device.store((int) (address + mmioStoreTLB.offsets[entry]), value, sizeLog2);
             }
         } catch (final MemoryAccessException e) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
         }
     }
 
     private boolean storeSlowCAS(final long address, final long value, final long expected, final int sizeLog2) throws R5MemoryAccessException {
-        final long physicalAddress = getPhysicalAddress(address, MemoryAccessType.STORE, false);
+        final long physicalAddress = translate(storeTLB, address, MemoryAccessType.STORE);
+        invalidateReservations(physicalAddress, 8 << sizeLog2);
+        invalidateCodePage(physicalAddress);
+
         final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
         if (range == null) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
         }
 
         try {
-            if (range.device.supportsFetch()) {
-                final TLBEntry entry = updateTLB(storeTLB, address, physicalAddress, range);
-                final int offset = (int) (address + entry.toOffset);
-                final boolean success = entry.device.storeCAS(offset, value, expected, sizeLog2);
+            if (pageWalkCache.invalidate(physicalAddress)) {
+                final int offset = (int) (physicalAddress - range.start);
+                final boolean success = range.device.storeCAS(offset, value, expected, sizeLog2);
+                physicalMemory.setDirty(range, offset);
+                return success;
+            } else if (range.device.supportsFetch()) {
+                final int entry = storeTLB.update(address, physicalAddress, range, translationGlobal);
+                storeTLB.codePages[entry] = codePages.get(physicalAddress & ~R5.PAGE_ADDRESS_MASK);
+                final int offset = (int) (address + storeTLB.offsets[entry]);
+                final boolean success = range.device.storeCAS(offset, value, expected, sizeLog2);
                 physicalMemory.setDirty(range, offset);
                 return success;
             } else {
                 return range.device.storeCAS((int) (physicalAddress - range.start), value, expected, sizeLog2);
             }
         } catch (final MemoryAccessException e) {
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_FAULT_STORE);
         }
     }
 
@@ -1354,7 +2246,30 @@ final class R5CPUTemplate implements R5CPU {
         }
     }
 
+    private long translate(final TLB tlb, final long address, final MemoryAccessType accessType) throws R5MemoryAccessException {
+        // Pages inside a superpage we already walked to share its translation and permissions, so
+        // we can fill in entries for them without walking the page table again.
+        final int superpage = tlb.findSuperpage(address);
+        if (superpage >= 0) {
+            tlb.superpageHits++;
+            tlb.hasSuperpageEntries = true;
+            translationGlobal = (tlb.superpageTags[superpage] & TLB_CONTEXT_GLOBAL) != 0;
+            return tlb.superpageAddresses[superpage] | (address & tlb.superpageMasks[superpage]);
+        }
+
+        tlb.misses++;
+        final long physicalAddress = getPhysicalAddress(address, accessType, false);
+        if (translationShift > R5.PAGE_ADDRESS_SHIFT) {
+            tlb.updateSuperpage(address, physicalAddress, translationShift, translationGlobal);
+            tlb.hasSuperpageEntries = true;
+        }
+        return physicalAddress;
+    }
+
     private long getPhysicalAddress(final long virtualAddress, final MemoryAccessType accessType, final boolean bypassPermissions) throws R5MemoryAccessException {
+        translationShift = R5.PAGE_ADDRESS_SHIFT;
+        translationGlobal = true; // Untranslated addresses are the same in all address spaces.
+
         final int privilege;
         if ((mstatus & R5.STATUS_MPRV_MASK) != 0 && accessType != MemoryAccessType.FETCH) {
             privilege = (int) ((mstatus & R5.STATUS_MPP_MASK) >>> R5.STATUS_MPP_SHIFT);
@@ -1408,9 +2323,27 @@ final class R5CPUTemplate implements R5CPU {
         final int xpnSize = R5.PAGE_ADDRESS_SHIFT - pteSizeLog2;
         final int xpnMask = (1 << xpnSize) - 1;
 
+        // Global bits of non-leaf entries apply to all mappings below them.
+        boolean global = false;
+
         // Virtual address translation, V2p75f.
         long pteAddress = (satp & ppnMask) << R5.PAGE_ADDRESS_SHIFT; // 1.
-        for (int i = levels - 1; i >= 0; i--) {
+
+        // Skip the levels we have cached, starting with the one closest to the leaf.
+        pageWalkCache.trim();
+        final long root = pteAddress | levels;
+        int level = levels - 1;
+        for (int i = 1; i < levels; i++) {
+            final int entry = pageWalkCache.find(root, i, virtualAddress >>> (R5.PAGE_ADDRESS_SHIFT + xpnSize * i));
+            if (entry >= 0) {
+                pteAddress = pageWalkCache.tables[entry];
+                global = pageWalkCache.globals[entry];
+                level = i - 1;
+                break;
+            }
+        }
+
+        for (int i = level; i >= 0; i--) {
             final int vpnShift = R5.PAGE_ADDRESS_SHIFT + xpnSize * i;
             final int vpn = (int) ((virtualAddress >>> vpnShift) & xpnMask);
             pteAddress += ((long) vpn) << pteSizeLog2; // equivalent to vpn * PTE size
@@ -1427,10 +2360,18 @@ final class R5CPUTemplate implements R5CPU {
             }
 
             // 4.
+            global |= (pte & R5.PTE_G_MASK) != 0;
             int xwr = (int) (pte & (R5.PTE_X_MASK | R5.PTE_W_MASK | R5.PTE_R_MASK));
             if (xwr == 0) { // r=0 && x=0: pointer to next level of the page table. w=0 is implicit due to r=0 (see 3).
+                if (pageWalkCache.addPage(pteAddress & ~R5.PAGE_ADDRESS_MASK)) {
+                    // Stores to pages holding cached entries must invalidate them, so they may not have
+                    // store TLB entries, see storeSlow().
+                    storeTLB.flush();
+                }
+
                 final long ppn = pte >>> R5.PTE_DATA_BITS;
                 pteAddress = ppn << R5.PAGE_ADDRESS_SHIFT;
+                pageWalkCache.update(root, i, virtualAddress >>> vpnShift, pteAddress, global);
                 continue;
             }
 
@@ -1475,6 +2416,8 @@ final class R5CPUTemplate implements R5CPU {
             }
 
             // 8. physical address = pte.ppn[LEVELS-1:i], va.vpn[i-1:0], va.pgoff
+            translationShift = vpnShift;
+            translationGlobal = global;
             final long vpnAndPageOffsetMask = (1L << vpnShift) - 1;
             final long ppn = (pte >>> R5.PTE_DATA_BITS) << R5.PAGE_ADDRESS_SHIFT;
             return (ppn & ~vpnAndPageOffsetMask) | (virtualAddress & vpnAndPageOffsetMask);
@@ -1483,61 +2426,100 @@ final class R5CPUTemplate implements R5CPU {
         throw getPageFaultException(accessType, virtualAddress);
     }
 
-    private static R5MemoryAccessException getPageFaultException(final MemoryAccessType accessType, final long address) {
+    private R5MemoryAccessException getPageFaultException(final MemoryAccessType accessType, final long address) {
         return switch (accessType) {
-            case LOAD -> new R5MemoryAccessException(address, R5.EXCEPTION_LOAD_PAGE_FAULT);
-            case STORE -> new R5MemoryAccessException(address, R5.EXCEPTION_STORE_PAGE_FAULT);
-            case FETCH -> new R5MemoryAccessException(address, R5.EXCEPTION_FETCH_PAGE_FAULT);
+            case LOAD -> memoryAccessException(address, R5.EXCEPTION_LOAD_PAGE_FAULT);
+            case STORE -> memoryAccessException(address, R5.EXCEPTION_STORE_PAGE_FAULT);
+            case FETCH -> memoryAccessException(address, R5.EXCEPTION_FETCH_PAGE_FAULT);
         };
     }
 
+    private R5MemoryAccessException memoryAccessException(final long address, final int type) {
+        return memoryAccessException.update(address, type);
+    }
+
     ///////////////////////////////////////////////////////////////////
     // TLB
 
-    private static TLBEntry updateTLB(final TLBEntry[] tlb, final long address, final long physicalAddress, final MappedMemoryRange range) {
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        return updateTLBEntry(tlb[index], address, physicalAddress, range);
-    }
+    private void flushTLB() {
+        fetchTLB.flush();
+        loadTLB.flush();
+        storeTLB.flush();
+        mmioLoadTLB.flush();
+        mmioStoreTLB.flush();
+        pageWalkCache.flush();
 
-    private static TLBEntry updateTLBEntry(final TLBEntry tlb, final long address, final long physicalAddress, final MappedMemoryRange range) {
-        tlb.hash = address & ~R5.PAGE_ADDRESS_MASK;
-        tlb.toOffset = physicalAddress - address - range.start;
-        tlb.device = range.device;
+        reservation_set = -1;
+        reservationAddress = -1;
 
-        return tlb;
+        // Also called after deserialization via invalidateCaches(), where the context may be stale.
+        updateTLBContext();
     }
 
-    private void flushTLB() {
-        // Only reset the most necessary field, the hash (which we use to check if an entry is applicable).
-        // Reset per-array for *much* faster clears due to it being a faster memory access pattern/the
-        // hotspot optimizer being able to more efficiently handle it (probably the latter, I suspect this
-        // gets replaced by a memset with stride).
-        for (int i = 0; i < TLB_SIZE; i++) {
-            fetchTLB[i].hash = -1;
-        }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            loadTLB[i].hash = -1;
+    private void flushTLB(final long address) {
+        // Entries for all pages inside a superpage come from the same leaf, so they would all have to go. We don't
+        // track which entries came from which superpage, so just flush everything.
+        if (fetchTLB.hasSuperpageEntries || loadTLB.hasSuperpageEntries || storeTLB.hasSuperpageEntries) {
+            fetchTLB.flush();
+            loadTLB.flush();
+            storeTLB.flush();
+            mmioLoadTLB.flush();
+            mmioStoreTLB.flush();
+            return;
         }
-        for (int i = 0; i < TLB_SIZE; i++) {
-            storeTLB[i].hash = -1;
+
+        fetchTLB.flush(address);
+        loadTLB.flush(address);
+        storeTLB.flush(address);
+        mmioLoadTLB.flush(address);
+        mmioStoreTLB.flush(address);
+    }
+
+    private void flushTLB(final long address, final int asid) {
+        // Same as above, but entries of other address spaces and global mappings are not affected.
+        if (fetchTLB.hasSuperpageEntries || loadTLB.hasSuperpageEntries || storeTLB.hasSuperpageEntries) {
+            fetchTLB.flushAsid(asid);
+            loadTLB.flushAsid(asid);
+            storeTLB.flushAsid(asid);
+            mmioLoadTLB.flushAsid(asid);
+            mmioStoreTLB.flushAsid(asid);
+            return;
         }
 
-        reservation_set = -1;
+        fetchTLB.flush(address, asid);
+        loadTLB.flush(address, asid);
+        storeTLB.flush(address, asid);
+        mmioLoadTLB.flush(address, asid);
+        mmioStoreTLB.flush(address, asid);
     }
 
-    private void flushTLB(final long address) {
-        final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-        final long hash = address & ~R5.PAGE_ADDRESS_MASK;
+    private void flushTLBAsid(final int asid) {
+        fetchTLB.flushAsid(asid);
+        loadTLB.flushAsid(asid);
+        storeTLB.flushAsid(asid);
+        mmioLoadTLB.flushAsid(asid);
+        mmioStoreTLB.flushAsid(asid);
+    }
 
-        if (fetchTLB[index].hash == hash) {
-            fetchTLB[index].hash = -1;
-        }
-        if (loadTLB[index].hash == hash) {
-            loadTLB[index].hash = -1;
+    private void updateTLBContext() {
+        final long asid;
+        if (xlen == R5.XLEN_32) {
+            asid = (satp & R5.SATP_ASID_MASK32) >>> R5.SATP_ASID_SHIFT32;
+        } else {
+            asid = (satp & R5.SATP_ASID_MASK64) >>> R5.SATP_ASID_SHIFT64;
         }
-        if (storeTLB[index].hash == hash) {
-            storeTLB[index].hash = -1;
+
+        int context = (int) asid & TLB_CONTEXT_ASID_MASK;
+        context |= priv << TLB_CONTEXT_PRIVILEGE_SHIFT;
+        if ((mstatus & R5.STATUS_SUM_MASK) != 0) {
+            context |= TLB_CONTEXT_SUM;
         }
+
+        fetchTLB.context = context;
+        loadTLB.context = context;
+        storeTLB.context = context;
+        mmioLoadTLB.context = context;
+        mmioStoreTLB.context = context;
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -1912,8 +2894,26 @@ final class R5CPUTemplate implements R5CPU {
         // no-op
     }
 
+    @Instruction("PAUSE")
+    private void pause() {
+        // Zihintpause: the hart is waiting, e.g. in a spinlock. Let some time pass, so waiting costs
+        // fewer host instructions, and tell the host we're spinning if other harts run in parallel.
+        mcycle += PAUSE_CYCLES;
+        if (peers.length > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
     @Instruction("ECALL")
     private void ecall(@ProgramCounter final long pc) {
+        final R5SupervisorCallHandler handler = supervisorCallHandler;
+        if (priv == R5.PRIVILEGE_S && handler != null) {
+            this.pc = pc + 4; // ECALL has no compressed form.
+            if (handler.handleSupervisorCall(this, x)) {
+                return;
+            }
+        }
+
         this.pc = pc; // raiseException reads the field to store it in mepc/sepc.
         raiseException(R5.EXCEPTION_USER_ECALL + priv);
     }
@@ -2077,8 +3077,10 @@ final class R5CPUTemplate implements R5CPU {
     // RV32/RV64 Zifencei Standard Extension
 
     @Instruction("FENCE.I")
-    private void fence_i() {
-        // no-op
+    private boolean fence_i() {
+        // Instruction memory may have been written without us noticing, e.g. by DMA.
+        invalidateCompiledBlocks();
+        return true; // Exit trace, so we fetch from memory again.
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -2328,15 +3330,32 @@ final class R5CPUTemplate implements R5CPU {
     ///////////////////////////////////////////////////////////////////
     // RV32A Standard Extension
 
+    private void reserve(final long address, final long value) throws R5MemoryAccessException {
+        // Other harts and devices only know physical addresses, so that's what they compare
+        // their stores to. SC additionally uses a CAS on the loaded value, so that stores
+        // racing with the SC on another thread make it fail as well.
+        final int entry = loadTLB.lookup(address);
+        final long physicalAddress;
+        if (entry >= 0) {
+            physicalAddress = loadTLB.physicalPages[entry] | (address & R5.PAGE_ADDRESS_MASK);
+        } else {
+            physicalAddress = translate(loadTLB, address, MemoryAccessType.LOAD);
+        }
+
+        reservation_set = address;
+        reservation_value = value;
+        reservationAddress = physicalAddress;
+    }
+
     @Instruction("LR.W")
     private void lr_w(@Field("rd") final int rd,
                       @Field("rs1") final int rs1) throws R5MemoryAccessException {
         final long address = x[rs1];
         if ((address & 0x07) != 0) // Feel free to remove if you want to tackle cross-page atomics
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_LOAD);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_LOAD);
 
         final int result = load32(address);
-        reservation_set = address; // Consider changing this to the physical address for easier use
+        reserve(address, result);
 
         if (rd != 0) {
             if (xlen == R5.XLEN_64) // Sign extend
@@ -2353,16 +3372,17 @@ final class R5CPUTemplate implements R5CPU {
         final int result;
         final long address = x[rs1];
         if ((address & 0x07) != 0) // Feel free to remove if you want to tackle cross-page atomics
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
 
-        if (address == reservation_set) {
-            store32(address, (int) x[rs2]);
+        if (address == reservation_set && reservationAddress != -1 &&
+            storeCAS(address, (int) x[rs2], (int) reservation_value, Sizes.SIZE_32, Sizes.SIZE_32_LOG2)) {
             result = 0;
         } else {
             result = 1;
         }
 
         reservation_set = -1; // Always invalidate as per spec.
+        reservationAddress = -1;
 
         if (rd != 0) {
             x[rd] = result;
@@ -2557,10 +3577,10 @@ final class R5CPUTemplate implements R5CPU {
                       @Field("rs1") final int rs1) throws R5MemoryAccessException {
         final long address = x[rs1];
         if ((address & 0x07) != 0) // Feel free to remove if you want to tackle cross-page atomics
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_LOAD);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_LOAD);
 
         final long result = load64(address);
-        reservation_set = address;
+        reserve(address, result);
 
         if (rd != 0) {
             x[rd] = result;
@@ -2574,16 +3594,17 @@ final class R5CPUTemplate implements R5CPU {
         final int result;
         final long address = x[rs1];
         if ((address & 0x07) != 0) // Feel free to remove if you want to tackle cross-page atomics
-            throw new R5MemoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
+            throw memoryAccessException(address, R5.EXCEPTION_MISALIGNED_STORE);
 
-        if (address == reservation_set) {
-            store64(address, x[rs2]);
+        if (address == reservation_set && reservationAddress != -1 &&
+            storeCAS(address, x[rs2], reservation_value, Sizes.SIZE_64, Sizes.SIZE_64_LOG2)) {
             result = 0;
         } else {
             result = 1;
         }
 
         reservation_set = -1; // Always invalidate as per spec.
+        reservationAddress = -1;
 
         if (rd != 0) {
             x[rd] = result;
@@ -2749,11 +3770,11 @@ final class R5CPUTemplate implements R5CPU {
     @Instruction("SRET")
     private boolean sret() throws R5IllegalInstructionException {
         if (priv < R5.PRIVILEGE_S) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
 
         if ((mstatus & R5.STATUS_TSR_MASK) != 0 && priv < R5.PRIVILEGE_M) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
 
         final int spp = (int) ((mstatus & R5.STATUS_SPP_MASK) >>> R5.STATUS_SPP_SHIFT); // Previous privilege level.
@@ -2774,7 +3795,7 @@ final class R5CPUTemplate implements R5CPU {
     @Instruction("MRET")
     private boolean mret() throws R5IllegalInstructionException {
         if (priv < R5.PRIVILEGE_M) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
 
         final int mpp = (int) ((mstatus & R5.STATUS_MPP_MASK) >>> R5.STATUS_MPP_SHIFT); // Previous privilege level.
@@ -2795,10 +3816,10 @@ final class R5CPUTemplate implements R5CPU {
     @Instruction("WFI")
     private boolean wfi() throws R5IllegalInstructionException {
         if (priv == R5.PRIVILEGE_U) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
         if ((mstatus & R5.STATUS_TW_MASK) != 0 && priv == R5.PRIVILEGE_S) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
 
         if ((mip.get() & mie) != 0) {
@@ -2813,16 +3834,28 @@ final class R5CPUTemplate implements R5CPU {
     private boolean sfence_vma(@Field("rs1") final int rs1,
                                @Field("rs2") final int rs2) throws R5IllegalInstructionException {
         if (priv == R5.PRIVILEGE_U) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
         if ((mstatus & R5.STATUS_TVM_MASK) != 0 && priv == R5.PRIVILEGE_S) {
-            throw new R5IllegalInstructionException();
+            throw ILLEGAL_INSTRUCTION;
         }
 
+        // We don't track which walks led to which non-leaf entries, so the page walk cache is always flushed.
+        pageWalkCache.flush();
+
+        // rs2 selects the address space to flush, in which case global mappings are kept.
         if (rs1 == 0) {
-            flushTLB();
+            if (rs2 == 0) {
+                flushTLB();
+            } else {
+                flushTLBAsid((int) x[rs2] & TLB_CONTEXT_ASID_MASK);
+            }
         } else {
-            flushTLB(x[rs1]);
+            if (rs2 == 0) {
+                flushTLB(x[rs1]);
+            } else {
+                flushTLB(x[rs1], (int) x[rs2] & TLB_CONTEXT_ASID_MASK);
+            }
         }
 
         return true; // Exit trace, need to re-fetch.
@@ -3451,12 +4484,439 @@ final class R5CPUTemplate implements R5CPU {
         }
     }
 
-    private static final class TLBEntry {
-        public long hash = -1;
-        public long toOffset;
-        public MemoryMappedDevice device;
-        //Subset of complete breakpoint set
-        public LongSet breakpoints;
+    /**
+     * Translation look-aside buffer, kept as parallel arrays so lookups don't have to chase a pointer per entry.
+     * <p>
+     * Entries are grouped into sets of {@link #TLB_WAYS} entries, selected by the low bits of the page number of
+     * the virtual address. New entries are inserted at the front of their set, evicting the oldest entry.
+     * <p>
+     * Tags hold the virtual page address and the context the entry was translated in, see {@link #TLB_CONTEXT_GLOBAL}
+     * and friends. Entries only match in the same context, while global mappings match for any address space.
+     */
+    private static final class TLB {
+        public final long[] tags = new long[TLB_SIZE]; // Virtual page address and context of each entry, -1 if unused.
+        public final long[] offsets = new long[TLB_SIZE]; // Offset from the virtual to the device local address.
+        public final long[] physicalPages = new long[TLB_SIZE]; // Physical address of the page.
+        public final MemoryMappedDevice[] devices = new MemoryMappedDevice[TLB_SIZE];
+        // Host address of the page, if its device is UnsafeMemory fully containing it, 0 otherwise.
+        public final long[] hosts = new long[TLB_SIZE];
+        // Subset of complete breakpoint set. Only set for fetch entries.
+        public final LongSet[] breakpoints = new LongSet[TLB_SIZE];
+        // Code page of the physical page an entry maps to, if known. Only set for fetch and store entries.
+        public final CodePage[] codePages = new CodePage[TLB_SIZE];
+        public long hits, misses; // Misses are counted by callers, when walking the page table.
+        public int context; // Context of the hart, i.e. the current ASID, privilege level and SUM bit.
+
+        // Translations of superpages, i.e. leaf entries above the lowest level of the page table. Pages inside these
+        // are filled in from here, without walking the page table. Replaced round-robin once full.
+        public final long[] superpageTags = new long[TLB_SUPERPAGES]; // Virtual address and context of each superpage.
+        public final long[] superpageMasks = new long[TLB_SUPERPAGES]; // Mask for the offset into each superpage.
+        public final long[] superpageAddresses = new long[TLB_SUPERPAGES]; // Physical address of each superpage.
+        public int superpageCount, superpageNext;
+        public long superpageHits;
+        public boolean hasSuperpageEntries; // Whether entries may have been filled from superpage translations.
+
+        static {
+            if (TLB_WAYS != 1 && TLB_WAYS != 2) {
+                throw new IllegalArgumentException(String.format("Unsupported TLB associativity [%d], must be 1 or 2.", TLB_WAYS));
+            }
+            if (Integer.bitCount(TLB_SIZE) != 1 || TLB_SIZE < TLB_WAYS) {
+                throw new IllegalArgumentException(String.format("Invalid TLB size [%d], must be a power of two.", TLB_SIZE));
+            }
+        }
+
+        public TLB() {
+            Arrays.fill(tags, -1);
+        }
+
+        /**
+         * Finds the entry for the page containing the specified virtual address.
+         *
+         * @param address the virtual address to look up.
+         * @return the index of the entry, or {@code -1} if there is no entry for the address.
+         */
+        public int lookup(final long address) {
+            final int entry = find(address);
+            if (entry >= 0) {
+                hits++;
+            }
+            return entry;
+        }
+
+        /**
+         * Like {@link #lookup(long)}, but only finds entries whose device contains the specified virtual address.
+         * <p>
+         * Used for devices that are not memory, which may share a page with other devices.
+         *
+         * @param address the virtual address to look up.
+         * @return the index of the entry, or {@code -1} if there is no entry for the address.
+         */
+        public int lookupDevice(final long address) {
+            final int entry = find(address);
+            if (entry >= 0) {
+                final long offset = address + offsets[entry];
+                if (offset >= 0 && offset < devices[entry].getLength()) {
+                    hits++;
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Like {@link #lookup(long)}, but without updating the hit counter.
+         */
+        public int find(final long address) {
+            final long page = address & ~R5.PAGE_ADDRESS_MASK;
+            final long tag = page | context;
+            final long globalTag = page | (context & ~TLB_CONTEXT_ASID_MASK) | TLB_CONTEXT_GLOBAL;
+            final int set = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SETS - 1)) << TLB_WAYS_LOG2;
+            for (int i = set; i < set + TLB_WAYS; i++) {
+                if (tags[i] == tag || tags[i] == globalTag) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int update(final long address, final long physicalAddress, final MappedMemoryRange range, final boolean global) {
+            final int set = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SETS - 1)) << TLB_WAYS_LOG2;
+            for (int i = set + TLB_WAYS - 1; i > set; i--) {
+                tags[i] = tags[i - 1];
+                offsets[i] = offsets[i - 1];
+                physicalPages[i] = physicalPages[i - 1];
+                devices[i] = devices[i - 1];
+                hosts[i] = hosts[i - 1];
+                breakpoints[i] = breakpoints[i - 1];
+                codePages[i] = codePages[i - 1];
+            }
+
+            tags[set] = (address & ~R5.PAGE_ADDRESS_MASK) | getContextTag(global);
+            offsets[set] = physicalAddress - address - range.start;
+            physicalPages[set] = physicalAddress & ~R5.PAGE_ADDRESS_MASK;
+            devices[set] = range.device;
+            hosts[set] = getHostAddress(physicalAddress, range);
+            breakpoints[set] = null;
+            codePages[set] = null;
+
+            return set;
+        }
+
+        private static long getHostAddress(final long physicalAddress, final MappedMemoryRange range) {
+            if (range.device instanceof final UnsafeMemory memory) {
+                final long pageOffset = (physicalAddress & ~R5.PAGE_ADDRESS_MASK) - range.start;
+                final long address = memory.getAddress();
+                if (address != 0 && pageOffset >= 0 && pageOffset + (1 << R5.PAGE_ADDRESS_SHIFT) <= memory.getLength()) {
+                    return address + pageOffset;
+                }
+            }
+            return 0;
+        }
+
+        private long getContextTag(final boolean global) {
+            return global ? (context & ~TLB_CONTEXT_ASID_MASK) | TLB_CONTEXT_GLOBAL : context;
+        }
+
+        public int findSuperpage(final long address) {
+            final long globalContext = (context & ~TLB_CONTEXT_ASID_MASK) | TLB_CONTEXT_GLOBAL;
+            for (int i = 0; i < superpageCount; i++) {
+                final long page = address & ~superpageMasks[i];
+                if ((page | context) == superpageTags[i] || (page | globalContext) == superpageTags[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public void updateSuperpage(final long address, final long physicalAddress, final int shift, final boolean global) {
+            final int index;
+            if (superpageCount < TLB_SUPERPAGES) {
+                index = superpageCount++;
+            } else {
+                index = superpageNext;
+                superpageNext = (superpageNext + 1) % TLB_SUPERPAGES;
+            }
+
+            final long mask = (1L << shift) - 1;
+            superpageTags[index] = (address & ~mask) | getContextTag(global);
+            superpageMasks[index] = mask;
+            superpageAddresses[index] = physicalAddress & ~mask;
+        }
+
+        public void flush() {
+            // Only reset the tags, which we use to check if an entry is applicable.
+            Arrays.fill(tags, -1);
+            superpageCount = 0;
+            superpageNext = 0;
+            hasSuperpageEntries = false;
+        }
+
+        public void flush(final long address) {
+            final long page = address & ~R5.PAGE_ADDRESS_MASK;
+            final int set = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SETS - 1)) << TLB_WAYS_LOG2;
+            for (int i = set; i < set + TLB_WAYS; i++) {
+                if (tags[i] != -1 && (tags[i] & ~R5.PAGE_ADDRESS_MASK) == page) {
+                    tags[i] = -1;
+                }
+            }
+        }
+
+        public void flush(final long address, final int asid) {
+            final long tag = address & ~R5.PAGE_ADDRESS_MASK;
+            final int set = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SETS - 1)) << TLB_WAYS_LOG2;
+            for (int i = set; i < set + TLB_WAYS; i++) {
+                if (tags[i] != -1 && (tags[i] & ~(R5.PAGE_ADDRESS_MASK & ~(TLB_CONTEXT_GLOBAL | TLB_CONTEXT_ASID_MASK))) == (tag | asid)) {
+                    tags[i] = -1;
+                }
+            }
+        }
+
+        public void flushPhysicalPage(final long physicalPage) {
+            for (int i = 0; i < TLB_SIZE; i++) {
+                if (tags[i] != -1 && physicalPages[i] == physicalPage) {
+                    tags[i] = -1;
+                }
+            }
+        }
+
+        public void flushAsid(final int asid) {
+            for (int i = 0; i < TLB_SIZE; i++) {
+                if (tags[i] != -1 && isInAddressSpace(tags[i], asid)) {
+                    tags[i] = -1;
+                }
+            }
+
+            for (int i = superpageCount - 1; i >= 0; i--) {
+                if (isInAddressSpace(superpageTags[i], asid)) {
+                    superpageCount--;
+                    superpageTags[i] = superpageTags[superpageCount];
+                    superpageMasks[i] = superpageMasks[superpageCount];
+                    superpageAddresses[i] = superpageAddresses[superpageCount];
+                    superpageNext = 0;
+                }
+            }
+        }
+
+        private static boolean isInAddressSpace(final long tag, final int asid) {
+            return (tag & (TLB_CONTEXT_GLOBAL | TLB_CONTEXT_ASID_MASK)) == asid;
+        }
+    }
+
+    /**
+     * Caches non-leaf page table entries, i.e. the addresses of the tables of lower levels, so that TLB misses
+     * can skip the upper levels of the page table walk.
+     * <p>
+     * Entries are keyed by the root of the page table, the level of the entry and the part of the virtual address
+     * used to index this and all upper levels. The pages holding the entries are tracked, so stores to them can
+     * invalidate the cache.
+     */
+    private static final class PageWalkCache {
+        public final long[] roots = new long[PAGE_WALK_CACHE_SIZE]; // Address of the root table and number of levels.
+        public final int[] levels = new int[PAGE_WALK_CACHE_SIZE]; // Level of the cached entry, 0 if unused.
+        public final long[] prefixes = new long[PAGE_WALK_CACHE_SIZE]; // Virtual address shifted to the entry's level.
+        public final long[] tables = new long[PAGE_WALK_CACHE_SIZE]; // Address of the next level's table.
+        public final boolean[] globals = new boolean[PAGE_WALK_CACHE_SIZE]; // Whether the entry or one above was global.
+        public final LongOpenHashSet pages = new LongOpenHashSet(); // Physical pages holding cached entries.
+
+        public int find(final long root, final int level, final long prefix) {
+            final int index = getIndex(level, prefix);
+            if (levels[index] == level && prefixes[index] == prefix && roots[index] == root) {
+                return index;
+            }
+            return -1;
+        }
+
+        public void update(final long root, final int level, final long prefix, final long table, final boolean global) {
+            final int index = getIndex(level, prefix);
+            roots[index] = root;
+            levels[index] = level;
+            prefixes[index] = prefix;
+            tables[index] = table;
+            globals[index] = global;
+        }
+
+        /**
+         * Starts tracking stores to a page holding non-leaf entries.
+         *
+         * @param page the physical address of the page.
+         * @return {@code true} if the page was not tracked before.
+         */
+        public boolean addPage(final long page) {
+            return pages.add(page);
+        }
+
+        /**
+         * Resets the cache if it tracks too many pages. Only ever growing the set of pages would make stores to
+         * pages that stopped holding page tables slow for good. Called before walks, because entries depend on
+         * the pages of all levels above them being tracked.
+         */
+        public void trim() {
+            if (pages.size() >= PAGE_WALK_CACHE_MAX_PAGES) {
+                clear();
+            }
+        }
+
+        /**
+         * Flushes the cache if the specified physical address is in a page holding cached entries.
+         *
+         * @param physicalAddress the physical address being written to.
+         * @return {@code true} if the address is in a page holding page table entries.
+         */
+        public boolean invalidate(final long physicalAddress) {
+            if (pages.contains(physicalAddress & ~R5.PAGE_ADDRESS_MASK)) {
+                flush();
+                return true;
+            }
+            return false;
+        }
+
+        public void flush() {
+            Arrays.fill(levels, 0);
+        }
+
+        public void clear() {
+            flush();
+            pages.clear();
+        }
+
+        private static int getIndex(final int level, final long prefix) {
+            return (int) (prefix * 4 + level) & (PAGE_WALK_CACHE_SIZE - 1);
+        }
+    }
+
+    private static final class CodePage {
+        public int generation;
+        public int hotness;
+        public int invalidations;
+        public byte[] entryCounts; // Trace entry counts per 16bit aligned address in the page, while compiling.
+        public CompiledBlock[] blocks; // Compiled blocks per 16bit aligned address in the page, once the page is hot.
+        public volatile boolean written; // Set when written to by another thread, handled on next trace entry.
+        public short[] handlers; // Pre-decoded handler indices per 16bit aligned address in the page, once the page is warm.
+        public long[] operands; // Pre-decoded packed operands per 16bit aligned address in the page, once the page is warm.
+        public int decodedXlen; // The xlen the pre-decoded instructions were decoded for.
+
+        public void invalidate() {
+            if (blocks != null || handlers != null) {
+                reset();
+                invalidations++;
+            }
+        }
+
+        public void reset() {
+            hotness = 0;
+            entryCounts = null;
+            blocks = null;
+            handlers = null;
+            operands = null;
+        }
+    }
+
+    /**
+     * Base class for blocks compiled by the {@link R5BlockCompiler}.
+     * <p>
+     * Compiled blocks run a sequence of instructions and update the program counter after, so callers
+     * simply return to the main loop after running a block.
+     */
+    private abstract static class CompiledBlock {
+        public final int xlen;
+        private final int[] offsets; // Offsets of instructions in the block relative to its start.
+        private final int[] instructions; // Instructions in the block, for illegal instruction exceptions.
+
+        CompiledBlock(final int xlen, final int[] offsets, final int[] instructions) {
+            this.xlen = xlen;
+            this.offsets = offsets;
+            this.instructions = instructions;
+        }
+
+        abstract void execute(final R5CPUTemplate cpu, final long pc);
+
+        final void handleIllegalInstruction(final R5CPUTemplate cpu, final long pc, final int index) {
+            cpu.pc = pc + offsets[index];
+            cpu.raiseException(R5.EXCEPTION_ILLEGAL_INSTRUCTION, instructions[index]);
+        }
+
+        final void handleMemoryAccessException(final R5CPUTemplate cpu, final long pc, final int index, final R5MemoryAccessException e) {
+            cpu.pc = pc + offsets[index];
+            cpu.raiseException(e.getType(), e.getAddress());
+        }
+    }
+
+    /**
+     * Runs recognized loops filling or copying memory in bulk where possible, and otherwise the block
+     * compiled for the start of the loop, which runs a single iteration.
+     */
+    private static final class MemoryLoopBlock extends CompiledBlock {
+        private final R5MemoryLoop loop;
+        private final CompiledBlock block;
+
+        MemoryLoopBlock(final R5MemoryLoop loop, final CompiledBlock block) {
+            super(block.xlen, block.offsets, block.instructions);
+            this.loop = loop;
+            this.block = block;
+        }
+
+        @Override
+        void execute(final R5CPUTemplate cpu, final long pc) {
+            if (!cpu.runMemoryLoop(loop)) {
+                block.execute(cpu, pc);
+            }
+        }
+    }
+
+    /**
+     * Runs the block compiled for the start of a recognized spin loop, and flags the hart as spinning
+     * when the registers written by the loop keep their values over two consecutive iterations.
+     */
+    private static final class SpinLoopBlock extends CompiledBlock {
+        private final R5SpinLoop loop;
+        private final CompiledBlock block;
+        private final long[] values;
+        private boolean hasValues;
+
+        SpinLoopBlock(final R5SpinLoop loop, final CompiledBlock block) {
+            super(block.xlen, block.offsets, block.instructions);
+            this.loop = loop;
+            this.block = block;
+            this.values = new long[loop.registers().length];
+        }
+
+        @Override
+        void execute(final R5CPUTemplate cpu, final long pc) {
+            block.execute(cpu, pc);
+            if (cpu.pc != pc) { // Left the loop.
+                hasValues = false;
+                return;
+            }
+
+            boolean isUnchanged = hasValues;
+            final int[] registers = loop.registers();
+            for (int i = 0; i < registers.length; i++) {
+                final long value = cpu.x[registers[i]];
+                if (value != values[i]) {
+                    values[i] = value;
+                    isUnchanged = false;
+                }
+            }
+            hasValues = true;
+
+            if (isUnchanged) {
+                cpu.spinning = true;
+            }
+        }
+    }
+
+    /**
+     * The memory access exception a hart raises for all its faults, see {@link #memoryAccessException(long, int)}.
+     */
+    private static final class ReusedMemoryAccessException extends R5MemoryAccessException {
+        public ReusedMemoryAccessException() {
+            super(0, 0);
+        }
+
+        public ReusedMemoryAccessException update(final long address, final int type) {
+            set(address, type);
+            return this;
+        }
     }
 
     private final class DebugInterface implements CPUDebugInterface {
@@ -3475,6 +4935,7 @@ final class R5CPUTemplate implements R5CPU {
 
         @Override
         public void step() {
+            processMemoryDisposals();
             interpret(true, true);
         }
 
@@ -3487,11 +4948,11 @@ final class R5CPUTemplate implements R5CPU {
         public byte[] loadDebug(final long address, final int size) throws R5MemoryAccessException {
             final byte[] mem = new byte[size];
             if (size == 0) return mem;
-            TLBEntry entry = getPageDebug(address, MemoryAccessType.LOAD);
+            DebugPage page = getPageDebug(address, MemoryAccessType.LOAD);
             int i = 0;
             while (true) {
                 try {
-                    mem[i] = (byte) entry.device.load((int) (address + i + entry.toOffset), 0);
+                    mem[i] = (byte) page.device().load((int) (address + i + page.toOffset()), 0);
                 } catch (final MemoryAccessException e) {
                     // Partial reads are okay
                     return Arrays.copyOf(mem, i);
@@ -3499,7 +4960,7 @@ final class R5CPUTemplate implements R5CPU {
                 i++;
                 if (i == size) break;
                 if (((address + i) & R5.PAGE_ADDRESS_MASK) == 0) {
-                    entry = getPageDebug(address + i, MemoryAccessType.LOAD);
+                    page = getPageDebug(address + i, MemoryAccessType.LOAD);
                 }
             }
             return mem;
@@ -3507,18 +4968,20 @@ final class R5CPUTemplate implements R5CPU {
 
         @Override
         public int storeDebug(final long address, final byte[] data) throws R5MemoryAccessException {
-            TLBEntry entry = getPageDebug(address, MemoryAccessType.STORE);
+            invalidateCompiledBlocks(); // The debugger may be patching code.
+
+            DebugPage page = getPageDebug(address, MemoryAccessType.STORE);
             int i = 0;
             while (true) {
                 try {
-                    entry.device.store((int) (address + i + entry.toOffset), data[i], 0);
+                    page.device().store((int) (address + i + page.toOffset()), data[i], 0);
                 } catch (final MemoryAccessException e) {
                     return i;
                 }
                 i++;
                 if (i == data.length) break;
                 if (((address + i) & R5.PAGE_ADDRESS_MASK) == 0) {
-                    entry = getPageDebug(address + i, MemoryAccessType.STORE);
+                    page = getPageDebug(address + i, MemoryAccessType.STORE);
                 }
             }
             return i;
@@ -3540,12 +5003,12 @@ final class R5CPUTemplate implements R5CPU {
         public void addBreakpoint(final long address) {
             breakpoints.add(address);
 
-            final TLBEntry entry = tryGetTLBEntry(address, MemoryAccessType.FETCH);
-            if (entry != null) {
-                if (entry.breakpoints == null) {
-                    entry.breakpoints = new LongOpenHashSet();
+            final int entry = fetchTLB.find(address);
+            if (entry >= 0) {
+                if (fetchTLB.breakpoints[entry] == null) {
+                    fetchTLB.breakpoints[entry] = new LongOpenHashSet();
                 }
-                entry.breakpoints.add(address);
+                fetchTLB.breakpoints[entry].add(address);
             }
         }
 
@@ -3553,9 +5016,9 @@ final class R5CPUTemplate implements R5CPU {
         public void removeBreakpoint(final long address) {
             breakpoints.remove(address);
 
-            final TLBEntry entry = tryGetTLBEntry(address, MemoryAccessType.FETCH);
-            if (entry != null && entry.breakpoints != null) {
-                entry.breakpoints.remove(address);
+            final int entry = fetchTLB.find(address);
+            if (entry >= 0 && fetchTLB.breakpoints[entry] != null) {
+                fetchTLB.breakpoints[entry].remove(address);
             }
         }
 
@@ -3564,10 +5027,15 @@ final class R5CPUTemplate implements R5CPU {
          * 1. Need to bypass access protection, particularly the R/W bits
          * 2. Would like to avoid modifying CPU state as much as possible, including TLB entries.
          */
-        private TLBEntry getPageDebug(final long address, final MemoryAccessType accessType) throws R5MemoryAccessException {
-            final TLBEntry entry = tryGetTLBEntry(address, accessType);
-            if (entry != null) {
-                return entry;
+        private DebugPage getPageDebug(final long address, final MemoryAccessType accessType) throws R5MemoryAccessException {
+            final TLB tlb = switch (accessType) {
+                case LOAD -> loadTLB;
+                case STORE -> storeTLB;
+                case FETCH -> fetchTLB;
+            };
+            final int entry = tlb.find(address);
+            if (entry >= 0) {
+                return new DebugPage(tlb.devices[entry], tlb.offsets[entry]);
             } else {
                 final long physicalAddress = getPhysicalAddress(address, accessType, true);
                 final MappedMemoryRange range = physicalMemory.getMemoryRange(physicalAddress);
@@ -3575,25 +5043,8 @@ final class R5CPUTemplate implements R5CPU {
                     throw getPageFaultException(accessType, address);
                 }
 
-                // We return a fake TLB entry to avoid modifying the TLB
-                return updateTLBEntry(new TLBEntry(), address, physicalAddress, range);
-            }
-        }
-
-        @Nullable
-        private TLBEntry tryGetTLBEntry(final long address, final MemoryAccessType accessType) {
-            final TLBEntry[] tlb = switch (accessType) {
-                case LOAD -> loadTLB;
-                case STORE -> storeTLB;
-                case FETCH -> fetchTLB;
-            };
-            final int index = (int) ((address >>> R5.PAGE_ADDRESS_SHIFT) & (TLB_SIZE - 1));
-            final long hash = address & ~R5.PAGE_ADDRESS_MASK;
-            final TLBEntry entry = tlb[index];
-            if (entry.hash == hash) {
-                return entry;
-            } else {
-                return null;
+                // We don't add an entry to avoid modifying the TLB.
+                return new DebugPage(range.device, physicalAddress - address - range.start);
             }
         }
 
@@ -3603,4 +5054,7 @@ final class R5CPUTemplate implements R5CPU {
             }
         }
     }
+
+    private record DebugPage(MemoryMappedDevice device, long toOffset) {
+    }
 }
@@ -0,0 +1,164 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.instruction.FieldPostprocessor;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionFieldMapping;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.ConstantInstructionArgument;
+import li.cil.sedna.instruction.argument.FieldInstructionArgument;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+
+/**
+ * Expands compressed instructions to their uncompressed equivalents.
+ * <p>
+ * The expansion table maps each 16-bit encoding to the encoding of the 32-bit instruction it is
+ * equivalent to, so the interpreter can run both through the same decoder leaves. To retain the
+ * size of the original instruction, the two lowest bits of expanded instructions are {@code 0b01}
+ * instead of {@code 0b11}. The decoder tree used to run expanded instructions is built from the
+ * uncompressed declarations only, ignoring their two lowest bits, see {@link #getExpandedDeclaration}.
+ * <p>
+ * Encodings that are illegal or reserved are mapped to an encoding the expanded decoder tree
+ * does not match, so that running them raises an illegal instruction exception.
+ */
+final class R5CompressedInstructions {
+    public static final int TABLE_SIZE = 1 << 16;
+
+    private static final int UNCOMPRESSED_MASK = 0b11;
+    private static final int EXPANDED_MARKER = 0b01;
+    private static final int NOP = 0b000000000000_00000_000_00000_0010011; // addi x0, x0, 0
+
+    public static boolean isCompressed(final int instruction) {
+        return (instruction & UNCOMPRESSED_MASK) != UNCOMPRESSED_MASK;
+    }
+
+    /**
+     * Creates the declaration used to decode expanded instructions in place of the specified uncompressed declaration.
+     *
+     * @param declaration the uncompressed declaration.
+     * @return the declaration ignoring the bits distinguishing expanded from uncompressed instructions.
+     */
+    public static InstructionDeclaration getExpandedDeclaration(final InstructionDeclaration declaration) {
+        return declaration.withPatternMask(~UNCOMPRESSED_MASK);
+    }
+
+    /**
+     * Creates the table mapping 16-bit encodings to the encodings of their 32-bit equivalents.
+     *
+     * @param declarations        all declarations, compressed and uncompressed.
+     * @param decoderTree         the decoder tree built from all declarations.
+     * @param expandedDecoderTree the decoder tree built from the expanded declarations.
+     * @return the expansion table.
+     * @throws IllegalArgumentException if a compressed instruction has no uncompressed equivalent.
+     */
+    public static int[] createExpansionTable(final List<InstructionDeclaration> declarations,
+                                             final AbstractDecoderTreeNode decoderTree,
+                                             final AbstractDecoderTreeNode expandedDecoderTree) {
+        final HashMap<String, ArrayList<InstructionDeclaration>> uncompressedDeclarationsByName = new HashMap<>();
+        for (final InstructionDeclaration declaration : declarations) {
+            if (declaration.type == InstructionType.REGULAR && !isCompressed(declaration.pattern)) {
+                uncompressedDeclarationsByName.computeIfAbsent(declaration.name, name -> new ArrayList<>()).add(declaration);
+            }
+        }
+
+        final int illegal = findIllegalEncoding(expandedDecoderTree);
+
+        final int[] table = new int[TABLE_SIZE];
+        for (int instruction = 0; instruction < TABLE_SIZE; instruction++) {
+            if (!isCompressed(instruction)) {
+                table[instruction] = illegal; // Never looked up.
+                continue;
+            }
+
+            final InstructionDeclaration declaration = decoderTree.query(instruction);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                table[instruction] = illegal;
+            } else if (declaration.type == InstructionType.NOP) {
+                table[instruction] = toExpanded(NOP);
+            } else {
+                final OptionalInt expanded = expand(declaration, instruction, decoderTree,
+                    uncompressedDeclarationsByName.getOrDefault(declaration.name, new ArrayList<>()));
+                if (expanded.isEmpty()) {
+                    throw new IllegalArgumentException(String.format(
+                        "Compressed instruction [%s] (line %d) has no uncompressed equivalent for encoding [%04x].",
+                        declaration.displayName, declaration.lineNumber, instruction));
+                }
+
+                table[instruction] = toExpanded(expanded.getAsInt());
+            }
+        }
+
+        return table;
+    }
+
+    private static int toExpanded(final int instruction) {
+        return (instruction & ~UNCOMPRESSED_MASK) | EXPANDED_MARKER;
+    }
+
+    private static int findIllegalEncoding(final AbstractDecoderTreeNode expandedDecoderTree) {
+        for (int opcode = 0; opcode < 1 << 5; opcode++) {
+            final int instruction = toExpanded(opcode << 2);
+            final InstructionDeclaration declaration = expandedDecoderTree.query(instruction);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                return instruction;
+            }
+        }
+
+        throw new IllegalArgumentException("No unused opcode for marking illegal compressed instructions.");
+    }
+
+    private static OptionalInt expand(final InstructionDeclaration declaration, final int instruction,
+                                      final AbstractDecoderTreeNode decoderTree,
+                                      final List<InstructionDeclaration> candidates) {
+        final HashMap<String, Integer> values = new HashMap<>();
+        declaration.arguments.forEach((name, argument) -> values.put(name, argument.get(instruction)));
+
+        for (final InstructionDeclaration candidate : candidates) {
+            final OptionalInt encoded = encode(candidate, values);
+            if (encoded.isPresent() && decoderTree.query(encoded.getAsInt()) == candidate) {
+                return encoded;
+            }
+        }
+
+        return OptionalInt.empty();
+    }
+
+    private static OptionalInt encode(final InstructionDeclaration declaration, final Map<String, Integer> values) {
+        if (!declaration.arguments.keySet().equals(values.keySet())) {
+            return OptionalInt.empty();
+        }
+
+        int instruction = declaration.pattern;
+        for (final Map.Entry<String, InstructionArgument> entry : declaration.arguments.entrySet()) {
+            final InstructionArgument argument = entry.getValue();
+            if (argument instanceof final FieldInstructionArgument fieldArgument) {
+                if (fieldArgument.postprocessor != FieldPostprocessor.NONE) {
+                    return OptionalInt.empty();
+                }
+
+                final int value = values.get(entry.getKey());
+                for (final InstructionFieldMapping mapping : fieldArgument.mappings) {
+                    final int width = mapping.srcMSB - mapping.srcLSB + 1;
+                    instruction |= ((value >>> mapping.dstLSB) & ((1 << width) - 1)) << mapping.srcLSB;
+                }
+            } else if (!(argument instanceof ConstantInstructionArgument)) {
+                return OptionalInt.empty();
+            }
+        }
+
+        // Fields may not be able to represent the value, e.g. when it is out of range, and constants must match.
+        for (final Map.Entry<String, InstructionArgument> entry : declaration.arguments.entrySet()) {
+            if (entry.getValue().get(instruction) != values.get(entry.getKey())) {
+                return OptionalInt.empty();
+            }
+        }
+
+        return OptionalInt.of(instruction);
+    }
+}
@@ -0,0 +1,138 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import li.cil.sedna.api.device.EventScheduler;
+import li.cil.sedna.api.device.ScheduledSteppable;
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * Event queue used by {@link R5Board} to step devices only when they need it.
+ * <p>
+ * Time is taken from the real-time counter of the board, i.e. the cycle counter of its first hart.
+ * Rescheduling a device does not remove its previous event from the queue. Instead, events
+ * are skipped when they are polled if they no longer match the time the device is scheduled at.
+ */
+final class R5EventScheduler implements EventScheduler {
+    private final RealTimeCounter rtc;
+    @Nullable private final Runnable listener;
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final Reference2LongOpenHashMap<ScheduledSteppable> scheduledTimes = new Reference2LongOpenHashMap<>();
+    private final Reference2LongOpenHashMap<ScheduledSteppable> lastStepTimes = new Reference2LongOpenHashMap<>();
+
+    private final ArrayList<ScheduledSteppable> dueDevices = new ArrayList<>();
+    private final IntArrayList dueCycles = new IntArrayList();
+
+    public R5EventScheduler(final RealTimeCounter rtc) {
+        this(rtc, null);
+    }
+
+    /**
+     * Creates a new scheduler notifying the specified listener whenever an event is scheduled
+     * that is due before all other pending events.
+     * <p>
+     * The listener is not run while holding the lock of this scheduler, and may be run on any thread.
+     *
+     * @param rtc      the counter providing the current time.
+     * @param listener the listener to notify.
+     */
+    public R5EventScheduler(final RealTimeCounter rtc, @Nullable final Runnable listener) {
+        this.rtc = rtc;
+        this.listener = listener;
+    }
+
+    @Override
+    public long getTime() {
+        return rtc.getTime();
+    }
+
+    @Override
+    public void schedule(final ScheduledSteppable device, final long time) {
+        synchronized (this) {
+            if (scheduledTimes.containsKey(device) && scheduledTimes.getLong(device) <= time) {
+                return;
+            }
+
+            scheduledTimes.put(device, time);
+            final Event event = new Event(time, device);
+            queue.add(event);
+            if (queue.peek() != event) {
+                return;
+            }
+        }
+
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * The time of the next pending event.
+     *
+     * @return the time of the next event, or {@link Long#MAX_VALUE} if there is none.
+     */
+    public synchronized long getNextEventTime() {
+        final Event event = queue.peek();
+        return event != null ? event.time : Long.MAX_VALUE;
+    }
+
+    /**
+     * Steps all devices whose events are due at the current time.
+     * <p>
+     * Devices are passed the number of cycles since they were last stepped, limited to the
+     * specified maximum. They are stepped outside the lock of this scheduler, so that they may
+     * schedule new events, and so that devices may call this scheduler while holding their own locks.
+     *
+     * @param maxCycles the maximum number of cycles to step devices by.
+     */
+    public void stepDueDevices(final int maxCycles) {
+        final long time = getTime();
+        synchronized (this) {
+            while (!queue.isEmpty() && queue.peek().time <= time) {
+                final Event event = queue.poll();
+                if (!scheduledTimes.containsKey(event.device) || scheduledTimes.getLong(event.device) != event.time) {
+                    continue; // Stale, device was rescheduled or already stepped.
+                }
+
+                scheduledTimes.removeLong(event.device);
+
+                final int cycles;
+                if (lastStepTimes.containsKey(event.device)) {
+                    cycles = (int) Math.max(1, Math.min(maxCycles, time - lastStepTimes.getLong(event.device)));
+                } else {
+                    cycles = maxCycles;
+                }
+                lastStepTimes.put(event.device, time);
+
+                dueDevices.add(event.device);
+                dueCycles.add(cycles);
+            }
+        }
+
+        try {
+            for (int i = 0; i < dueDevices.size(); i++) {
+                dueDevices.get(i).step(dueCycles.getInt(i));
+            }
+        } finally {
+            dueDevices.clear();
+            dueCycles.clear();
+        }
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+        scheduledTimes.clear();
+        lastStepTimes.clear();
+    }
+
+    private record Event(long time, ScheduledSteppable device) implements Comparable<Event> {
+        @Override
+        public int compareTo(final Event other) {
+            return Long.compare(time, other.time);
+        }
+    }
+}
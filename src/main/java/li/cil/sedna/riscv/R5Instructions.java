@@ -4,7 +4,10 @@ import li.cil.sedna.instruction.InstructionDeclaration;
 import li.cil.sedna.instruction.InstructionDeclarationLoader;
 import li.cil.sedna.instruction.InstructionDefinition;
 import li.cil.sedna.instruction.InstructionDefinitionLoader;
+import li.cil.sedna.instruction.InstructionFusion;
+import li.cil.sedna.instruction.InstructionFusionLoader;
 import li.cil.sedna.instruction.decoder.DecoderTree;
+import li.cil.sedna.instruction.decoder.DispatchTable;
 import li.cil.sedna.instruction.decoder.PrintStreamDecoderTreeVisitor;
 import li.cil.sedna.instruction.decoder.tree.AbstractDecoderTreeNode;
 import org.apache.logging.log4j.LogManager;
@@ -19,8 +22,8 @@ import java.util.HashMap;
 public final class R5Instructions {
     private static final Logger LOGGER = LogManager.getLogger();
 
-    public static final Spec RV32 = new Spec("/riscv/instructions32.txt");
-    public static final Spec RV64 = new Spec("/riscv/instructions64.txt");
+    public static final Spec RV32 = new Spec("/riscv/instructions32.txt", "/riscv/fusions.txt");
+    public static final Spec RV64 = new Spec("/riscv/instructions64.txt", "/riscv/fusions.txt");
 
     @Nullable
     public static InstructionDefinition getDefinition(final InstructionDeclaration declaration) {
@@ -35,8 +38,15 @@ public final class R5Instructions {
         private final ArrayList<InstructionDeclaration> DECLARATIONS = new ArrayList<>();
         private final HashMap<InstructionDeclaration, InstructionDefinition> DEFINITIONS = new HashMap<>();
         private final AbstractDecoderTreeNode DECODER_TREE;
+        private final AbstractDecoderTreeNode EXPANDED_DECODER_TREE;
+        private final int[] COMPRESSED_EXPANSION_TABLE;
+        private final DispatchTable DISPATCH_TABLE;
 
         public Spec(final String instructionsFile) {
+            this(instructionsFile, null);
+        }
+
+        public Spec(final String instructionsFile, @Nullable final String fusionsFile) {
             try (final InputStream stream = R5Instructions.class.getResourceAsStream(instructionsFile)) {
                 if (stream == null) {
                     throw new IOException("File not found.");
@@ -52,7 +62,35 @@ public final class R5Instructions {
                 LOGGER.error("Failed loading RISC-V instruction definitions.", e);
             }
 
+            final ArrayList<InstructionFusion> fusions = new ArrayList<>();
+            if (fusionsFile != null) {
+                try (final InputStream stream = R5Instructions.class.getResourceAsStream(fusionsFile)) {
+                    if (stream == null) {
+                        throw new IOException("File not found.");
+                    }
+                    fusions.addAll(InstructionFusionLoader.load(stream));
+                } catch (final Throwable e) {
+                    LOGGER.error("Failed loading RISC-V instruction fusions.", e);
+                }
+            }
+
             DECODER_TREE = DecoderTree.create(DECLARATIONS);
+
+            final ArrayList<InstructionDeclaration> expandedDeclarations = new ArrayList<>();
+            for (final InstructionDeclaration declaration : DECLARATIONS) {
+                if (!R5CompressedInstructions.isCompressed(declaration.pattern)) {
+                    final InstructionDeclaration expandedDeclaration = R5CompressedInstructions.getExpandedDeclaration(declaration);
+                    expandedDeclarations.add(expandedDeclaration);
+                    final InstructionDefinition definition = DEFINITIONS.get(declaration);
+                    if (definition != null) {
+                        DEFINITIONS.put(expandedDeclaration, definition);
+                    }
+                }
+            }
+            EXPANDED_DECODER_TREE = DecoderTree.create(expandedDeclarations);
+            COMPRESSED_EXPANSION_TABLE = R5CompressedInstructions.createExpansionTable(DECLARATIONS, DECODER_TREE, EXPANDED_DECODER_TREE);
+
+            DISPATCH_TABLE = new DispatchTable(DECLARATIONS, fusions, DECODER_TREE, DEFINITIONS::get);
         }
 
         public ArrayList<InstructionDeclaration> getDeclarations() {
@@ -67,6 +105,31 @@ public final class R5Instructions {
         public AbstractDecoderTreeNode getDecoderTree() {
             return DECODER_TREE;
         }
+
+        /**
+         * The decoder tree for instructions expanded using the {@link #getCompressedExpansionTable()}.
+         * <p>
+         * This only contains uncompressed instructions and ignores the two lowest bits of instructions,
+         * which for expanded instructions indicate the size of the original instruction.
+         *
+         * @return the decoder tree for expanded instructions.
+         */
+        public AbstractDecoderTreeNode getExpandedDecoderTree() {
+            return EXPANDED_DECODER_TREE;
+        }
+
+        /**
+         * Maps each 16-bit compressed instruction to its expanded, uncompressed equivalent.
+         *
+         * @return the expansion table, indexed by the compressed instruction.
+         */
+        public int[] getCompressedExpansionTable() {
+            return COMPRESSED_EXPANSION_TABLE;
+        }
+
+        public DispatchTable getDispatchTable() {
+            return DISPATCH_TABLE;
+        }
     }
 
     public static void main(final String[] args) {
@@ -0,0 +1,121 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.elf.ELF;
+import li.cil.sedna.elf.ELFLoader;
+import li.cil.sedna.elf.ELFParser;
+import li.cil.sedna.elf.ISA;
+import li.cil.sedna.elf.ProgramHeader;
+import li.cil.sedna.elf.ProgramHeaderType;
+import li.cil.sedna.memory.MemoryMaps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Loads Linux kernels into memory, for booting them without firmware.
+ * <p>
+ * Supports flat {@code Image} files, as described in the kernel's {@code Documentation/riscv/boot-image-header.rst},
+ * as well as ELF {@code vmlinux} files. Kernels are relocatable, so both are loaded at the specified address, which
+ * must be aligned to 2 MiB on RV64. ELF files are loaded keeping the offsets of their segments relative to the first
+ * one, like QEMU does, since their segments are linked at the kernel's virtual addresses.
+ */
+final class R5LinuxKernel {
+    private static final int ELF_MAGIC = 0x464C457F; // "\x7FELF"
+
+    private static final int IMAGE_HEADER_SIZE = 64;
+    private static final int IMAGE_SIZE_OFFSET = 16;
+    private static final int IMAGE_MAGIC_OFFSET = 48;
+    private static final long IMAGE_MAGIC = 0x5643534952L; // "RISCV\0\0\0", deprecated
+    private static final int IMAGE_MAGIC2_OFFSET = 56;
+    private static final int IMAGE_MAGIC2 = 0x05435352; // "RSC\x05"
+
+    /**
+     * The location of a loaded kernel.
+     *
+     * @param entryPoint the address to start executing the kernel at.
+     * @param end        the end of the memory used by the kernel, exclusive, including uninitialized data.
+     */
+    public record Layout(long entryPoint, long end) { }
+
+    /**
+     * Loads the specified kernel into memory.
+     * <p>
+     * The position of the buffer is not changed.
+     *
+     * @param memoryMap the memory map to load the kernel into.
+     * @param address   the address to load the kernel at.
+     * @param limit     the end of the memory the kernel may use, exclusive.
+     * @param kernel    the contents of the kernel file.
+     * @return the location of the loaded kernel.
+     * @throws IllegalArgumentException if the kernel is an ELF file that is not a RISC-V executable.
+     * @throws IllegalStateException    if the kernel does not fit into the available memory.
+     * @throws MemoryAccessException    when an exception is thrown while accessing memory.
+     */
+    public static Layout load(final MemoryMap memoryMap, final long address, final long limit, final ByteBuffer kernel) throws IllegalArgumentException, IllegalStateException, MemoryAccessException {
+        final ByteBuffer data = kernel.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() >= 4 && data.getInt(data.position()) == ELF_MAGIC) {
+            return loadELF(memoryMap, address, limit, data);
+        } else {
+            return loadImage(memoryMap, address, limit, data);
+        }
+    }
+
+    private static Layout loadImage(final MemoryMap memoryMap, final long address, final long limit, final ByteBuffer data) throws IllegalStateException, MemoryAccessException {
+        long size = data.remaining();
+        if (data.remaining() >= IMAGE_HEADER_SIZE) {
+            final int header = data.position();
+            if (data.getInt(header + IMAGE_MAGIC2_OFFSET) == IMAGE_MAGIC2 ||
+                data.getLong(header + IMAGE_MAGIC_OFFSET) == IMAGE_MAGIC) {
+                // The effective size includes the kernel's uninitialized data, which it clears itself.
+                size = Math.max(size, data.getLong(header + IMAGE_SIZE_OFFSET));
+            }
+        }
+
+        checkFits(address + size, limit);
+        MemoryMaps.store(memoryMap, address, data);
+
+        return new Layout(address, address + size);
+    }
+
+    private static Layout loadELF(final MemoryMap memoryMap, final long address, final long limit, final ByteBuffer data) throws IllegalArgumentException, IllegalStateException, MemoryAccessException {
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        final ELF elf = ELFParser.parse(bytes);
+        if (!elf.is(ISA.RISC_V)) {
+            throw new IllegalArgumentException("Kernel is not a RISC-V executable.");
+        }
+
+        long base = -1, end = 0;
+        for (final ProgramHeader header : elf.programHeaderTable) {
+            if (header.is(ProgramHeaderType.PT_LOAD)) {
+                if (Long.compareUnsigned(header.virtualAddress, base) < 0) {
+                    base = header.virtualAddress;
+                }
+                if (Long.compareUnsigned(header.virtualAddress + header.sizeInMemory, end) > 0) {
+                    end = header.virtualAddress + header.sizeInMemory;
+                }
+            }
+        }
+        if (base == -1) {
+            throw new IllegalArgumentException("Kernel has no loadable segments.");
+        }
+
+        checkFits(address + (end - base), limit);
+
+        for (final ProgramHeader header : elf.programHeaderTable) {
+            if (header.is(ProgramHeaderType.PT_LOAD)) {
+                ELFLoader.loadSegment(header, memoryMap, address + (header.virtualAddress - base));
+            }
+        }
+
+        return new Layout(address + (elf.entryPoint - base), address + (end - base));
+    }
+
+    private static void checkFits(final long end, final long limit) throws IllegalStateException {
+        if (Long.compareUnsigned(end, limit) > 0) {
+            throw new IllegalStateException("Not enough memory to fit kernel.");
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Describes a guest loop filling or copying memory, such as the inner loops of {@code memset} and {@code memcpy},
+ * so that iterations of it can be run as bulk operations on host memory.
+ * <p>
+ * Recognized loops consist of loads from a source pointer, stores to a destination pointer, one increment of
+ * each pointer by the same stride, and a conditional branch back to the start of the loop comparing one of the
+ * pointers to a bound. Each iteration must store to all bytes in {@code [destination, destination + stride)}.
+ * In fill loops, all stores write the same register, which is not changed by the loop. In copy loops, each store
+ * writes the value loaded earlier in the same iteration at the same offset from the source pointer, and each loaded
+ * value must be stored before its register is loaded again. For example:
+ * <pre>
+ * loop: ld   t0, 0(a1)
+ *       ld   t1, 8(a1)
+ *       sd   t0, 0(a0)
+ *       sd   t1, 8(a0)
+ *       addi a1, a1, 16
+ *       addi a0, a0, 16
+ *       bltu a1, a2, loop
+ * </pre>
+ *
+ * @param instructionCount the number of instructions run per iteration, including the branch.
+ * @param stride           the number of bytes each pointer advances per iteration.
+ * @param destination      the register holding the destination pointer.
+ * @param source           the register holding the source pointer, or {@code -1} for fill loops.
+ * @param value            the register holding the value stored by fill loops, or {@code -1} for copy loops.
+ * @param valueSizeLog2    the size of the stores of fill loops, log2.
+ * @param branch           the condition of the branch closing the loop.
+ * @param counter          the pointer register compared by the branch.
+ * @param bound            the register the pointer is compared to by the branch.
+ */
+public record R5MemoryLoop(int instructionCount, int stride,
+                           int destination, int source, int value, int valueSizeLog2,
+                           Branch branch, int counter, int bound) {
+    private static final int MAX_INSTRUCTIONS = 40;
+
+    public enum Branch {
+        BNE,
+        BLT,
+        BLTU,
+    }
+
+    /**
+     * Tries to recognize a loop starting at the specified offset in the specified device.
+     *
+     * @param spec   the instruction set to decode instructions with.
+     * @param xlen   the XLEN the loop is run with.
+     * @param device the device to read instructions from.
+     * @param offset the offset of the first instruction of the loop in the device.
+     * @param end    the offset in the device up to which instructions may be read (exclusive).
+     * @return the loop, or {@code null} if there is no supported loop at the location.
+     */
+    @Nullable
+    public static R5MemoryLoop recognize(final R5Instructions.Spec spec,
+                                         final int xlen,
+                                         final MemoryMappedDevice device,
+                                         final int offset,
+                                         final int end) {
+        final String addImmediateName = xlen == R5.XLEN_32 ? "ADDIW" : "ADDI"; // RV32 ADDI is declared as ADDIW.
+
+        final ArrayList<Access> accesses = new ArrayList<>();
+        final int[] increments = new int[32];
+        final int[] incrementPositions = new int[32];
+
+        int position = offset;
+        for (int count = 1; count <= MAX_INSTRUCTIONS; count++) {
+            final int inst;
+            try {
+                inst = loadInstruction(device, position, end);
+            } catch (final MemoryAccessException e) {
+                return null;
+            }
+
+            final InstructionDeclaration declaration = spec.getDecoderTree().query(inst);
+            if (declaration == null || declaration.type != InstructionType.REGULAR) {
+                return null;
+            }
+
+            final int loadSizeLog2 = getLoadSizeLog2(declaration.name);
+            final int storeSizeLog2 = getStoreSizeLog2(declaration.name);
+            if (loadSizeLog2 >= 0) {
+                accesses.add(new Access(false, get(declaration, "rs1", inst), get(declaration, "rd", inst),
+                    get(declaration, "imm", inst), loadSizeLog2, count));
+            } else if (storeSizeLog2 >= 0) {
+                accesses.add(new Access(true, get(declaration, "rs1", inst), get(declaration, "rs2", inst),
+                    get(declaration, "imm", inst), storeSizeLog2, count));
+            } else if (addImmediateName.equals(declaration.name)) {
+                final int rd = get(declaration, "rd", inst);
+                final int imm = get(declaration, "imm", inst);
+                if (rd == 0 || rd != get(declaration, "rs1", inst) || imm <= 0 || increments[rd] != 0) {
+                    return null;
+                }
+                increments[rd] = imm;
+                incrementPositions[rd] = count;
+            } else {
+                final Branch branch = getBranch(declaration.name);
+                if (branch == null || get(declaration, "imm", inst) != offset - position) {
+                    return null;
+                }
+
+                return analyze(count, branch, get(declaration, "rs1", inst), get(declaration, "rs2", inst),
+                    accesses, increments, incrementPositions);
+            }
+
+            position += declaration.size;
+        }
+
+        return null;
+    }
+
+    /**
+     * Computes the number of iterations left until the loop exits, including the one about to start.
+     *
+     * @param counter the value of the counter register at the start of the iteration.
+     * @param bound   the value of the bound register.
+     * @param xlen    the XLEN the loop is run with.
+     * @return the number of iterations left, or {@code -1} if the loop does not end before the counter wraps around.
+     */
+    public long getRemainingIterations(long counter, long bound, final int xlen) {
+        final long maxValue;
+        switch (branch) {
+            case BNE -> {
+                long distance = bound - counter;
+                if (xlen == R5.XLEN_32) {
+                    distance &= 0xFFFFFFFFL;
+                }
+                if (distance == 0 || Long.remainderUnsigned(distance, stride) != 0) {
+                    return -1;
+                }
+                return Long.divideUnsigned(distance, stride);
+            }
+            case BLT -> {
+                if (xlen == R5.XLEN_32) {
+                    counter = (int) counter;
+                    bound = (int) bound;
+                    maxValue = Integer.MAX_VALUE;
+                } else {
+                    maxValue = Long.MAX_VALUE;
+                }
+                if (counter >= bound) {
+                    return 1;
+                }
+            }
+            case BLTU -> {
+                if (xlen == R5.XLEN_32) {
+                    counter &= 0xFFFFFFFFL;
+                    bound &= 0xFFFFFFFFL;
+                    maxValue = 0xFFFFFFFFL;
+                } else {
+                    maxValue = -1L;
+                }
+                if (Long.compareUnsigned(counter, bound) >= 0) {
+                    return 1;
+                }
+            }
+            default -> throw new IllegalStateException();
+        }
+
+        // The counter must not wrap around before reaching the bound.
+        if (Long.compareUnsigned(bound, maxValue - (stride - 1)) > 0) {
+            return -1;
+        }
+        return Long.divideUnsigned(bound - counter - 1, stride) + 1;
+    }
+
+    @Nullable
+    private static R5MemoryLoop analyze(final int instructionCount, final Branch branch, int counter, int bound,
+                                        final ArrayList<Access> accesses,
+                                        final int[] increments, final int[] incrementPositions) {
+        int stride = 0;
+        int destination = -1, source = -1;
+        for (final Access access : accesses) {
+            if (access.isStore) {
+                if (destination >= 0 && access.base != destination) {
+                    return null;
+                }
+                destination = access.base;
+            } else {
+                if (source >= 0 && access.base != source) {
+                    return null;
+                }
+                source = access.base;
+            }
+        }
+
+        // Exactly the pointers must be incremented, all by the same stride.
+        for (int register = 0; register < increments.length; register++) {
+            final boolean isPointer = register == destination || register == source;
+            if (isPointer != (increments[register] != 0)) {
+                return null;
+            }
+            if (isPointer) {
+                if (stride != 0 && increments[register] != stride) {
+                    return null;
+                }
+                stride = increments[register];
+            }
+        }
+        if (destination < 0 || destination == source) {
+            return null;
+        }
+
+        // BNE is symmetric, allow the pointer in either operand.
+        if (branch == Branch.BNE && increments[counter] == 0) {
+            final int swap = counter;
+            counter = bound;
+            bound = swap;
+        }
+        if (increments[counter] == 0 || increments[bound] != 0) {
+            return null;
+        }
+
+        int value = -1, valueSizeLog2 = -1;
+        final ArrayList<Access> stores = new ArrayList<>();
+        final Access[] lastLoads = new Access[32];
+        final boolean[] isUnstored = new boolean[32];
+        for (final Access access : accesses) {
+            final int offset = access.offset + (incrementPositions[access.base] < access.position ? stride : 0);
+            if (!access.isStore) {
+                // Loaded values may only be used as values of stores.
+                if (access.register == 0 || increments[access.register] != 0 || access.register == bound) {
+                    return null;
+                }
+                // Every loaded value must be stored before the register is loaded again, so we don't skip
+                // loads, which might read memory outside the source range.
+                if (isUnstored[access.register]) {
+                    return null;
+                }
+                isUnstored[access.register] = true;
+                lastLoads[access.register] = new Access(false, access.base, access.register, offset, access.sizeLog2, access.position);
+                continue;
+            }
+
+            if (source >= 0) {
+                final Access load = lastLoads[access.register];
+                if (load == null || load.offset != offset || load.sizeLog2 != access.sizeLog2) {
+                    return null;
+                }
+                isUnstored[access.register] = false;
+            } else {
+                if (value >= 0 && (access.register != value || access.sizeLog2 != valueSizeLog2)) {
+                    return null;
+                }
+                if (increments[access.register] != 0) {
+                    return null;
+                }
+                value = access.register;
+                valueSizeLog2 = access.sizeLog2;
+            }
+
+            stores.add(new Access(true, access.base, access.register, offset, access.sizeLog2, access.position));
+        }
+
+        // Same for values loaded at the end of the iteration.
+        for (final boolean unstored : isUnstored) {
+            if (unstored) {
+                return null;
+            }
+        }
+
+        // Stores must write each byte in [destination, destination + stride) exactly once.
+        final Access[] sortedStores = stores.toArray(Access[]::new);
+        Arrays.sort(sortedStores, Comparator.comparingInt(Access::offset));
+        int covered = 0;
+        for (final Access store : sortedStores) {
+            if (store.offset != covered) {
+                return null;
+            }
+            covered += 1 << store.sizeLog2;
+        }
+        if (covered != stride) {
+            return null;
+        }
+
+        return new R5MemoryLoop(instructionCount, stride, destination, source, value, valueSizeLog2, branch, counter, bound);
+    }
+
+    static int loadInstruction(final MemoryMappedDevice device, final int position, final int end) throws MemoryAccessException {
+        if (Integer.compareUnsigned(position + 2, end) > 0) {
+            throw new MemoryAccessException();
+        }
+        int inst = (short) device.load(position, Sizes.SIZE_16_LOG2) & 0xFFFF;
+        if ((inst & 0b11) == 0b11) {
+            if (Integer.compareUnsigned(position + 4, end) > 0) {
+                throw new MemoryAccessException();
+            }
+            inst |= (int) (device.load(position + 2, Sizes.SIZE_16_LOG2) << 16);
+        }
+        return inst;
+    }
+
+    static int get(final InstructionDeclaration declaration, final String name, final int inst) {
+        final InstructionArgument argument = declaration.arguments.get(name);
+        return argument != null ? argument.get(inst) : 0;
+    }
+
+    private static int getLoadSizeLog2(final String name) {
+        return switch (name) {
+            case "LB", "LBU" -> Sizes.SIZE_8_LOG2;
+            case "LH", "LHU" -> Sizes.SIZE_16_LOG2;
+            case "LW", "LWU" -> Sizes.SIZE_32_LOG2;
+            case "LD" -> Sizes.SIZE_64_LOG2;
+            default -> -1;
+        };
+    }
+
+    private static int getStoreSizeLog2(final String name) {
+        return switch (name) {
+            case "SB" -> Sizes.SIZE_8_LOG2;
+            case "SH" -> Sizes.SIZE_16_LOG2;
+            case "SW" -> Sizes.SIZE_32_LOG2;
+            case "SD" -> Sizes.SIZE_64_LOG2;
+            default -> -1;
+        };
+    }
+
+    @Nullable
+    private static Branch getBranch(final String name) {
+        return switch (name) {
+            case "BNE" -> Branch.BNE;
+            case "BLT" -> Branch.BLT;
+            case "BLTU" -> Branch.BLTU;
+            default -> null;
+        };
+    }
+
+    private record Access(boolean isStore, int base, int register, int offset, int sizeLog2, int position) {
+    }
+}
@@ -0,0 +1,115 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionType;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * Describes a guest loop waiting for memory to change, such as a spinlock or a loop polling a device register.
+ * <p>
+ * Recognized loops consist only of loads, instructions computing values from registers, fences and pause hints,
+ * followed by a conditional branch back to the start of the loop. Each register read by the loop must either be
+ * written earlier in the same iteration, or not be written by the loop at all. So the values of the registers
+ * written by the loop only depend on the values loaded in the iteration. If these values are the same after two
+ * consecutive iterations, the loop will keep running without making progress until memory is changed by another
+ * hart or device, or an interrupt is raised. For example:
+ * <pre>
+ * loop: lw   t0, 0(a0)
+ *       pause
+ *       bnez t0, loop
+ * </pre>
+ *
+ * @param instructionCount the number of instructions run per iteration, including the branch.
+ * @param registers        the registers written by the loop.
+ */
+public record R5SpinLoop(int instructionCount, int[] registers) {
+    private static final int MAX_INSTRUCTIONS = 16;
+
+    private static final Set<String> LOADS = Set.of("LB", "LBU", "LH", "LHU", "LW", "LWU", "LD");
+    private static final Set<String> BRANCHES = Set.of("BEQ", "BNE", "BLT", "BGE", "BLTU", "BGEU");
+    private static final Set<String> HINTS = Set.of("FENCE", "PAUSE");
+    private static final Set<String> COMPUTATIONS = Set.of(
+        "LUI", "AUIPC",
+        "ADDI", "SLTI", "SLTIU", "XORI", "ORI", "ANDI", "SLLI", "SRLI", "SRAI",
+        "ADD", "SUB", "SLL", "SLT", "SLTU", "XOR", "SRL", "SRA", "OR", "AND",
+        "ADDIW", "SLLIW", "SRLIW", "SRAIW", "ADDW", "SUBW", "SLLW", "SRLW", "SRAW",
+        "MUL", "MULH", "MULHSU", "MULHU", "MULW");
+
+    /**
+     * Tries to recognize a loop starting at the specified offset in the specified device.
+     *
+     * @param spec   the instruction set to decode instructions with.
+     * @param device the device to read instructions from.
+     * @param offset the offset of the first instruction of the loop in the device.
+     * @param end    the offset in the device up to which instructions may be read (exclusive).
+     * @return the loop, or {@code null} if there is no supported loop at the location.
+     */
+    @Nullable
+    public static R5SpinLoop recognize(final R5Instructions.Spec spec,
+                                       final MemoryMappedDevice device,
+                                       final int offset,
+                                       final int end) {
+        int written = 0, readBeforeWritten = 0;
+
+        int position = offset;
+        for (int count = 1; count <= MAX_INSTRUCTIONS; count++) {
+            final int inst;
+            try {
+                inst = R5MemoryLoop.loadInstruction(device, position, end);
+            } catch (final MemoryAccessException e) {
+                return null;
+            }
+
+            final InstructionDeclaration declaration = spec.getDecoderTree().query(inst);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                return null;
+            }
+
+            if (declaration.type == InstructionType.REGULAR) {
+                final String name = declaration.name;
+                final boolean isBranch = BRANCHES.contains(name);
+                if (!isBranch && !LOADS.contains(name) && !COMPUTATIONS.contains(name) && !HINTS.contains(name)) {
+                    return null;
+                }
+
+                for (final String argument : new String[]{"rs1", "rs2"}) {
+                    if (declaration.arguments.containsKey(argument)) {
+                        readBeforeWritten |= (1 << R5MemoryLoop.get(declaration, argument, inst)) & ~written;
+                    }
+                }
+
+                if (isBranch) {
+                    if (R5MemoryLoop.get(declaration, "imm", inst) != offset - position) {
+                        return null;
+                    }
+
+                    // Registers carried over from one iteration to the next, e.g. counters, mean progress.
+                    written &= ~1; // x0
+                    if ((readBeforeWritten & written) != 0) {
+                        return null;
+                    }
+
+                    final int[] registers = new int[Integer.bitCount(written)];
+                    for (int i = 0, register = 0; register < 32; register++) {
+                        if ((written & (1 << register)) != 0) {
+                            registers[i++] = register;
+                        }
+                    }
+                    return new R5SpinLoop(count, registers);
+                }
+
+                if (declaration.arguments.containsKey("rd")) {
+                    written |= 1 << R5MemoryLoop.get(declaration, "rd", inst);
+                }
+            }
+
+            position += declaration.size;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,366 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.serial.UART16550A;
+import li.cil.sedna.gdbstub.CPUDebugInterface;
+import li.cil.sedna.riscv.exception.R5SystemPowerOffException;
+import li.cil.sedna.riscv.exception.R5SystemResetException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Implementation of the RISC-V supervisor binary interface (SBI), used by {@link R5Board} to run supervisor
+ * software such as Linux without machine mode firmware.
+ * <p>
+ * Implements version 2.0 of the specification, with the base, timer (TIME), inter-processor interrupt (IPI),
+ * remote fence (RFENCE), hart state management (HSM), system reset (SRST) and debug console (DBCN) extensions,
+ * as well as the legacy console functions. The console is the standard output device of the board, if it is
+ * a {@link UART16550A}, driven through its registers, like firmware would.
+ */
+final class R5SupervisorBinaryInterface implements R5SupervisorCallHandler {
+    private static final int SPEC_VERSION = 2 << 24; // Major version in bits [30:24], minor in [23:0].
+    private static final int IMPLEMENTATION_ID = 0x5EDA; // Not a registered implementation ID.
+    private static final int IMPLEMENTATION_VERSION = 1;
+
+    // Extension IDs, passed in a7.
+    private static final int EXT_LEGACY_CONSOLE_PUTCHAR = 0x01;
+    private static final int EXT_LEGACY_CONSOLE_GETCHAR = 0x02;
+    private static final int EXT_BASE = 0x10;
+    private static final int EXT_TIME = 0x54494D45; // "TIME"
+    private static final int EXT_IPI = 0x735049; // "sPI"
+    private static final int EXT_RFENCE = 0x52464E43; // "RFNC"
+    private static final int EXT_HSM = 0x48534D; // "HSM"
+    private static final int EXT_SRST = 0x53525354; // "SRST"
+    private static final int EXT_DBCN = 0x4442434E; // "DBCN"
+
+    // Function IDs, passed in a6.
+    private static final int BASE_GET_SPEC_VERSION = 0;
+    private static final int BASE_GET_IMPL_ID = 1;
+    private static final int BASE_GET_IMPL_VERSION = 2;
+    private static final int BASE_PROBE_EXTENSION = 3;
+    private static final int BASE_GET_MVENDORID = 4;
+    private static final int BASE_GET_MARCHID = 5;
+    private static final int BASE_GET_MIMPID = 6;
+
+    private static final int TIME_SET_TIMER = 0;
+
+    private static final int IPI_SEND_IPI = 0;
+
+    private static final int RFENCE_REMOTE_FENCE_I = 0;
+    private static final int RFENCE_REMOTE_SFENCE_VMA = 1;
+    private static final int RFENCE_REMOTE_SFENCE_VMA_ASID = 2;
+
+    private static final int HSM_HART_START = 0;
+    private static final int HSM_HART_STOP = 1;
+    private static final int HSM_HART_GET_STATUS = 2;
+
+    private static final int SRST_SYSTEM_RESET = 0;
+
+    private static final int DBCN_CONSOLE_WRITE = 0;
+    private static final int DBCN_CONSOLE_READ = 1;
+    private static final int DBCN_CONSOLE_WRITE_BYTE = 2;
+
+    // Error codes, returned in a0.
+    private static final int SUCCESS = 0;
+    private static final int ERR_FAILED = -1;
+    private static final int ERR_NOT_SUPPORTED = -2;
+    private static final int ERR_INVALID_PARAM = -3;
+    private static final int ERR_ALREADY_AVAILABLE = -6;
+
+    // Hart states, as returned by HSM_HART_GET_STATUS.
+    private static final int HART_STARTED = 0;
+    private static final int HART_STOPPED = 1;
+
+    private static final int SYSTEM_RESET_SHUTDOWN = 0;
+    private static final int SYSTEM_RESET_COLD_REBOOT = 1;
+    private static final int SYSTEM_RESET_WARM_REBOOT = 2;
+
+    // Registers of the 8250 compatible console.
+    private static final int UART_RBR_OFFSET = 0;
+    private static final int UART_THR_OFFSET = 0;
+    private static final int UART_LSR_OFFSET = 5;
+    private static final int UART_LSR_DR = 1 << 0;
+    private static final int UART_LSR_THRE = 1 << 5;
+
+    private static final int A0 = 10, A1 = 11, A2 = 12, A6 = 16, A7 = 17;
+
+    private final MemoryMap memoryMap;
+    private final List<R5CPU> harts;
+    private final Supplier<MemoryMappedDevice> console;
+
+    /**
+     * Creates a new SBI implementation for the specified harts.
+     *
+     * @param memoryMap the memory map to read and write console data from and to.
+     * @param harts     the harts of the system, indexed by their hart id.
+     * @param console   provides the device to use as the console, may provide {@code null}.
+     */
+    public R5SupervisorBinaryInterface(final MemoryMap memoryMap, final List<R5CPU> harts, final Supplier<MemoryMappedDevice> console) {
+        this.memoryMap = memoryMap;
+        this.harts = harts;
+        this.console = console;
+    }
+
+    @Override
+    public boolean handleSupervisorCall(final R5CPU hart, final long[] registers) {
+        final int function = (int) registers[A6];
+        switch ((int) registers[A7]) {
+            // Legacy extensions only return a value in a0, and leave a1 untouched.
+            case EXT_LEGACY_CONSOLE_PUTCHAR -> {
+                if (putConsoleByte(hart, (byte) registers[A0])) {
+                    registers[A0] = SUCCESS;
+                }
+            }
+            case EXT_LEGACY_CONSOLE_GETCHAR -> registers[A0] = getConsoleByte();
+
+            case EXT_BASE -> handleBase(function, registers);
+            case EXT_TIME -> handleTime(hart, function, registers);
+            case EXT_IPI -> handleIPI(function, registers);
+            case EXT_RFENCE -> handleRemoteFence(hart, function, registers);
+            case EXT_HSM -> handleHartStateManagement(hart, function, registers);
+            case EXT_SRST -> handleSystemReset(function, registers);
+            case EXT_DBCN -> handleDebugConsole(hart, function, registers);
+            default -> error(registers, ERR_NOT_SUPPORTED);
+        }
+        return true;
+    }
+
+    private void handleBase(final int function, final long[] registers) {
+        switch (function) {
+            case BASE_GET_SPEC_VERSION -> success(registers, SPEC_VERSION);
+            case BASE_GET_IMPL_ID -> success(registers, IMPLEMENTATION_ID);
+            case BASE_GET_IMPL_VERSION -> success(registers, IMPLEMENTATION_VERSION);
+            case BASE_PROBE_EXTENSION -> success(registers, switch ((int) registers[A0]) {
+                case EXT_LEGACY_CONSOLE_PUTCHAR, EXT_LEGACY_CONSOLE_GETCHAR, EXT_BASE, EXT_TIME, EXT_IPI,
+                    EXT_RFENCE, EXT_HSM, EXT_SRST, EXT_DBCN -> 1;
+                default -> 0;
+            });
+            case BASE_GET_MVENDORID, BASE_GET_MARCHID, BASE_GET_MIMPID -> success(registers, 0);
+            default -> error(registers, ERR_NOT_SUPPORTED);
+        }
+    }
+
+    private void handleTime(final R5CPU hart, final int function, final long[] registers) {
+        if (function != TIME_SET_TIMER) {
+            error(registers, ERR_NOT_SUPPORTED);
+            return;
+        }
+
+        // Harts run with Sstc enabled, so the timer is stimecmp, which also clears a pending timer interrupt.
+        hart.setSupervisorTimer(registers[A0]);
+        success(registers, 0);
+    }
+
+    private void handleIPI(final int function, final long[] registers) {
+        if (function != IPI_SEND_IPI) {
+            error(registers, ERR_NOT_SUPPORTED);
+            return;
+        }
+
+        final List<R5CPU> targets = selectHarts(registers[A0], registers[A1]);
+        if (targets == null) {
+            error(registers, ERR_INVALID_PARAM);
+            return;
+        }
+
+        for (final R5CPU target : targets) {
+            target.raiseInterrupts(R5.SSIP_MASK);
+        }
+        success(registers, 0);
+    }
+
+    private void handleRemoteFence(final R5CPU hart, final int function, final long[] registers) {
+        // Harts always drop all their cached instructions and translations, which satisfies all of these.
+        // Other functions are for hypervisor fences.
+        if (function != RFENCE_REMOTE_FENCE_I && function != RFENCE_REMOTE_SFENCE_VMA && function != RFENCE_REMOTE_SFENCE_VMA_ASID) {
+            error(registers, ERR_NOT_SUPPORTED);
+            return;
+        }
+
+        final List<R5CPU> targets = selectHarts(registers[A0], registers[A1]);
+        if (targets == null) {
+            error(registers, ERR_INVALID_PARAM);
+            return;
+        }
+
+        hart.fenceHarts(targets);
+        success(registers, 0);
+    }
+
+    private void handleHartStateManagement(final R5CPU hart, final int function, final long[] registers) {
+        switch (function) {
+            case HSM_HART_START -> {
+                final R5CPU target = getHart(registers[A0]);
+                if (target == null) {
+                    error(registers, ERR_INVALID_PARAM);
+                    return;
+                }
+
+                // Synchronize, so harts starting the same hart concurrently don't both succeed.
+                synchronized (this) {
+                    if (!target.isStopped()) {
+                        error(registers, ERR_ALREADY_AVAILABLE);
+                        return;
+                    }
+                    target.startSupervisor(registers[A1], target.getHartId(), registers[A2]);
+                }
+                success(registers, 0);
+            }
+            case HSM_HART_STOP -> {
+                // Does not return to the caller, the hart only runs again once it is started.
+                hart.stop();
+                success(registers, 0);
+            }
+            case HSM_HART_GET_STATUS -> {
+                final R5CPU target = getHart(registers[A0]);
+                if (target == null) {
+                    error(registers, ERR_INVALID_PARAM);
+                    return;
+                }
+                success(registers, target.isStopped() ? HART_STOPPED : HART_STARTED);
+            }
+            default -> error(registers, ERR_NOT_SUPPORTED); // Suspending harts.
+        }
+    }
+
+    private void handleSystemReset(final int function, final long[] registers) {
+        if (function != SRST_SYSTEM_RESET) {
+            error(registers, ERR_NOT_SUPPORTED);
+            return;
+        }
+
+        switch ((int) registers[A0]) {
+            case SYSTEM_RESET_SHUTDOWN -> throw new R5SystemPowerOffException();
+            case SYSTEM_RESET_COLD_REBOOT, SYSTEM_RESET_WARM_REBOOT -> throw new R5SystemResetException();
+            default -> error(registers, ERR_INVALID_PARAM);
+        }
+    }
+
+    private void handleDebugConsole(final R5CPU hart, final int function, final long[] registers) {
+        if (function == DBCN_CONSOLE_WRITE_BYTE) {
+            if (putConsoleByte(hart, (byte) registers[A0])) {
+                success(registers, 0);
+            }
+            return;
+        }
+
+        if (function != DBCN_CONSOLE_WRITE && function != DBCN_CONSOLE_READ) {
+            error(registers, ERR_NOT_SUPPORTED);
+            return;
+        }
+
+        final UART16550A device = getConsole();
+        if (device == null) {
+            error(registers, ERR_FAILED);
+            return;
+        }
+
+        // Writes and reads stop early once the console can't take more or has no more data, which is
+        // reported via the number of bytes returned. The upper half of the address in a2 is only used
+        // on RV32, which our boards don't run supervisor software in.
+        final long length = registers[A0];
+        final long address = registers[A1];
+        long count = 0;
+        try {
+            if (function == DBCN_CONSOLE_WRITE) {
+                while (count < length && (device.load(UART_LSR_OFFSET, Sizes.SIZE_8_LOG2) & UART_LSR_THRE) != 0) {
+                    device.store(UART_THR_OFFSET, memoryMap.load(address + count, Sizes.SIZE_8_LOG2), Sizes.SIZE_8_LOG2);
+                    count++;
+                }
+            } else {
+                while (count < length && (device.load(UART_LSR_OFFSET, Sizes.SIZE_8_LOG2) & UART_LSR_DR) != 0) {
+                    memoryMap.store(address + count, device.load(UART_RBR_OFFSET, Sizes.SIZE_8_LOG2), Sizes.SIZE_8_LOG2);
+                    count++;
+                }
+            }
+        } catch (final MemoryAccessException e) {
+            error(registers, ERR_INVALID_PARAM);
+            return;
+        }
+        success(registers, count);
+    }
+
+    private static void success(final long[] registers, final long value) {
+        registers[A0] = SUCCESS;
+        registers[A1] = value;
+    }
+
+    private static void error(final long[] registers, final int error) {
+        registers[A0] = error;
+    }
+
+    /**
+     * Collects the harts selected by the specified hart mask.
+     *
+     * @param mask the mask of selected harts, bit {@code i} selecting the hart with id {@code base + i}.
+     * @param base the hart id the mask starts at, or {@code -1} to select all harts.
+     * @return the selected harts, or {@code null} if some selected hart does not exist.
+     */
+    @Nullable
+    private List<R5CPU> selectHarts(final long mask, final long base) {
+        if (base == -1) {
+            return harts;
+        }
+
+        final List<R5CPU> result = new ArrayList<>(Long.bitCount(mask));
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            final R5CPU hart = getHart(base + Long.numberOfTrailingZeros(bits));
+            if (hart == null) {
+                return null;
+            }
+            result.add(hart);
+        }
+        return result;
+    }
+
+    @Nullable
+    private R5CPU getHart(final long hartId) {
+        return hartId >= 0 && hartId < harts.size() ? harts.get((int) hartId) : null;
+    }
+
+    @Nullable
+    private UART16550A getConsole() {
+        return console.get() instanceof final UART16550A device ? device : null;
+    }
+
+    /**
+     * Writes a byte to the console, for calls blocking until the byte is written.
+     * <p>
+     * If the console cannot take the byte yet, the hart is made to run the call again, so it waits without
+     * blocking the thread stepping it, like firmware polling the console would. Bytes written without a
+     * console are dropped.
+     *
+     * @param hart  the hart making the call.
+     * @param value the byte to write.
+     * @return {@code true} if the call completed, {@code false} if it will be run again.
+     */
+    private boolean putConsoleByte(final R5CPU hart, final byte value) {
+        final UART16550A device = getConsole();
+        if (device == null) {
+            return true;
+        }
+
+        if ((device.load(UART_LSR_OFFSET, Sizes.SIZE_8_LOG2) & UART_LSR_THRE) == 0) {
+            final CPUDebugInterface debugInterface = hart.getDebugInterface();
+            debugInterface.setProgramCounter(debugInterface.getProgramCounter() - 4); // Back to the ECALL.
+            return false;
+        }
+
+        device.store(UART_THR_OFFSET, value, Sizes.SIZE_8_LOG2);
+        return true;
+    }
+
+    private int getConsoleByte() {
+        final UART16550A device = getConsole();
+        if (device != null && (device.load(UART_LSR_OFFSET, Sizes.SIZE_8_LOG2) & UART_LSR_DR) != 0) {
+            return (int) device.load(UART_RBR_OFFSET, Sizes.SIZE_8_LOG2) & 0xFF;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,22 @@
+package li.cil.sedna.riscv;
+
+/**
+ * Handles environment calls made from supervisor mode, i.e. calls to the supervisor binary interface (SBI),
+ * in place of machine mode firmware.
+ *
+ * @see R5CPU#setSupervisorCallHandler(R5SupervisorCallHandler)
+ */
+@FunctionalInterface
+public interface R5SupervisorCallHandler {
+    /**
+     * Handles an {@code ECALL} made from supervisor mode.
+     * <p>
+     * This is called on the thread stepping the hart. The program counter of the hart already points
+     * to the instruction following the {@code ECALL} when this is called.
+     *
+     * @param hart      the hart making the call.
+     * @param registers the general purpose registers of the hart, holding arguments and receiving results.
+     * @return {@code true} if the call was handled, {@code false} to raise the exception as usual.
+     */
+    boolean handleSupervisorCall(R5CPU hart, long[] registers);
+}
@@ -6,23 +6,28 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import li.cil.ceres.api.Serialized;
 import li.cil.sedna.api.Interrupt;
 import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.EventScheduler;
 import li.cil.sedna.api.device.InterruptController;
 import li.cil.sedna.api.device.InterruptSource;
 import li.cil.sedna.api.device.MemoryMappedDevice;
-import li.cil.sedna.api.device.Steppable;
+import li.cil.sedna.api.device.ScheduledSteppable;
 import li.cil.sedna.api.device.rtc.RealTimeCounter;
 import li.cil.sedna.api.memory.MemoryAccessException;
 import li.cil.sedna.riscv.R5;
 
+import javax.annotation.Nullable;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * Implementation of a shared CLINT that is aware of one or more harts.
  * <p>
+ * When used with an {@link EventScheduler}, the CLINT schedules an event for the earliest
+ * pending timer deadline, instead of having to check the deadlines continuously.
+ * <p>
  * See: https://github.com/riscv/riscv-isa-sim/blob/master/riscv/clint.cc
  */
-public final class R5CoreLocalInterrupter implements Steppable, InterruptSource, MemoryMappedDevice {
+public final class R5CoreLocalInterrupter implements ScheduledSteppable, InterruptSource, MemoryMappedDevice {
     private static final int CLINT_SIP_BASE = 0x0000;
     private static final int CLINT_TIMECMP_BASE = 0x4000;
     private static final int CLINT_TIME_BASE = 0xBFF8;
@@ -32,6 +37,7 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
     private final Int2ObjectMap<Interrupt> msips = new Int2ObjectArrayMap<>();
     private final Int2ObjectMap<Interrupt> mtips = new Int2ObjectArrayMap<>();
     @Serialized private final Int2LongArrayMap mtimecmps = new Int2LongArrayMap();
+    @Nullable private EventScheduler scheduler;
 
     public R5CoreLocalInterrupter(final RealTimeCounter rtc) {
         this.rtc = rtc;
@@ -53,12 +59,23 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
 
     @Override
     public void step(final int cycles) {
-        checkTimeComparators(); // TODO Polling sucks.
+        checkTimeComparators();
+    }
+
+    @Override
+    public void setEventScheduler(@Nullable final EventScheduler scheduler) {
+        this.scheduler = scheduler;
+        checkTimeComparators();
     }
 
     @Override
     public Iterable<Interrupt> getInterrupts() {
-        return Stream.concat(msips.values().stream(), mtips.values().stream()).collect(Collectors.toList());
+        // Pairs of software and timer interrupt per hart, as expected for interrupts-extended.
+        return msips.keySet().intStream()
+            .sorted()
+            .boxed()
+            .flatMap(hartId -> Stream.of(msips.get((int) hartId), mtips.get((int) hartId)))
+            .collect(Collectors.toList());
     }
 
     @Override
@@ -132,6 +149,7 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
                         mtips.get(hartId).raiseInterrupt();
                     } else {
                         mtips.get(hartId).lowerInterrupt();
+                        scheduleTimeComparator(mtimecmp);
                     }
                 } else if ((offset & 0b111) == 4) {
                     long mtimecmp = mtimecmps.get(hartId);
@@ -142,6 +160,7 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
                         mtips.get(hartId).raiseInterrupt();
                     } else {
                         mtips.get(hartId).lowerInterrupt();
+                        scheduleTimeComparator(mtimecmp);
                     }
                 }
             }
@@ -157,7 +176,16 @@ public final class R5CoreLocalInterrupter implements Steppable, InterruptSource,
         mtimecmps.forEach((hartId, mtimecmp) -> {
             if (Long.compareUnsigned(mtimecmp, rtc.getTime()) <= 0) {
                 mtips.get((int) hartId).raiseInterrupt();
+            } else {
+                scheduleTimeComparator(mtimecmp);
             }
         });
     }
+
+    private void scheduleTimeComparator(final long mtimecmp) {
+        // Unset comparators are all ones, skip those and other deadlines not reachable by the scheduler's time.
+        if (scheduler != null && mtimecmp >= 0) {
+            scheduler.schedule(this, mtimecmp);
+        }
+    }
 }
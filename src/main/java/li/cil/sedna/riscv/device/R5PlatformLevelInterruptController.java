@@ -13,8 +13,8 @@ import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Implementation of a PLIC with 31 sources supporting a single hart. It provides external
- * interrupts for M and S levels.
+ * Implementation of a PLIC with 31 sources supporting one or more harts. It provides external
+ * interrupts for M and S levels, with one context per level and hart.
  * <p>
  * See: https://github.com/riscv/riscv-plic-spec/blob/master/riscv-plic.adoc
  * See: https://github.com/riscv/opensbi/blob/master/lib/utils/irqchip/plic.c
@@ -33,13 +33,12 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
 
     private static final int PLIC_SOURCE_COUNT = INTERRUPT_COUNT + 1; // Includes always off zero!
     private static final int PLIC_SOURCE_MASK = INTERRUPT_COUNT; // Only works if interrupt count is 2^n - 1.
-    private static final int PLIC_CONTEXT_COUNT = 2; // MEIP and SEIP for one hart.
+    private static final int PLIC_CONTEXTS_PER_HART = 2; // MEIP and SEIP.
     private static final int PLIC_MAX_PRIORITY = 7; // Number of priority level supported. Must have all bits set.
 
-    private final transient Interrupt meip = new Interrupt(R5.MEIP_SHIFT);
-    private final transient Interrupt seip = new Interrupt(R5.SEIP_SHIFT);
-    private final transient Interrupt[] interruptByContext = {meip, seip};
+    private final transient Interrupt[] interruptByContext;
 
+    private final int contextCount;
     private final int sourceWords; // Size of blocks holding flags for sources in words.
     private final int[] priorityBySource;
     private final int[] thresholdByContext;
@@ -48,9 +47,20 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
     private final int[] enabled; // Contiguous words for all sources and all contexts (c0:s0...c0:sN,...,cM:s0...cM:N)
 
     public R5PlatformLevelInterruptController() {
+        this(1);
+    }
+
+    public R5PlatformLevelInterruptController(final int hartCount) {
+        contextCount = hartCount * PLIC_CONTEXTS_PER_HART;
+        interruptByContext = new Interrupt[contextCount];
+        for (int hart = 0; hart < hartCount; hart++) {
+            interruptByContext[hart * PLIC_CONTEXTS_PER_HART] = new Interrupt(R5.MEIP_SHIFT);
+            interruptByContext[hart * PLIC_CONTEXTS_PER_HART + 1] = new Interrupt(R5.SEIP_SHIFT);
+        }
+
         sourceWords = (PLIC_SOURCE_COUNT + R5PlatformLevelInterruptController.INTERRUPT_COUNT) >>> 5;
         priorityBySource = new int[PLIC_SOURCE_COUNT];
-        thresholdByContext = new int[PLIC_CONTEXT_COUNT];
+        thresholdByContext = new int[contextCount];
         pending = new AtomicInteger[sourceWords];
         for (int i = 0; i < sourceWords; i++) {
             pending[i] = new AtomicInteger(0);
@@ -59,12 +69,16 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
         for (int i = 0; i < sourceWords; i++) {
             claimed[i] = new AtomicInteger(0);
         }
-        enabled = new int[sourceWords * PLIC_CONTEXT_COUNT];
+        enabled = new int[sourceWords * contextCount];
     }
 
     public void setHart(final InterruptController interruptController) {
-        for (final Interrupt interrupt : interruptByContext) {
-            interrupt.controller = interruptController;
+        setHart(0, interruptController);
+    }
+
+    public void setHart(final int hartId, final InterruptController interruptController) {
+        for (int i = 0; i < PLIC_CONTEXTS_PER_HART; i++) {
+            interruptByContext[hartId * PLIC_CONTEXTS_PER_HART + i].controller = interruptController;
         }
     }
 
@@ -98,7 +112,7 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
 
             final int word = (offset - PLIC_PENDING_BASE) >> 2;
             return pending[word].get();
-        } else if (offset >= PLIC_ENABLE_BASE && offset < PLIC_ENABLE_BASE + PLIC_CONTEXT_COUNT * PLIC_ENABLE_STRIDE) {
+        } else if (offset >= PLIC_ENABLE_BASE && offset < PLIC_ENABLE_BASE + contextCount * PLIC_ENABLE_STRIDE) {
             // base + 0x002000: Enable bits for sources 0-31 on context 0
             // base + 0x002004: Enable bits for sources 32-63 on context 0
             // ...
@@ -115,7 +129,7 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
             }
 
             return 0;
-        } else if (offset >= PLIC_CONTEXT_BASE && offset < PLIC_CONTEXT_BASE + PLIC_CONTEXT_COUNT * PLIC_CONTEXT_STRIDE) {
+        } else if (offset >= PLIC_CONTEXT_BASE && offset < PLIC_CONTEXT_BASE + contextCount * PLIC_CONTEXT_STRIDE) {
             // base + 0x200000: Priority threshold for context 0
             // base + 0x200004: Claim/complete for context 0
             // base + 0x200008: Reserved
@@ -155,7 +169,7 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
             final int source = ((offset - PLIC_PRIORITY_BASE) >> 2) + 1; // Plus one because we skip zero.
             priorityBySource[source] = intValue & PLIC_MAX_PRIORITY;
             updateInterrupts();
-        } else if (offset >= PLIC_ENABLE_BASE && offset < PLIC_ENABLE_BASE + PLIC_CONTEXT_COUNT * PLIC_ENABLE_STRIDE) {
+        } else if (offset >= PLIC_ENABLE_BASE && offset < PLIC_ENABLE_BASE + contextCount * PLIC_ENABLE_STRIDE) {
             // base + 0x002000: Enable bits for sources 0-31 on context 0
             // base + 0x002004: Enable bits for sources 32-63 on context 0
             // ...
@@ -170,7 +184,7 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
             if (word < sourceWords) {
                 enabled[context * sourceWords + word] = intValue;
             }
-        } else if (offset >= PLIC_CONTEXT_BASE && offset < PLIC_CONTEXT_BASE + PLIC_CONTEXT_COUNT * PLIC_CONTEXT_STRIDE) {
+        } else if (offset >= PLIC_CONTEXT_BASE && offset < PLIC_CONTEXT_BASE + contextCount * PLIC_CONTEXT_STRIDE) {
             // base + 0x200000: Priority threshold for context 0
             // base + 0x200004: Claim/complete for context 0
             // base + 0x200008: Reserved
@@ -258,7 +272,8 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
         }
     }
 
-    private int claim(final int context) {
+    // Synchronized since harts running in parallel may try to claim the same source.
+    private synchronized int claim(final int context) {
         int maxSource = 0;
         int maxPriority = thresholdByContext[context];
 
@@ -297,8 +312,9 @@ public class R5PlatformLevelInterruptController implements MemoryMappedDevice, I
         }
     }
 
-    private void updateInterrupts() {
-        for (int context = 0; context < PLIC_CONTEXT_COUNT; context++) {
+    // Synchronized so that updates from harts running in parallel are not applied out of order.
+    private synchronized void updateInterrupts() {
+        for (int context = 0; context < contextCount; context++) {
             if (hasPending(context)) {
                 interruptByContext[context].raiseInterrupt();
             } else {
@@ -1,5 +1,10 @@
 package li.cil.sedna.riscv.exception;
 
+/**
+ * Raised by instructions that are illegal in the current state of the hart.
+ * <p>
+ * Used for control flow in the interpreter, so it does not record a stack trace.
+ */
 public final class R5IllegalInstructionException extends Exception {
     private final int instruction;
 
@@ -8,7 +13,7 @@ public final class R5IllegalInstructionException extends Exception {
     }
 
     public R5IllegalInstructionException(final int instruction) {
-        super();
+        super(null, null, false, false);
         this.instruction = instruction;
     }
 
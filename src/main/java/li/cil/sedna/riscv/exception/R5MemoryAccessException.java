@@ -1,10 +1,31 @@
 package li.cil.sedna.riscv.exception;
 
-public final class R5MemoryAccessException extends Exception {
-    private final long address;
-    private final int type;
+/**
+ * Raised by memory accesses that fault, e.g. due to page faults or misaligned accesses.
+ * <p>
+ * Used for control flow in the interpreter, so it does not record a stack trace. To avoid allocations when raising
+ * traps, each hart reuses a single instance of a subclass for all its faults. The address and type of an instance
+ * raised by a hart change with the next fault on that hart, so callers must read them right away and must not
+ * retain the instance.
+ */
+public class R5MemoryAccessException extends Exception {
+    private long address;
+    private int type;
 
     public R5MemoryAccessException(final long address, final int type) {
+        super(null, null, false, false);
+        this.address = address;
+        this.type = type;
+    }
+
+    /**
+     * Changes the access this exception describes. Only for use by subclasses reusing their instances, before
+     * throwing them.
+     *
+     * @param address the address of the faulting access.
+     * @param type    the exception cause.
+     */
+    protected final void set(final long address, final int type) {
         this.address = address;
         this.type = type;
     }
@@ -6,6 +6,11 @@ import java.math.BigInteger;
  * Software implementation of double precision floating point operations according to IEEE754.
  * <p>
  * Unlike Java, this supports different rounding modes and exposes exceptions via a flags register.
+ * <p>
+ * For the common case of round to nearest, ties to even, basic arithmetic is performed using Java
+ * doubles, as long as the result is a normal number not too close to the subnormal range. Whether
+ * such a result is inexact is determined from the error term of the operation, which is exactly
+ * representable in that range. All other cases are handled in software.
  */
 public final class SoftDouble {
     public static final int FLAG_INEXACT = SoftFloat.FLAG_INEXACT; // Inexact.
@@ -48,6 +53,9 @@ public final class SoftDouble {
     private static final long QUIET_NAN_MASK = 1L << (MANTISSA_SIZE - 1);
     private static final long QUIET_NAN = (Integer.toUnsignedLong(EXPONENT_MASK) << MANTISSA_SIZE) | QUIET_NAN_MASK;
 
+    // Smallest exponent of results and dividends for which error terms cannot become subnormal.
+    private static final int FAST_PATH_MIN_EXPONENT = Double.MIN_EXPONENT + 2 * (MANTISSA_SIZE + 1);
+
     public final SoftFloat.Flags flags;
 
     public SoftDouble() {
@@ -93,6 +101,23 @@ public final class SoftDouble {
     }
 
     public long add(long a, long b, final int rm) {
+        if (rm == RM_RNE) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double r = x + y;
+            if (isFastPathResult(r)) {
+                if ((flags.value & FLAG_INEXACT) == 0) {
+                    // Knuth's TwoSum, error is the exact difference between x + y and r.
+                    final double yr = r - x;
+                    final double error = (x - (r - yr)) + (y - yr);
+                    if (error != 0) {
+                        flags.raise(FLAG_INEXACT);
+                    }
+                }
+                return Double.doubleToRawLongBits(r);
+            }
+        }
+
         // Make sure a is the larger of the two. This way we can unify NaN and Infinity detection.
         if ((a & ~SIGN_MASK) < (b & ~SIGN_MASK)) {
             final long tmp = a;
@@ -159,6 +184,18 @@ public final class SoftDouble {
     }
 
     public long mul(final long a, final long b, final int rm) {
+        if (rm == RM_RNE) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double r = x * y;
+            if (isFastPathResult(r)) {
+                if ((flags.value & FLAG_INEXACT) == 0 && Math.fma(x, y, -r) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -219,6 +256,15 @@ public final class SoftDouble {
     }
 
     public long muladd(final long a, final long b, final long c, final int rm) {
+        // There's no cheap way to get the error of a fused multiply-add, so only take the fast path if
+        // the inexact flag is already set. Which, being sticky, it usually is in numeric code.
+        if (rm == RM_RNE && (flags.value & FLAG_INEXACT) != 0) {
+            final double r = Math.fma(Double.longBitsToDouble(a), Double.longBitsToDouble(b), Double.longBitsToDouble(c));
+            if (isFastPathResult(r)) {
+                return Double.doubleToRawLongBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int signC = getSign(c);
@@ -373,6 +419,18 @@ public final class SoftDouble {
     }
 
     public long div(final long a, final long b, final int rm) {
+        if (rm == RM_RNE) {
+            final double x = Double.longBitsToDouble(a);
+            final double y = Double.longBitsToDouble(b);
+            final double r = x / y;
+            if (isFastPathResult(r) && isFastPathResult(x)) {
+                if ((flags.value & FLAG_INEXACT) == 0 && Math.fma(-r, y, x) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -436,6 +494,17 @@ public final class SoftDouble {
     }
 
     public long sqrt(final long a, final int rm) {
+        if (rm == RM_RNE) {
+            final double x = Double.longBitsToDouble(a);
+            if (x > 0 && isFastPathResult(x)) {
+                final double r = Math.sqrt(x);
+                if ((flags.value & FLAG_INEXACT) == 0 && Math.fma(r, r, -x) != 0) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Double.doubleToRawLongBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         int exponentA = getExponent(a);
         long mantissaA = getMantissa(a);
@@ -895,6 +964,12 @@ public final class SoftDouble {
         }
     }
 
+    private static boolean isFastPathResult(final double value) {
+        // Also excludes zero, infinity and NaN, which have exponents outside this range.
+        final int exponent = Math.getExponent(value);
+        return exponent >= FAST_PATH_MIN_EXPONENT && exponent <= Double.MAX_EXPONENT;
+    }
+
     private static boolean isSignalingNaN(final long a) {
         return isNaN(a) && (a & QUIET_NAN_MASK) == 0;
     }
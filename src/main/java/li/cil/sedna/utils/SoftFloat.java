@@ -6,6 +6,11 @@ import li.cil.ceres.api.Serialized;
  * Software implementation of floating point operations according to IEEE754.
  * <p>
  * Unlike Java, this supports different rounding modes and exposes exceptions via a flags register.
+ * <p>
+ * For the common case of round to nearest, ties to even, basic arithmetic is performed using Java
+ * floats, as long as the result is a normal number not too close to the subnormal range. Whether
+ * such a result is inexact is determined by redoing the operation exactly using doubles, or from
+ * the error term of the operation. All other cases are handled in software.
  */
 public final class SoftFloat {
     @Serialized
@@ -57,6 +62,9 @@ public final class SoftFloat {
     private static final int QUIET_NAN_MASK = 1 << (MANTISSA_SIZE - 1);
     private static final int QUIET_NAN = (EXPONENT_MASK << MANTISSA_SIZE) | QUIET_NAN_MASK;
 
+    // Smallest exponent of results for which error terms cannot become subnormal.
+    private static final int FAST_PATH_MIN_EXPONENT = Float.MIN_EXPONENT + 2 * (MANTISSA_SIZE + 1);
+
     public final Flags flags;
 
     public SoftFloat() {
@@ -102,6 +110,23 @@ public final class SoftFloat {
     }
 
     public int add(int a, int b, final int rm) {
+        if (rm == RM_RNE) {
+            final float x = Float.intBitsToFloat(a);
+            final float y = Float.intBitsToFloat(b);
+            final float r = x + y;
+            if (isFastPathResult(r)) {
+                if ((flags.value & FLAG_INEXACT) == 0) {
+                    // Knuth's TwoSum, error is the exact difference between x + y and r.
+                    final float yr = r - x;
+                    final float error = (x - (r - yr)) + (y - yr);
+                    if (error != 0) {
+                        flags.raise(FLAG_INEXACT);
+                    }
+                }
+                return Float.floatToRawIntBits(r);
+            }
+        }
+
         // Make sure a is the larger of the two. This way we can unify NaN and Infinity detection.
         if ((a & ~SIGN_MASK) < (b & ~SIGN_MASK)) {
             final int tmp = a;
@@ -167,6 +192,19 @@ public final class SoftFloat {
     }
 
     public int mul(final int a, final int b, final int rm) {
+        if (rm == RM_RNE) {
+            final float x = Float.intBitsToFloat(a);
+            final float y = Float.intBitsToFloat(b);
+            final float r = x * y;
+            if (isFastPathResult(r)) {
+                // Products of two floats are always exact as doubles.
+                if ((flags.value & FLAG_INEXACT) == 0 && (double) x * (double) y != r) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -227,6 +265,15 @@ public final class SoftFloat {
     }
 
     public int muladd(final int a, final int b, final int c, final int rm) {
+        // There's no cheap way to get the error of a fused multiply-add, so only take the fast path if
+        // the inexact flag is already set. Which, being sticky, it usually is in numeric code.
+        if (rm == RM_RNE && (flags.value & FLAG_INEXACT) != 0) {
+            final float r = Math.fma(Float.intBitsToFloat(a), Float.intBitsToFloat(b), Float.intBitsToFloat(c));
+            if (isFastPathResult(r)) {
+                return Float.floatToRawIntBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int signC = getSign(c);
@@ -381,6 +428,18 @@ public final class SoftFloat {
     }
 
     public int div(final int a, final int b, final int rm) {
+        if (rm == RM_RNE) {
+            final float x = Float.intBitsToFloat(a);
+            final float y = Float.intBitsToFloat(b);
+            final float r = x / y;
+            if (isFastPathResult(r)) {
+                if ((flags.value & FLAG_INEXACT) == 0 && (double) r * (double) y != x) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         final int signB = getSign(b);
         int exponentA = getExponent(a);
@@ -444,6 +503,18 @@ public final class SoftFloat {
     }
 
     public int sqrt(final int a, final int rm) {
+        if (rm == RM_RNE) {
+            final float x = Float.intBitsToFloat(a);
+            if (x > 0 && isFastPathResult(x)) {
+                // Rounding the double result again is safe, doubles have more than twice the precision.
+                final float r = (float) Math.sqrt(x);
+                if ((flags.value & FLAG_INEXACT) == 0 && (double) r * (double) r != x) {
+                    flags.raise(FLAG_INEXACT);
+                }
+                return Float.floatToRawIntBits(r);
+            }
+        }
+
         final int signA = getSign(a);
         int exponentA = getExponent(a);
         int mantissaA = getMantissa(a);
@@ -834,6 +905,12 @@ public final class SoftFloat {
         }
     }
 
+    private static boolean isFastPathResult(final float value) {
+        // Also excludes zero, infinity and NaN, which have exponents outside this range.
+        final int exponent = Math.getExponent(value);
+        return exponent >= FAST_PATH_MIN_EXPONENT && exponent <= Float.MAX_EXPONENT;
+    }
+
     static boolean isSignalingNaN(final int a) {
         return isNaN(a) && (a & QUIET_NAN_MASK) == 0;
     }
@@ -0,0 +1,116 @@
+package li.cil.sedna;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.elf.*;
+import li.cil.sedna.memory.MemoryMaps;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public final class ELFTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x10000;
+
+    @Test
+    public void segmentsAreLoadedAndZeroFilled() throws IOException {
+        final ELF elf = ELFParser.parse("src/test/data/riscv-tests/rv64ui-v-add");
+
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_START, Memory.create(MEMORY_LENGTH));
+        final byte[] garbage = new byte[MEMORY_LENGTH];
+        Arrays.fill(garbage, (byte) 0xA5);
+        MemoryMaps.store(memoryMap, MEMORY_START, garbage, 0, garbage.length);
+
+        ELFLoader.loadSegments(elf, memoryMap);
+
+        for (final ProgramHeader header : elf.programHeaderTable) {
+            if (!header.is(ProgramHeaderType.PT_LOAD)) {
+                continue;
+            }
+
+            final ByteBuffer loaded = ByteBuffer.allocate((int) header.sizeInMemory);
+            MemoryMaps.load(memoryMap, header.physicalAddress, loaded);
+            loaded.flip();
+
+            assertEquals(header.getView(), loaded.slice(0, (int) header.sizeInFile));
+            for (int i = (int) header.sizeInFile; i < header.sizeInMemory; i++) {
+                assertEquals(0, loaded.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void loadingOutsideMemoryFails() throws IOException {
+        final ELF elf = ELFParser.parse("src/test/data/riscv-tests/rv64ui-p-add");
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_START, Memory.create(0x1000));
+        assertThrows(MemoryAccessException.class, () -> ELFLoader.loadSegments(elf, memoryMap));
+    }
+
+    @Test
+    public void devicesInSegmentsAreSkipped() throws IOException {
+        final ELF elf = ELFParser.parse("src/test/data/riscv-tests/rv64ui-p-add");
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        memoryMap.addDevice(MEMORY_START, Memory.create(0x1000));
+        final MemoryMappedDevice device = mock(MemoryMappedDevice.class);
+        when(device.getLength()).thenReturn(0x1000);
+        memoryMap.addDevice(MEMORY_START + 0x1000, device); // Covers the .tohost segment.
+
+        ELFLoader.loadSegments(elf, memoryMap);
+
+        verify(device, never()).store(anyInt(), anyLong(), anyInt());
+        assertEquals(elf.entryPoint, MEMORY_START);
+        assertNotEquals(0, memoryMap.load(MEMORY_START, Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void symbolsAreIndexedByAddress() throws IOException {
+        final ELF elf = ELFParser.parse("src/test/data/riscv-tests/rv64ui-p-add");
+        final SymbolIndex index = SymbolIndex.create(elf);
+
+        final List<Symbol> symbols = index.getSymbols();
+        assertFalse(symbols.isEmpty());
+        for (int i = 1; i < symbols.size(); i++) {
+            assertTrue(Long.compareUnsigned(symbols.get(i - 1).value, symbols.get(i).value) <= 0);
+        }
+
+        // Section and file symbols are not indexed.
+        assertTrue(symbols.stream().noneMatch(symbol -> symbol.name.isEmpty() || symbol.is(SymbolType.STT_FILE)));
+
+        final Symbol tohost = index.get("tohost");
+        assertNotNull(tohost);
+        assertEquals(0x80001000L, tohost.value);
+
+        final Symbol resetVector = index.get("reset_vector");
+        assertNotNull(resetVector);
+        assertSame(resetVector, index.find(resetVector.value));
+
+        // Symbols without a size extend up to the next symbol.
+        final Symbol test2 = index.get("test_2");
+        assertNotNull(test2);
+        assertEquals(0, test2.size);
+        final Symbol next = symbols.stream()
+            .filter(symbol -> Long.compareUnsigned(symbol.value, test2.value) > 0)
+            .findFirst()
+            .orElseThrow();
+        assertFalse(test2.contains(test2.value));
+        assertSame(test2, index.find(test2.value));
+        assertSame(test2, index.find(next.value - 1));
+        assertNotSame(test2, index.find(next.value));
+
+        assertNull(index.find(MEMORY_START - 1));
+        assertNull(index.get("no_such_symbol"));
+    }
+}
@@ -3,8 +3,10 @@ package li.cil.sedna;
 import li.cil.sedna.utils.SoftDouble;
 import li.cil.sedna.utils.SoftFloat;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.URI;
 import java.util.Arrays;
@@ -13,6 +15,7 @@ import java.util.Objects;
 import java.util.Random;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public final class SoftDoubleTests {
@@ -42,6 +45,58 @@ public final class SoftDoubleTests {
                 })).collect(Collectors.toList());
     }
 
+    @Test
+    public void testInexactFlag() {
+        final SoftDouble fpu = new SoftDouble();
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final double a = randomOperand(random);
+            final double b = randomOperand(random);
+            final BigDecimal x = new BigDecimal(a);
+            final BigDecimal y = new BigDecimal(b);
+
+            fpu.flags.value = 0;
+            final double sum = Double.longBitsToDouble(fpu.add(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x.add(y), sum), fpu.flags.value, "add " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final double product = Double.longBitsToDouble(fpu.mul(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x.multiply(y), product), fpu.flags.value, "mul " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final double quotient = Double.longBitsToDouble(fpu.div(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x, new BigDecimal(quotient).multiply(y)), fpu.flags.value, "div " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final double root = Double.longBitsToDouble(fpu.sqrt(bits(Math.abs(a)), JAVA_ROUNDING_MODE));
+            final BigDecimal rootDecimal = new BigDecimal(root);
+            assertEquals(expectedFlags(x.abs(), rootDecimal.multiply(rootDecimal)), fpu.flags.value, "sqrt " + a);
+
+            fpu.flags.value = SoftDouble.FLAG_INEXACT;
+            assertEquals(bits(Math.fma(a, b, sum)), fpu.muladd(bits(a), bits(b), bits(sum), JAVA_ROUNDING_MODE), "muladd " + a + ", " + b + ", " + sum);
+            assertEquals(SoftDouble.FLAG_INEXACT, fpu.flags.value, "muladd " + a + ", " + b + ", " + sum);
+        }
+    }
+
+    private static double randomOperand(final Random random) {
+        final double value = random.nextBoolean()
+                ? random.nextInt(1000) + 1
+                : Math.scalb(random.nextDouble() + 0.5, random.nextInt(128) - 64);
+        return random.nextBoolean() ? value : -value;
+    }
+
+    private static long bits(final double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static byte expectedFlags(final BigDecimal exact, final double result) {
+        return expectedFlags(exact, new BigDecimal(result));
+    }
+
+    private static byte expectedFlags(final BigDecimal exact, final BigDecimal result) {
+        return (byte) (exact.compareTo(result) == 0 ? 0 : SoftDouble.FLAG_INEXACT);
+    }
+
     // NB: min and max are not tested here, because for RISC-V they return the non-NaN value for a
     //     (NaN, not-NaN) argument pair, whereas Java will return NaN. And we want to be RISC-V correct.
     // NB: Java converts NaNs to zero whereas RISC-V expects them to be treated as positive infinity, so
@@ -2,8 +2,10 @@ package li.cil.sedna;
 
 import li.cil.sedna.utils.SoftFloat;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
+import java.math.BigDecimal;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.Collection;
@@ -11,6 +13,7 @@ import java.util.Objects;
 import java.util.Random;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public final class SoftFloatTests {
@@ -40,6 +43,58 @@ public final class SoftFloatTests {
                 })).collect(Collectors.toList());
     }
 
+    @Test
+    public void testInexactFlag() {
+        final SoftFloat fpu = new SoftFloat();
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final float a = randomOperand(random);
+            final float b = randomOperand(random);
+            final BigDecimal x = new BigDecimal(a);
+            final BigDecimal y = new BigDecimal(b);
+
+            fpu.flags.value = 0;
+            final float sum = Float.intBitsToFloat(fpu.add(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x.add(y), sum), fpu.flags.value, "add " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final float product = Float.intBitsToFloat(fpu.mul(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x.multiply(y), product), fpu.flags.value, "mul " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final float quotient = Float.intBitsToFloat(fpu.div(bits(a), bits(b), JAVA_ROUNDING_MODE));
+            assertEquals(expectedFlags(x, new BigDecimal(quotient).multiply(y)), fpu.flags.value, "div " + a + ", " + b);
+
+            fpu.flags.value = 0;
+            final float root = Float.intBitsToFloat(fpu.sqrt(bits(Math.abs(a)), JAVA_ROUNDING_MODE));
+            final BigDecimal rootDecimal = new BigDecimal(root);
+            assertEquals(expectedFlags(x.abs(), rootDecimal.multiply(rootDecimal)), fpu.flags.value, "sqrt " + a);
+
+            fpu.flags.value = SoftFloat.FLAG_INEXACT;
+            assertEquals(bits(Math.fma(a, b, sum)), fpu.muladd(bits(a), bits(b), bits(sum), JAVA_ROUNDING_MODE), "muladd " + a + ", " + b + ", " + sum);
+            assertEquals(SoftFloat.FLAG_INEXACT, fpu.flags.value, "muladd " + a + ", " + b + ", " + sum);
+        }
+    }
+
+    private static float randomOperand(final Random random) {
+        final float value = random.nextBoolean()
+                ? random.nextInt(1000) + 1
+                : Math.scalb(random.nextFloat() + 0.5f, random.nextInt(32) - 16);
+        return random.nextBoolean() ? value : -value;
+    }
+
+    private static int bits(final float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    private static byte expectedFlags(final BigDecimal exact, final float result) {
+        return expectedFlags(exact, new BigDecimal(result));
+    }
+
+    private static byte expectedFlags(final BigDecimal exact, final BigDecimal result) {
+        return (byte) (exact.compareTo(result) == 0 ? 0 : SoftFloat.FLAG_INEXACT);
+    }
+
     // NB: min and max are not tested here, because for RISC-V they return the non-NaN value for a
     //     (NaN, not-NaN) argument pair, whereas Java will return NaN. And we want to be RISC-V correct.
     // NB: Java converts NaNs to zero whereas RISC-V expects them to be treated as positive infinity, so
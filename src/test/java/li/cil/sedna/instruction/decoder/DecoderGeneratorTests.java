@@ -0,0 +1,91 @@
+package li.cil.sedna.instruction.decoder;
+
+import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import li.cil.sedna.riscv.R5Instructions;
+import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Generates the RISC-V decoders and dispatchers into the CPU template and checks the generated methods.
+ */
+public class DecoderGeneratorTests {
+    private static final String TEMPLATE_CLASS = "li/cil/sedna/riscv/R5CPUTemplate.class";
+    private static final int GROUP_SIZE_BUDGET = DecoderGenerator.DEFAULT_GROUP_SIZE_BUDGET;
+
+    @Test
+    public void testGroupMethodsStayWithinBudget() throws IOException {
+        assertGroupMethodsWithinBudget(generateMethodSizes(null));
+    }
+
+    @Test
+    public void testGroupMethodsStayWithinBudgetWithProfile() throws IOException {
+        // Every instruction equally often, so all nodes with enough instructions are hot.
+        final Object2LongOpenHashMap<String> counts = new Object2LongOpenHashMap<>();
+        R5Instructions.RV64.getDecoderTree().getInstructions().forEach(declaration -> counts.put(declaration.displayName, 1));
+        assertGroupMethodsWithinBudget(generateMethodSizes(new DecoderProfile(counts)));
+    }
+
+    private static void assertGroupMethodsWithinBudget(final Object2IntMap<String> methodSizes) {
+        assertTrue(methodSizes.keySet().stream().anyMatch(name -> name.contains("$instructionGroup")));
+        assertTrue(methodSizes.keySet().stream().anyMatch(name -> name.contains("$handlerGroup")));
+        methodSizes.forEach((name, size) -> {
+            if (name.contains("$")) {
+                assertTrue(size <= GROUP_SIZE_BUDGET, () -> String.format("[%s] is [%d] bytes.", name, size));
+            }
+        });
+    }
+
+    private static Object2IntMap<String> generateMethodSizes(@Nullable final DecoderProfile profile) throws IOException {
+        final Object2IntMap<String> methodSizes = new Object2IntArrayMap<>();
+        final ClassVisitor sizes = new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
+                return new CodeSizeEvaluator(Opcodes.ASM7, null) {
+                    @Override
+                    public void visitEnd() {
+                        methodSizes.put(name, getMaxSize());
+                    }
+                };
+            }
+        };
+
+        final DecoderGenerator generator64 = new DecoderGenerator(sizes,
+            R5Instructions.RV64.getExpandedDecoderTree(), R5Instructions.RV64::getDefinition,
+            profile, DecoderGenerator.DEFAULT_METHOD_SIZE_BUDGET, GROUP_SIZE_BUDGET, true,
+            R5IllegalInstructionException.class, "interpretTrace64", "decode");
+        final DecoderGenerator generator32 = new DecoderGenerator(generator64,
+            R5Instructions.RV32.getExpandedDecoderTree(), R5Instructions.RV32::getDefinition,
+            profile, DecoderGenerator.DEFAULT_METHOD_SIZE_BUDGET, GROUP_SIZE_BUDGET, true,
+            R5IllegalInstructionException.class, "interpretTrace32", "decode");
+        final DispatchGenerator dispatch64 = new DispatchGenerator(generator32,
+            R5Instructions.RV64.getDispatchTable(), GROUP_SIZE_BUDGET,
+            R5IllegalInstructionException.class, "interpretDecoded64", "dispatch");
+        final DispatchGenerator dispatch32 = new DispatchGenerator(dispatch64,
+            R5Instructions.RV32.getDispatchTable(), GROUP_SIZE_BUDGET,
+            R5IllegalInstructionException.class, "interpretDecoded32", "dispatch");
+
+        generateFromTemplate(dispatch32);
+
+        return methodSizes;
+    }
+
+    static void generateFromTemplate(final ClassVisitor generator) throws IOException {
+        try (final InputStream stream = DecoderGeneratorTests.class.getClassLoader().getResourceAsStream(TEMPLATE_CLASS)) {
+            assertNotNull(stream);
+            new ClassReader(stream).accept(generator, ClassReader.EXPAND_FRAMES);
+        }
+    }
+}
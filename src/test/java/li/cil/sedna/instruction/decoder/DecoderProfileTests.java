@@ -0,0 +1,112 @@
+package li.cil.sedna.instruction.decoder;
+
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.riscv.R5Instructions;
+import li.cil.sedna.riscv.exception.R5IllegalInstructionException;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DecoderProfileTests {
+    @Test
+    public void testRecordedProfileSurvivesSaveAndLoad() throws IOException {
+        DecoderGeneratorTests.generateFromTemplate(new DecoderProfileRecorder(new ClassVisitor(Opcodes.ASM7) {
+        }, R5Instructions.RV64.getExpandedDecoderTree(), R5Instructions.RV64::getDefinition,
+            true, R5IllegalInstructionException.class, "interpretTrace64", "decode"));
+
+        final long previousCount = DecoderProfileRecorder.getProfile().getTotalCount();
+        DecoderProfileRecorder.count(0);
+        DecoderProfileRecorder.count(0);
+        DecoderProfileRecorder.count(1);
+        final DecoderProfile recorded = DecoderProfileRecorder.getProfile();
+        assertEquals(previousCount + 3, recorded.getTotalCount());
+
+        final DecoderProfile loaded = saveAndLoad(recorded);
+        assertEquals(recorded.getTotalCount(), loaded.getTotalCount());
+        R5Instructions.RV64.getDecoderTree().getInstructions().forEach(declaration ->
+            assertEquals(recorded.getCount(declaration), loaded.getCount(declaration), declaration.displayName));
+    }
+
+    @Test
+    public void testNonAsciiNamesSurviveSaveAndLoad() throws IOException {
+        final Object2LongOpenHashMap<String> counts = new Object2LongOpenHashMap<>();
+        counts.put("ÄDD.Ω", 42);
+        final DecoderProfile profile = new DecoderProfile(counts);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        profile.save(stream);
+        assertTrue(stream.toString(StandardCharsets.UTF_8).contains("ÄDD.Ω 42"));
+        assertEquals(42, saveAndLoad(profile).getTotalCount());
+    }
+
+    @Test
+    public void testHotInstructionsAreDecodedInDecoderMethod() throws IOException {
+        final InstructionDeclaration ld = R5Instructions.RV64.getDecoderTree().getInstructions()
+            .filter(declaration -> declaration.displayName.equals("LD"))
+            .findFirst()
+            .orElseThrow();
+        final String ldMethod = R5Instructions.RV64.getDefinition(ld).methodName;
+
+        // Without a profile, loads are decoded in an instruction group method.
+        final Map<String, Set<String>> withoutProfile = generateInvocations(null);
+        assertFalse(withoutProfile.get("interpretTrace64").contains(ldMethod));
+        assertTrue(withoutProfile.entrySet().stream().anyMatch(entry ->
+            entry.getKey().startsWith("interpretTrace64$") && entry.getValue().contains(ldMethod)));
+
+        // With a profile in which loads are hot, they are decoded in place instead.
+        final Object2LongOpenHashMap<String> counts = new Object2LongOpenHashMap<>();
+        counts.put(ld.displayName, 1000);
+        counts.put("ADDI", 1);
+        final Map<String, Set<String>> withProfile = generateInvocations(new DecoderProfile(counts));
+        assertTrue(withProfile.get("interpretTrace64").contains(ldMethod));
+        assertTrue(withProfile.size() < withoutProfile.size());
+    }
+
+    private static DecoderProfile saveAndLoad(final DecoderProfile profile) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        profile.save(stream);
+        return DecoderProfile.load(new ByteArrayInputStream(stream.toByteArray()));
+    }
+
+    // Returns the names of the methods invoked by each generated decoder method.
+    private static Map<String, Set<String>> generateInvocations(@Nullable final DecoderProfile profile) throws IOException {
+        final Map<String, Set<String>> invocations = new HashMap<>();
+        final ClassVisitor collector = new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String descriptor, final String signature, final String[] exceptions) {
+                if (!name.startsWith("interpretTrace64")) {
+                    return null;
+                }
+
+                final Set<String> invoked = invocations.computeIfAbsent(name, n -> new HashSet<>());
+                return new MethodVisitor(Opcodes.ASM7) {
+                    @Override
+                    public void visitMethodInsn(final int opcode, final String owner, final String name, final String descriptor, final boolean isInterface) {
+                        invoked.add(name);
+                    }
+                };
+            }
+        };
+
+        DecoderGeneratorTests.generateFromTemplate(new DecoderGenerator(collector,
+            R5Instructions.RV64.getExpandedDecoderTree(), R5Instructions.RV64::getDefinition,
+            profile, DecoderGenerator.DEFAULT_METHOD_SIZE_BUDGET, DecoderGenerator.DEFAULT_GROUP_SIZE_BUDGET, true,
+            R5IllegalInstructionException.class, "interpretTrace64", "decode"));
+
+        return invocations;
+    }
+}
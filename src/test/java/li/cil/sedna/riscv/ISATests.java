@@ -3,7 +3,6 @@ package li.cil.sedna.riscv;
 import li.cil.sedna.api.Sizes;
 import li.cil.sedna.api.device.MemoryMappedDevice;
 import li.cil.sedna.api.memory.MemoryAccessException;
-import li.cil.sedna.api.memory.MemoryMap;
 import li.cil.sedna.device.memory.Memory;
 import li.cil.sedna.elf.*;
 import li.cil.sedna.memory.SimpleMemoryMap;
@@ -14,7 +13,6 @@ import org.junit.jupiter.api.TestFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
@@ -71,10 +69,11 @@ public final class ISATests {
                             memoryMap.addDevice(start, Memory.create((int) (PHYSICAL_MEMORY_START + PHYSICAL_MEMORY_LENGTH - start)));
                         }
 
-                        loadProgramSegments(elf, memoryMap);
-
+                        // Segments may cover HTIF, the loader skips it.
                         memoryMap.addDevice(toHostAddress, htif);
 
+                        ELFLoader.loadSegments(elf, memoryMap);
+
                         cpu.reset(true, elf.entryPoint);
                         if (file.getName().startsWith("rv32")) {
                             cpu.setXLEN(R5.XLEN_32);
@@ -102,19 +101,6 @@ public final class ISATests {
         return 0; // appeasing the compiler: this line will never be executed.
     }
 
-    private void loadProgramSegments(final ELF elf, final MemoryMap memoryMap) throws MemoryAccessException {
-        for (final ProgramHeader header : elf.programHeaderTable) {
-            if (header.is(ProgramHeaderType.PT_LOAD)) {
-                final ByteBuffer data = header.getView();
-                final long address = header.physicalAddress;
-                final long length = header.sizeInFile;
-                for (int i = 0; i < length; i++) {
-                    memoryMap.store(address + i, data.get(), Sizes.SIZE_8_LOG2);
-                }
-            }
-        }
-    }
-
     @Nullable
     private static String getMatchingFilter(final File file) {
         for (final String filter : TEST_FILTERS) {
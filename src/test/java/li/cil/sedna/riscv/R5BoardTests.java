@@ -0,0 +1,557 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.MemoryMappedDevice;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.elf.ELF;
+import li.cil.sedna.elf.ELFParser;
+import li.cil.sedna.elf.ProgramHeader;
+import li.cil.sedna.elf.ProgramHeaderType;
+import li.cil.sedna.memory.MemoryMaps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5BoardTests {
+    private static final long CLINT_MSIP_ADDRESS = 0x02000000L;
+    private static final long CLINT_MTIMECMP_ADDRESS = 0x02004000L;
+    private static final int PLIC_PRIORITY_ADDRESS = 0x0C000000;
+    private static final int PLIC_ENABLE_ADDRESS = 0x0C002000;
+    private static final int PLIC_CLAIM_ADDRESS = 0x0C200004;
+
+    private static final int DEVICE_ADDRESS = 0x20000000;
+
+    private static final int CSR_MIE = 0x304, CSR_MIP = 0x344, CSR_MHARTID = 0xF14;
+    private static final int EXT_HSM = 0x48534D, EXT_RFENCE = 0x52464E43;
+
+    // Programs for multiple harts start the code of secondary harts here, and keep their data in a separate page.
+    private static final int SECONDARY_ENTRY = 0x100;
+    private static final int DATA_OFFSET = 0x8000;
+
+    private static final int[] WAIT_FOR_INTERRUPT = {
+        0x08800293, // addi  t0, zero, 0x88 ; MTIE | MSIE
+        0x30429073, // csrw  mie, t0
+        0x10500073, // wfi
+        0xFFDFF06F, // j     -4
+    };
+
+    private R5Board board;
+
+    @BeforeEach
+    public void setupEach() {
+        board = new R5Board();
+        board.addDevice(board.getDefaultProgramStart(), Memory.create(0x10000));
+    }
+
+    @Test
+    public void testIdleBoardSkipsToTimerDeadline() throws MemoryAccessException {
+        start(WAIT_FOR_INTERRUPT);
+        board.getMemoryMap().store(CLINT_MTIMECMP_ADDRESS, 50_000, Sizes.SIZE_64_LOG2);
+
+        board.step(10_000);
+        assertTrue(board.isIdle());
+        assertEquals(50_000 - board.getCpu().getTime(), board.getCyclesUntilNextEvent());
+
+        board.step(100_000);
+        assertFalse(board.isIdle());
+        assertFalse(board.getCpu().isWaitingForInterrupt());
+    }
+
+    @Test
+    public void testIdleBoardSkipsToSupervisorTimerDeadline() throws MemoryAccessException {
+        start(
+            0xFFF00293, // addi  t0, zero, -1
+            0x03F29293, // slli  t0, t0, 63   ; STCE
+            0x30A29073, // csrw  menvcfg, t0
+            0x0000C2B7, // lui   t0, 12
+            0x35028293, // addi  t0, t0, 848  ; 50000
+            0x14D29073, // csrw  stimecmp, t0
+            0x02000293, // addi  t0, zero, 0x20 ; STIE
+            0x30429073, // csrw  mie, t0
+            0x10500073, // wfi
+            0xFFDFF06F  // j     -4
+        );
+
+        board.step(10_000);
+        assertTrue(board.isIdle());
+        assertEquals(50_000, board.getCpu().getSupervisorTimerDeadline());
+        assertEquals(50_000 - board.getCpu().getTime(), board.getCyclesUntilNextEvent());
+
+        board.step(100_000);
+        assertFalse(board.isIdle());
+        assertNotEquals(0, board.getCpu().getRaisedInterrupts() & R5.STIP_MASK);
+        assertEquals(Long.MAX_VALUE, board.getCpu().getSupervisorTimerDeadline());
+    }
+
+    @Test
+    public void testAwaitWakeUp() throws InterruptedException, MemoryAccessException {
+        start(WAIT_FOR_INTERRUPT);
+        board.step(10_000);
+        assertTrue(board.isIdle());
+        assertEquals(Long.MAX_VALUE, board.getCyclesUntilNextEvent());
+        assertFalse(board.awaitWakeUp(10, TimeUnit.MILLISECONDS));
+
+        final Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                board.getMemoryMap().store(CLINT_MSIP_ADDRESS, 1, Sizes.SIZE_32_LOG2);
+            } catch (final InterruptedException | MemoryAccessException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+
+        assertTrue(board.awaitWakeUp(10, TimeUnit.SECONDS));
+        assertFalse(board.isIdle());
+        thread.join();
+    }
+
+    @Test
+    public void testInitializeLinuxImage() throws MemoryAccessException {
+        final ByteBuffer kernel = ByteBuffer.allocate(0x80).order(ByteOrder.LITTLE_ENDIAN);
+        kernel.putInt(0, 0x0400006F); // j 64
+        kernel.putLong(16, 0x3000); // image_size, including uninitialized data
+        kernel.putInt(56, 0x05435352); // "RSC\x05"
+        kernel.putInt(64, 0x0000006F); // j .
+
+        final byte[] initrd = new byte[0x100];
+        for (int i = 0; i < initrd.length; i++) {
+            initrd[i] = (byte) i;
+        }
+
+        board.setBootArguments("console=ttyS0 " + "x".repeat(200));
+        board.initializeLinux(kernel, ByteBuffer.wrap(initrd));
+        board.setRunning(true);
+
+        final R5CPU cpu = board.getCpu();
+        final long[] registers = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(board.getDefaultProgramStart(), cpu.getDebugInterface().getProgramCounter());
+        assertEquals(0, registers[A0]);
+        assertTrue(board.isBuiltInSBIEnabled());
+
+        // The initial RAM disk follows the kernel, including its uninitialized data.
+        final byte[] loaded = new byte[initrd.length];
+        MemoryMaps.load(board.getMemoryMap(), board.getDefaultProgramStart() + 0x3000, loaded, 0, loaded.length);
+        assertArrayEquals(initrd, loaded);
+
+        final String dtb = readDeviceTree(registers[A1]);
+        assertTrue(dtb.contains("linux,initrd-start"));
+        assertTrue(dtb.contains("linux,initrd-end"));
+        assertTrue(dtb.contains("x".repeat(200)));
+
+        board.step(10_000);
+        assertEquals(board.getDefaultProgramStart() + 64, cpu.getDebugInterface().getProgramCounter());
+    }
+
+    @Test
+    public void testInitializeLinuxELF() throws IOException {
+        final byte[] data = Files.readAllBytes(Path.of("src/test/data/riscv-tests/rv64ui-p-simple"));
+        final ELF elf = ELFParser.parse(data);
+
+        board.initializeLinux(ByteBuffer.wrap(data), null);
+
+        // Segments are loaded relative to the first one, at the start of memory.
+        final ProgramHeader segment = elf.programHeaderTable.stream()
+            .filter(header -> header.is(ProgramHeaderType.PT_LOAD))
+            .findFirst().orElseThrow();
+        final long start = board.getDefaultProgramStart();
+        assertEquals(start + (elf.entryPoint - segment.virtualAddress), board.getCpu().getDebugInterface().getProgramCounter());
+
+        final ByteBuffer expected = segment.getView();
+        final ByteBuffer loaded = ByteBuffer.allocate(expected.remaining());
+        MemoryMaps.load(board.getMemoryMap(), start, loaded);
+        assertEquals(expected, loaded.flip());
+
+        assertFalse(readDeviceTree(board.getCpu().getDebugInterface().getGeneralRegisters()[A1]).contains("linux,initrd-start"));
+    }
+
+    @Test
+    public void testInitializeLinuxTooLarge() {
+        assertThrows(IllegalStateException.class, () -> board.initializeLinux(ByteBuffer.allocate(0x20000), null));
+    }
+
+    @Test
+    public void testHartIds() throws MemoryAccessException {
+        startHarts(4, new TestAssembler()
+            .la(T0, DATA_OFFSET)
+            .emit(slli(T1, A0, 3))
+            .emit(add(T0, T0, T1))
+            .emit(csrrs(T1, CSR_MHARTID, ZERO))
+            .emit(addi(T1, T1, 1))
+            .emit(sd(T1, T0, 0))
+            .loop());
+
+        board.step(10_000);
+
+        for (int hart = 0; hart < 4; hart++) {
+            assertEquals(hart, board.getHarts().get(hart).getHartId());
+            assertEquals(hart + 1, loadData(hart * 8, Sizes.SIZE_64_LOG2));
+        }
+    }
+
+    @Test
+    public void testPlatformLevelInterruptContextsPerHart() throws MemoryAccessException {
+        // Each hart waits for an external interrupt, then claims and completes the sources of its machine
+        // and supervisor contexts, which are contexts 2 * hartId and 2 * hartId + 1, and stores them.
+        final TestAssembler program = new TestAssembler();
+        final int wait = program.position();
+        program
+            .emit(csrrs(T0, CSR_MIP, ZERO))
+            .li(T1, R5.MEIP_MASK | R5.SEIP_MASK)
+            .emit(and(T0, T0, T1))
+            .emit(beq(T0, ZERO, wait - program.position()))
+            .emit(slli(T0, A0, 13))
+            .li(T1, PLIC_CLAIM_ADDRESS)
+            .emit(add(T1, T1, T0))
+            .emit(lw(T2, T1, 0))
+            .emit(sw(T2, T1, 0))
+            .li(T0, 0x1000)
+            .emit(add(T1, T1, T0))
+            .emit(lw(A2, T1, 0))
+            .emit(sw(A2, T1, 0))
+            .la(S0, DATA_OFFSET)
+            .emit(slli(T0, A0, 3))
+            .emit(add(S0, S0, T0))
+            .emit(sw(T2, S0, 0))
+            .emit(sw(A2, S0, 4))
+            .loop();
+        startHarts(2, program);
+
+        // Source 1 goes to the supervisor context of hart 1, source 2 to the machine context of hart 0.
+        final MemoryMap memoryMap = board.getMemoryMap();
+        memoryMap.store(PLIC_PRIORITY_ADDRESS + 4, 1, Sizes.SIZE_32_LOG2);
+        memoryMap.store(PLIC_PRIORITY_ADDRESS + 8, 1, Sizes.SIZE_32_LOG2);
+        memoryMap.store(PLIC_ENABLE_ADDRESS, 1 << 2, Sizes.SIZE_32_LOG2);
+        memoryMap.store(PLIC_ENABLE_ADDRESS + 3 * 0x80, 1 << 1, Sizes.SIZE_32_LOG2);
+        board.getInterruptController().raiseInterrupts((1 << 1) | (1 << 2));
+
+        final R5CPU hart0 = board.getHarts().get(0);
+        final R5CPU hart1 = board.getHarts().get(1);
+        assertEquals(R5.MEIP_MASK, hart0.getRaisedInterrupts() & (R5.MEIP_MASK | R5.SEIP_MASK));
+        assertEquals(R5.SEIP_MASK, hart1.getRaisedInterrupts() & (R5.MEIP_MASK | R5.SEIP_MASK));
+
+        board.step(10_000);
+
+        assertEquals(2, loadData(0, Sizes.SIZE_32_LOG2));
+        assertEquals(0, loadData(4, Sizes.SIZE_32_LOG2));
+        assertEquals(0, loadData(8, Sizes.SIZE_32_LOG2));
+        assertEquals(1, loadData(12, Sizes.SIZE_32_LOG2));
+        assertEquals(0, hart0.getRaisedInterrupts() & (R5.MEIP_MASK | R5.SEIP_MASK));
+        assertEquals(0, hart1.getRaisedInterrupts() & (R5.MEIP_MASK | R5.SEIP_MASK));
+    }
+
+    @Test
+    public void testInterProcessorInterrupt() throws MemoryAccessException {
+        // Hart 0 waits for the host to set a flag, then raises a software interrupt on hart 1, which waits
+        // for it, acknowledges it and reports back.
+        final TestAssembler program = new TestAssembler();
+        program
+            .emit(bne(A0, ZERO, SECONDARY_ENTRY))
+            .la(S0, DATA_OFFSET);
+        final int wait0 = program.position();
+        program
+            .emit(lw(T0, S0, 0))
+            .emit(beq(T0, ZERO, wait0 - program.position()))
+            .li(T1, (int) CLINT_MSIP_ADDRESS)
+            .li(T0, 1)
+            .emit(sw(T0, T1, 4))
+            .loop()
+            .padTo(SECONDARY_ENTRY)
+            .la(S0, DATA_OFFSET)
+            .li(T0, R5.MSIP_MASK)
+            .emit(csrrw(ZERO, CSR_MIE, T0));
+        final int wait1 = program.position();
+        program
+            .emit(WFI)
+            .emit(csrrs(T0, CSR_MIP, ZERO))
+            .emit(andi(T0, T0, R5.MSIP_MASK))
+            .emit(beq(T0, ZERO, wait1 - program.position()))
+            .li(T1, (int) CLINT_MSIP_ADDRESS)
+            .emit(sw(ZERO, T1, 4))
+            .li(T0, 1)
+            .emit(sw(T0, S0, 4))
+            .loop();
+        startHarts(2, program);
+
+        final R5CPU hart1 = board.getHarts().get(1);
+        board.step(10_000);
+        assertTrue(hart1.isWaitingForInterrupt());
+        assertEquals(0, loadData(4, Sizes.SIZE_32_LOG2));
+
+        // Hart 1 was waiting when the slice started, so it may only wake up in the next one.
+        board.getMemoryMap().store(board.getDefaultProgramStart() + DATA_OFFSET, 1, Sizes.SIZE_32_LOG2);
+        for (int i = 0; i < 10 && loadData(4, Sizes.SIZE_32_LOG2) == 0; i++) {
+            board.step(10_000);
+        }
+
+        assertEquals(1, loadData(4, Sizes.SIZE_32_LOG2));
+        assertEquals(0, hart1.getRaisedInterrupts() & R5.MSIP_MASK);
+        assertEquals(0, board.getMemoryMap().load(CLINT_MSIP_ADDRESS + 4, Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testStoreFromOtherHartInvalidatesReservation() throws MemoryAccessException {
+        // Hart 0 takes a reservation, then waits for hart 1 to store to the reserved word. The store writes the
+        // value already in memory, so the following store-conditional can only fail because of the invalidation.
+        // A second, uncontended, reservation must then succeed. Flags live in another page than the word.
+        final int word = DATA_OFFSET, flags = DATA_OFFSET + 0x1000, results = DATA_OFFSET + 0x2000;
+        final TestAssembler program = new TestAssembler();
+        program
+            .emit(bne(A0, ZERO, SECONDARY_ENTRY))
+            .la(S0, word)
+            .la(S1, flags)
+            .la(S2, results)
+            .li(T2, 7)
+            .emit(lrw(T0, S0))
+            .li(T1, 1)
+            .emit(sw(T1, S1, 0));
+        final int wait0 = program.position();
+        program
+            .emit(lw(T1, S1, 8))
+            .emit(beq(T1, ZERO, wait0 - program.position()))
+            .emit(scw(T1, T2, S0))
+            .emit(sd(T1, S2, 0))
+            .emit(lrw(T0, S0))
+            .emit(scw(T1, T2, S0))
+            .emit(sd(T1, S2, 8))
+            .li(T1, 1)
+            .emit(sd(T1, S2, 16))
+            .loop()
+            .padTo(SECONDARY_ENTRY)
+            .la(S0, word)
+            .la(S1, flags);
+        final int wait1 = program.position();
+        program
+            .emit(lw(T1, S1, 0))
+            .emit(beq(T1, ZERO, wait1 - program.position()))
+            .emit(sw(ZERO, S0, 0))
+            .li(T1, 1)
+            .emit(sw(T1, S1, 8))
+            .loop();
+        startHarts(2, program);
+
+        for (int i = 0; i < 100 && loadData(0x2000 + 16, Sizes.SIZE_64_LOG2) == 0; i++) {
+            board.step(10_000);
+        }
+
+        assertEquals(1, loadData(0x2000 + 16, Sizes.SIZE_64_LOG2));
+        assertNotEquals(0, loadData(0x2000, Sizes.SIZE_64_LOG2));
+        assertEquals(0, loadData(0x2000 + 8, Sizes.SIZE_64_LOG2));
+        assertEquals(7, loadData(0, Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testHartsRunInParallel() throws MemoryAccessException {
+        // All harts increment shared counters using atomic memory operations and LR/SC loops, then
+        // increment a counter of finished harts. Lost updates would show up in the totals.
+        final int hartCount = 4, iterations = 0x2000;
+        final TestAssembler program = new TestAssembler()
+            .la(S0, DATA_OFFSET)
+            .li(T0, 1)
+            .li(T1, iterations);
+        final int amo = program.position();
+        program
+            .emit(amoaddw(ZERO, T0, S0))
+            .emit(addi(T1, T1, -1))
+            .emit(bne(T1, ZERO, amo - program.position()))
+            .li(T1, iterations)
+            .emit(addi(S1, S0, 8));
+        final int lrsc = program.position();
+        program
+            .emit(lrw(T2, S1))
+            .emit(addi(T2, T2, 1))
+            .emit(scw(A2, T2, S1))
+            .emit(bne(A2, ZERO, lrsc - program.position()))
+            .emit(addi(T1, T1, -1))
+            .emit(bne(T1, ZERO, lrsc - program.position()))
+            .emit(addi(S1, S0, 16))
+            .emit(amoaddw(ZERO, T0, S1))
+            .loop();
+        startHarts(hartCount, program);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            while (loadData(16, Sizes.SIZE_32_LOG2) != hartCount) {
+                board.step(100_000);
+            }
+        });
+
+        assertEquals(hartCount * iterations, loadData(0, Sizes.SIZE_32_LOG2));
+        assertEquals(hartCount * iterations, loadData(8, Sizes.SIZE_32_LOG2));
+    }
+
+    @Test
+    public void testRunningHartsFenceEachOther() throws MemoryAccessException {
+        // Both harts keep requesting remote fences of all harts while running, so each waits for the other to
+        // process its request while the other holds its step lock, and waits for it in turn.
+        final TestAssembler program = new TestAssembler()
+            .li(A0, 1)
+            .la(A1, SECONDARY_ENTRY)
+            .li(A2, 0)
+            .sbiCall(EXT_HSM, 0); // hart_start
+        final int fence0 = program.position();
+        program
+            .li(A0, 0)
+            .li(A1, -1) // All harts.
+            .sbiCall(EXT_RFENCE, 0) // remote_fence_i
+            .emit(addi(S0, S0, 1))
+            .emit(jal(ZERO, fence0 - program.position()))
+            .padTo(SECONDARY_ENTRY);
+        final int fence1 = program.position();
+        program
+            .li(A0, 0)
+            .li(A1, -1)
+            .sbiCall(EXT_RFENCE, 1) // remote_sfence_vma
+            .emit(addi(S0, S0, 1))
+            .emit(jal(ZERO, fence1 - program.position()));
+
+        startHarts(2, program, true);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            for (int i = 0; i < 10; i++) {
+                board.step(100_000);
+            }
+        });
+
+        for (final R5CPU hart : board.getHarts()) {
+            final long[] registers = hart.getDebugInterface().getGeneralRegisters();
+            assertEquals(0, registers[A0]);
+            assertTrue(registers[S0] > 0);
+        }
+    }
+
+    @Test
+    public void testDeviceRemapDropsDeviceTranslations() throws MemoryAccessException {
+        // Loads from and stores to a device in a loop, while the host replaces it with another one.
+        final Register first = new Register(1), second = new Register(2);
+        board.addDevice(DEVICE_ADDRESS, first);
+        start(accessDevices(1));
+
+        board.step(10_000);
+        assertEquals(1, loadData(0, Sizes.SIZE_32_LOG2));
+        assertTrue(first.stores > 0);
+
+        board.removeDevice(first);
+        board.addDevice(DEVICE_ADDRESS, second);
+        final int stores = first.stores;
+        board.step(10_000);
+        assertEquals(2, loadData(0, Sizes.SIZE_32_LOG2));
+        assertTrue(second.stores > 0);
+        assertEquals(stores, first.stores);
+    }
+
+    @Test
+    public void testDevicesSharingPage() throws MemoryAccessException {
+        final Register first = new Register(1), second = new Register(2);
+        board.addDevice(DEVICE_ADDRESS, first);
+        board.addDevice(DEVICE_ADDRESS + first.getLength(), second);
+        start(accessDevices(2));
+
+        board.step(10_000);
+        assertEquals(1, loadData(0, Sizes.SIZE_32_LOG2));
+        assertEquals(2, loadData(4, Sizes.SIZE_32_LOG2));
+        assertTrue(first.stores > 0);
+        assertEquals(first.stores, second.stores);
+    }
+
+    /**
+     * Loops over the specified number of adjacent {@link Register}s, storing the value loaded from each in
+     * consecutive words of the data page, and storing to each.
+     */
+    private static int[] accessDevices(final int count) {
+        final TestAssembler program = new TestAssembler()
+            .la(S0, DATA_OFFSET)
+            .li(S1, DEVICE_ADDRESS);
+        final int loop = program.position();
+        for (int i = 0; i < count; i++) {
+            program
+                .emit(lw(T0, S1, i * Register.LENGTH))
+                .emit(sw(T0, S0, i * 4))
+                .emit(sw(T0, S1, i * Register.LENGTH));
+        }
+        return program
+            .emit(jal(ZERO, loop - program.position()))
+            .toArray();
+    }
+
+    private String readDeviceTree(final long address) throws MemoryAccessException {
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        MemoryMaps.load(board.getMemoryMap(), address, header);
+        final byte[] dtb = new byte[header.getInt(4)]; // totalsize, big-endian
+        MemoryMaps.load(board.getMemoryMap(), address, dtb, 0, dtb.length);
+        return new String(dtb, StandardCharsets.ISO_8859_1);
+    }
+
+    private long loadData(final int offset, final int sizeLog2) throws MemoryAccessException {
+        return board.getMemoryMap().load(board.getDefaultProgramStart() + DATA_OFFSET + offset, sizeLog2);
+    }
+
+    private void startHarts(final int hartCount, final TestAssembler program) throws MemoryAccessException {
+        startHarts(hartCount, program, false);
+    }
+
+    private void startHarts(final int hartCount, final TestAssembler program, final boolean builtInSBI) throws MemoryAccessException {
+        board = new R5Board(hartCount);
+        board.addDevice(board.getDefaultProgramStart(), Memory.create(0x10000));
+        board.setBuiltInSBIEnabled(builtInSBI);
+        program.storeTo(board.getMemoryMap(), board.getDefaultProgramStart());
+        board.initialize();
+        board.setRunning(true);
+    }
+
+    private void start(final int... program) throws MemoryAccessException {
+        for (int i = 0; i < program.length; i++) {
+            board.getMemoryMap().store(board.getDefaultProgramStart() + i * 4L, program[i], Sizes.SIZE_32_LOG2);
+        }
+
+        board.initialize();
+        board.setRunning(true);
+    }
+
+    /**
+     * A device register that always reads as the same value, and counts the stores to it.
+     */
+    private static final class Register implements MemoryMappedDevice {
+        public static final int LENGTH = 8;
+
+        private final int value;
+        public int stores;
+
+        public Register(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int getLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public long load(final int offset, final int sizeLog2) {
+            return value;
+        }
+
+        @Override
+        public void store(final int offset, final long value, final int sizeLog2) {
+            stores++;
+        }
+
+        @Override
+        public boolean storeCAS(final int offset, final long value, final long expected, final int sizeLog2) {
+            stores++;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs code often enough for it to get pre-decoded or compiled, and checks that cached code behaves like
+ * interpreted code when it is changed, or when it raises exceptions.
+ * <p>
+ * Pages are pre-decoded after a few trace entries, and compiled after a few hundred. Since a trace runs up to
+ * about a thousand instructions, loops running a few thousand instructions only get pre-decoded, while loops
+ * running a few hundred thousand instructions get compiled.
+ */
+public class R5CodeCacheTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x10000;
+    private static final int PAGE_SIZE = 1 << R5.PAGE_ADDRESS_SHIFT;
+
+    private static final int CSR_MTVEC = 0x305, CSR_MEPC = 0x341, CSR_MCAUSE = 0x342, CSR_MTVAL = 0x343;
+    private static final int TRAP_HANDLER = 0x800;
+
+    private static final int PREDECODED_ITERATIONS = 4_000;
+    private static final int COMPILED_ITERATIONS = 200_000;
+
+    private SimpleMemoryMap memoryMap;
+    private PhysicalMemory memory;
+    private R5CPU cpu;
+
+    @BeforeEach
+    public void setupEach() {
+        memoryMap = new SimpleMemoryMap();
+        memory = Memory.create(MEMORY_LENGTH);
+        memoryMap.addDevice(MEMORY_START, memory);
+        cpu = R5CPU.create(memoryMap);
+        memoryMap.setCpu(cpu);
+    }
+
+    @Test
+    public void testStoreInvalidatesPredecodedInstructions() throws MemoryAccessException {
+        testStoreInvalidatesCode(0, PREDECODED_ITERATIONS);
+    }
+
+    @Test
+    public void testStoreInvalidatesCompiledBlock() throws MemoryAccessException {
+        testStoreInvalidatesCode(0, COMPILED_ITERATIONS);
+    }
+
+    @Test
+    public void testStoreBeforeExecutionInvalidatesCode() throws MemoryAccessException {
+        // Stores to a page before running code in it, so the store TLB has an entry for the page from before it
+        // held any code. Stores through that entry must still invalidate the code cached later.
+        final TestAssembler program = new TestAssembler()
+            .la(T0, PAGE_SIZE)
+            .emit(lw(T1, T0, 0))
+            .emit(sw(T1, T0, 0));
+        program
+            .emit(jal(ZERO, PAGE_SIZE - program.position()))
+            .storeTo(memory, 0);
+
+        testStoreInvalidatesCode(PAGE_SIZE, PREDECODED_ITERATIONS);
+    }
+
+    @Test
+    public void testNotifyInvalidatesCompiledBlock() throws MemoryAccessException {
+        // Devices writing to memory, e.g. via DMA, go through the memory map, which notifies the CPU.
+        final TestAssembler program = new TestAssembler();
+        final int patch = program.position();
+        program
+            .emit(addi(A0, A0, 1))
+            .emit(jal(ZERO, patch - program.position()));
+        program.storeTo(memory, 0);
+
+        cpu.reset(true, MEMORY_START);
+        for (int i = 0; i < 10; i++) {
+            cpu.step(100_000);
+        }
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        final long count = x[A0];
+        assertTrue(count > 0);
+
+        memoryMap.store(MEMORY_START + patch, addi(A0, A0, -1), Sizes.SIZE_32_LOG2);
+        for (int i = 0; i < 10; i++) {
+            cpu.step(100_000);
+        }
+        assertTrue(x[A0] < count, "stale code was run after device write");
+    }
+
+    @Test
+    public void testResetDropsCompiledBlocks() throws MemoryAccessException {
+        // Programs are usually loaded into memory directly, without notifying the CPU, before it gets reset.
+        final TestAssembler program = new TestAssembler();
+        final int patch = program.position();
+        program
+            .emit(addi(A0, A0, 1))
+            .emit(jal(ZERO, patch - program.position()));
+        program.storeTo(memory, 0);
+
+        cpu.reset(true, MEMORY_START);
+        for (int i = 0; i < 10; i++) {
+            cpu.step(100_000);
+        }
+        assertTrue(cpu.getDebugInterface().getGeneralRegisters()[A0] > 0);
+
+        memory.store(patch, addi(A0, A0, -1), Sizes.SIZE_32_LOG2);
+        cpu.reset(true, MEMORY_START);
+        cpu.step(100_000);
+        assertTrue(cpu.getDebugInterface().getGeneralRegisters()[A0] < 0, "stale code was run after reset");
+    }
+
+    @Test
+    public void testLoopAcrossPageEnd() throws MemoryAccessException {
+        // A loop starting at the end of one page and ending in the next, with a 32bit instruction spanning both.
+        final int start = PAGE_SIZE - 8;
+        final TestAssembler program = new TestAssembler()
+            .li(S1, COMPILED_ITERATIONS);
+        program
+            .emit(jal(ZERO, start - program.position()))
+            .storeTo(memory, 0);
+        memory.store(start, addi(A0, A0, 1), Sizes.SIZE_32_LOG2);
+        memory.store(start + 4, 0x0505, Sizes.SIZE_16_LOG2); // c.addi a0, 1
+        memory.store(start + 6, addi(A0, A0, 1), Sizes.SIZE_32_LOG2); // Spans the page end.
+        memory.store(start + 10, addi(S1, S1, -1), Sizes.SIZE_32_LOG2);
+        memory.store(start + 14, bne(S1, ZERO, -14), Sizes.SIZE_32_LOG2);
+        memory.store(start + 18, LOOP, Sizes.SIZE_32_LOG2);
+
+        run(start + 18);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(3L * COMPILED_ITERATIONS, x[A0]);
+        assertEquals(0, x[S1]);
+    }
+
+    @Test
+    public void testIllegalInstructionAfterLoop() throws MemoryAccessException {
+        // Traces, pre-decoded and compiled code running into an illegal instruction report it and its address.
+        for (final int iterations : new int[]{1, PREDECODED_ITERATIONS, COMPILED_ITERATIONS}) {
+            final TestAssembler program = withTrapHandler()
+                .li(S1, iterations);
+            final int loop = program.position();
+            program
+                .emit(addi(A0, A0, 1))
+                .emit(addi(S1, S1, -1))
+                .emit(bne(S1, ZERO, loop - program.position()));
+            final int illegal = program.position();
+            program.emit(csrrw(ZERO, 0xC00, ZERO)); // unimp, writes the read-only cycle CSR.
+            program.storeTo(memory, 0);
+
+            runUntilTrap(0x00000000);
+
+            final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+            assertEquals(iterations, x[A0]);
+            assertEquals(R5.EXCEPTION_ILLEGAL_INSTRUCTION, x[A3]);
+            assertEquals(MEMORY_START + illegal, x[A1]);
+            assertEquals(csrrw(ZERO, 0xC00, ZERO), (int) x[A2]);
+        }
+    }
+
+    @Test
+    public void testFusedInstructionFault() throws MemoryAccessException {
+        // An indexed load, fused with the add computing its address, that eventually reads past the end of memory.
+        final TestAssembler program = withTrapHandler()
+            .li(S1, 0);
+        final int loop = program.position();
+        program
+            .emit(add(T0, S0, S1))
+            .emit(ld(T1, T0, 0))
+            .emit(addi(S1, S1, 8))
+            .emit(jal(ZERO, loop - program.position()));
+        program.storeTo(memory, 0);
+
+        final long end = MEMORY_START + MEMORY_LENGTH;
+        runUntilTrap(end - PREDECODED_ITERATIONS * 8L);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[A3]);
+        assertEquals(MEMORY_START + loop + 4, x[A1]);
+        assertEquals(end, x[A2]);
+        assertEquals(end, x[T0]);
+        assertEquals(PREDECODED_ITERATIONS * 8L, x[S1]);
+    }
+
+    private void testStoreInvalidatesCode(final int offset, final int iterations) throws MemoryAccessException {
+        // Runs a loop, then replaces an instruction in it and runs it again, without FENCE.I.
+        final TestAssembler program = new TestAssembler()
+            .li(S1, iterations)
+            .li(S2, 2)
+            .li(T1, addi(A0, A0, 2));
+        final int loop = program.position() + 8; // After the la.
+        program
+            .la(S0, loop)
+            .emit(addi(A0, A0, 1)) // Replaced after the first run.
+            .emit(addi(S1, S1, -1))
+            .emit(bne(S1, ZERO, loop - program.position()))
+            .emit(sw(T1, S0, 0))
+            .li(S1, iterations)
+            .emit(addi(S2, S2, -1))
+            .emit(bne(S2, ZERO, loop - program.position()));
+        final int end = program.position();
+        program.loop();
+        program.storeTo(memory, offset);
+
+        run(offset + end);
+
+        assertEquals(3L * iterations, cpu.getDebugInterface().getGeneralRegisters()[A0]);
+    }
+
+    /**
+     * Starts a program with a trap handler that stores mepc, mtval and mcause in a1, a2 and a3, then loops.
+     */
+    private static TestAssembler withTrapHandler() {
+        final int start = 12;
+        final TestAssembler program = new TestAssembler()
+            .la(T0, TRAP_HANDLER)
+            .emit(csrrw(ZERO, CSR_MTVEC, T0));
+        assertEquals(start, program.position());
+        return program;
+    }
+
+    private void runUntilTrap(final long s0) throws MemoryAccessException {
+        store(memory, TRAP_HANDLER,
+            csrrs(A1, CSR_MEPC, ZERO),
+            csrrs(A2, CSR_MTVAL, ZERO),
+            csrrs(A3, CSR_MCAUSE, ZERO),
+            LOOP);
+
+        cpu.reset(true, MEMORY_START);
+        cpu.getDebugInterface().getGeneralRegisters()[S0] = s0;
+        final long end = MEMORY_START + TRAP_HANDLER + 12;
+        for (int i = 0; i < 10_000 && cpu.getDebugInterface().getProgramCounter() != end; i++) {
+            cpu.step(100_000);
+        }
+        assertEquals(end, cpu.getDebugInterface().getProgramCounter());
+    }
+
+    private void run(final int end) {
+        cpu.reset(true, MEMORY_START);
+        for (int i = 0; i < 10_000 && cpu.getDebugInterface().getProgramCounter() != MEMORY_START + end; i++) {
+            cpu.step(100_000);
+        }
+        assertEquals(MEMORY_START + end, cpu.getDebugInterface().getProgramCounter());
+    }
+}
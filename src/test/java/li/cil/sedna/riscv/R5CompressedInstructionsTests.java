@@ -0,0 +1,53 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.instruction.InstructionDeclaration;
+import li.cil.sedna.instruction.InstructionType;
+import li.cil.sedna.instruction.argument.InstructionArgument;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5CompressedInstructionsTests {
+    @Test
+    public void testExpansionRV32() {
+        testExpansion(R5Instructions.RV32);
+    }
+
+    @Test
+    public void testExpansionRV64() {
+        testExpansion(R5Instructions.RV64);
+    }
+
+    private static void testExpansion(final R5Instructions.Spec spec) {
+        final int[] table = spec.getCompressedExpansionTable();
+        for (int instruction = 0; instruction < R5CompressedInstructions.TABLE_SIZE; instruction++) {
+            if (!R5CompressedInstructions.isCompressed(instruction)) {
+                continue;
+            }
+
+            final int expandedInstruction = table[instruction];
+            assertTrue(R5CompressedInstructions.isCompressed(expandedInstruction));
+
+            final InstructionDeclaration declaration = spec.getDecoderTree().query(instruction);
+            final InstructionDeclaration expandedDeclaration = spec.getExpandedDecoderTree().query(expandedInstruction);
+            final String message = String.format("%04x -> %08x", instruction, expandedInstruction);
+            if (declaration == null || declaration.type == InstructionType.ILLEGAL) {
+                assertTrue(expandedDeclaration == null || expandedDeclaration.type == InstructionType.ILLEGAL, message);
+            } else if (declaration.type == InstructionType.NOP) {
+                assertNotNull(expandedDeclaration, message);
+                assertEquals(0, expandedDeclaration.arguments.get("rd").get(expandedInstruction), message);
+            } else {
+                assertNotNull(expandedDeclaration, message);
+                assertEquals(declaration.name, expandedDeclaration.name, message);
+                assertEquals(spec.getDefinition(declaration).methodName, spec.getDefinition(expandedDeclaration).methodName, message);
+                assertEquals(declaration.arguments.keySet(), expandedDeclaration.arguments.keySet(), message);
+                for (final Map.Entry<String, InstructionArgument> entry : declaration.arguments.entrySet()) {
+                    assertEquals(entry.getValue().get(instruction),
+                        expandedDeclaration.arguments.get(entry.getKey()).get(expandedInstruction), message);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import li.cil.sedna.api.device.EventScheduler;
+import li.cil.sedna.api.device.ScheduledSteppable;
+import li.cil.sedna.api.device.rtc.RealTimeCounter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5EventSchedulerTests {
+    private TestCounter rtc;
+    private R5EventScheduler scheduler;
+
+    @BeforeEach
+    public void setupEach() {
+        rtc = new TestCounter();
+        scheduler = new R5EventScheduler(rtc);
+    }
+
+    @Test
+    public void testEmptyQueue() {
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventTime());
+    }
+
+    @Test
+    public void testStepsDevicesWhenDue() {
+        final TestDevice early = new TestDevice();
+        final TestDevice late = new TestDevice();
+        scheduler.schedule(late, 200);
+        scheduler.schedule(early, 100);
+        assertEquals(100, scheduler.getNextEventTime());
+
+        rtc.time = 99;
+        scheduler.stepDueDevices(1000);
+        assertTrue(early.steps.isEmpty());
+
+        rtc.time = 150;
+        scheduler.stepDueDevices(1000);
+        assertEquals(1, early.steps.size());
+        assertTrue(late.steps.isEmpty());
+        assertEquals(200, scheduler.getNextEventTime());
+
+        rtc.time = 200;
+        scheduler.stepDueDevices(1000);
+        assertEquals(1, early.steps.size());
+        assertEquals(1, late.steps.size());
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventTime());
+    }
+
+    @Test
+    public void testKeepsEarliestEvent() {
+        final TestDevice device = new TestDevice();
+        scheduler.schedule(device, 100);
+        scheduler.schedule(device, 200);
+        scheduler.schedule(device, 50);
+
+        rtc.time = 300;
+        scheduler.stepDueDevices(1000);
+        assertEquals(1, device.steps.size());
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventTime());
+    }
+
+    @Test
+    public void testPassesCyclesSinceLastStep() {
+        final TestDevice device = new TestDevice();
+        scheduler.schedule(device);
+        scheduler.stepDueDevices(1000);
+
+        rtc.time = 300;
+        scheduler.schedule(device);
+        scheduler.stepDueDevices(1000);
+
+        rtc.time = 5000;
+        scheduler.schedule(device);
+        scheduler.stepDueDevices(1000);
+
+        assertEquals(IntArrayList.of(1000, 300, 1000), device.steps);
+    }
+
+    @Test
+    public void testDevicesMayRescheduleWhileStepped() {
+        final TestDevice device = new TestDevice() {
+            @Override
+            public void step(final int cycles) {
+                super.step(cycles);
+                scheduler.schedule(this, rtc.time + 10);
+            }
+        };
+        scheduler.schedule(device);
+        scheduler.stepDueDevices(1000);
+        assertEquals(10, scheduler.getNextEventTime());
+    }
+
+    private static final class TestCounter implements RealTimeCounter {
+        public long time;
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public int getFrequency() {
+            return 1_000_000;
+        }
+    }
+
+    private static class TestDevice implements ScheduledSteppable {
+        public final IntArrayList steps = new IntArrayList();
+
+        @Override
+        public void step(final int cycles) {
+            steps.add(cycles);
+        }
+
+        @Override
+        public void setEventScheduler(@Nullable final EventScheduler scheduler) {
+        }
+    }
+}
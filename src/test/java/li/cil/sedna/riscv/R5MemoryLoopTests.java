@@ -0,0 +1,180 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5MemoryLoopTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x10000;
+
+    @Test
+    public void testRecognizeCopyLoop() throws MemoryAccessException {
+        final R5MemoryLoop loop = recognize(R5Instructions.RV64, R5.XLEN_64,
+            ld(T0, A1, 0),
+            ld(T1, A1, 8),
+            sd(T0, A0, 0),
+            sd(T1, A0, 8),
+            addi(A1, A1, 16),
+            addi(A0, A0, 16),
+            branch(BLTU, A1, A2, -24));
+        assertEquals(new R5MemoryLoop(7, 16, A0, A1, -1, -1, R5MemoryLoop.Branch.BLTU, A1, A2), loop);
+    }
+
+    @Test
+    public void testRecognizeCopyLoopWithAccessesAfterIncrement() throws MemoryAccessException {
+        final R5MemoryLoop loop = recognize(R5Instructions.RV64, R5.XLEN_64,
+            lb(T0, A1, 0),
+            addi(A1, A1, 1),
+            addi(A0, A0, 1),
+            sb(T0, A0, -1),
+            branch(BNE, A2, A0, -16));
+        assertEquals(new R5MemoryLoop(5, 1, A0, A1, -1, -1, R5MemoryLoop.Branch.BNE, A0, A2), loop);
+    }
+
+    @Test
+    public void testRecognizeFillLoopRV32() throws MemoryAccessException {
+        final R5MemoryLoop loop = recognize(R5Instructions.RV32, R5.XLEN_32,
+            sw(A3, A0, 0),
+            sw(A3, A0, 4),
+            addi(A0, A0, 8),
+            branch(BLT, A0, A2, -12));
+        assertEquals(new R5MemoryLoop(4, 8, A0, -1, A3, Sizes.SIZE_32_LOG2, R5MemoryLoop.Branch.BLT, A0, A2), loop);
+    }
+
+    @Test
+    public void testRejectIncompleteStores() throws MemoryAccessException {
+        assertNull(recognize(R5Instructions.RV64, R5.XLEN_64,
+            sd(0, A0, 0),
+            addi(A0, A0, 16),
+            branch(BNE, A0, A2, -8)));
+    }
+
+    @Test
+    public void testRejectMismatchedCopy() throws MemoryAccessException {
+        assertNull(recognize(R5Instructions.RV64, R5.XLEN_64,
+            ld(T0, A1, 0),
+            ld(T1, A1, 8),
+            sd(T1, A0, 0),
+            sd(T0, A0, 8),
+            addi(A1, A1, 16),
+            addi(A0, A0, 16),
+            branch(BLTU, A1, A2, -24)));
+    }
+
+    @Test
+    public void testRecognizeCopyLoopReusingRegister() throws MemoryAccessException {
+        final R5MemoryLoop loop = recognize(R5Instructions.RV64, R5.XLEN_64,
+            ld(T0, A1, 0),
+            sd(T0, A0, 0),
+            ld(T0, A1, 8),
+            sd(T0, A0, 8),
+            addi(A1, A1, 16),
+            addi(A0, A0, 16),
+            branch(BLTU, A1, A2, -24));
+        assertEquals(new R5MemoryLoop(7, 16, A0, A1, -1, -1, R5MemoryLoop.Branch.BLTU, A1, A2), loop);
+    }
+
+    @Test
+    public void testRejectReloadBeforeStore() throws MemoryAccessException {
+        // The first load reads outside the source range, and its value is never stored.
+        assertNull(recognize(R5Instructions.RV64, R5.XLEN_64,
+            ld(T0, A1, 64),
+            ld(T0, A1, 0),
+            sd(T0, A0, 0),
+            addi(A1, A1, 8),
+            addi(A0, A0, 8),
+            branch(BLTU, A1, A2, -20)));
+    }
+
+    @Test
+    public void testRejectUnknownInstruction() throws MemoryAccessException {
+        assertNull(recognize(R5Instructions.RV64, R5.XLEN_64,
+            ld(T0, A1, 0),
+            sd(T0, A0, 0),
+            add(T0, T0, T0),
+            addi(A1, A1, 8),
+            addi(A0, A0, 8),
+            branch(BLTU, A1, A2, -20)));
+    }
+
+    @Test
+    public void testRemainingIterations() {
+        final R5MemoryLoop loop = new R5MemoryLoop(7, 16, A0, A1, -1, -1, R5MemoryLoop.Branch.BLTU, A1, A2);
+        assertEquals(4, loop.getRemainingIterations(0x1000, 0x1040, R5.XLEN_64));
+        assertEquals(4, loop.getRemainingIterations(0x1000, 0x1031, R5.XLEN_64));
+        assertEquals(1, loop.getRemainingIterations(0x1040, 0x1000, R5.XLEN_64));
+        assertEquals(-1, loop.getRemainingIterations(0x1000, -1L, R5.XLEN_64));
+        assertEquals(1, loop.getRemainingIterations(0xFFFFFFFF_FFFFFFE0L, 0xFFFFFFFF_FFFFFFF0L, R5.XLEN_32));
+        assertEquals(-1, loop.getRemainingIterations(0xFFFFFFFF_FFFFFFE0L, 0xFFFFFFFF_FFFFFFF1L, R5.XLEN_32));
+    }
+
+    @Test
+    public void testCopyLoopAcrossPages() throws MemoryAccessException {
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        final PhysicalMemory memory = Memory.create(MEMORY_LENGTH);
+        memoryMap.addDevice(MEMORY_START, memory);
+        final R5CPU cpu = R5CPU.create(memoryMap);
+        memoryMap.setCpu(cpu);
+
+        final int source = 0x1800, destination = 0x5400, length = 0x1000, repetitions = 64;
+        for (int i = 0; i < length; i++) {
+            memory.store(source + i, i * 31 + 7, Sizes.SIZE_8_LOG2);
+        }
+
+        final int[] program = {
+            addi(S3, 0, repetitions),
+            csrrs(S4, 0xC00, 0), // rdcycle
+            // outer:
+            addi(A0, S0, 0),
+            addi(A1, S1, 0),
+            add(A2, A1, S2),
+            // inner:
+            ld(T0, A1, 0),
+            ld(T1, A1, 8),
+            sd(T0, A0, 0),
+            sd(T1, A0, 8),
+            addi(A1, A1, 16),
+            addi(A0, A0, 16),
+            branch(BLTU, A1, A2, -24),
+            addi(S3, S3, -1),
+            branch(BNE, S3, 0, -44),
+            csrrs(S5, 0xC00, 0), // rdcycle
+            LOOP,
+        };
+        store(memory, 0, program);
+
+        cpu.reset(true, MEMORY_START);
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        x[S0] = MEMORY_START + destination;
+        x[S1] = MEMORY_START + source;
+        x[S2] = length;
+
+        final long end = MEMORY_START + (program.length - 1) * 4L;
+        for (int i = 0; i < 10_000 && cpu.getDebugInterface().getProgramCounter() != end; i++) {
+            cpu.step(1_000);
+        }
+        assertEquals(end, cpu.getDebugInterface().getProgramCounter());
+
+        for (int i = 0; i < length; i++) {
+            assertEquals(memory.load(source + i, Sizes.SIZE_8_LOG2), memory.load(destination + i, Sizes.SIZE_8_LOG2));
+        }
+        assertEquals(MEMORY_START + destination + length, x[A0]);
+        assertEquals(MEMORY_START + source + length, x[A1]);
+        assertEquals(memory.load(source + length - 16, Sizes.SIZE_64_LOG2), x[T0]);
+        assertEquals(memory.load(source + length - 8, Sizes.SIZE_64_LOG2), x[T1]);
+        assertEquals(1 + repetitions * (3 + (length / 16) * 7 + 2), x[S5] - x[S4]);
+    }
+
+    private static R5MemoryLoop recognize(final R5Instructions.Spec spec, final int xlen, final int... program) throws MemoryAccessException {
+        final PhysicalMemory memory = Memory.create(MEMORY_LENGTH);
+        store(memory, 0, program);
+        return R5MemoryLoop.recognize(spec, xlen, memory, 0, program.length * 4);
+    }
+}
@@ -0,0 +1,113 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks which stores clear a reservation taken by LR. Reservations cover the 8 byte block holding the reserved
+ * word. Memory is all zeroes and stores write zeroes, so SC only fails because its reservation was cleared.
+ */
+public class R5ReservationTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x10000;
+    private static final int RESERVED = 0x8800; // Not at a page boundary, so stores crossing into it aren't split.
+    private static final int FILL_LENGTH = 0x200;
+    private static final int REPETITIONS = 64; // Enough for the fill loop to be run as bulk operation.
+
+    private PhysicalMemory memory;
+    private R5CPU cpu;
+
+    @BeforeEach
+    public void setupEach() {
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        memory = Memory.create(MEMORY_LENGTH);
+        memoryMap.addDevice(MEMORY_START, memory);
+        cpu = R5CPU.create(memoryMap);
+        memoryMap.setCpu(cpu);
+    }
+
+    @Test
+    public void testStoresOverlappingReservedBlockClearReservation() throws MemoryAccessException {
+        assertFalse(storeConditionalAfter(sb(ZERO, S1, 7))); // Last byte of the block.
+        assertFalse(storeConditionalAfter(sw(ZERO, S1, -2))); // Starts before the block.
+        assertFalse(storeConditionalAfter(sd(ZERO, S1, -4))); // Starts before the block.
+        assertFalse(storeConditionalAfter(sd(ZERO, S1, 4))); // Ends after the block.
+    }
+
+    @Test
+    public void testStoresNextToReservedBlockKeepReservation() throws MemoryAccessException {
+        assertTrue(storeConditionalAfter(sb(ZERO, S1, -1)));
+        assertTrue(storeConditionalAfter(sd(ZERO, S1, -8)));
+        assertTrue(storeConditionalAfter(sb(ZERO, S1, 8)));
+    }
+
+    @Test
+    public void testFillLoopOverReservedBlockClearsReservation() throws MemoryAccessException {
+        // The reserved block is in the middle of the filled range, so it is filled by the bulk operation,
+        // not by the last iteration, which is always run instruction by instruction.
+        assertEquals(REPETITIONS, storeConditionalFailuresAfterFillLoop(RESERVED - 0x100));
+    }
+
+    @Test
+    public void testFillLoopNextToReservedBlockKeepsReservation() throws MemoryAccessException {
+        assertEquals(0, storeConditionalFailuresAfterFillLoop(RESERVED - FILL_LENGTH)); // Ends right before the block.
+        assertEquals(0, storeConditionalFailuresAfterFillLoop(RESERVED + 8)); // Starts right after the block.
+    }
+
+    private boolean storeConditionalAfter(final int store) throws MemoryAccessException {
+        run(new int[]{
+            lrw(T2, S1),
+            store,
+            scw(T3, ZERO, S1),
+            LOOP,
+        });
+        return cpu.getDebugInterface().getGeneralRegisters()[T3] == 0;
+    }
+
+    private long storeConditionalFailuresAfterFillLoop(final int fillStart) throws MemoryAccessException {
+        run(new int[]{
+            addi(S3, ZERO, REPETITIONS),
+            // outer:
+            lrw(T2, S1),
+            addi(A0, S0, 0),
+            addi(A2, A0, FILL_LENGTH),
+            jal(ZERO, 4), // Ends the block, so the fill loop is entered at its first iteration.
+            // inner:
+            sd(ZERO, A0, 0),
+            addi(A0, A0, 8),
+            branch(BLTU, A0, A2, -8),
+            scw(T3, ZERO, S1),
+            add(S4, S4, T3),
+            addi(S3, S3, -1),
+            branch(BNE, S3, ZERO, -40),
+            LOOP,
+        }, fillStart);
+        return cpu.getDebugInterface().getGeneralRegisters()[S4];
+    }
+
+    private void run(final int[] program) throws MemoryAccessException {
+        run(program, 0);
+    }
+
+    private void run(final int[] program, final int fillStart) throws MemoryAccessException {
+        store(memory, 0, program);
+
+        cpu.reset(true, MEMORY_START);
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        x[S0] = MEMORY_START + fillStart;
+        x[S1] = MEMORY_START + RESERVED;
+
+        final long end = MEMORY_START + (program.length - 1) * 4L;
+        for (int i = 0; i < 1_000 && cpu.getDebugInterface().getProgramCounter() != end; i++) {
+            cpu.step(1_000);
+        }
+        assertEquals(end, cpu.getDebugInterface().getProgramCounter());
+    }
+}
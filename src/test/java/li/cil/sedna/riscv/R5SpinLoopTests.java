@@ -0,0 +1,86 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5SpinLoopTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x4000;
+
+    @Test
+    public void testDecodePause() {
+        assertEquals("PAUSE", R5Instructions.RV32.getDecoderTree().query(PAUSE).name);
+        assertEquals("PAUSE", R5Instructions.RV64.getDecoderTree().query(PAUSE).name);
+        assertEquals("FENCE", R5Instructions.RV64.getDecoderTree().query(0x0FF0000F).name);
+    }
+
+    @Test
+    public void testRecognizePollingLoop() throws MemoryAccessException {
+        final R5SpinLoop loop = recognize(
+            lw(T0, A0, 0),
+            PAUSE,
+            bne(T0, ZERO, -8));
+        assertNotNull(loop);
+        assertEquals(3, loop.instructionCount());
+        assertArrayEquals(new int[]{T0}, loop.registers());
+    }
+
+    @Test
+    public void testRejectCountingLoop() throws MemoryAccessException {
+        assertNull(recognize(
+            lw(T0, A0, 0),
+            addi(A1, A1, -1),
+            bne(A1, T0, -8)));
+    }
+
+    @Test
+    public void testRejectStores() throws MemoryAccessException {
+        assertNull(recognize(
+            lw(T0, A0, 0),
+            sw(T0, A0, 4),
+            bne(T0, ZERO, -8)));
+    }
+
+    @Test
+    public void testSkipSpinning() throws MemoryAccessException {
+        final SimpleMemoryMap memoryMap = new SimpleMemoryMap();
+        final PhysicalMemory memory = Memory.create(MEMORY_LENGTH);
+        memoryMap.addDevice(MEMORY_START, memory);
+        final R5CPU cpu = R5CPU.create(memoryMap);
+        memoryMap.setCpu(cpu);
+
+        store(memory, 0,
+            lw(T0, A0, 0),
+            bne(T0, ZERO, -4),
+            LOOP);
+        memory.store(0x1000, 1, Sizes.SIZE_32_LOG2);
+
+        cpu.reset(true, MEMORY_START);
+        cpu.getDebugInterface().getGeneralRegisters()[A0] = MEMORY_START + 0x1000;
+
+        for (int i = 0; i < 100; i++) {
+            cpu.step(100_000);
+        }
+
+        assertTrue(cpu.getTime() >= 10_000_000);
+        assertTrue(cpu.getTLBHitCount() < 100_000, "spin loop was run instead of skipped");
+
+        // Once the value changes, the loop exits.
+        memory.store(0x1000, 0, Sizes.SIZE_32_LOG2);
+        cpu.step(100_000);
+        assertEquals(MEMORY_START + 8, cpu.getDebugInterface().getProgramCounter());
+    }
+
+    private static R5SpinLoop recognize(final int... program) throws MemoryAccessException {
+        final PhysicalMemory memory = Memory.create(MEMORY_LENGTH);
+        store(memory, 0, program);
+        return R5SpinLoop.recognize(R5Instructions.RV64, memory, 0, program.length * 4);
+    }
+}
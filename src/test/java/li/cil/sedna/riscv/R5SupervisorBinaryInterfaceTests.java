@@ -0,0 +1,144 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.serial.UART16550A;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R5SupervisorBinaryInterfaceTests {
+    private static final int EXT_LEGACY_CONSOLE_PUTCHAR = 0x01;
+    private static final int EXT_BASE = 0x10;
+    private static final int EXT_IPI = 0x735049;
+    private static final int EXT_RFENCE = 0x52464E43;
+    private static final int EXT_HSM = 0x48534D;
+    private static final int EXT_SRST = 0x53525354;
+    private static final int EXT_DBCN = 0x4442434E;
+
+    private static final int SECONDARY_ENTRY = 0x100;
+
+    @Test
+    public void testBootsInSupervisorMode() throws MemoryAccessException {
+        final R5Board board = createBoard(1, new TestAssembler()
+            .sbiCall(EXT_BASE, 0) // get_spec_version
+            .loop());
+
+        board.step(10_000);
+
+        // Only ECALLs from supervisor mode are handled by the board.
+        final long[] registers = board.getCpu().getDebugInterface().getGeneralRegisters();
+        assertEquals(0, registers[A0]);
+        assertEquals(2 << 24, registers[A1]);
+    }
+
+    @Test
+    public void testConsole() throws MemoryAccessException {
+        final R5Board board = new R5Board();
+        final UART16550A uart = new UART16550A();
+        board.addDevice(uart);
+        board.setStandardOutputDevice(uart);
+        start(board, new TestAssembler()
+            .li(A0, 'H')
+            .sbiCall(EXT_LEGACY_CONSOLE_PUTCHAR, 0)
+            .li(A0, 'i')
+            .sbiCall(EXT_DBCN, 2) // console_write_byte
+            .loop());
+
+        board.step(10_000);
+        assertEquals('H', uart.read());
+        assertEquals(-1, uart.read());
+
+        // Writing blocks until the console can take the next byte.
+        board.step(10_000);
+        assertEquals('i', uart.read());
+        assertEquals(-1, uart.read());
+    }
+
+    @Test
+    public void testSendIPI() throws MemoryAccessException {
+        final R5Board board = createBoard(1, new TestAssembler()
+            .li(A0, 1)
+            .li(A1, 0)
+            .sbiCall(EXT_IPI, 0) // send_ipi
+            .loop());
+
+        board.step(10_000);
+
+        assertEquals(0, board.getCpu().getDebugInterface().getGeneralRegisters()[A0]);
+        assertNotEquals(0, board.getCpu().getRaisedInterrupts() & R5.SSIP_MASK);
+    }
+
+    @Test
+    public void testRemoteFenceWithStoppedHart() throws MemoryAccessException {
+        final R5Board board = createBoard(2, new TestAssembler()
+            .li(A0, 0)
+            .li(A1, -1) // All harts.
+            .sbiCall(EXT_RFENCE, 1) // remote_sfence_vma
+            .loop());
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> board.step(10_000));
+
+        assertEquals(0, board.getCpu().getDebugInterface().getGeneralRegisters()[A0]);
+    }
+
+    @Test
+    public void testHartStart() throws MemoryAccessException {
+        final R5Board board = createBoard(2, new TestAssembler()
+            .li(A0, 1)
+            .la(A1, SECONDARY_ENTRY)
+            .li(A2, 42)
+            .sbiCall(EXT_HSM, 0) // hart_start
+            .li(A0, 1)
+            .sbiCall(EXT_HSM, 2) // hart_get_status
+            .loop());
+
+        final R5CPU secondary = board.getHarts().get(1);
+        assertTrue(secondary.isStopped());
+
+        board.step(10_000);
+
+        final long[] registers = board.getCpu().getDebugInterface().getGeneralRegisters();
+        assertEquals(0, registers[A0]);
+        assertEquals(0, registers[A1]); // Started.
+
+        assertFalse(secondary.isStopped());
+        final long[] secondaryRegisters = secondary.getDebugInterface().getGeneralRegisters();
+        assertEquals(board.getDefaultProgramStart() + SECONDARY_ENTRY, secondary.getDebugInterface().getProgramCounter());
+        assertEquals(1, secondaryRegisters[A0]);
+        assertEquals(42, secondaryRegisters[A1]);
+    }
+
+    @Test
+    public void testSystemReset() throws MemoryAccessException {
+        final R5Board board = createBoard(1, new TestAssembler()
+            .li(A0, 0) // Shutdown.
+            .li(A1, 0)
+            .sbiCall(EXT_SRST, 0) // system_reset
+            .loop());
+
+        board.step(10_000);
+
+        assertFalse(board.isRunning());
+    }
+
+    private static R5Board createBoard(final int hartCount, final TestAssembler program) throws MemoryAccessException {
+        final R5Board board = new R5Board(hartCount);
+        start(board, program);
+        return board;
+    }
+
+    private static void start(final R5Board board, final TestAssembler program) throws MemoryAccessException {
+        board.addDevice(board.getDefaultProgramStart(), Memory.create(0x10000));
+
+        program.padTo(SECONDARY_ENTRY).loop();
+        program.storeTo(board.getMemoryMap(), board.getDefaultProgramStart());
+
+        board.setBuiltInSBIEnabled(true);
+        board.initialize();
+        board.setRunning(true);
+    }
+}
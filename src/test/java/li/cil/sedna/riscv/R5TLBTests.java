@@ -0,0 +1,413 @@
+package li.cil.sedna.riscv;
+
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.device.memory.Memory;
+import li.cil.sedna.device.memory.UnsafeMemory;
+import li.cil.sedna.memory.SimpleMemoryMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static li.cil.sedna.riscv.TestAssembler.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs programs with Sv39 page tables set up by the test, changes the page tables or the translation context
+ * while they run, and checks that loads see the translations they should.
+ * <p>
+ * Programs run in supervisor mode unless noted otherwise, with code in a global gigapage identity mapping the
+ * start of memory. Virtual addresses below are in the gigapage at {@code 0x40000000}, which goes through a second
+ * and third level table. Accesses that fault are skipped by the machine mode trap handler, which leaves the exception
+ * code in {@code t3} and the faulting address in {@code t5}.
+ */
+public class R5TLBTests {
+    private static final long MEMORY_START = 0x80000000L;
+    private static final int MEMORY_LENGTH = 0x800000;
+
+    private static final int CSR_SSTATUS = 0x100, CSR_SATP = 0x180;
+    private static final int CSR_MSTATUS = 0x300, CSR_MTVEC = 0x305, CSR_MEPC = 0x341, CSR_MCAUSE = 0x342;
+    private static final int CSR_MTVAL = 0x343;
+    private static final int TRAP_HANDLER = 0x800;
+
+    // Offsets of page tables and pages from the start of memory.
+    private static final int ROOT_TABLE = 0x100000;
+    private static final int LEVEL1_TABLE = 0x101000;
+    private static final int LEVEL0_TABLE = 0x102000;
+    private static final int OTHER_LEVEL0_TABLE = 0x103000;
+    private static final int PAGE_A = 0x110000, PAGE_B = 0x111000, PAGE_C = 0x112000, PAGE_D = 0x113000;
+    private static final int MEGAPAGE_A = 0x200000, MEGAPAGE_B = 0x400000;
+
+    private static final int PAGE_0 = 0x40000000, PAGE_1 = 0x40001000, PAGE_2 = 0x40002000;
+    private static final int MEGAPAGE_PAGE_0 = 0x40200000, MEGAPAGE_PAGE_1 = 0x40201000;
+
+    private static final int DATA = R5.PTE_V_MASK | R5.PTE_R_MASK | R5.PTE_W_MASK | R5.PTE_A_MASK | R5.PTE_D_MASK;
+
+    private SimpleMemoryMap memoryMap;
+    private PhysicalMemory memory;
+    private R5CPU cpu;
+
+    @BeforeEach
+    public void setupEach() throws MemoryAccessException {
+        memoryMap = new SimpleMemoryMap();
+        memory = Memory.create(MEMORY_LENGTH);
+        memoryMap.addDevice(MEMORY_START, memory);
+        cpu = R5CPU.create(memoryMap);
+        memoryMap.setCpu(cpu);
+
+        setEntry(ROOT_TABLE, 1, pointer(LEVEL1_TABLE));
+        setEntry(ROOT_TABLE, 2, leaf(0, R5.PTE_V_MASK | R5.PTE_R_MASK | R5.PTE_W_MASK | R5.PTE_X_MASK |
+                                        R5.PTE_G_MASK | R5.PTE_A_MASK | R5.PTE_D_MASK));
+        setEntry(LEVEL1_TABLE, 0, pointer(LEVEL0_TABLE));
+
+        // Each page starts with a value identifying it.
+        for (final int page : new int[]{PAGE_A, PAGE_B, PAGE_C, PAGE_D, MEGAPAGE_A, MEGAPAGE_B}) {
+            memory.store(page, page, Sizes.SIZE_64_LOG2);
+            memory.store(page + 0x1000, page + 0x1000, Sizes.SIZE_64_LOG2);
+        }
+    }
+
+    @Test
+    public void testSfenceWithAddressFlushesSuperpage() throws MemoryAccessException {
+        setEntry(LEVEL1_TABLE, 1, leaf(MEGAPAGE_A, DATA));
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, MEGAPAGE_PAGE_0)
+            .li(S1, MEGAPAGE_PAGE_1)
+            .emit(ld(A0, S0, 0))
+            .emit(ld(A1, S1, 0))
+            .la(T0, LEVEL1_TABLE)
+            .li(T1, (int) leaf(MEGAPAGE_B, DATA))
+            .emit(sd(T1, T0, 8))
+            .emit(sfenceVma(S1, ZERO))
+            .emit(ld(A2, S0, 0))
+            .emit(ld(A3, S1, 0));
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(MEGAPAGE_A, x[A0]);
+        assertEquals(MEGAPAGE_A + 0x1000, x[A1]);
+        assertEquals(MEGAPAGE_B, x[A2]);
+        assertEquals(MEGAPAGE_B + 0x1000, x[A3]);
+        assertTrue(cpu.getTLBSuperpageHitCount() > 0);
+    }
+
+    @Test
+    public void testConflictingPagesOnlyEvictEachOtherInDirectMappedTLB() throws MemoryAccessException {
+        // Both pages land in the same TLB set, which holds one entry per way, see sedna.tlb.ways.
+        final int conflictingPage = PAGE_0 + 256 * 0x1000;
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, DATA));
+        setEntry(LEVEL0_TABLE, 256, leaf(PAGE_B, DATA));
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, PAGE_0)
+            .li(S1, conflictingPage)
+            .emit(ld(A0, S0, 0))
+            .emit(ld(A1, S1, 0))
+            .la(T0, LEVEL0_TABLE)
+            .li(T1, (int) leaf(PAGE_C, DATA))
+            .emit(sd(T1, T0, 0)) // No SFENCE.VMA, so a cached entry keeps the old translation.
+            .emit(ld(A2, S0, 0));
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(PAGE_A, x[A0]);
+        assertEquals(PAGE_B, x[A1]);
+        assertEquals(Integer.getInteger("sedna.tlb.ways", 1) > 1 ? PAGE_A : PAGE_C, x[A2]);
+    }
+
+    @Test
+    public void testSfenceWithAsidKeepsGlobalAndOtherAddressSpaces() throws MemoryAccessException {
+        // Each address space uses its own page, since the same page in two address spaces may share a TLB entry.
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, DATA));
+        setEntry(LEVEL0_TABLE, 1, leaf(PAGE_B, DATA | R5.PTE_G_MASK));
+        setEntry(LEVEL0_TABLE, 2, leaf(PAGE_C, DATA));
+
+        final TestAssembler program = startSupervisor(1)
+            .li(S0, PAGE_0)
+            .li(S1, PAGE_1)
+            .li(S2, PAGE_2)
+            .emit(ld(A0, S0, 0))
+            .emit(ld(A1, S1, 0));
+        setAddressTranslation(program, 2);
+        program.emit(ld(A2, S2, 0));
+        setAddressTranslation(program, 1);
+        program
+            .la(T0, LEVEL0_TABLE)
+            .li(T1, (int) leaf(PAGE_D, DATA))
+            .emit(sd(T1, T0, 0))
+            .emit(sd(T1, T0, 16))
+            .li(T1, (int) leaf(PAGE_D, DATA | R5.PTE_G_MASK))
+            .emit(sd(T1, T0, 8))
+            .li(T2, 1)
+            .emit(sfenceVma(ZERO, T2))
+            .emit(ld(A3, S0, 0)) // Entry of the flushed address space, walks the changed table.
+            .emit(ld(A4, S1, 0)); // Global entry, kept.
+        setAddressTranslation(program, 2);
+        program.emit(ld(A5, S2, 0)); // Entry of another address space, kept.
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(PAGE_A, x[A0]);
+        assertEquals(PAGE_B, x[A1]);
+        assertEquals(PAGE_C, x[A2]);
+        assertEquals(PAGE_D, x[A3]);
+        assertEquals(PAGE_B, x[A4]);
+        assertEquals(PAGE_C, x[A5]);
+    }
+
+    @Test
+    public void testSumChangeRetranslates() throws MemoryAccessException {
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, DATA | R5.PTE_U_MASK));
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, PAGE_0)
+            .li(S1, (int) R5.STATUS_SUM_MASK)
+            .emit(ld(A0, S0, 0)); // Faults, user page.
+        recordTrap(program, S2)
+            .emit(csrrs(ZERO, CSR_SSTATUS, S1))
+            .emit(ld(A1, S0, 0))
+            .emit(csrrc(ZERO, CSR_SSTATUS, S1))
+            .emit(ld(A2, S0, 0)); // Faults again.
+        recordTrap(program, S3);
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(0, x[A0]);
+        assertEquals(R5.EXCEPTION_LOAD_PAGE_FAULT, x[S2]);
+        assertEquals(PAGE_A, x[A1]);
+        assertEquals(0, x[A2]);
+        assertEquals(R5.EXCEPTION_LOAD_PAGE_FAULT, x[S3]);
+    }
+
+    @Test
+    public void testMxrChangeRetranslates() throws MemoryAccessException {
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, R5.PTE_V_MASK | R5.PTE_X_MASK | R5.PTE_A_MASK));
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, PAGE_0)
+            .li(S1, (int) R5.STATUS_MXR_MASK)
+            .emit(ld(A0, S0, 0)); // Faults, execute-only page.
+        recordTrap(program, S2)
+            .emit(csrrs(ZERO, CSR_SSTATUS, S1))
+            .emit(ld(A1, S0, 0))
+            .emit(csrrc(ZERO, CSR_SSTATUS, S1))
+            .emit(ld(A2, S0, 0)); // Faults again.
+        recordTrap(program, S3);
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(0, x[A0]);
+        assertEquals(R5.EXCEPTION_LOAD_PAGE_FAULT, x[S2]);
+        assertEquals(PAGE_A, x[A1]);
+        assertEquals(0, x[A2]);
+        assertEquals(R5.EXCEPTION_LOAD_PAGE_FAULT, x[S3]);
+    }
+
+    @Test
+    public void testMprvChangeRetranslates() throws MemoryAccessException {
+        // Runs in machine mode, where loads only get translated while MPRV is set.
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, DATA));
+
+        final TestAssembler program = new TestAssembler()
+            .la(T0, TRAP_HANDLER)
+            .emit(csrrw(ZERO, CSR_MTVEC, T0));
+        setAddressTranslation(program, 0);
+        program
+            .li(S0, PAGE_0)
+            .li(S1, (int) (R5.STATUS_MPRV_MASK | 1 << R5.STATUS_MPP_SHIFT)) // Supervisor mode.
+            .li(S4, (int) R5.STATUS_MPRV_MASK)
+            .emit(ld(A0, S0, 0)); // Faults, nothing at this physical address.
+        recordTrap(program, S2)
+            .emit(csrrw(ZERO, CSR_MSTATUS, S1))
+            .emit(ld(A1, S0, 0))
+            .emit(csrrc(ZERO, CSR_MSTATUS, S4)) // Leaves MPP as is.
+            .emit(ld(A2, S0, 0)); // Faults again.
+        recordTrap(program, S3);
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(0, x[A0]);
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[S2]);
+        assertEquals(PAGE_A, x[A1]);
+        assertEquals(0, x[A2]);
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[S3]);
+    }
+
+    @Test
+    public void testPageTableStoreInvalidatesCachedWalk() throws MemoryAccessException {
+        // Repoints the second level entry shared by both pages, then loads from the page not in the TLB yet.
+        setEntry(LEVEL0_TABLE, 0, leaf(PAGE_A, DATA));
+        setEntry(LEVEL0_TABLE, 1, leaf(PAGE_B, DATA));
+        setEntry(OTHER_LEVEL0_TABLE, 0, leaf(PAGE_C, DATA));
+        setEntry(OTHER_LEVEL0_TABLE, 1, leaf(PAGE_D, DATA));
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, PAGE_0)
+            .li(S1, PAGE_1)
+            .la(T0, LEVEL1_TABLE)
+            .li(T1, (int) pointer(OTHER_LEVEL0_TABLE))
+            .emit(sd(ZERO, T0, 16)) // Store TLB entry for the table, before it holds cached entries.
+            .emit(ld(A0, S0, 0))
+            .emit(sd(T1, T0, 0))
+            .emit(ld(A1, S1, 0));
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(PAGE_A, x[A0]);
+        assertEquals(PAGE_D, x[A1]);
+    }
+
+    @Test
+    public void testFaultsReportTheirOwnCauseAndAddress() throws MemoryAccessException {
+        // Harts reuse a single exception for all faults, which must not leak the cause or address of earlier ones.
+        setEntry(LEVEL0_TABLE, 1, leaf(PAGE_B, R5.PTE_V_MASK | R5.PTE_R_MASK | R5.PTE_A_MASK));
+        setEntry(LEVEL0_TABLE, 2, leaf(MEMORY_LENGTH, DATA)); // Past the end of memory.
+
+        final TestAssembler program = startSupervisor(0)
+            .li(S0, PAGE_0)
+            .li(S1, PAGE_1)
+            .li(A4, PAGE_2)
+            .emit(ld(A0, S0, 8)); // Not mapped.
+        recordTrap(program, S2)
+            .emit(addi(S3, T5, 0))
+            .emit(sd(ZERO, S1, 16)); // Read-only.
+        recordTrap(program, S4)
+            .emit(addi(S5, T5, 0))
+            .emit(ld(A0, A4, 24)); // Nothing at the physical address.
+        recordTrap(program, A2)
+            .emit(addi(A3, T5, 0));
+        run(program);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(R5.EXCEPTION_LOAD_PAGE_FAULT, x[S2]);
+        assertEquals(PAGE_0 + 8, x[S3]);
+        assertEquals(R5.EXCEPTION_STORE_PAGE_FAULT, x[S4]);
+        assertEquals(PAGE_1 + 16, x[S5]);
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[A2]);
+        assertEquals(PAGE_2 + 24, x[A3]);
+    }
+
+    @Test
+    public void testDisposedMemoryIsNoLongerAccessed() throws Exception {
+        // Runs in machine mode. Accesses after the memory was disposed must fault instead of using the freed memory.
+        final PhysicalMemory other = UnsafeMemory.create(0x1000);
+        assumeTrue(other instanceof UnsafeMemory);
+        memoryMap.addDevice(MEMORY_START + MEMORY_LENGTH, other);
+        other.store(0, 0x1234, Sizes.SIZE_64_LOG2);
+
+        final int flag = PAGE_A;
+        memory.store(flag, 0, Sizes.SIZE_64_LOG2);
+
+        final TestAssembler program = new TestAssembler()
+            .la(T0, TRAP_HANDLER)
+            .emit(csrrw(ZERO, CSR_MTVEC, T0))
+            .la(S0, MEMORY_LENGTH)
+            .la(S1, flag)
+            .emit(ld(A0, S0, 0));
+        final int wait = program.position();
+        program
+            .emit(ld(T1, S1, 0))
+            .emit(beq(T1, ZERO, -4))
+            .emit(ld(A1, S0, 0));
+        recordTrap(program, S2)
+            .emit(addi(S3, T5, 0))
+            .emit(sd(A0, S0, 8));
+        recordTrap(program, S4)
+            .emit(addi(S5, T5, 0));
+        final int end = start(program);
+
+        cpu.step(10_000);
+        final long pc = cpu.getDebugInterface().getProgramCounter();
+        assertTrue(pc == MEMORY_START + wait || pc == MEMORY_START + wait + 4);
+        ((UnsafeMemory) other).dispose();
+        memory.store(flag, 1, Sizes.SIZE_64_LOG2);
+        stepUntil(end);
+
+        final long[] x = cpu.getDebugInterface().getGeneralRegisters();
+        assertEquals(0x1234, x[A0]);
+        assertEquals(R5.EXCEPTION_FAULT_LOAD, x[S2]);
+        assertEquals(MEMORY_START + MEMORY_LENGTH, x[S3]);
+        assertEquals(R5.EXCEPTION_FAULT_STORE, x[S4]);
+        assertEquals(MEMORY_START + MEMORY_LENGTH + 8, x[S5]);
+    }
+
+    private TestAssembler startSupervisor(final int asid) {
+        // Sets up the trap handler and address translation, then continues in supervisor mode.
+        final TestAssembler program = new TestAssembler()
+            .la(T0, TRAP_HANDLER)
+            .emit(csrrw(ZERO, CSR_MTVEC, T0));
+        setAddressTranslation(program, asid);
+        program
+            .emit(SFENCE_VMA)
+            .li(T0, 1 << R5.STATUS_MPP_SHIFT) // Supervisor mode.
+            .emit(csrrw(ZERO, CSR_MSTATUS, T0));
+        final int supervisor = program.position() + 16;
+        return program
+            .la(T0, supervisor)
+            .emit(csrrw(ZERO, CSR_MEPC, T0))
+            .emit(MRET);
+    }
+
+    private static void setAddressTranslation(final TestAssembler program, final int asid) {
+        // Switches to the page tables set up by the test, in the specified address space, without SFENCE.VMA.
+        program
+            .li(T0, 8) // Sv39
+            .emit(slli(T0, T0, 60))
+            .li(T1, asid)
+            .emit(slli(T1, T1, 44))
+            .emit(add(T0, T0, T1))
+            .li(T1, (int) ((MEMORY_START + ROOT_TABLE) >>> R5.PAGE_ADDRESS_SHIFT))
+            .emit(add(T0, T0, T1))
+            .emit(csrrw(ZERO, CSR_SATP, T0));
+    }
+
+    private static TestAssembler recordTrap(final TestAssembler program, final int rd) {
+        // Moves the exception code of the last trap to the specified register and clears it.
+        return program
+            .emit(addi(rd, T3, 0))
+            .emit(addi(T3, ZERO, 0));
+    }
+
+    private void run(final TestAssembler program) throws MemoryAccessException {
+        stepUntil(start(program));
+    }
+
+    private int start(final TestAssembler program) throws MemoryAccessException {
+        // Stores the program and trap handler and resets the CPU to the start of the program, returns its end.
+        final int end = program.position();
+        program.loop().storeTo(memory, 0);
+
+        // Records the exception code in t3 and the faulting address in t5, and skips the faulting instruction.
+        store(memory, TRAP_HANDLER,
+            csrrs(T3, CSR_MCAUSE, ZERO),
+            csrrs(T5, CSR_MTVAL, ZERO),
+            csrrs(T4, CSR_MEPC, ZERO),
+            addi(T4, T4, 4),
+            csrrw(ZERO, CSR_MEPC, T4),
+            MRET);
+
+        cpu.reset(true, MEMORY_START);
+        return end;
+    }
+
+    private void stepUntil(final int offset) {
+        for (int i = 0; i < 100 && cpu.getDebugInterface().getProgramCounter() != MEMORY_START + offset; i++) {
+            cpu.step(10_000);
+        }
+        assertEquals(MEMORY_START + offset, cpu.getDebugInterface().getProgramCounter());
+    }
+
+    private void setEntry(final int table, final int index, final long entry) throws MemoryAccessException {
+        memory.store(table + index * 8, entry, Sizes.SIZE_64_LOG2);
+    }
+
+    private static long pointer(final int table) {
+        return leaf(table, R5.PTE_V_MASK);
+    }
+
+    private static long leaf(final int offset, final int flags) {
+        return ((MEMORY_START + offset) >>> R5.PAGE_ADDRESS_SHIFT) << R5.PTE_DATA_BITS | flags;
+    }
+}
@@ -0,0 +1,232 @@
+package li.cil.sedna.riscv;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import li.cil.sedna.api.Sizes;
+import li.cil.sedna.api.device.PhysicalMemory;
+import li.cil.sedna.api.memory.MemoryAccessException;
+import li.cil.sedna.api.memory.MemoryMap;
+
+/**
+ * Encodes RISC-V instructions for the small programs used in tests.
+ * <p>
+ * The static methods encode single instructions. Instances collect instructions into a program, and provide
+ * pseudo-instructions that expand to multiple instructions.
+ */
+final class TestAssembler {
+    public static final int ZERO = 0, RA = 1, SP = 2, T0 = 5, T1 = 6, T2 = 7, S0 = 8, S1 = 9;
+    public static final int A0 = 10, A1 = 11, A2 = 12, A3 = 13, A4 = 14, A5 = 15, A6 = 16, A7 = 17;
+    public static final int S2 = 18, S3 = 19, S4 = 20, S5 = 21;
+    public static final int T3 = 28, T4 = 29, T5 = 30, T6 = 31;
+
+    public static final int BEQ = 0b000, BNE = 0b001, BLT = 0b100, BGE = 0b101, BLTU = 0b110, BGEU = 0b111;
+
+    public static final int ECALL = 0x00000073;
+    public static final int MRET = 0x30200073;
+    public static final int WFI = 0x10500073;
+    public static final int SFENCE_VMA = 0x12000073; // sfence.vma zero, zero
+    public static final int FENCE_I = 0x0000100F;
+    public static final int PAUSE = 0x0100000F;
+    public static final int LOOP = 0x0000006F; // j .
+
+    private final IntArrayList code = new IntArrayList();
+
+    public TestAssembler emit(final int... instructions) {
+        code.addElements(code.size(), instructions);
+        return this;
+    }
+
+    /**
+     * Loads a 32-bit immediate, sign-extended to the register width.
+     */
+    public TestAssembler li(final int rd, final int value) {
+        final int upper = (value + 0x800) >> 12;
+        final int lower = value - (upper << 12);
+        if (upper != 0) {
+            code.add(lui(rd, upper));
+            code.add(addiw(rd, rd, lower));
+        } else {
+            code.add(addi(rd, ZERO, lower));
+        }
+        return this;
+    }
+
+    /**
+     * Loads the address of the specified offset from the start of the program.
+     */
+    public TestAssembler la(final int rd, final int offset) {
+        final int relative = offset - position();
+        final int upper = (relative + 0x800) >> 12;
+        code.add(auipc(rd, upper));
+        code.add(addi(rd, rd, relative - (upper << 12)));
+        return this;
+    }
+
+    /**
+     * Calls the specified function of a supervisor binary interface extension.
+     */
+    public TestAssembler sbiCall(final int extension, final int function) {
+        li(A7, extension);
+        li(A6, function);
+        code.add(ECALL);
+        return this;
+    }
+
+    public TestAssembler loop() {
+        code.add(LOOP);
+        return this;
+    }
+
+    /**
+     * Pads the program with {@code j .} instructions up to the specified offset.
+     */
+    public TestAssembler padTo(final int offset) {
+        if (position() > offset) {
+            throw new IllegalStateException();
+        }
+        while (position() < offset) {
+            code.add(LOOP);
+        }
+        return this;
+    }
+
+    /**
+     * The offset of the next instruction from the start of the program, in bytes.
+     */
+    public int position() {
+        return code.size() * 4;
+    }
+
+    public int[] toArray() {
+        return code.toIntArray();
+    }
+
+    public void storeTo(final PhysicalMemory memory, final int offset) throws MemoryAccessException {
+        store(memory, offset, toArray());
+    }
+
+    public void storeTo(final MemoryMap memoryMap, final long address) throws MemoryAccessException {
+        for (int i = 0; i < code.size(); i++) {
+            memoryMap.store(address + i * 4L, code.getInt(i), Sizes.SIZE_32_LOG2);
+        }
+    }
+
+    public static void store(final PhysicalMemory memory, final int offset, final int... program) throws MemoryAccessException {
+        for (int i = 0; i < program.length; i++) {
+            memory.store(offset + i * 4, program[i], Sizes.SIZE_32_LOG2);
+        }
+    }
+
+    public static int rType(final int opcode, final int funct3, final int funct7, final int rd, final int rs1, final int rs2) {
+        return (funct7 << 25) | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) | (rd << 7) | opcode;
+    }
+
+    public static int iType(final int opcode, final int funct3, final int rd, final int rs1, final int imm) {
+        return (imm << 20) | (rs1 << 15) | (funct3 << 12) | (rd << 7) | opcode;
+    }
+
+    public static int sType(final int funct3, final int rs2, final int rs1, final int imm) {
+        return ((imm >> 5) & 0x7F) << 25 | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) | (imm & 0x1F) << 7 | 0b0100011;
+    }
+
+    public static int lb(final int rd, final int rs1, final int imm) {
+        return iType(0b0000011, 0b000, rd, rs1, imm);
+    }
+
+    public static int lw(final int rd, final int rs1, final int imm) {
+        return iType(0b0000011, 0b010, rd, rs1, imm);
+    }
+
+    public static int ld(final int rd, final int rs1, final int imm) {
+        return iType(0b0000011, 0b011, rd, rs1, imm);
+    }
+
+    public static int sb(final int rs2, final int rs1, final int imm) {
+        return sType(0b000, rs2, rs1, imm);
+    }
+
+    public static int sw(final int rs2, final int rs1, final int imm) {
+        return sType(0b010, rs2, rs1, imm);
+    }
+
+    public static int sd(final int rs2, final int rs1, final int imm) {
+        return sType(0b011, rs2, rs1, imm);
+    }
+
+    public static int addi(final int rd, final int rs1, final int imm) {
+        return iType(0b0010011, 0b000, rd, rs1, imm);
+    }
+
+    public static int addiw(final int rd, final int rs1, final int imm) {
+        return iType(0b0011011, 0b000, rd, rs1, imm);
+    }
+
+    public static int andi(final int rd, final int rs1, final int imm) {
+        return iType(0b0010011, 0b111, rd, rs1, imm);
+    }
+
+    public static int slli(final int rd, final int rs1, final int shamt) {
+        return iType(0b0010011, 0b001, rd, rs1, shamt);
+    }
+
+    public static int add(final int rd, final int rs1, final int rs2) {
+        return rType(0b0110011, 0b000, 0, rd, rs1, rs2);
+    }
+
+    public static int and(final int rd, final int rs1, final int rs2) {
+        return rType(0b0110011, 0b111, 0, rd, rs1, rs2);
+    }
+
+    public static int lui(final int rd, final int imm) {
+        return (imm << 12) | (rd << 7) | 0b0110111;
+    }
+
+    public static int auipc(final int rd, final int imm) {
+        return (imm << 12) | (rd << 7) | 0b0010111;
+    }
+
+    public static int jal(final int rd, final int imm) {
+        return ((imm >> 20) & 1) << 31 | ((imm >> 1) & 0x3FF) << 21 | ((imm >> 11) & 1) << 20 |
+               ((imm >> 12) & 0xFF) << 12 | (rd << 7) | 0b1101111;
+    }
+
+    public static int branch(final int funct3, final int rs1, final int rs2, final int imm) {
+        return ((imm >> 12) & 1) << 31 | ((imm >> 5) & 0x3F) << 25 | (rs2 << 20) | (rs1 << 15) | (funct3 << 12) |
+               ((imm >> 1) & 0xF) << 8 | ((imm >> 11) & 1) << 7 | 0b1100011;
+    }
+
+    public static int beq(final int rs1, final int rs2, final int imm) {
+        return branch(BEQ, rs1, rs2, imm);
+    }
+
+    public static int bne(final int rs1, final int rs2, final int imm) {
+        return branch(BNE, rs1, rs2, imm);
+    }
+
+    public static int csrrw(final int rd, final int csr, final int rs1) {
+        return iType(0b1110011, 0b001, rd, rs1, csr);
+    }
+
+    public static int csrrs(final int rd, final int csr, final int rs1) {
+        return iType(0b1110011, 0b010, rd, rs1, csr);
+    }
+
+    public static int csrrc(final int rd, final int csr, final int rs1) {
+        return iType(0b1110011, 0b011, rd, rs1, csr);
+    }
+
+    public static int lrw(final int rd, final int rs1) {
+        return rType(0b0101111, 0b010, 0b0001000, rd, rs1, 0);
+    }
+
+    public static int scw(final int rd, final int rs2, final int rs1) {
+        return rType(0b0101111, 0b010, 0b0001100, rd, rs1, rs2);
+    }
+
+    public static int amoaddw(final int rd, final int rs2, final int rs1) {
+        return rType(0b0101111, 0b010, 0b0000000, rd, rs1, rs2);
+    }
+
+    public static int sfenceVma(final int rs1, final int rs2) {
+        return rType(0b1110011, 0b000, 0b0001001, 0, rs1, rs2);
+    }
+}